@@ -0,0 +1,117 @@
+package btree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import global.AttrType;
+
+/**
+ * In-page search for the position of a key among sorted keys. For integer
+ * keys the search interpolates: it guesses the position from the key values
+ * at both ends of the remaining range, which finds a key among near-uniform
+ * keys (dense ids) in two or three probes. As long as each guess at least
+ * halves the range the search keeps interpolating; as soon as one does not
+ * (skewed keys), it finishes with binary search, so it never does much worse
+ * than binary search. String keys always use binary search.
+ *
+ * Every method returns the number of leading keys that come before key:
+ * keys &lt; key, or keys &lt;= key if inclusive is set. On an index page that
+ * is the number of separators to pass, on a leaf page the slot of the first
+ * entry at or after key.
+ */
+class AdaptiveSearch {
+
+	private static final int MIN_INTERPOLATION = 8; // smaller ranges: binary
+
+	/**
+	 * Search the records of a B+ tree page (see PageLayout).
+	 */
+	static int search(ByteBuffer page, int keyType, KeyClass key, boolean inclusive) throws IOException {
+		int lo = 0, hi = PageLayout.slotCount(page);
+		if (keyType == AttrType.attrInteger) {
+			int k = ((IntegerKey) key).getKey().intValue();
+			while (hi - lo > MIN_INTERPOLATION) {
+				int first = keyAt(page, lo);
+				if (!before(first, k, inclusive))
+					return lo;
+				int last = keyAt(page, hi - 1);
+				if (before(last, k, inclusive))
+					return hi;
+				// now lo comes before key and hi - 1 does not
+				int pos = guess(lo, hi, first, last, k);
+				int range = hi - lo;
+				if (before(keyAt(page, pos), k, inclusive))
+					lo = pos + 1;
+				else
+					hi = pos;
+				if (2 * (hi - lo) > range)
+					break; // skewed: interpolation does not pay off here
+			}
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (before(keyAt(page, mid), k, inclusive))
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			return lo;
+		}
+
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			int cmp = PageLayout.compare(page, mid, keyType, key);
+			if (cmp < 0 || (inclusive && cmp == 0))
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * Search the first size entries of a sorted int array.
+	 */
+	static int search(int[] keys, int size, int k, boolean inclusive) {
+		int lo = 0, hi = size;
+		while (hi - lo > MIN_INTERPOLATION) {
+			if (!before(keys[lo], k, inclusive))
+				return lo;
+			if (before(keys[hi - 1], k, inclusive))
+				return hi;
+			int pos = guess(lo, hi, keys[lo], keys[hi - 1], k);
+			int range = hi - lo;
+			if (before(keys[pos], k, inclusive))
+				lo = pos + 1;
+			else
+				hi = pos;
+			if (2 * (hi - lo) > range)
+				break;
+		}
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (before(keys[mid], k, inclusive))
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	private static boolean before(int v, int k, boolean inclusive) {
+		return v < k || (inclusive && v == k);
+	}
+
+	/*
+	 * Interpolated position strictly inside (lo, hi - 1), given that the key
+	 * lies between the values at both ends.
+	 */
+	private static int guess(int lo, int hi, int first, int last, int k) {
+		long span = (long) last - first;
+		long pos = lo + (span == 0 ? 0 : ((long) k - first) * (hi - 1 - lo) / span);
+		return (int) Math.max(lo + 1, Math.min(hi - 2, pos));
+	}
+
+	private static int keyAt(ByteBuffer page, int slot) {
+		return page.getInt(PageLayout.recordOffset(page, slot));
+	}
+}
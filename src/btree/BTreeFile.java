@@ -10,6 +10,13 @@ package btree;
 import java.io.DataOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 import bufmgr.HashEntryNotFoundException;
 import bufmgr.InvalidFrameNumberException;
@@ -32,9 +39,9 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 	private final static String lineSep = System.getProperty("line.separator");
 
-	private static final int PAGE_SIZE = 1004;
+	static final int PAGE_SIZE = 1004;
 
-	private static final float PERCENTAGE = 50;
+	static final float PERCENTAGE = 50;
 
 	private static final Object BTLeafPage = null;
 
@@ -75,6 +82,57 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	private BTreeHeaderPage headerPage;
 	private PageId headerPageId;
 	private String dbname;
+	private int flags;
+	private int keyEncoding;
+	private PostingList postingList = new PostingList(this);
+	private LongKeys longKeys; // null unless the file has LONG_KEYS
+
+	private BTreeLog log;
+	private boolean syncCommit;
+	private long opId;
+	private boolean inOperation;
+
+	/*
+	 * pages dirtied while a log is attached, each held by one extra pin until
+	 * the log is on stable storage up to the given lsn (Long.MAX_VALUE: the
+	 * end of the operation in progress), so that the buffer manager cannot
+	 * write them before their log records
+	 */
+	private HashMap<Integer, Long> held = new HashMap<Integer, Long>();
+
+	/*
+	 * pages freed while a log is attached, given back to the database once
+	 * the log is on stable storage up to the given lsn: before, a crash may
+	 * leave a tree on disk that still points to them
+	 */
+	private HashMap<Integer, Long> freed = new HashMap<Integer, Long>();
+	private IndexNodeCache nodeCache;
+	private LookupCache lookupCache;
+	private BloomFilter bloomFilter;
+	private ExtentAllocator extents;
+
+	/*
+	 * pages any BTreeFile object unpinned dirty, maybe not yet written, each
+	 * with the object that last did: a sequential scan copies them out of the
+	 * pool instead of reading them from disk, also when another object open
+	 * on the same file changed them
+	 */
+	private static final Map<Integer, BTreeFile> dirtyPages = new HashMap<Integer, BTreeFile>();
+
+	/*
+	 * index pages of the top residentLevels levels (and the header page),
+	 * each held by one extra pin; pinPage and unpinPage serve them without
+	 * going to the buffer manager
+	 */
+	private HashMap<Integer, Page> resident = new HashMap<Integer, Page>();
+	private int residentLevels;
+	private int residentBudget;
+	private boolean residentStale; // the root changed during the operation
+	private boolean deferSplits;
+
+	private int splitCount;
+	private int mergeCount;
+	private int redistributeCount;
 
 	/**
 	 * Access method to data member.
@@ -86,6 +144,250 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		return headerPage;
 	}
 
+	/**
+	 * Number of leaf and index page splits performed by this BTreeFile object
+	 * since it was opened or since the last call to resetStatistics.
+	 * 
+	 * @return the split count
+	 */
+	public int getSplitCount() {
+		return splitCount;
+	}
+
+	/**
+	 * Number of leaf and index page merges performed by full delete.
+	 * 
+	 * @return the merge count
+	 */
+	public int getMergeCount() {
+		return mergeCount;
+	}
+
+	/**
+	 * Number of successful redistributions between sibling pages.
+	 * 
+	 * @return the redistribution count
+	 */
+	public int getRedistributeCount() {
+		return redistributeCount;
+	}
+
+	/**
+	 * Keep decoded copies of index pages in memory, so that descents through
+	 * them pin and decode no page. A cached node is dropped when its page is
+	 * changed or freed through this BTreeFile object; the file must therefore
+	 * not be changed through another BTreeFile object while the cache is on.
+	 * 
+	 * @param budget
+	 *            memory budget of the cache in bytes, 0 to turn it off. Input
+	 *            parameter.
+	 */
+	public void setNodeCacheSize(long budget) {
+		nodeCache = budget > 0 ? new IndexNodeCache(budget) : null;
+	}
+
+	/**
+	 * Number of index page visits served from the node cache.
+	 * 
+	 * @return the hit count, 0 if the cache is off
+	 */
+	public long getNodeCacheHits() {
+		return nodeCache == null ? 0 : nodeCache.getHits();
+	}
+
+	/**
+	 * Number of index page visits that had to decode the page.
+	 * 
+	 * @return the miss count, 0 if the cache is off
+	 */
+	public long getNodeCacheMisses() {
+		return nodeCache == null ? 0 : nodeCache.getMisses();
+	}
+
+	/**
+	 * Allocate the leaves and index pages created by splits in extents of
+	 * contiguous pages, placing a new page right after the page that split
+	 * when a reserved page lies there. The leaf chain then stays close to
+	 * the physical order of the file and range scans read it sequentially.
+	 * Reserved pages not used yet are given back by close and destroyFile.
+	 * 
+	 * @param pages
+	 *            number of pages per extent, 0 to allocate page by page.
+	 *            Input parameter.
+	 * @exception FreePageException
+	 *                error when giving back reserved pages
+	 */
+	public void setExtentSize(int pages) throws FreePageException {
+		if (extents != null)
+			extents.release();
+		extents = pages > 1 ? new ExtentAllocator(pages) : null;
+	}
+
+	/**
+	 * Defer leaf splits as in a B*-tree: when an insert finds its leaf full,
+	 * first move entries into a sibling leaf under the same parent which has
+	 * room (the right one, then the left one), evening out the two pages and
+	 * moving the separator between them; only if neither can take enough
+	 * entries is the leaf split. Leaves then stay well above half full, which
+	 * pays off for indexes that are mostly read after they are built, at the
+	 * price of pinning a sibling whenever an insert finds its leaf full.
+	 * Successful shifts are counted by getRedistributeCount.
+	 * 
+	 * @param defer
+	 *            true to shift entries to siblings before splitting. Input
+	 *            parameter.
+	 */
+	public void setDeferredSplits(boolean defer) {
+		deferSplits = defer;
+	}
+
+	/**
+	 * Cache the results of lookup for the most frequently looked up keys. The
+	 * cache uses the 2Q policy, so keys looked up only once do not push out
+	 * the hot ones. insert and Delete through this BTreeFile object keep it
+	 * coherent; changes through another BTreeFile object or a scan's
+	 * delete_current do not, so they must not happen while the cache is on.
+	 * 
+	 * @param capacity
+	 *            number of keys whose results are kept, 0 to turn the cache
+	 *            off. Input parameter.
+	 */
+	public void setLookupCacheSize(int capacity) {
+		lookupCache = capacity > 0 ? new LookupCache(capacity) : null;
+	}
+
+	/**
+	 * Number of lookups answered from the lookup cache.
+	 * 
+	 * @return the hit count, 0 if the cache is off
+	 */
+	public long getLookupCacheHits() {
+		return lookupCache == null ? 0 : lookupCache.getHits();
+	}
+
+	/**
+	 * Number of lookups that had to search the tree.
+	 * 
+	 * @return the miss count, 0 if the cache is off
+	 */
+	public long getLookupCacheMisses() {
+		return lookupCache == null ? 0 : lookupCache.getMisses();
+	}
+
+	/**
+	 * Give this file a Bloom filter over its keys, which lets lookup and
+	 * Delete of an absent key return without pinning any page of the tree. The
+	 * filter is stored in its own pages, recorded in the header page, and is
+	 * filled from the keys already in the tree. An existing filter is
+	 * replaced.
+	 * 
+	 * @param expectedKeys
+	 *            number of distinct keys the filter is sized for. Input
+	 *            parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception ConstructPageException
+	 *                error when allocate a page
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception FreePageException
+	 *                error when free the pages of the old filter
+	 */
+	public void createBloomFilter(int expectedKeys) throws IOException, IteratorException, KeyNotMatchException,
+			ConstructPageException, PinPageException, UnpinPageException, FreePageException {
+		dropBloomFilter();
+		BloomFilter filter = BloomFilter.create(this, expectedKeys);
+		setHeaderField(HeaderFields.BLOOM_FILTER, filter.getFirstPage().pid);
+		bloomFilter = filter;
+		rebuildBloomFilter();
+	}
+
+	/**
+	 * Refill the Bloom filter from the keys in the tree. Deleted keys stay in
+	 * the filter until it is rebuilt; a bulk load should rebuild it too.
+	 * 
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public void rebuildBloomFilter() throws IOException, IteratorException, KeyNotMatchException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		if (bloomFilter == null)
+			return;
+		bloomFilter.clear();
+
+		RID curRid = new RID();
+		PageId nextpage;
+		BTLeafPage leafPage = findRunStart(null, curRid);
+		KeyDataEntry entry = leafPage == null ? null : leafPage.getCurrent(curRid);
+		while (leafPage != null) {
+			while (entry != null) {
+				bloomFilter.addDeferred(entry.key);
+				entry = leafPage.getNext(curRid);
+			}
+			nextpage = leafPage.getNextPage();
+			unpinPage(leafPage.getCurPage());
+			leafPage = null;
+			if (nextpage.pid != INVALID_PAGE) {
+				leafPage = new BTLeafPage(pinPage(nextpage), headerPage.get_keyType());
+				entry = leafPage.getFirst(curRid);
+			}
+		}
+		bloomFilter.write();
+	}
+
+	/**
+	 * Remove the Bloom filter of this file and free its pages.
+	 * 
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception PinPageException
+	 *                error when pin the header page
+	 * @exception UnpinPageException
+	 *                error when unpin the header page
+	 * @exception FreePageException
+	 *                error when free a page
+	 */
+	public void dropBloomFilter() throws IOException, PinPageException, UnpinPageException, FreePageException {
+		if (bloomFilter == null)
+			return;
+		setHeaderField(HeaderFields.BLOOM_FILTER, INVALID_PAGE);
+		bloomFilter.destroy();
+		bloomFilter = null;
+	}
+
+	private void setHeaderField(int slot, int value) throws IOException, PinPageException, UnpinPageException {
+		BTreeHeaderPage header = new BTreeHeaderPage(pinPage(headerPageId));
+		if (!HeaderFields.versioned(header))
+			HeaderFields.init(header); // a file older than the fields: no flags, no filter
+		HeaderFields.set(header, slot, value);
+		unpinPage(headerPageId, true /* = DIRTY */);
+	}
+
+	/**
+	 * Reset the split, merge and redistribution counters to zero.
+	 */
+	public void resetStatistics() {
+		splitCount = 0;
+		mergeCount = 0;
+		redistributeCount = 0;
+	}
+
 	private PageId get_file_entry(String filename) throws GetFileEntryException {
 		try {
 			return SystemDefs.JavabaseDB.get_file_entry(filename);
@@ -95,9 +397,19 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		}
 	}
 
-	private Page pinPage(PageId pageno) throws PinPageException {
+	/*
+	 * Pages go through pinPage, unpinPage and freePage, which leave the
+	 * bookkeeping around them to one helper each: residentPage and
+	 * unpinResident for the resident top levels, markDirty for the node cache
+	 * and the dirty page registry, holdForLog and freeAfterCommit for the
+	 * log, forget for all but the log when a page is freed.
+	 */
+	Page pinPage(PageId pageno) throws PinPageException {
+		Page page = residentPage(pageno);
+		if (page != null)
+			return page;
 		try {
-			Page page = new Page();
+			page = new Page();
 			SystemDefs.JavabaseBM.pinPage(pageno, page, false/* Rdisk */);
 			return page;
 		} catch (Exception e) {
@@ -106,6 +418,28 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		}
 	}
 
+	/*
+	 * the frame of a page kept resident, null if it is not
+	 */
+	private Page residentPage(PageId pageno) {
+		return residentLevels > 0 ? resident.get(pageno.pid) : null;
+	}
+
+	/*
+	 * Unpin a resident page: it keeps its resident pin, and the dirty bit
+	 * goes to the buffer manager with an unpin and pin of its own. Returns
+	 * false, doing nothing, if the page is not resident.
+	 */
+	private boolean unpinResident(PageId pageno, boolean dirty) throws Exception {
+		if (residentLevels == 0 || !resident.containsKey(pageno.pid))
+			return false;
+		if (dirty) {
+			SystemDefs.JavabaseBM.unpinPage(pageno, true);
+			SystemDefs.JavabaseBM.pinPage(pageno, new Page(), false/* Rdisk */);
+		}
+		return true;
+	}
+
 	private void add_file_entry(String fileName, PageId pageno) throws AddFileEntryException {
 		try {
 			SystemDefs.JavabaseDB.add_file_entry(fileName, pageno);
@@ -115,23 +449,172 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		}
 	}
 
-	private void unpinPage(PageId pageno) throws UnpinPageException {
+	void unpinPage(PageId pageno) throws UnpinPageException {
+		unpinPage(pageno, false /* = not DIRTY */);
+	}
+
+	void freePage(PageId pageno) throws FreePageException {
 		try {
-			SystemDefs.JavabaseBM.unpinPage(pageno, false /* = not DIRTY */);
+			forget(pageno);
+			if (log != null)
+				freeAfterCommit(pageno);
+			else
+				SystemDefs.JavabaseBM.freePage(pageno);
 		} catch (Exception e) {
 			e.printStackTrace();
-			throw new UnpinPageException(e, "");
+			throw new FreePageException(e, "");
+		}
+	}
+
+	/*
+	 * Drop what this file keeps about a page it frees: its node cache entry,
+	 * its dirty mark and its resident pin.
+	 */
+	private void forget(PageId pageno) throws Exception {
+		if (nodeCache != null)
+			nodeCache.invalidate(pageno.pid);
+		synchronized (dirtyPages) {
+			dirtyPages.remove(pageno.pid);
+		}
+		if (resident.remove(pageno.pid) != null)
+			SystemDefs.JavabaseBM.unpinPage(pageno, false);
+	}
+
+	/*
+	 * Log the free of a page and leave it to releaseHeld to give back to the
+	 * database once the free is durable. A held page keeps its pin until
+	 * then.
+	 */
+	private void freeAfterCommit(PageId pageno) throws IOException {
+		long lsn = Long.MAX_VALUE;
+		if (inOperation) {
+			log.logFree(opId, pageno);
+		} else {
+			long id = log.begin();
+			log.logFree(id, pageno);
+			lsn = log.commit(id, false);
 		}
+		freed.put(pageno.pid, lsn);
 	}
 
-	private void freePage(PageId pageno) throws FreePageException {
+	/*
+	 * Read a page for a sequential scan into the scan's own frame, bypassing
+	 * the buffer pool. A page dirtied through any BTreeFile object may be
+	 * newer in the pool than on disk: it is copied from its frame, which stays
+	 * in the pool as it was.
+	 */
+	void readScanPage(PageId pageno, Page page) throws PinPageException {
 		try {
-			SystemDefs.JavabaseBM.freePage(pageno);
+			boolean dirty;
+			synchronized (dirtyPages) {
+				dirty = dirtyPages.containsKey(pageno.pid);
+			}
+			if (dirty) {
+				System.arraycopy(pinPage(pageno).getpage(), 0, page.getpage(), 0, MAX_SPACE);
+				unpinPage(pageno);
+				return;
+			}
+			SystemDefs.JavabaseDB.read_page(pageno, page);
 		} catch (Exception e) {
 			e.printStackTrace();
-			throw new FreePageException(e, "");
+			throw new PinPageException(e, "");
+		}
+	}
+
+	/*
+	 * Write the pages this object dirtied to disk, straight from their frames,
+	 * forgetting each once it is written. With a log, the log is synced
+	 * first, as the buffer manager would have to. The frames stay in the pool as they are, so this works
+	 * on pages pinned by others too.
+	 */
+	void writeDirtyPages() throws IOException, PinPageException, UnpinPageException {
+		if (log != null) {
+			log.sync();
+			releaseHeld();
+		}
+		List<Integer> pids = new ArrayList<Integer>();
+		synchronized (dirtyPages) {
+			for (Map.Entry<Integer, BTreeFile> entry : dirtyPages.entrySet())
+				if (entry.getValue() == this)
+					pids.add(entry.getKey());
+		}
+		for (int pid : pids) {
+			if (held.containsKey(pid))
+				continue; // changed by the operation in progress
+			PageId pageno = new PageId(pid);
+			Page page = pinPage(pageno);
+			try {
+				SystemDefs.JavabaseDB.write_page(pageno, page);
+			} catch (IOException e) {
+				throw e;
+			} catch (Exception e) {
+				e.printStackTrace();
+				throw new IOException(e.toString());
+			} finally {
+				unpinPage(pageno);
+			}
+			synchronized (dirtyPages) {
+				dirtyPages.remove(pid, this);
+			}
+		}
+	}
+
+	PageId newPage(Page page) throws ConstructPageException {
+		try {
+			PageId pageno = SystemDefs.JavabaseBM.newPage(page, 1);
+			logAlloc(pageno);
+			return pageno;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ConstructPageException(e, "");
+		}
+	}
+
+	/*
+	 * With a log, log the allocation of a page: the space map page that
+	 * records it may not be on disk when a crash comes, and recovery marks
+	 * the page allocated again.
+	 */
+	void logAlloc(PageId pageno) throws IOException {
+		if (log == null)
+			return;
+		if (inOperation) {
+			log.logAlloc(opId, pageno);
+		} else {
+			long id = log.begin();
+			log.logAlloc(id, pageno);
+			log.commit(id, false);
 		}
+	}
+
+	/*
+	 * A new leaf or index page, pinned and empty; with extents on, placed
+	 * after near if possible
+	 */
+	BTLeafPage newLeafPage(PageId near) throws ConstructPageException, IOException {
+		Page page = new Page();
+		PageId pageno = newTreePage(near, page);
+		BTLeafPage leafPage = new BTLeafPage(page, headerPage.get_keyType());
+		leafPage.init(pageno, page);
+		leafPage.setType(NodeType.LEAF);
+		return leafPage;
+	}
+
+	BTIndexPage newIndexPage(PageId near) throws ConstructPageException, IOException {
+		Page page = new Page();
+		PageId pageno = newTreePage(near, page);
+		BTIndexPage indexPage = new BTIndexPage(page, headerPage.get_keyType());
+		indexPage.init(pageno, page);
+		indexPage.setType(NodeType.INDEX);
+		return indexPage;
+	}
 
+	private PageId newTreePage(PageId near, Page page) throws ConstructPageException, IOException {
+		if (extents == null)
+			return newPage(page);
+		PageId pageno = extents.allocate(near, page);
+		logAlloc(pageno);
+		return pageno;
 	}
 
 	private void delete_file_entry(String filename) throws DeleteFileEntryException {
@@ -143,13 +626,261 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		}
 	}
 
-	private void unpinPage(PageId pageno, boolean dirty) throws UnpinPageException {
+	void unpinPage(PageId pageno, boolean dirty) throws UnpinPageException {
+		try {
+			if (dirty) {
+				markDirty(pageno);
+				if (log != null)
+					holdForLog(pageno);
+			}
+			if (!unpinResident(pageno, dirty))
+				SystemDefs.JavabaseBM.unpinPage(pageno, dirty);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new UnpinPageException(e, "");
+		}
+	}
+
+	/*
+	 * Note that a page changed: its node cache entry is stale, and a
+	 * sequential scan must copy it from the pool.
+	 */
+	private void markDirty(PageId pageno) {
+		if (nodeCache != null)
+			nodeCache.invalidate(pageno.pid);
+		synchronized (dirtyPages) {
+			dirtyPages.put(pageno.pid, this);
+		}
+	}
+
+	/*
+	 * Log the after-image of a dirtied page and hold it with a pin of its
+	 * own until the log is durable past it. The caller still has the page
+	 * pinned, so this pin finds it in the pool; a page held already keeps
+	 * its one hold.
+	 */
+	private void holdForLog(PageId pageno) throws Exception {
+		Page page = new Page();
+		SystemDefs.JavabaseBM.pinPage(pageno, page, false/* Rdisk */);
+		long lsn = Long.MAX_VALUE;
+		if (inOperation) {
+			log.logPage(opId, pageno, page.getpage());
+		} else {
+			// a change outside any operation is an operation of its own
+			long id = log.begin();
+			log.logPage(id, pageno, page.getpage());
+			lsn = log.commit(id, false);
+		}
+		Long previous = held.put(pageno.pid, lsn);
+		if (previous != null) {
+			held.put(pageno.pid, Math.max(previous, lsn));
+			SystemDefs.JavabaseBM.unpinPage(pageno, false);
+		}
+		if (held.size() > maxHeld())
+			limitHeld();
+	}
+
+	/**
+	 * Attach a redo log to this file. From now on, every insert and delete
+	 * logs the after-images of the pages it changes and commits through the
+	 * log. Several files may share one log; their commits are then grouped
+	 * into the same fsync.
+	 * 
+	 * The pages an operation dirties stay pinned until its commit is on
+	 * stable storage (see BTreeLog). With syncCommit off, at most a few dozen
+	 * such pages wait for the next group flush; beyond that, the operation
+	 * waits for the flush itself. An operation that alone dirties more than
+	 * half the buffer pool fails with an UnpinPageException. Pages an
+	 * operation frees go back to the database once it is durable.
+	 * 
+	 * @param log
+	 *            the log, null to stop logging. Input parameter.
+	 * @param syncCommit
+	 *            true to return from an operation only when its commit is on
+	 *            stable storage; false to let it become durable with the next
+	 *            group flush of the log. Input parameter.
+	 * @exception IOException
+	 *                error writing the previous log
+	 * @exception UnpinPageException
+	 *                error when unpin a page held for the previous log
+	 */
+	public void setLog(BTreeLog log, boolean syncCommit) throws IOException, UnpinPageException {
+		if (this.log != null) {
+			this.log.sync();
+			releaseHeld();
+			this.log.detach(this);
+		}
+		this.log = log;
+		this.syncCommit = syncCommit;
+		if (log != null)
+			log.attach(this);
+	}
+
+	void beginOperation() {
+		if (log != null)
+			opId = log.begin();
+		inOperation = true;
+	}
+
+	void commitOperation()
+			throws IOException, PinPageException, UnpinPageException, IteratorException {
+		inOperation = false;
+		if (log != null) {
+			long lsn = log.commit(opId, syncCommit);
+			for (Map.Entry<Integer, Long> entry : held.entrySet())
+				if (entry.getValue() == Long.MAX_VALUE)
+					entry.setValue(lsn);
+			for (Map.Entry<Integer, Long> entry : freed.entrySet())
+				if (entry.getValue() == Long.MAX_VALUE)
+					entry.setValue(lsn);
+			if (held.size() > maxHeld())
+				log.sync();
+			releaseHeld();
+		}
+		if (residentStale)
+			refreshResident();
+	}
+
+	/*
+	 * Unpin the held pages whose log records are on stable storage, then
+	 * give the freed pages whose frees are back to the database. The dirty
+	 * bit of each held page went to the buffer manager with the unpin that
+	 * dirtied it.
+	 */
+	void releaseHeld() throws UnpinPageException {
+		if (held.isEmpty() && freed.isEmpty())
+			return;
+		long durable = log.getDurableLsn();
+		try {
+			Iterator<Map.Entry<Integer, Long>> it = held.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<Integer, Long> entry = it.next();
+				if (entry.getValue() <= durable) {
+					SystemDefs.JavabaseBM.unpinPage(new PageId(entry.getKey()), false);
+					it.remove();
+				}
+			}
+			it = freed.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<Integer, Long> entry = it.next();
+				if (entry.getValue() <= durable && !held.containsKey(entry.getKey())) {
+					SystemDefs.JavabaseBM.freePage(new PageId(entry.getKey()));
+					it.remove();
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new UnpinPageException(e, "");
+		}
+	}
+
+	/*
+	 * Bring the held set back under maxHeld: sync the log and release the
+	 * pages of committed operations. The pages of the operation in progress
+	 * stay held until its commit; if they alone take half the buffer pool,
+	 * the operation fails instead of running the pool out of frames.
+	 */
+	private void limitHeld() throws IOException, UnpinPageException {
+		int current = 0;
+		for (long lsn : held.values())
+			if (lsn == Long.MAX_VALUE)
+				current++;
+		if (current < held.size()) {
+			log.sync();
+			releaseHeld();
+		}
+		if (current > SystemDefs.JavabaseBM.getNumBuffers() / 2)
+			throw new UnpinPageException(null,
+					"operation dirtied " + current + " pages, more than the buffer pool can hold for the log");
+	}
+
+	private static int maxHeld() {
+		return Math.max(32, SystemDefs.JavabaseBM.getNumBuffers() / 8);
+	}
+
+	/**
+	 * Keep the top levels of the tree pinned in the buffer pool while this
+	 * BTreeFile object is open, together with the header page. Operations
+	 * then find these pages without asking the buffer manager. The resident
+	 * set follows root splits and root collapses: it is rebuilt at the end of
+	 * an operation that changed the root. Pages entering the top levels by
+	 * other splits join at the next rebuild.
+	 * 
+	 * @param levels
+	 *            number of index levels to keep, counted from the root; 0
+	 *            releases all resident pages. Input parameter.
+	 * @param maxPages
+	 *            budget: at most this many pages are kept, filled level by
+	 *            level. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception IteratorException
+	 *                iterator error
+	 */
+	public void setResidentLevels(int levels, int maxPages)
+			throws IOException, PinPageException, UnpinPageException, IteratorException {
+		residentLevels = Math.max(0, levels);
+		residentBudget = maxPages;
+		refreshResident();
+	}
+
+	/**
+	 * Number of pages kept pinned by setResidentLevels.
+	 * 
+	 * @return the resident page count
+	 */
+	public int getResidentPageCount() {
+		return resident.size();
+	}
+
+	private void refreshResident() throws IOException, PinPageException, UnpinPageException, IteratorException {
+		residentStale = false;
 		try {
-			SystemDefs.JavabaseBM.unpinPage(pageno, dirty);
+			releaseResident();
 		} catch (Exception e) {
 			e.printStackTrace();
 			throw new UnpinPageException(e, "");
 		}
+		if (residentLevels == 0 || residentBudget <= 0)
+			return;
+
+		// the header page (not counted), then the index pages level by level
+		Page header = pinPage(headerPageId);
+		resident.put(headerPageId.pid, header);
+		List<PageId> level = new ArrayList<PageId>();
+		if (headerPage.get_rootId().pid != INVALID_PAGE)
+			level.add(headerPage.get_rootId());
+		for (int depth = 0; depth < residentLevels && !level.isEmpty(); depth++) {
+			List<PageId> children = new ArrayList<PageId>();
+			for (PageId pageno : level) {
+				if (resident.size() > residentBudget)
+					return;
+				Page page = pinPage(pageno);
+				BTSortedPage sortedPage = new BTSortedPage(page, headerPage.get_keyType());
+				if (sortedPage.getType() != NodeType.INDEX) {
+					unpinPage(pageno);
+					continue;
+				}
+				resident.put(pageno.pid, page); // the pin stays with it
+				BTIndexPage indexPage = new BTIndexPage(page, headerPage.get_keyType());
+				children.add(indexPage.getPrevPage());
+				RID rid = new RID();
+				for (KeyDataEntry entry = indexPage.getFirst(rid); entry != null; entry = indexPage.getNext(rid))
+					children.add(((IndexData) entry.data).getData());
+			}
+			level = children;
+		}
+	}
+
+	private void releaseResident()
+			throws PageUnpinnedException, InvalidFrameNumberException, HashEntryNotFoundException, ReplacerException {
+		for (Integer pid : resident.keySet())
+			SystemDefs.JavabaseBM.unpinPage(new PageId(pid), false);
+		resident.clear();
 	}
 
 	/**
@@ -171,6 +902,15 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 		headerPage = new BTreeHeaderPage(headerPageId);
 		dbname = new String(filename);
+		try {
+			flags = HeaderFields.getOrZero(headerPage, HeaderFields.FLAGS);
+			keyEncoding = HeaderFields.getOrZero(headerPage, HeaderFields.KEY_ENCODING);
+			openLongKeys();
+			openBloomFilter();
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new ConstructPageException(e, "");
+		}
 		/*
 		 *
 		 * - headerPageId is the PageId of this BTreeFile's header page; -
@@ -185,9 +925,12 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 * @param filename
 	 *            file name. Input parameter.
 	 * @param keytype
-	 *            the type of key. Input parameter.
+	 *            the type of key: AttrType.attrInteger, AttrType.attrString,
+	 *            KeyEncoding.attrLong, KeyEncoding.attrDouble or
+	 *            KeyEncoding.attrComposite. Input parameter.
 	 * @param keysize
-	 *            the maximum size of a key. Input parameter.
+	 *            the maximum size of a key (for composite keys, of its encoded
+	 *            columns, see KeyEncoding). Input parameter.
 	 * @param delete_fashion
 	 *            full delete or naive delete. Input parameter. It is either
 	 *            DeleteFashion.NAIVE_DELETE or DeleteFashion.FULL_DELETE.
@@ -202,6 +945,39 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 */
 	public BTreeFile(String filename, int keytype, int keysize, int delete_fashion)
 			throws GetFileEntryException, ConstructPageException, IOException, AddFileEntryException {
+		this(filename, keytype, keysize, delete_fashion, IndexFlags.NONE);
+	}
+
+	/**
+	 * if index file exists, open it; else create it with the given options.
+	 * The options of an existing file are those it was created with.
+	 * 
+	 * @param filename
+	 *            file name. Input parameter.
+	 * @param keytype
+	 *            the type of key: AttrType.attrInteger, AttrType.attrString,
+	 *            KeyEncoding.attrLong, KeyEncoding.attrDouble or
+	 *            KeyEncoding.attrComposite. Input parameter.
+	 * @param keysize
+	 *            the maximum size of a key (for composite keys, of its encoded
+	 *            columns, see KeyEncoding). Input parameter.
+	 * @param delete_fashion
+	 *            full delete or naive delete. Input parameter. It is either
+	 *            DeleteFashion.NAIVE_DELETE or DeleteFashion.FULL_DELETE.
+	 * @param index_flags
+	 *            options of a new file, a combination of IndexFlags. Input
+	 *            parameter.
+	 * @exception GetFileEntryException
+	 *                can not get file
+	 * @exception ConstructPageException
+	 *                page constructor failed
+	 * @exception IOException
+	 *                error from lower layer
+	 * @exception AddFileEntryException
+	 *                can not add file into DB
+	 */
+	public BTreeFile(String filename, int keytype, int keysize, int delete_fashion, int index_flags)
+			throws GetFileEntryException, ConstructPageException, IOException, AddFileEntryException {
 
 		headerPageId = get_file_entry(filename);
 		if (headerPageId == null) // file not exist
@@ -211,18 +987,49 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			add_file_entry(filename, headerPageId);
 			headerPage.set_magic0(MAGIC0);
 			headerPage.set_rootId(new PageId(INVALID_PAGE));
-			headerPage.set_keyType((short) keytype);
-			headerPage.set_maxKeySize(keysize);
+			headerPage.set_keyType((short) KeyEncoding.storedKeyType(keytype));
+			headerPage.set_maxKeySize(KeyEncoding.maxKeySize(KeyEncoding.forKeyType(keytype), keysize));
 			headerPage.set_deleteFashion(delete_fashion);
 			headerPage.setType(NodeType.BTHEAD);
+			HeaderFields.init(headerPage);
+			if ((index_flags & IndexFlags.UNIQUE) != 0)
+				index_flags &= ~IndexFlags.POSTING_LIST;
+			if (keytype != AttrType.attrString || (index_flags & IndexFlags.KEY_VALUE) != 0)
+				index_flags &= ~IndexFlags.LONG_KEYS;
+			HeaderFields.set(headerPage, HeaderFields.FLAGS, index_flags);
+			HeaderFields.set(headerPage, HeaderFields.KEY_ENCODING, KeyEncoding.forKeyType(keytype));
 		} else {
 			headerPage = new BTreeHeaderPage(headerPageId);
 		}
+		flags = HeaderFields.getOrZero(headerPage, HeaderFields.FLAGS);
+		keyEncoding = HeaderFields.getOrZero(headerPage, HeaderFields.KEY_ENCODING);
+		openLongKeys();
+		openBloomFilter();
 
 		dbname = new String(filename);
 
 	}
 
+	private void openLongKeys() throws IOException {
+		if ((flags & IndexFlags.LONG_KEYS) != 0)
+			longKeys = new LongKeys(this, headerPage.get_maxKeySize());
+	}
+
+	private void openBloomFilter() throws ConstructPageException, IOException {
+		if (!HeaderFields.versioned(headerPage))
+			return;
+		PageId first = new PageId(HeaderFields.get(headerPage, HeaderFields.BLOOM_FILTER));
+		if (first.pid == INVALID_PAGE)
+			return;
+		try {
+			bloomFilter = BloomFilter.open(this, first);
+		} catch (PinPageException e) {
+			throw new ConstructPageException(e, "cannot read the Bloom filter");
+		} catch (UnpinPageException e) {
+			throw new ConstructPageException(e, "cannot read the Bloom filter");
+		}
+	}
+
 	/**
 	 * Close the B+ tree file. Unpin header page.
 	 * 
@@ -238,6 +1045,22 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	public void close()
 			throws PageUnpinnedException, InvalidFrameNumberException, HashEntryNotFoundException, ReplacerException {
 		if (headerPage != null) {
+			releaseResident();
+			if (extents != null) {
+				try {
+					extents.release();
+				} catch (FreePageException e) {
+					e.printStackTrace();
+				}
+			}
+			try {
+				if (log != null)
+					setLog(null, false);
+				// a scan of the file opened later reads these from disk
+				writeDirtyPages();
+			} catch (Exception e) {
+				e.printStackTrace(); // the frames stay dirty in the pool
+			}
 			SystemDefs.JavabaseBM.unpinPage(headerPageId, true);
 			headerPage = null;
 		}
@@ -264,9 +1087,29 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	public void destroyFile() throws IOException, IteratorException, UnpinPageException, FreePageException,
 			DeleteFileEntryException, ConstructPageException, PinPageException {
 		if (headerPage != null) {
+			if (log != null) {
+				// destroying the file is not logged: write its pages and empty
+				// the log, so that recovery never redoes them over pages
+				// handed out again
+				log.checkpoint();
+				setLog(null, false);
+			}
+			residentLevels = 0;
+			try {
+				releaseResident();
+			} catch (Exception e) {
+				e.printStackTrace();
+				throw new UnpinPageException(e, "");
+			}
 			PageId pgId = headerPage.get_rootId();
 			if (pgId.pid != INVALID_PAGE)
 				_destroyFile(pgId);
+			if (bloomFilter != null) {
+				bloomFilter.destroy();
+				bloomFilter = null;
+			}
+			if (extents != null)
+				extents.release();
 			unpinPage(headerPageId);
 			freePage(headerPageId);
 			delete_file_entry(dbname);
@@ -292,37 +1135,191 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			}
 		} else { // BTLeafPage
 
-			unpinPage(pageno);
-			freePage(pageno);
+			if ((flags & IndexFlags.POSTING_LIST) != 0) {
+				BTLeafPage leafPage = new BTLeafPage(page, headerPage.get_keyType());
+				RID rid = new RID();
+				KeyDataEntry entry;
+				for (entry = leafPage.getFirst(rid); entry != null; entry = leafPage.getNext(rid))
+					if (PostingList.isHead(((LeafData) entry.data).getData()))
+						postingList.destroy(((LeafData) entry.data).getData().pageNo);
+			}
+			unpinPage(pageno);
+			freePage(pageno);
+		}
+
+	}
+
+	void updateHeader(PageId newRoot) throws IOException, PinPageException, UnpinPageException {
+
+		BTreeHeaderPage header;
+		PageId old_data;
+
+		header = new BTreeHeaderPage(pinPage(headerPageId));
+
+		//old_data = headerPage.get_rootId();
+		header.set_rootId(newRoot);
+
+		// clock in dirty bit to bm so our dtor needn't have to worry about it
+		unpinPage(headerPageId, true /* = DIRTY */ );
+		if (residentLevels > 0)
+			residentStale = true;
+
+		// ASSERTIONS:
+		// - headerPage, headerPageId valid, pinned and marked as dirty
+
+	}
+
+	/**
+	 * insert record with the given key and rid
+	 * 
+	 * @param key
+	 *            the key of the record. Input parameter.
+	 * @param rid
+	 *            the rid of the record. Input parameter.
+	 * @exception KeyTooLongException
+	 *                key size exceeds the max keysize.
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception LeafInsertRecException
+	 *                insert error in leaf page
+	 * @exception IndexInsertRecException
+	 *                insert error in index page
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception NodeNotMatchException
+	 *                node not match index page nor leaf page
+	 * @exception ConvertException
+	 *                error when convert between revord and byte array
+	 * @exception DeleteRecException
+	 *                error when delete in index page
+	 * @exception IndexSearchException
+	 *                error when search
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception LeafDeleteException
+	 *                error when delete in leaf page
+	 * @exception InsertException
+	 *                error when insert in index page, or the key is already
+	 *                present in a UNIQUE file
+	 */
+	public void insert(KeyClass key, RID rid) throws KeyTooLongException, KeyNotMatchException, LeafInsertRecException,
+			IndexInsertRecException, ConstructPageException, UnpinPageException, PinPageException,
+			NodeNotMatchException, ConvertException, DeleteRecException, IndexSearchException, IteratorException,
+			LeafDeleteException, InsertException, IOException
+
+	{
+		key = KeyEncoding.encode(key, keyEncoding);
+		checkKey(key);
+		UniqueProbe probe = null;
+		if ((flags & IndexFlags.UNIQUE) != 0)
+			probe = new UniqueProbe();
+
+		beginOperation();
+		key = storeKey(key);
+		boolean inserted = false;
+		try {
+			if ((flags & IndexFlags.POSTING_LIST) != 0) {
+				if (lookupCache != null)
+					lookupCache.invalidate(key); // insertEntry is skipped if the rid goes into a list
+				rid = postingInsert(key, rid);
+			}
+			if (rid != null)
+				insertEntry(key, rid, probe);
+			inserted = true;
+		} finally {
+			if (!inserted)
+				abandonKey(key);
 		}
+		commitOperation();
 
+		if (probe != null && probe.found)
+			throw new InsertException(null, "duplicate key " + key);
 	}
 
-	private void updateHeader(PageId newRoot) throws IOException, PinPageException, UnpinPageException {
-
-		BTreeHeaderPage header;
-		PageId old_data;
-
-		header = new BTreeHeaderPage(pinPage(headerPageId));
-
-		//old_data = headerPage.get_rootId();
-		header.set_rootId(newRoot);
-
-		// clock in dirty bit to bm so our dtor needn't have to worry about it
-		unpinPage(headerPageId, true /* = DIRTY */ );
-
-		// ASSERTIONS:
-		// - headerPage, headerPageId valid, pinned and marked as dirty
-
+	/**
+	 * insert record with the given key and rid unless the key is already
+	 * present. The check and the insert are done in the same descent, while
+	 * the leaf is pinned. The check looks at the leaf the key descends to,
+	 * which is where the only entry of a key of a UNIQUE file lives.
+	 * 
+	 * @param key
+	 *            the key of the record. Input parameter.
+	 * @param rid
+	 *            the rid of the record. Input parameter.
+	 * @return true if inserted, false if the key was already present
+	 * @exception KeyTooLongException
+	 *                key size exceeds the max keysize.
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception LeafInsertRecException
+	 *                insert error in leaf page
+	 * @exception IndexInsertRecException
+	 *                insert error in index page
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception NodeNotMatchException
+	 *                node not match index page nor leaf page
+	 * @exception ConvertException
+	 *                error when convert between revord and byte array
+	 * @exception DeleteRecException
+	 *                error when delete in index page
+	 * @exception IndexSearchException
+	 *                error when search
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception LeafDeleteException
+	 *                error when delete in leaf page
+	 * @exception InsertException
+	 *                error when insert in index page, or the file is a
+	 *                POSTING_LIST file
+	 */
+	public boolean insertIfAbsent(KeyClass key, RID rid)
+			throws KeyTooLongException, KeyNotMatchException, LeafInsertRecException, IndexInsertRecException,
+			ConstructPageException, UnpinPageException, PinPageException, NodeNotMatchException, ConvertException,
+			DeleteRecException, IndexSearchException, IteratorException, LeafDeleteException, InsertException,
+			IOException {
+		if ((flags & IndexFlags.POSTING_LIST) != 0)
+			throw new InsertException(null, "insertIfAbsent on a posting list file");
+		key = KeyEncoding.encode(key, keyEncoding);
+		checkKey(key);
+
+		UniqueProbe probe = new UniqueProbe();
+		beginOperation();
+		key = storeKey(key);
+		boolean inserted = false;
+		try {
+			insertEntry(key, rid, probe);
+			inserted = true;
+		} finally {
+			if (!inserted)
+				abandonKey(key);
+		}
+		commitOperation();
+		return !probe.found;
 	}
 
 	/**
-	 * insert record with the given key and rid
+	 * insert record with the given key and rid, or replace the rid of the
+	 * entry if the key is already present. Like insertIfAbsent, this takes a
+	 * single descent.
 	 * 
 	 * @param key
 	 *            the key of the record. Input parameter.
 	 * @param rid
 	 *            the rid of the record. Input parameter.
+	 * @return the rid the key had before, null if it was inserted
 	 * @exception KeyTooLongException
 	 *                key size exceeds the max keysize.
 	 * @exception KeyNotMatchException
@@ -352,19 +1349,55 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 * @exception LeafDeleteException
 	 *                error when delete in leaf page
 	 * @exception InsertException
-	 *                error when insert in index page
+	 *                error when insert in index page, or the file is a
+	 *                POSTING_LIST file
 	 */
-	public void insert(KeyClass key, RID rid) throws KeyTooLongException, KeyNotMatchException, LeafInsertRecException,
-			IndexInsertRecException, ConstructPageException, UnpinPageException, PinPageException,
-			NodeNotMatchException, ConvertException, DeleteRecException, IndexSearchException, IteratorException,
-			LeafDeleteException, InsertException, IOException
-
-	{
-		KeyDataEntry newRootEntry;
+	public RID upsert(KeyClass key, RID rid)
+			throws KeyTooLongException, KeyNotMatchException, LeafInsertRecException, IndexInsertRecException,
+			ConstructPageException, UnpinPageException, PinPageException, NodeNotMatchException, ConvertException,
+			DeleteRecException, IndexSearchException, IteratorException, LeafDeleteException, InsertException,
+			IOException {
+		if ((flags & IndexFlags.POSTING_LIST) != 0)
+			throw new InsertException(null, "upsert on a posting list file");
+		key = KeyEncoding.encode(key, keyEncoding);
+		checkKey(key);
+
+		UniqueProbe probe = new UniqueProbe();
+		probe.replace = true;
+		beginOperation();
+		key = storeKey(key);
+		boolean inserted = false;
+		try {
+			insertEntry(key, rid, probe);
+			inserted = true;
+		} finally {
+			if (!inserted)
+				abandonKey(key);
+		}
+		commitOperation();
+		return probe.previous;
+	}
 
-		if (BT.getKeyLength(key) > headerPage.get_maxKeySize())
-			throw new KeyTooLongException(null, "");
+	/*
+	 * Insert a leaf entry as it is. Unlike insert, this bypasses the posting
+	 * list handling, so entries whose data is a posting list head can be
+	 * moved from one leaf to another.
+	 */
+	void insertLeafEntry(KeyClass key, RID rid) throws KeyTooLongException, KeyNotMatchException,
+			LeafInsertRecException, IndexInsertRecException, ConstructPageException, UnpinPageException,
+			PinPageException, NodeNotMatchException, ConvertException, DeleteRecException, IndexSearchException,
+			IteratorException, LeafDeleteException, InsertException, IOException {
+		beginOperation();
+		insertEntry(key, rid, null);
+		commitOperation();
+	}
 
+	/*
+	 * Reject a key of the wrong type or too long for the file, before an
+	 * insert changes anything. A long key of a LONG_KEYS file passes: the
+	 * tree only holds its prefix and references.
+	 */
+	void checkKey(KeyClass key) throws KeyTooLongException, KeyNotMatchException, IOException {
 		if (key instanceof StringKey) {
 			if (headerPage.get_keyType() != AttrType.attrString) {
 				throw new KeyNotMatchException(null, "");
@@ -376,6 +1409,58 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		} else
 			throw new KeyNotMatchException(null, "");
 
+		if (BT.getKeyLength(key) > headerPage.get_maxKeySize() && (longKeys == null || !longKeys.isLong(key)))
+			throw new KeyTooLongException(null, "");
+	}
+
+	/*
+	 * The stored form of a checked key, inside the operation of its insert:
+	 * a long key of a LONG_KEYS file gets its overflow page here, so the
+	 * allocation is part of the operation.
+	 */
+	private KeyClass storeKey(KeyClass key) throws KeyTooLongException, IOException, PinPageException,
+			UnpinPageException, ConstructPageException, KeyNotMatchException, IteratorException {
+		return longKeys == null ? key : longKeys.store(key);
+	}
+
+	/*
+	 * Free the overflow page storeKey allocated if the insert of the key
+	 * failed and left no entry of it. The failure of the insert is the one
+	 * reported.
+	 */
+	private void abandonKey(KeyClass key) {
+		if (longKeys == null)
+			return;
+		try {
+			longKeys.release(key);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/*
+	 * Carries the key check of a single-descent insert down to the leaf and
+	 * its outcome back up.
+	 */
+	private static class UniqueProbe {
+		boolean replace; // overwrite the rid of an existing entry
+		boolean found; // the key was present
+		RID previous; // the rid it had
+	}
+
+	private void insertEntry(KeyClass key, RID rid, UniqueProbe probe)
+			throws KeyTooLongException, KeyNotMatchException, LeafInsertRecException, IndexInsertRecException,
+			ConstructPageException, UnpinPageException, PinPageException, NodeNotMatchException, ConvertException,
+			DeleteRecException, IndexSearchException, IteratorException, LeafDeleteException, InsertException,
+			IOException {
+		KeyDataEntry newRootEntry;
+
+		checkKey(key);
+		if (lookupCache != null)
+			lookupCache.invalidate(key);
+		if (bloomFilter != null)
+			bloomFilter.add(key);
+
 		// TWO CASES:
 		// 1. headerPage.root == INVALID_PAGE:
 		// - the tree is empty and we have to create a new first page;
@@ -394,7 +1479,7 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			BTLeafPage newRootPage;
 			RID dummyrid;
 
-			newRootPage = new BTLeafPage(headerPage.get_keyType());
+			newRootPage = newLeafPage(null);
 			newRootPageId = newRootPage.getCurPage();
 
 			if (trace != null) {
@@ -436,7 +1521,7 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			trace.flush();
 		}
 
-		newRootEntry = _insert(key, rid, headerPage.get_rootId());
+		newRootEntry = _insert(key, rid, headerPage.get_rootId(), probe);
 
 		// TWO CASES:
 		// - newRootEntry != null: a leaf split propagated up to the root
@@ -456,7 +1541,7 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			// the information about the pair <key, PageId> is
 			// packed in newRootEntry: extract it
 
-			newRootPage = new BTIndexPage(headerPage.get_keyType());
+			newRootPage = newIndexPage(headerPage.get_rootId());
 			newRootPageId = newRootPage.getCurPage();
 
 			// ASSERTIONS:
@@ -488,334 +1573,632 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		return;
 	}
 
-	private KeyDataEntry _insert(KeyClass key, RID rid, PageId currentPageId)
+	/*
+	 * In a POSTING_LIST tree a key keeps up to PostingList.INLINE rids in
+	 * leaf entries of its own, and more in a posting list. If `key' has a
+	 * posting list, `rid' is added to it and null is returned. If `key' has
+	 * fewer than INLINE inline rids, `rid' is returned to go into a leaf
+	 * entry as well. Otherwise the inline entries are deleted, a posting
+	 * list holding their rids and `rid' is started, and the leaf entry data
+	 * standing for the list is returned.
+	 */
+	private RID postingInsert(KeyClass key, RID rid) throws IOException, IteratorException, KeyNotMatchException,
+			ConstructPageException, PinPageException, UnpinPageException, LeafDeleteException {
+		List<RID> inline = new ArrayList<RID>();
+		RID head = postingEntries(key, inline, PostingList.INLINE);
+		if (head != null) {
+			postingList.add(head.pageNo, rid);
+			return null;
+		}
+		if (inline.size() < PostingList.INLINE)
+			return rid;
+		removeInline(key);
+		inline.add(rid);
+		return postingList.create(inline);
+	}
+
+	/*
+	 * Remove the inline entries of `key' from the leaves they are on, which
+	 * may be more than one, while its rids move into a posting list. The
+	 * leaves are not rebalanced: the entry of the list goes in right after.
+	 */
+	private void removeInline(KeyClass key) throws IOException, IteratorException, KeyNotMatchException,
+			ConstructPageException, PinPageException, UnpinPageException, LeafDeleteException {
+		RID curRid = new RID();
+		BTLeafPage leafPage = findRunStart(key, curRid);
+		List<KeyDataEntry> found = new ArrayList<KeyDataEntry>();
+		KeyDataEntry entry = leafPage.getCurrent(curRid);
+		while (true) {
+			boolean more = true;
+			for (; entry != null; entry = leafPage.getNext(curRid)) {
+				if (BT.keyCompare(entry.key, key) != 0) {
+					more = false;
+					break;
+				}
+				found.add(entry);
+			}
+			for (KeyDataEntry inline : found)
+				leafPage.delEntry(inline);
+			PageId nextpage = leafPage.getNextPage();
+			unpinPage(leafPage.getCurPage(), !found.isEmpty());
+			found.clear();
+			if (!more || nextpage.pid == INVALID_PAGE)
+				return;
+			leafPage = new BTLeafPage(pinPage(nextpage), headerPage.get_keyType());
+			entry = leafPage.getFirst(curRid);
+		}
+	}
+
+	/*
+	 * The leaf entries of `key' in a POSTING_LIST tree: the data of its
+	 * posting list entry, or null after appending up to `max' of its inline
+	 * rids to `inline'.
+	 */
+	private RID postingEntries(KeyClass key, List<RID> inline, int max) throws IOException, IteratorException,
+			KeyNotMatchException, ConstructPageException, PinPageException, UnpinPageException {
+		RID curRid = new RID();
+		BTLeafPage leafPage = findRunStart(key, curRid);
+		if (leafPage == null)
+			return null;
+		KeyDataEntry entry = leafPage.getCurrent(curRid);
+		try {
+			while (inline.size() < max) {
+				while (entry == null) { // have to go right
+					PageId nextpage = leafPage.getNextPage();
+					if (nextpage.pid == INVALID_PAGE)
+						return null;
+					BTLeafPage next = new BTLeafPage(pinPage(nextpage), headerPage.get_keyType());
+					unpinPage(leafPage.getCurPage());
+					leafPage = next;
+					entry = leafPage.getFirst(curRid);
+				}
+				if (BT.keyCompare(entry.key, key) != 0)
+					return null;
+				RID data = ((LeafData) entry.data).getData();
+				if (PostingList.isHead(data))
+					return data;
+				inline.add(data);
+				entry = leafPage.getNext(curRid);
+			}
+			return null;
+		} finally {
+			unpinPage(leafPage.getCurPage());
+		}
+	}
+
+	/*
+	 * Insert <key, rid> below the page currentPageId (the root). The descent
+	 * keeps the index pages it passes on a PagePath and releases them as soon
+	 * as the page below has room for one more index entry; a split then goes
+	 * up the path without pinning any page a second time. Returns the entry
+	 * for a new root if the root split, null otherwise.
+	 */
+	private KeyDataEntry _insert(KeyClass key, RID rid, PageId currentPageId, UniqueProbe probe)
 			throws PinPageException, IOException, ConstructPageException, LeafDeleteException, ConstructPageException,
 			DeleteRecException, IndexSearchException, UnpinPageException, LeafInsertRecException, ConvertException,
 			IteratorException, IndexInsertRecException, KeyNotMatchException, NodeNotMatchException, InsertException
 
 	{
-		BTSortedPage currentPage;
-		Page page;
+		PagePath path = new PagePath(this);
+		int maxIndexEntry = headerPage.get_maxKeySize() + PageLayout.INDEX_DATA;
 		KeyDataEntry upEntry;
 
-		page = pinPage(currentPageId);
-		currentPage = new BTSortedPage(page, headerPage.get_keyType());
+		try {
+			BTLeafPage currentLeafPage = null;
+			while (currentLeafPage == null) {
+				if (trace != null) {
+					trace.writeBytes("VISIT node " + currentPageId + lineSep);
+					trace.flush();
+				}
+
+				IndexNodeCache.Node node = nodeCache == null ? null : nodeCache.get(currentPageId);
+				if (node != null) {
+					// decoded copy: the page is not pinned
+					path.push(currentPageId, null);
+					currentPageId = node.child(key, true);
+					continue;
+				}
 
-		if (trace != null) {
-			trace.writeBytes("VISIT node " + currentPageId + lineSep);
-			trace.flush();
+				Page page = pinPage(currentPageId);
+				BTSortedPage currentPage = new BTSortedPage(page, headerPage.get_keyType());
+
+				// TWO CASES:
+				// - pageType == INDEX:
+				// descend, keeping the page on the path
+				// - pageType == LEAF:
+				// try to insert pair (key, rid), maybe split
+
+				if (currentPage.getType() == NodeType.INDEX) {
+					BTIndexPage currentIndexPage = new BTIndexPage(page, headerPage.get_keyType());
+					PageId nextPageId;
+					if (nodeCache != null)
+						nextPageId = nodeCache.load(currentIndexPage).child(key, true);
+					else
+						nextPageId = childByKey(currentIndexPage, key, true);
+
+					// a split below stops here: the pages above stay as they are
+					if (currentIndexPage.available_space() >= maxIndexEntry)
+						path.release();
+					path.push(currentPageId, currentIndexPage);
+					currentPageId = nextPageId;
+				} else if (currentPage.getType() == NodeType.LEAF) {
+					currentLeafPage = new BTLeafPage(page, headerPage.get_keyType());
+					if (currentLeafPage.available_space() >= BT.getKeyDataLength(key, NodeType.LEAF))
+						path.release();
+				} else {
+					unpinPage(currentPageId);
+					throw new InsertException(null, "");
+				}
+			}
+
+			upEntry = insertIntoLeaf(currentLeafPage, key, rid, path.top(), probe);
+
+			// upEntry != null: the page below split and upEntry is the new
+			// data entry which has to be inserted on the next page up
+			while (upEntry != null && !path.isEmpty())
+				upEntry = insertIntoIndex(path.pop(headerPage.get_keyType()), upEntry);
+		} finally {
+			path.release();
 		}
+		return upEntry;
+	}
 
-		// TWO CASES:
-		// - pageType == INDEX:
-		// recurse and then split if necessary
-		// - pageType == LEAF:
-		// try to insert pair (key, rid), maybe split
+	/*
+	 * Insert the entry a child split gave up into a pinned index page, and
+	 * unpin it. Returns the entry to insert one level up if the page split.
+	 */
+	private KeyDataEntry insertIntoIndex(BTIndexPage currentIndexPage, KeyDataEntry upEntry)
+			throws IOException, ConstructPageException, IndexInsertRecException, DeleteRecException,
+			IteratorException, UnpinPageException, PinPageException, KeyNotMatchException, NodeNotMatchException {
+		PageId currentIndexPageId = currentIndexPage.getCurPage();
+
+		// ASSERTIONS:
+		// - upEntry != null
+		// - currentIndexPage, currentIndexPageId valid and pinned
 
-		if (currentPage.getType() == NodeType.INDEX) {
-			BTIndexPage currentIndexPage = new BTIndexPage(page, headerPage.get_keyType());
-			PageId currentIndexPageId = currentPageId;
-			PageId nextPageId;
+		// the information about the pair <key, PageId> is
+		// packed in upEntry
 
-			nextPageId = currentIndexPage.getPageNoByKey(key);
+		// check whether there can still be entries inserted on that page
+		if (currentIndexPage.available_space() >= BT.getKeyDataLength(upEntry.key, NodeType.INDEX)) {
 
-			// now unpin the page, recurse and then pin it again
-			unpinPage(currentIndexPageId);
+			// no split has occurred
+			currentIndexPage.insertKey(upEntry.key, ((IndexData) upEntry.data).getData());
 
-			upEntry = _insert(key, rid, nextPageId);
+			unpinPage(currentIndexPageId, true /* DIRTY */);
 
-			// two cases:
-			// - upEntry == null: one level lower no split has occurred:
-			// we are done.
-			// - upEntry != null: one of the children has split and
-			// upEntry is the new data entry which has
-			// to be inserted on this index page
+			return null;
+		}
 
-			if (upEntry == null)
-				return null;
+		// ASSERTIONS:
+		// - on the current index page is not enough space available .
+		// it splits
 
-			currentIndexPage = new BTIndexPage(pinPage(currentPageId), headerPage.get_keyType());
+		// therefore we have to allocate a new index page and we will
+		// distribute the entries
+		// - currentIndexPage, currentIndexPageId valid and pinned
 
-			// ASSERTIONS:
-			// - upEntry != null
-			// - currentIndexPage, currentIndexPageId valid and pinned
+		BTIndexPage newIndexPage;
+		PageId newIndexPageId;
 
-			// the information about the pair <key, PageId> is
-			// packed in upEntry
+		// we have to allocate a new INDEX page and
+		// to redistribute the index entries
+		newIndexPage = newIndexPage(currentIndexPageId);
+		newIndexPageId = newIndexPage.getCurPage();
+		splitCount++;
+
+		if (trace != null) {
+			if (headerPage.get_rootId().pid != currentIndexPageId.pid)
+				trace.writeBytes("SPLIT node " + currentIndexPageId + " IN nodes " + currentIndexPageId + " "
+						+ newIndexPageId + lineSep);
+			else
+				trace.writeBytes("ROOTSPLIT IN nodes " + currentIndexPageId + " " + newIndexPageId + lineSep);
+			trace.flush();
+		}
 
-			// check whether there can still be entries inserted on that page
-			if (currentIndexPage.available_space() >= BT.getKeyDataLength(upEntry.key, NodeType.INDEX)) {
+		// ASSERTIONS:
+		// - newIndexPage, newIndexPageId valid and pinned
+		// - currentIndexPage, currentIndexPageId valid and pinned
+		// - upEntry containing (Key, Page) for the new entry which was
+		// given up from the level down in the recursion
+
+		KeyDataEntry tmpEntry;
+		PageId tmpPageId;
+		RID insertRid;
+		RID delRid = new RID();
+
+		for (tmpEntry = currentIndexPage.getFirst(delRid); tmpEntry != null; tmpEntry = currentIndexPage
+				.getFirst(delRid)) {
+			newIndexPage.insertKey(tmpEntry.key, ((IndexData) tmpEntry.data).getData());
+			currentIndexPage.deleteSortedRecord(delRid);
+		}
 
-				// no split has occurred
-				currentIndexPage.insertKey(upEntry.key, ((IndexData) upEntry.data).getData());
+		// ASSERTIONS:
+		// - currentIndexPage empty
+		// - newIndexPage holds all former records from currentIndexPage
+
+		// we will try to make an equal split
+		RID firstRid = new RID();
+		KeyDataEntry undoEntry = null;
+		for (tmpEntry = newIndexPage.getFirst(firstRid); (currentIndexPage.available_space() > newIndexPage
+				.available_space()); tmpEntry = newIndexPage.getFirst(firstRid)) {
+			// now insert the <key,pageId> pair on the new
+			// index page
+			undoEntry = tmpEntry;
+			currentIndexPage.insertKey(tmpEntry.key, ((IndexData) tmpEntry.data).getData());
+			newIndexPage.deleteSortedRecord(firstRid);
+		}
 
-				unpinPage(currentIndexPageId, true /* DIRTY */);
+		// undo the final record
+		if (currentIndexPage.available_space() < newIndexPage.available_space()) {
 
-				return null;
-			}
+			newIndexPage.insertKey(undoEntry.key, ((IndexData) undoEntry.data).getData());
 
-			// ASSERTIONS:
-			// - on the current index page is not enough space available .
-			// it splits
+			currentIndexPage.deleteSortedRecord(
+					new RID(currentIndexPage.getCurPage(), (int) currentIndexPage.getSlotCnt() - 1));
+		}
 
-			// therefore we have to allocate a new index page and we will
-			// distribute the entries
-			// - currentIndexPage, currentIndexPageId valid and pinned
+		// check whether <newKey, newIndexPageId>
+		// will be inserted
+		// on the newly allocated or on the old index page
 
-			BTIndexPage newIndexPage;
-			PageId newIndexPageId;
+		tmpEntry = newIndexPage.getFirst(firstRid);
 
-			// we have to allocate a new INDEX page and
-			// to redistribute the index entries
-			newIndexPage = new BTIndexPage(headerPage.get_keyType());
-			newIndexPageId = newIndexPage.getCurPage();
+		if (BT.keyCompare(upEntry.key, tmpEntry.key) >= 0) {
+			// the new data entry belongs on the new index page
+			newIndexPage.insertKey(upEntry.key, ((IndexData) upEntry.data).getData());
+		} else {
+			currentIndexPage.insertKey(upEntry.key, ((IndexData) upEntry.data).getData());
 
-			if (trace != null) {
-				if (headerPage.get_rootId().pid != currentIndexPageId.pid)
-					trace.writeBytes("SPLIT node " + currentIndexPageId + " IN nodes " + currentIndexPageId + " "
-							+ newIndexPageId + lineSep);
-				else
-					trace.writeBytes("ROOTSPLIT IN nodes " + currentIndexPageId + " " + newIndexPageId + lineSep);
-				trace.flush();
-			}
+			// int i= (int)currentIndexPage.getSlotCnt()-1;
+			// tmpEntry =BT.getEntryFromBytes(currentIndexPage.getpage(),
+			// currentIndexPage.getSlotOffset(i),
+			// currentIndexPage.getSlotLength(i),
+			// headerPage.get_keyType(),NodeType.INDEX);
 
-			// ASSERTIONS:
-			// - newIndexPage, newIndexPageId valid and pinned
-			// - currentIndexPage, currentIndexPageId valid and pinned
-			// - upEntry containing (Key, Page) for the new entry which was
-			// given up from the level down in the recursion
-
-			KeyDataEntry tmpEntry;
-			PageId tmpPageId;
-			RID insertRid;
-			RID delRid = new RID();
-
-			for (tmpEntry = currentIndexPage.getFirst(delRid); tmpEntry != null; tmpEntry = currentIndexPage
-					.getFirst(delRid)) {
-				newIndexPage.insertKey(tmpEntry.key, ((IndexData) tmpEntry.data).getData());
-				currentIndexPage.deleteSortedRecord(delRid);
-			}
+			// newIndexPage.insertKey( tmpEntry.key,
+			// ((IndexData)tmpEntry.data).getData());
 
-			// ASSERTIONS:
-			// - currentIndexPage empty
-			// - newIndexPage holds all former records from currentIndexPage
-
-			// we will try to make an equal split
-			RID firstRid = new RID();
-			KeyDataEntry undoEntry = null;
-			for (tmpEntry = newIndexPage.getFirst(firstRid); (currentIndexPage.available_space() > newIndexPage
-					.available_space()); tmpEntry = newIndexPage.getFirst(firstRid)) {
-				// now insert the <key,pageId> pair on the new
-				// index page
-				undoEntry = tmpEntry;
-				currentIndexPage.insertKey(tmpEntry.key, ((IndexData) tmpEntry.data).getData());
-				newIndexPage.deleteSortedRecord(firstRid);
-			}
+			// currentIndexPage.deleteSortedRecord
+			// (new RID(currentIndexPage.getCurPage(), i) );
 
-			// undo the final record
-			if (currentIndexPage.available_space() < newIndexPage.available_space()) {
+		}
 
-				newIndexPage.insertKey(undoEntry.key, ((IndexData) undoEntry.data).getData());
+		unpinPage(currentIndexPageId, true /* dirty */);
 
-				currentIndexPage.deleteSortedRecord(
-						new RID(currentIndexPage.getCurPage(), (int) currentIndexPage.getSlotCnt() - 1));
-			}
+		// fill upEntry
+		upEntry = newIndexPage.getFirst(delRid);
 
-			// check whether <newKey, newIndexPageId>
-			// will be inserted
-			// on the newly allocated or on the old index page
+		// now set prevPageId of the newIndexPage to the pageId
+		// of the deleted entry:
+		newIndexPage.setPrevPage(((IndexData) upEntry.data).getData());
 
-			tmpEntry = newIndexPage.getFirst(firstRid);
+		// delete first record on new index page since it is given up
+		newIndexPage.deleteSortedRecord(delRid);
 
-			if (BT.keyCompare(upEntry.key, tmpEntry.key) >= 0) {
-				// the new data entry belongs on the new index page
-				newIndexPage.insertKey(upEntry.key, ((IndexData) upEntry.data).getData());
-			} else {
-				currentIndexPage.insertKey(upEntry.key, ((IndexData) upEntry.data).getData());
+		unpinPage(newIndexPageId, true /* dirty */);
+
+		if (trace != null) {
+			trace_children(currentIndexPageId);
+			trace_children(newIndexPageId);
+		}
 
-				// int i= (int)currentIndexPage.getSlotCnt()-1;
-				// tmpEntry =BT.getEntryFromBytes(currentIndexPage.getpage(),
-				// currentIndexPage.getSlotOffset(i),
-				// currentIndexPage.getSlotLength(i),
-				// headerPage.get_keyType(),NodeType.INDEX);
+		((IndexData) upEntry.data).setData(newIndexPageId);
 
-				// newIndexPage.insertKey( tmpEntry.key,
-				// ((IndexData)tmpEntry.data).getData());
+		return upEntry;
 
-				// currentIndexPage.deleteSortedRecord
-				// (new RID(currentIndexPage.getCurPage(), i) );
+		// ASSERTIONS:
+		// - no pages pinned
+		// - upEntry holds the pointer to the KeyDataEntry which is
+		// to be inserted on the index page one level up
+	}
 
-			}
+	/*
+	 * Insert <key, rid> into a pinned leaf, splitting it if needed, and unpin
+	 * it. Returns the entry to insert into the parent if the leaf split.
+	 */
+	private KeyDataEntry insertIntoLeaf(BTLeafPage currentLeafPage, KeyClass key, RID rid, PageId parentPageId,
+			UniqueProbe probe) throws IOException, ConstructPageException, LeafInsertRecException,
+			DeleteRecException, IteratorException, UnpinPageException, PinPageException, KeyNotMatchException,
+			NodeNotMatchException, LeafDeleteException, IndexInsertRecException {
+		KeyDataEntry upEntry;
+		PageId currentLeafPageId = currentLeafPage.getCurPage();
 
-			unpinPage(currentIndexPageId, true /* dirty */);
+		// ASSERTIONS:
+		// - currentLeafPage, currentLeafPageId valid and pinned
 
-			// fill upEntry
-			upEntry = newIndexPage.getFirst(delRid);
+		if (probe != null) {
+			RID curRid = new RID();
+			KeyDataEntry entry;
+			for (entry = currentLeafPage.getFirst(curRid); entry != null; entry = currentLeafPage
+					.getNext(curRid)) {
+				int cmp = BT.keyCompare(entry.key, key);
+				if (cmp > 0)
+					break;
+				if (cmp == 0) {
+					probe.found = true;
+					probe.previous = ((LeafData) entry.data).getData();
+					break;
+				}
+			}
+			if (probe.found) {
+				// same key, same entry size: replacing cannot overflow
+				if (probe.replace) {
+					currentLeafPage.delEntry(new KeyDataEntry(key, probe.previous));
+					currentLeafPage.insertRecord(key, rid);
+				}
+				unpinPage(currentLeafPageId, probe.replace);
+				return null;
+			}
+		}
 
-			// now set prevPageId of the newIndexPage to the pageId
-			// of the deleted entry:
-			newIndexPage.setPrevPage(((IndexData) upEntry.data).getData());
+		// check whether there can still be entries inserted on that page
+		if (currentLeafPage.available_space() >= BT.getKeyDataLength(key, NodeType.LEAF)) {
+			// no split has occurred
 
-			// delete first record on new index page since it is given up
-			newIndexPage.deleteSortedRecord(delRid);
+			currentLeafPage.insertRecord(key, rid);
 
-			unpinPage(newIndexPageId, true /* dirty */);
+			unpinPage(currentLeafPageId, true /* DIRTY */);
 
 			if (trace != null) {
-				trace_children(currentIndexPageId);
-				trace_children(newIndexPageId);
+				trace.writeBytes("PUTIN node " + currentLeafPageId + lineSep);
+				trace.flush();
 			}
 
-			((IndexData) upEntry.data).setData(newIndexPageId);
+			return null;
+		}
 
-			return upEntry;
+		if (deferSplits && parentPageId != null
+				&& shiftToSibling(currentLeafPage, key, rid, parentPageId)) {
+			unpinPage(currentLeafPageId, true /* DIRTY */);
+			return null;
+		}
 
-			// ASSERTIONS:
-			// - no pages pinned
-			// - upEntry holds the pointer to the KeyDataEntry which is
-			// to be inserted on the index page one level up
+		// ASSERTIONS:
+		// - on the current leaf page is not enough space available.
+		// It splits.
+		// - therefore we have to allocate a new leaf page and we will
+		// - distribute the entries
+
+		BTLeafPage newLeafPage;
+		PageId newLeafPageId;
+		// we have to allocate a new LEAF page and
+		// to redistribute the data entries entries
+		newLeafPage = newLeafPage(currentLeafPageId);
+		newLeafPageId = newLeafPage.getCurPage();
+		splitCount++;
+
+		newLeafPage.setNextPage(currentLeafPage.getNextPage());
+		newLeafPage.setPrevPage(currentLeafPageId); // for dbl-linked list
+		currentLeafPage.setNextPage(newLeafPageId);
+
+		// change the prevPage pointer on the next page:
+		// PageId rightPageId;
+		// rightPageId = newLeafPage.getNextPage();
+
+		// if (rightPageId.pid != INVALID_PAGE)
+		// {
+		// System.out.println(rightPageId.pid);
+		// BTLeafPage rightPage;
+		// rightPage=new BTLeafPage(rightPageId, headerPage.get_keyType());
+
+		// rightPage.setPrevPage(newLeafPageId);
+		// unpinPage(rightPageId, true /* = DIRTY */);
 
-		}
+		// ASSERTIONS:
+		// - newLeafPage, newLeafPageId valid and pinned
+		// - currentLeafPage, currentLeafPageId valid and pinned
+		// }
 
-		else if (currentPage.getType() == NodeType.LEAF) {
-			BTLeafPage currentLeafPage = new BTLeafPage(page, headerPage.get_keyType());
+		if (trace != null) {
+			if (headerPage.get_rootId().pid != currentLeafPageId.pid)
+				trace.writeBytes("SPLIT node " + currentLeafPageId + " IN nodes " + currentLeafPageId + " "
+						+ newLeafPageId + lineSep);
+			else
+				trace.writeBytes("ROOTSPLIT IN nodes " + currentLeafPageId + " " + newLeafPageId + lineSep);
+			trace.flush();
+		}
 
-			PageId currentLeafPageId = currentPageId;
+		KeyDataEntry tmpEntry;
+		RID firstRid = new RID();
 
-			// ASSERTIONS:
-			// - currentLeafPage, currentLeafPageId valid and pinned
+		for (tmpEntry = currentLeafPage.getFirst(firstRid); tmpEntry != null; tmpEntry = currentLeafPage
+				.getFirst(firstRid)) {
 
-			// check whether there can still be entries inserted on that page
-			if (currentLeafPage.available_space() >= BT.getKeyDataLength(key, NodeType.LEAF)) {
-				// no split has occurred
+			newLeafPage.insertRecord(tmpEntry.key, ((LeafData) (tmpEntry.data)).getData());
+			currentLeafPage.deleteSortedRecord(firstRid);
 
-				currentLeafPage.insertRecord(key, rid);
+		}
 
-				unpinPage(currentLeafPageId, true /* DIRTY */);
+		// ASSERTIONS:
+		// - currentLeafPage empty
+		// - newLeafPage holds all former records from currentLeafPage
+
+		KeyDataEntry undoEntry = null;
+		for (tmpEntry = newLeafPage.getFirst(firstRid); newLeafPage.available_space() < currentLeafPage
+				.available_space(); tmpEntry = newLeafPage.getFirst(firstRid)) {
+			undoEntry = tmpEntry;
+			currentLeafPage.insertRecord(tmpEntry.key, ((LeafData) tmpEntry.data).getData());
+			newLeafPage.deleteSortedRecord(firstRid);
+		}
 
-				if (trace != null) {
-					trace.writeBytes("PUTIN node " + currentLeafPageId + lineSep);
-					trace.flush();
-				}
+		if (BT.keyCompare(key, undoEntry.key) < 0) {
+			// undo the final record
+			if (currentLeafPage.available_space() < newLeafPage.available_space()) {
+				newLeafPage.insertRecord(undoEntry.key, ((LeafData) undoEntry.data).getData());
 
-				return null;
+				currentLeafPage.deleteSortedRecord(
+						new RID(currentLeafPage.getCurPage(), (int) currentLeafPage.getSlotCnt() - 1));
 			}
+		}
 
-			// ASSERTIONS:
-			// - on the current leaf page is not enough space available.
-			// It splits.
-			// - therefore we have to allocate a new leaf page and we will
-			// - distribute the entries
-
-			BTLeafPage newLeafPage;
-			PageId newLeafPageId;
-			// we have to allocate a new LEAF page and
-			// to redistribute the data entries entries
-			newLeafPage = new BTLeafPage(headerPage.get_keyType());
-			newLeafPageId = newLeafPage.getCurPage();
-
-			newLeafPage.setNextPage(currentLeafPage.getNextPage());
-			newLeafPage.setPrevPage(currentLeafPageId); // for dbl-linked list
-			currentLeafPage.setNextPage(newLeafPageId);
-
-			// change the prevPage pointer on the next page:
-			// PageId rightPageId;
-			// rightPageId = newLeafPage.getNextPage();
-
-			// if (rightPageId.pid != INVALID_PAGE)
-			// {
-			// System.out.println(rightPageId.pid);
-			// BTLeafPage rightPage;
-			// rightPage=new BTLeafPage(rightPageId, headerPage.get_keyType());
-
-			// rightPage.setPrevPage(newLeafPageId);
-			// unpinPage(rightPageId, true /* = DIRTY */);
+		// check whether <key, rid>
+		// will be inserted
+		// on the newly allocated or on the old leaf page
 
-			// ASSERTIONS:
-			// - newLeafPage, newLeafPageId valid and pinned
-			// - currentLeafPage, currentLeafPageId valid and pinned
-			// }
+		if (BT.keyCompare(key, undoEntry.key) >= 0) {
+			// the new data entry belongs on the new Leaf page
+			newLeafPage.insertRecord(key, rid);
 
 			if (trace != null) {
-				if (headerPage.get_rootId().pid != currentLeafPageId.pid)
-					trace.writeBytes("SPLIT node " + currentLeafPageId + " IN nodes " + currentLeafPageId + " "
-							+ newLeafPageId + lineSep);
-				else
-					trace.writeBytes("ROOTSPLIT IN nodes " + currentLeafPageId + " " + newLeafPageId + lineSep);
+				trace.writeBytes("PUTIN node " + newLeafPageId + lineSep);
 				trace.flush();
 			}
 
-			KeyDataEntry tmpEntry;
-			RID firstRid = new RID();
-
-			for (tmpEntry = currentLeafPage.getFirst(firstRid); tmpEntry != null; tmpEntry = currentLeafPage
-					.getFirst(firstRid)) {
-
-				newLeafPage.insertRecord(tmpEntry.key, ((LeafData) (tmpEntry.data)).getData());
-				currentLeafPage.deleteSortedRecord(firstRid);
+		} else {
+			currentLeafPage.insertRecord(key, rid);
+		}
 
-			}
+		unpinPage(currentLeafPageId, true /* dirty */);
 
-			// ASSERTIONS:
-			// - currentLeafPage empty
-			// - newLeafPage holds all former records from currentLeafPage
-
-			KeyDataEntry undoEntry = null;
-			for (tmpEntry = newLeafPage.getFirst(firstRid); newLeafPage.available_space() < currentLeafPage
-					.available_space(); tmpEntry = newLeafPage.getFirst(firstRid)) {
-				undoEntry = tmpEntry;
-				currentLeafPage.insertRecord(tmpEntry.key, ((LeafData) tmpEntry.data).getData());
-				newLeafPage.deleteSortedRecord(firstRid);
-			}
+		if (trace != null) {
+			trace_children(currentLeafPageId);
+			trace_children(newLeafPageId);
+		}
 
-			if (BT.keyCompare(key, undoEntry.key) < 0) {
-				// undo the final record
-				if (currentLeafPage.available_space() < newLeafPage.available_space()) {
-					newLeafPage.insertRecord(undoEntry.key, ((LeafData) undoEntry.data).getData());
+		// fill upEntry
+		tmpEntry = newLeafPage.getFirst(firstRid);
+		upEntry = new KeyDataEntry(separatorKey(tmpEntry.key), newLeafPageId);
 
-					currentLeafPage.deleteSortedRecord(
-							new RID(currentLeafPage.getCurPage(), (int) currentLeafPage.getSlotCnt() - 1));
-				}
-			}
+		unpinPage(newLeafPageId, true /* dirty */);
 
-			// check whether <key, rid>
-			// will be inserted
-			// on the newly allocated or on the old leaf page
+		// ASSERTIONS:
+		// - no pages pinned
+		// - upEntry holds the valid KeyDataEntry which is to be inserted
+		// on the index page one level up
+		return upEntry;
+	}
 
-			if (BT.keyCompare(key, undoEntry.key) >= 0) {
-				// the new data entry belongs on the new Leaf page
-				newLeafPage.insertRecord(key, rid);
+	/*
+	 * Make room for <key, rid> in a full leaf (pinned by the caller, who
+	 * unpins it) by moving entries to its right or left sibling under the
+	 * same parent, and put the entry in. Returns false, changing nothing, if
+	 * neither sibling can take enough of them.
+	 */
+	private boolean shiftToSibling(BTLeafPage leaf, KeyClass key, RID rid, PageId parentPageId)
+			throws IOException, IteratorException, PinPageException, UnpinPageException, ConstructPageException,
+			LeafInsertRecException, DeleteRecException, IndexInsertRecException, KeyNotMatchException,
+			NodeNotMatchException {
+		BTIndexPage parent = new BTIndexPage(pinPage(parentPageId), headerPage.get_keyType());
+		int leafPid = leaf.getCurPage().pid;
+
+		// the separators of the parent, and the position of the leaf's own
+		// (-1: the leaf is the left link)
+		List<KeyDataEntry> separators = new ArrayList<KeyDataEntry>();
+		int pos = parent.getPrevPage().pid == leafPid ? -1 : -2;
+		RID parentRid = new RID();
+		for (KeyDataEntry entry = parent.getFirst(parentRid); entry != null; entry = parent.getNext(parentRid)) {
+			if (((IndexData) entry.data).getData().pid == leafPid)
+				pos = separators.size();
+			separators.add(entry);
+		}
 
-				if (trace != null) {
-					trace.writeBytes("PUTIN node " + newLeafPageId + lineSep);
-					trace.flush();
-				}
+		boolean shifted = false;
+		if (pos >= -1 && pos + 1 < separators.size())
+			shifted = shiftEntries(leaf, key, rid, ((IndexData) separators.get(pos + 1).data).getData(), parent,
+					pos + 1, separators.get(pos + 1), true);
+		if (!shifted && pos >= 0) {
+			PageId leftId = pos == 0 ? parent.getPrevPage() : ((IndexData) separators.get(pos - 1).data).getData();
+			shifted = shiftEntries(leaf, key, rid, leftId, parent, pos, separators.get(pos), false);
+		}
+		unpinPage(parentPageId, shifted);
+		if (shifted)
+			redistributeCount++;
+		return shifted;
+	}
 
-			} else {
-				currentLeafPage.insertRecord(key, rid);
+	/*
+	 * Move the last (toRight) or first entries of the leaf, with <key, rid>
+	 * in its place among them, to the sibling until both have about the same
+	 * free space, and replace the separator at the given slot of the parent
+	 * by the new first key of the right page of the two.
+	 */
+	private boolean shiftEntries(BTLeafPage leaf, KeyClass key, RID rid, PageId siblingId, BTIndexPage parent,
+			int separatorSlot, KeyDataEntry separator, boolean toRight) throws IOException, IteratorException,
+			PinPageException, UnpinPageException, ConstructPageException, LeafInsertRecException,
+			DeleteRecException, IndexInsertRecException, KeyNotMatchException, NodeNotMatchException {
+		BTLeafPage sibling = new BTLeafPage(pinPage(siblingId), headerPage.get_keyType());
+
+		KeyDataEntry newEntry = new KeyDataEntry(key, rid);
+		List<KeyDataEntry> entries = new ArrayList<KeyDataEntry>();
+		RID curRid = new RID();
+		int newIndex = -1;
+		for (KeyDataEntry entry = leaf.getFirst(curRid); entry != null; entry = leaf.getNext(curRid)) {
+			if (newIndex < 0 && BT.keyCompare(key, entry.key) < 0) {
+				newIndex = entries.size();
+				entries.add(newEntry);
 			}
+			entries.add(entry);
+		}
+		if (newIndex < 0) {
+			newIndex = entries.size();
+			entries.add(newEntry);
+		}
 
-			unpinPage(currentLeafPageId, true /* dirty */);
-
-			if (trace != null) {
-				trace_children(currentLeafPageId);
-				trace_children(newLeafPageId);
-			}
+		// free bytes (slots included) of both pages once the entry is in
+		int n = entries.size();
+		int leafFree = leaf.available_space() + PageLayout.SIZE_OF_SLOT - entrySize(newEntry);
+		int siblingFree = sibling.available_space() + PageLayout.SIZE_OF_SLOT;
+		int moved = 0;
+		while (moved < n - 1 && leafFree < siblingFree) {
+			int size = entrySize(entries.get(toRight ? n - 1 - moved : moved));
+			if (siblingFree < size)
+				break;
+			leafFree += size;
+			siblingFree -= size;
+			moved++;
+		}
+		KeyClass newSeparator = separatorKey(entries.get(toRight ? n - moved : moved).key);
+		if (moved == 0 || leafFree < 0 || parent.available_space() + BT.getKeyDataLength(separator.key,
+				NodeType.INDEX) < BT.getKeyDataLength(newSeparator, NodeType.INDEX)) {
+			unpinPage(siblingId);
+			return false;
+		}
 
-			// fill upEntry
-			tmpEntry = newLeafPage.getFirst(firstRid);
-			upEntry = new KeyDataEntry(tmpEntry.key, newLeafPageId);
+		// move the leaf's records as one run, then put the new entry in
+		boolean newEntryMoved = toRight ? newIndex >= n - moved : newIndex < moved;
+		int run = newEntryMoved ? moved - 1 : moved;
+		ByteBuffer leafBytes = ByteBuffer.wrap(leaf.getpage());
+		ByteBuffer siblingBytes = ByteBuffer.wrap(sibling.getpage());
+		int count = PageLayout.slotCount(leafBytes);
+		if (toRight)
+			PageLayout.moveRecords(leafBytes, count - run, count, siblingBytes, 0);
+		else
+			PageLayout.moveRecords(leafBytes, 0, run, siblingBytes, PageLayout.slotCount(siblingBytes));
+		if (newEntryMoved)
+			sibling.insertRecord(key, rid);
+		else
+			leaf.insertRecord(key, rid);
 
-			unpinPage(newLeafPageId, true /* dirty */);
+		parent.deleteSortedRecord(new RID(parent.getCurPage(), separatorSlot));
+		parent.insertKey(newSeparator, ((IndexData) separator.data).getData());
+		unpinPage(siblingId, true /* DIRTY */);
 
-			// ASSERTIONS:
-			// - no pages pinned
-			// - upEntry holds the valid KeyDataEntry which is to be inserted
-			// on the index page one level up
-			return upEntry;
-		} else {
-			throw new InsertException(null, "");
+		if (trace != null) {
+			trace_children(leaf.getCurPage());
+			trace_children(siblingId);
 		}
+		return true;
+	}
+
+	/*
+	 * The separator for a leaf whose first key is key. In a KEY_VALUE file
+	 * only the key part of the stored key (see KeyValueFile), which still
+	 * sorts after every key of the leaf to its left, so values do not take
+	 * room in the index pages.
+	 */
+	KeyClass separatorKey(KeyClass key) {
+		if ((flags & IndexFlags.KEY_VALUE) == 0)
+			return key;
+		byte[] bytes = KeyEncoding.unpack(((StringKey) key).getKey());
+		int[] pos = new int[1];
+		KeyEncoding.readKey(bytes, pos);
+		return new StringKey(KeyEncoding.pack(Arrays.copyOf(bytes, pos[0])));
+	}
+
+	private static int entrySize(KeyDataEntry entry)
+			throws KeyNotMatchException, NodeNotMatchException, IOException {
+		return BT.getKeyDataLength(entry.key, NodeType.LEAF) + PageLayout.SIZE_OF_SLOT;
 	}
 
 	/**
@@ -868,6 +2251,51 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			KeyNotMatchException, UnpinPageException, IndexInsertRecException, FreePageException,
 			RecordNotFoundException, PinPageException, IndexFullDeleteException, LeafDeleteException, IteratorException,
 			ConstructPageException, DeleteRecException, IndexSearchException, IOException {
+		key = KeyEncoding.encode(key, keyEncoding);
+		boolean deleted;
+		if (longKeys != null && (key = longKeys.find(key)) == null)
+			return false;
+		if (bloomFilter != null && !bloomFilter.mightContain(key))
+			return false;
+		if (lookupCache != null)
+			lookupCache.invalidate(key);
+		beginOperation();
+		if ((flags & IndexFlags.POSTING_LIST) != 0)
+			deleted = postingDelete(key, rid);
+		else
+			deleted = deleteEntry(key, rid);
+		if (deleted && longKeys != null)
+			longKeys.release(key);
+		commitOperation();
+		return deleted;
+	}
+
+	/*
+	 * Remove `rid' from the rids of `key': its inline leaf entry, or its
+	 * posting list. When the list becomes empty, it is freed and the leaf
+	 * entry of `key' is deleted. A list that shrinks stays a list.
+	 */
+	private boolean postingDelete(KeyClass key, RID rid)
+			throws DeleteFashionException, LeafRedistributeException, RedistributeException, InsertRecException,
+			KeyNotMatchException, UnpinPageException, IndexInsertRecException, FreePageException,
+			RecordNotFoundException, PinPageException, IndexFullDeleteException, LeafDeleteException, IteratorException,
+			ConstructPageException, DeleteRecException, IndexSearchException, IOException {
+		RID headRid = postingEntries(key, new ArrayList<RID>(), 1);
+		if (headRid == null)
+			return deleteEntry(key, rid);
+		if (!postingList.remove(headRid.pageNo, rid))
+			return false;
+		if (!postingList.isEmpty(headRid.pageNo))
+			return true;
+		postingList.destroy(headRid.pageNo);
+		return deleteEntry(key, headRid);
+	}
+
+	private boolean deleteEntry(KeyClass key, RID rid)
+			throws DeleteFashionException, LeafRedistributeException, RedistributeException, InsertRecException,
+			KeyNotMatchException, UnpinPageException, IndexInsertRecException, FreePageException,
+			RecordNotFoundException, PinPageException, IndexFullDeleteException, LeafDeleteException, IteratorException,
+			ConstructPageException, DeleteRecException, IndexSearchException, IOException {
 		if (headerPage.get_deleteFashion() == DeleteFashion.FULL_DELETE)
 			try {
 				return FullDelete(key, rid);
@@ -888,6 +2316,217 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			throw new DeleteFashionException(null, "");
 	}
 
+	/**
+	 * Point lookup: return the rids of all entries with the given key. In a
+	 * POSTING_LIST tree these are the rids of the key's posting list.
+	 * 
+	 * @param key
+	 *            the key to look up. Input parameter.
+	 * @return the rids, an empty list if the key is not in the tree
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public List<RID> lookup(KeyClass key) throws IOException, IteratorException, KeyNotMatchException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		key = KeyEncoding.encode(key, keyEncoding);
+		List<RID> rids;
+		if (longKeys != null && (key = longKeys.find(key)) == null)
+			return new ArrayList<RID>();
+		if (bloomFilter != null && !bloomFilter.mightContain(key))
+			return new ArrayList<RID>();
+		if (lookupCache != null) {
+			rids = lookupCache.get(key);
+			if (rids == null) {
+				rids = search(key);
+				lookupCache.put(key, rids);
+			}
+			return rids;
+		}
+		return search(key);
+	}
+
+	private List<RID> search(KeyClass key) throws IOException, IteratorException, KeyNotMatchException,
+			ConstructPageException, PinPageException, UnpinPageException {
+		List<RID> rids = new ArrayList<RID>();
+		RID curRid = new RID();
+		PageId nextpage;
+		BTLeafPage leafPage = findRunStart(key, curRid);
+		if (leafPage == null)
+			return rids;
+
+		KeyDataEntry entry = leafPage.getCurrent(curRid);
+		while (true) {
+			while (entry == null) { // have to go right
+				nextpage = leafPage.getNextPage();
+				unpinPage(leafPage.getCurPage());
+				if (nextpage.pid == INVALID_PAGE)
+					return rids;
+				leafPage = new BTLeafPage(pinPage(nextpage), headerPage.get_keyType());
+				entry = leafPage.getFirst(curRid);
+			}
+			if (BT.keyCompare(entry.key, key) != 0)
+				break;
+			postingList.collectEntry(((LeafData) entry.data).getData(), rids);
+			entry = leafPage.getNext(curRid);
+		}
+		unpinPage(leafPage.getCurPage());
+		return rids;
+	}
+
+	/**
+	 * Expand an entry returned by a scan into the rids it stands for. In a
+	 * POSTING_LIST tree, the data of a leaf entry may be the head of the
+	 * posting list of its key; otherwise it is the single rid itself.
+	 * 
+	 * @param entry
+	 *            a leaf entry of this tree. Input parameter.
+	 * @return the rids of the entry
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public List<RID> postings(KeyDataEntry entry) throws IOException, PinPageException, UnpinPageException {
+		List<RID> rids = new ArrayList<RID>();
+		postingList.collectEntry(((LeafData) entry.data).getData(), rids);
+		return rids;
+	}
+
+	/**
+	 * Turn a key returned by a scan back into the key that was inserted. A
+	 * file created with KeyEncoding.attrLong, attrDouble or attrComposite
+	 * stores its keys as encoded StringKeys (see KeyEncoding); for other files
+	 * keys are returned unchanged.
+	 * 
+	 * @param key
+	 *            the key of an entry returned by a scan. Input parameter.
+	 * @return the decoded key
+	 */
+	public KeyClass decodeKey(KeyClass key) {
+		return KeyEncoding.decode(key, keyEncoding);
+	}
+
+	/**
+	 * Turn a key returned by a scan back into the key that was inserted: as
+	 * decodeKey, and in a file created with IndexFlags.LONG_KEYS a long key
+	 * is read back from its overflow page.
+	 * 
+	 * @param key
+	 *            the key of an entry returned by a scan. Input parameter.
+	 * @return the key that was inserted
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public KeyClass resolveKey(KeyClass key) throws IOException, PinPageException, UnpinPageException {
+		if (longKeys != null)
+			return longKeys.resolve(key);
+		return decodeKey(key);
+	}
+
+	/*
+	 * the stored form of a key given to this file, before long keys
+	 */
+	KeyClass encodeKey(KeyClass key) throws KeyNotMatchException {
+		return KeyEncoding.encode(key, keyEncoding);
+	}
+
+	/*
+	 * the stored form of a key given to this file as a scan bound: a key
+	 * longer than the prefix of a LONG_KEYS file stands for its family (see
+	 * LongKeys)
+	 */
+	KeyClass encodeBound(KeyClass key, boolean upper) throws KeyNotMatchException {
+		key = KeyEncoding.encode(key, keyEncoding);
+		if (longKeys == null)
+			return key;
+		return upper ? longKeys.upperBound(key) : longKeys.lowerBound(key);
+	}
+
+	/*
+	 * the stored form of a key given to this file, null if it is a long key
+	 * which is not in the file
+	 */
+	KeyClass lookupKey(KeyClass key) throws KeyNotMatchException, IOException, PinPageException,
+			UnpinPageException, ConstructPageException, IteratorException {
+		key = KeyEncoding.encode(key, keyEncoding);
+		return longKeys == null ? key : longKeys.find(key);
+	}
+
+	/*
+	 * Append the rids the data of a leaf entry stands for, as postings.
+	 */
+	void collectRids(RID data, List<RID> rids) throws IOException, PinPageException, UnpinPageException {
+		postingList.collectEntry(data, rids);
+	}
+
+	/*
+	 * true if key, as given to this file and encoded, is stored as a long
+	 * key of a LONG_KEYS file
+	 */
+	boolean isLongKey(KeyClass key) {
+		return longKeys != null && longKeys.isLong(key);
+	}
+
+	PostingList getPostingList() {
+		return postingList;
+	}
+
+	/*
+	 * the IndexFlags this file was created with
+	 */
+	int getFlags() {
+		return flags;
+	}
+
+	/*
+	 * The child of an index page covering key: behind the last separator <=
+	 * key if inclusive (as BTIndexPage.getPageNoByKey), behind the last
+	 * separator < key otherwise (the "go left" search of findRunStart).
+	 * Integer keys are searched by interpolation (see AdaptiveSearch).
+	 */
+	PageId childByKey(BTIndexPage indexPage, KeyClass key, boolean inclusive) throws IOException {
+		ByteBuffer page = ByteBuffer.wrap(indexPage.getpage());
+		int before = AdaptiveSearch.search(page, headerPage.get_keyType(), key, inclusive);
+		if (before == 0)
+			return indexPage.getPrevPage();
+		return new PageId(PageLayout.child(page, before - 1));
+	}
+
+	/*
+	 * Follow cached index nodes down from pageno, as far as they go.
+	 * 
+	 * @return the first page on the way that is not in the node cache
+	 */
+	private PageId cachedDescent(PageId pageno, KeyClass key, boolean inclusive) throws IOException {
+		if (nodeCache == null)
+			return pageno;
+		IndexNodeCache.Node node;
+		while ((node = nodeCache.get(pageno)) != null) {
+			if (trace != null) {
+				trace.writeBytes("VISIT node " + pageno + lineSep);
+				trace.flush();
+			}
+			pageno = node.child(key, inclusive);
+		}
+		return pageno;
+	}
+
 	/*
 	 * findRunStart. Status BTreeFile::findRunStart (const void lo_key, RID
 	 * *pstartrid)
@@ -921,7 +2560,6 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		PageId nextpageno;
 		RID curRid;
 		KeyDataEntry curEntry;
-		KeyDataEntry prevEntry = null;
 
 		pageno = headerPage.get_rootId();
 
@@ -931,6 +2569,7 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			return pageLeaf;
 		}
 
+		pageno = cachedDescent(pageno, lo_key, false);
 		page = pinPage(pageno);
 		sortPage = new BTSortedPage(page, headerPage.get_keyType());
 
@@ -945,14 +2584,24 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 
 		while (sortPage.getType() == NodeType.INDEX) {
 			pageIndex = new BTIndexPage(page, headerPage.get_keyType());
-			prevpageno = pageIndex.getPrevPage();
-			curEntry = pageIndex.getFirst(startrid);
-			while (curEntry != null && lo_key != null && BT.keyCompare(curEntry.key, lo_key) < 0) {
-				prevEntry = curEntry;
-				prevpageno = ((IndexData) curEntry.data).getData();
-				curEntry = pageIndex.getNext(startrid);
+			if (nodeCache != null) {
+				prevpageno = nodeCache.load(pageIndex).child(lo_key, false);
+				unpinPage(pageno);
+				pageno = cachedDescent(prevpageno, lo_key, false);
+				page = pinPage(pageno);
+				sortPage = new BTSortedPage(page, headerPage.get_keyType());
+				if (trace != null) {
+					trace.writeBytes("VISIT node " + pageno + lineSep);
+					trace.flush();
+				}
+				continue;
 			}
 
+			if (lo_key == null)
+				prevpageno = pageIndex.getPrevPage();
+			else
+				prevpageno = childByKey(pageIndex, lo_key, false);
+
 			unpinPage(pageno);
 
 			pageno = prevpageno;
@@ -994,6 +2643,14 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			// scan will unpin it when done
 		}
 
+		// jump to the last entry before lo_key; the loop below steps once
+		int slot = AdaptiveSearch.search(ByteBuffer.wrap(pageLeaf.getpage()), headerPage.get_keyType(), lo_key,
+				false);
+		if (slot > 0) {
+			startrid.slotNo = slot - 1;
+			curEntry = pageLeaf.getCurrent(startrid);
+		}
+
 		while (BT.keyCompare(curEntry.key, lo_key) < 0) {
 			curEntry = pageLeaf.getNext(startrid);
 			while (curEntry == null) { // have to go right
@@ -1131,7 +2788,7 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 				trace.flush();
 			}
 			if(headerPage.get_rootId().pid!=-1){
-				_Delete(key, rid, headerPage.get_rootId(), null);
+				_Delete(key, rid, headerPage.get_rootId());
 			}
 			else{
 				System.out.println("Tree is empty");
@@ -1167,8 +2824,8 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 *            rid of the key to be deleted
 	 * @param currentPageId
 	 *            page id of the page where key is supposed to be
-	 * @param parentPageId
-	 *            page id of the currents's parent page
+	 * @param path
+	 *            the index pages above the page, its parent deepest
 	 * 
 	 * @return key_class merge key which needs to be deleted in current's parent
 	 *         page
@@ -1190,7 +2847,7 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 * @throws FreePageException 
 	 * @throws RecordNotFoundException 
 	 */
-	private KeyClass deleteLeaf(Page currentPage, KeyClass key, RID rid, PageId currentPageId, PageId parentPageId)
+	private KeyClass deleteLeaf(Page currentPage, KeyClass key, RID rid, PageId currentPageId, PagePath path)
 			throws KeyNotMatchException, LeafDeleteException, ConstructPageException, IOException, IteratorException,
 			PinPageException, LeafInsertRecException, DeleteRecException, LeafRedistributeException, UnpinPageException,
 			IndexFullDeleteException, RedistributeException, IndexInsertRecException, IndexSearchException,
@@ -1213,7 +2870,7 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 					}
 				}
 				else if((PAGE_SIZE-leafPage.available_space())<(int)(PAGE_SIZE*(PERCENTAGE/100.0f))){
-					return dataRearrangement(currentPage,currentPageId, parentPageId, key);
+					return dataRearrangement(currentPage,currentPageId, path, key);
 				}else{
 					unpinPage(leafPage.getCurPage(), true);
 					return null;
@@ -1226,30 +2883,28 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	}
 
 	/**
-	 * delete_index method will be called recursively until current page is of
-	 * type index. Once delete_leaf method deletes the key and returns the merge
-	 * key which needs to be deleted in the index page , delete index will
-	 * delete exact merge key if it matches in index page or first key which is
-	 * greater than merge key in parent index page.After key in the index page
-	 * is deleted , if page occupancy falls below the occupancy criteria ,
-	 * either redistribution or merge will happen to balance the Tree.If merge
-	 * happens , it will return merge key which needs to be deleted in parent
-	 * page will be returned or this method will return null in all other case
-	 * 
-	 * @param currentPage
-	 *            the page where key is supposed to be.
+	 * delete_index method is called for each index page on the path to the
+	 * leaf, deepest first, as long as the page below returns a merge key.
+	 * delete index will delete exact merge key if it matches in index page or
+	 * first key which is greater than merge key in parent index page.After
+	 * key in the index page is deleted , if page occupancy falls below the
+	 * occupancy criteria , either redistribution or merge will happen to
+	 * balance the Tree.If merge happens , it will return merge key which needs
+	 * to be deleted in parent page will be returned or this method will
+	 * return null in all other case
+	 *
+	 * @param pageIndex
+	 *            the index page, pinned; it is unpinned on return
+	 * @param deleteUpEntry
+	 *            merge key returned by the page below
 	 * @param key
 	 *            key need to be deleted
-	 * @param rid
-	 *            rid of the key to be deleted
-	 * @param currentPageId
-	 *            page id of the page where key is supposed to be
-	 * @param parentPageId
-	 *            page id of the currents's parent page
-	 * 
+	 * @param path
+	 *            the index pages above the page, its parent deepest
+	 *
 	 * @return key_class merge key which needs to be deleted in current's parent
 	 *         page
-	 * 
+	 *
 	 * @throws ConstructPageException
 	 * @throws IOException
 	 * @throws IndexSearchException
@@ -1262,70 +2917,57 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 * @throws UnpinPageException
 	 * @throws RedistributeException
 	 * @throws IndexInsertRecException
-	 * @throws KeyNotMatchException
-	 * @throws LeafDeleteException
-	 * @throws RecordNotFoundException
-	 * @throws InsertRecException
 	 * @throws FreePageException
 	 */
-	private KeyClass deleteIndex(Page currentPage, KeyClass key, RID rid, PageId currentPageId, PageId parentPageId)
+	private KeyClass deleteIndex(BTIndexPage pageIndex, KeyClass deleteUpEntry, KeyClass key, PagePath path)
 			throws ConstructPageException, IOException, IndexSearchException, PinPageException,
 			IndexFullDeleteException, LeafInsertRecException, DeleteRecException, IteratorException,
 			LeafRedistributeException, UnpinPageException, RedistributeException, IndexInsertRecException,
-			KeyNotMatchException, LeafDeleteException, RecordNotFoundException, InsertRecException, FreePageException {
-		BTIndexPage pageIndex = new BTIndexPage(currentPage, headerPage.get_keyType());
-		PageId nextPageToFind = pageIndex.getPageNoByKey(key);
-		unpinPage(currentPageId);
-		KeyClass deleteUpEntry = _Delete(key, rid, nextPageToFind, currentPageId);
-		//pinning the index page again since _Delete might have un pinned the page
-		pageIndex = new BTIndexPage(pinPage(currentPageId), headerPage.get_keyType());
-		if(deleteUpEntry!=null){
-			//deleteKey method will delete exact key if found or key which is less than parameter 
-			RID curRid = pageIndex.deleteKey(deleteUpEntry);
-			//If the index page is root page then occupancy should not be checked
-			if(pageIndex.getCurPage().pid==headerPage.get_rootId().pid){
-				if(pageIndex.numberOfRecords()!=0){
-					unpinPage(pageIndex.getCurPage(),true);
-					return null;
-				}else{
-					BTSortedPage childPage = new BTSortedPage(pageIndex.getPrevPage(), headerPage.get_keyType());
-					updateHeader(pageIndex.getPrevPage());
-					unpinPage(childPage.getCurPage());
-					unpinPage(pageIndex.getCurPage());
-					freePage(pageIndex.getCurPage());
-					return null;
-				}
-			}
-			if((PAGE_SIZE-pageIndex.available_space())<(int)(PAGE_SIZE*(PERCENTAGE/100.0f))){
-				return dataRearrangement(currentPage,currentPageId, parentPageId, key);
+			FreePageException {
+		//deleteKey method will delete exact key if found or key which is less than parameter
+		pageIndex.deleteKey(deleteUpEntry);
+		//If the index page is root page then occupancy should not be checked
+		if(pageIndex.getCurPage().pid==headerPage.get_rootId().pid){
+			if(pageIndex.numberOfRecords()!=0){
+				unpinPage(pageIndex.getCurPage(),true);
+				return null;
 			}else{
-				unpinPage(pageIndex.getCurPage(),false);
+				BTSortedPage childPage = new BTSortedPage(pinPage(pageIndex.getPrevPage()), headerPage.get_keyType());
+				updateHeader(pageIndex.getPrevPage());
+				unpinPage(childPage.getCurPage());
+				unpinPage(pageIndex.getCurPage());
+				freePage(pageIndex.getCurPage());
 				return null;
 			}
+		}
+		if((PAGE_SIZE-pageIndex.available_space())<(int)(PAGE_SIZE*(PERCENTAGE/100.0f))){
+			return dataRearrangement(pageIndex,pageIndex.getCurPage(), path, key);
 		}else{
-			unpinPage(pageIndex.getCurPage(), true);
+			unpinPage(pageIndex.getCurPage(),true);
+			return null;
 		}
-		return null;
 	}
 
 	/**
-	 * _Delete method will be recursively called until the key is found in the
-	 * leaf page.once the leaf page data is redistributed or merged, recursion
-	 * will unfold, by redistributing the immediate parent page until it reaches
-	 * root page or currents page satisfies the page occupancy criteria.
-	 * 
+	 * _Delete method descends from the root to the leaf holding the key,
+	 * keeping the index pages it passes pinned on a PagePath. A page whose
+	 * occupancy stays above the criteria even if a merge below takes one
+	 * entry from it cannot pass a merge key up, so the pages above it are
+	 * released right away. Once the leaf page data is deleted, redistributed
+	 * or merged, the merge keys go up the path, redistributing or merging
+	 * the pages on it until it reaches root page or currents page satisfies
+	 * the page occupancy criteria.
+	 *
 	 * @param key
 	 *            key need to be deleted
 	 * @param rid
 	 *            rid of the key to be deleted
 	 * @param currentPageId
-	 *            page id of the page where key is supposed to be
-	 * @param parentPageId
-	 *            page id of the currents's parent page
-	 * 
+	 *            page id of the root page
+	 *
 	 * @return key_class-merge key which needs to be deleted in current's parent
 	 *         page
-	 * 
+	 *
 	 * @throws IndexInsertRecException
 	 * @throws RedistributeException
 	 * @throws IndexSearchException
@@ -1344,20 +2986,44 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 * @throws IOException
 	 * @throws LeafInsertRecException
 	 */
-	private KeyClass _Delete(KeyClass key, RID rid, PageId currentPageId, PageId parentPageId)
+	private KeyClass _Delete(KeyClass key, RID rid, PageId currentPageId)
 			throws IndexInsertRecException, RedistributeException, IndexSearchException, RecordNotFoundException,
 			DeleteRecException, InsertRecException, LeafRedistributeException, IndexFullDeleteException,
 			FreePageException, LeafDeleteException, KeyNotMatchException, ConstructPageException, UnpinPageException,
 			IteratorException, PinPageException, IOException, LeafInsertRecException {
 
-		Page currentPage = pinPage(currentPageId);
-		BTSortedPage sortPage = new BTSortedPage(currentPage, headerPage.get_keyType());
-		if(sortPage.getType()==NodeType.INDEX){
-			return deleteIndex(currentPage,key, rid, currentPageId, parentPageId);
-		}else if(sortPage.getType()==NodeType.LEAF){
-			return deleteLeaf(currentPage,key, rid, currentPageId, parentPageId);
+		PagePath path = new PagePath(this);
+		int minUsed = (int) (PAGE_SIZE * (PERCENTAGE / 100.0f));
+		int maxIndexEntry = headerPage.get_maxKeySize() + PageLayout.INDEX_DATA;
+		int maxLeafEntry = headerPage.get_maxKeySize() + PageLayout.LEAF_DATA;
+		try {
+			while (true) {
+				Page currentPage = pinPage(currentPageId);
+				BTSortedPage sortPage = new BTSortedPage(currentPage, headerPage.get_keyType());
+				if(sortPage.getType()==NodeType.INDEX){
+					BTIndexPage pageIndex = new BTIndexPage(currentPage, headerPage.get_keyType());
+					PageId nextPageToFind = childByKey(pageIndex, key, true);
+					if (PAGE_SIZE - pageIndex.available_space() - maxIndexEntry >= minUsed)
+						path.release();
+					path.push(currentPageId, pageIndex);
+					currentPageId = nextPageToFind;
+				}else if(sortPage.getType()==NodeType.LEAF){
+					if (PAGE_SIZE - sortPage.available_space() - maxLeafEntry >= minUsed)
+						path.release();
+					KeyClass deleteUpEntry = deleteLeaf(currentPage, key, rid, currentPageId, path);
+					while (deleteUpEntry != null && !path.isEmpty()) {
+						BTIndexPage pageIndex = path.pop(headerPage.get_keyType());
+						deleteUpEntry = deleteIndex(pageIndex, deleteUpEntry, key, path);
+					}
+					return deleteUpEntry;
+				}else{
+					unpinPage(currentPageId);
+					return null;
+				}
+			}
+		} finally {
+			path.release();
 		}
-		return null;
 	}
 
 	/**
@@ -1366,12 +3032,13 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 * the page is redistributed with sibling page , all the required pages will
 	 * be un pinned and method will return null
 	 * 
-	 * @param parentPage
-	 *            Page object of the parent page 
+	 * @param currentPage
+	 *            Page object of the current page
 	 * @param currentPageId
 	 *            page id of the page where key is supposed to be
-	 * @param parentPage
-	 *            page id of the currents's parent page
+	 * @param path
+	 *            the index pages above the current page, its parent deepest;
+	 *            the path keeps its pin on the parent
 	 * @param key
 	 *            key need to be deleted
 	 * 
@@ -1391,12 +3058,12 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 * @throws IndexInsertRecException
 	 * @throws IndexSearchException
 	 */
-	private KeyClass dataRearrangement(Page currentPage,PageId currentPageId, PageId parentPage, KeyClass key)
+	private KeyClass dataRearrangement(Page currentPage,PageId currentPageId, PagePath path, KeyClass key)
 			throws ConstructPageException, PinPageException, IOException, LeafInsertRecException, DeleteRecException,
 			IteratorException, LeafRedistributeException, UnpinPageException, IndexFullDeleteException,
 			RedistributeException, IndexInsertRecException, IndexSearchException {
 
-		BTIndexPage parentIndexPage = new BTIndexPage(pinPage(parentPage), headerPage.get_keyType());
+		BTIndexPage parentIndexPage = path.peek(headerPage.get_keyType());
 		BTSortedPage sortPage = new BTSortedPage(currentPage, headerPage.get_keyType());
 		PageId siblingPageId = null;
 		
@@ -1419,12 +3086,10 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 					}else{
 						unpinPage(currentIndexPage.getCurPage(), true);
 						unpinPage(siblingPageId, true);
-						unpinPage(parentIndexPage.getCurPage());
 					}
 				}
 			}else{
 				unpinPage(currentIndexPage.getCurPage(), true);
-				unpinPage(parentIndexPage.getCurPage());
 				return null;
 			}
 		}else{
@@ -1438,16 +3103,19 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 				if(!redistribute){
 					if(siblingPage.available_space()+currentLeafPage.available_space()>PAGE_SIZE){
 						mergeUpEntry =  merge(siblingPage, currentLeafPage, siblingDirection,parentIndexPage);
+					}else{
+						unpinPage(currentLeafPage.getCurPage(), true);
+						unpinPage(siblingPageId);
 					}
 				}
 			}else{
 				unpinPage(currentLeafPage.getCurPage(), true);
-				unpinPage(parentIndexPage.getCurPage());
 				return null;
 			}
 		}
 		if(redistribute){
-			unpinPage(parentIndexPage.getCurPage(),true);
+			redistributeCount++;
+			path.setDirty();
 			unpinPage(currentPageId,true);
 			unpinPage(siblingPageId,true);
 			return null;
@@ -1467,7 +3135,8 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 * @param direction
 	 *            direction of the sibling to the current page
 	 * @param parentIndexPage
-	 *            page object of the current's parent page
+	 *            page object of the current's parent page, pinned by the
+	 *            caller
 	 * @return key_class merge key which needs to be deleted in current's parent
 	 *         page
 	 * @throws LeafInsertRecException
@@ -1477,11 +3146,13 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 * @throws IndexSearchException
 	 * @throws IOException
 	 * @throws ConstructPageException
+	 * @throws PinPageException
 	 * @throws UnpinPageException
 	 */
 	private KeyClass merge(Object siblingPage, Object currentPage, int direction,
 			BTIndexPage parentIndexPage) throws LeafInsertRecException, DeleteRecException, IteratorException,
-					IndexInsertRecException, IndexSearchException, IOException, ConstructPageException, UnpinPageException {
+					IndexInsertRecException, IndexSearchException, IOException, ConstructPageException, PinPageException,
+					UnpinPageException {
 		if(siblingPage instanceof BTLeafPage && currentPage instanceof BTLeafPage){
 			BTLeafPage leftChild, rightChild;
 			if(direction==1){
@@ -1493,17 +3164,16 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 				leftChild = (BTLeafPage)siblingPage;
 			}
 			
-			RID mergeRid = new RID();
 			KeyClass key = rightChild.getFirst(new RID()).key;
-			for (KeyDataEntry tmpEntry = rightChild.getFirst(mergeRid); tmpEntry != null; tmpEntry = rightChild
-					.getFirst(mergeRid)) {
-				leftChild.insertRecord(tmpEntry.key, ((LeafData) tmpEntry.data).getData());
-				rightChild.deleteSortedRecord(mergeRid);
-			}
+			// every key of the right page follows those of the left one:
+			// append its records in one pass
+			ByteBuffer right = ByteBuffer.wrap(rightChild.getpage());
+			ByteBuffer left = ByteBuffer.wrap(leftChild.getpage());
+			PageLayout.moveRecords(right, 0, PageLayout.slotCount(right), left, PageLayout.slotCount(left));
 			arrangePointers(leftChild,rightChild);
+			mergeCount++;
 			try {
 				unpinPage(leftChild.getCurPage(), true);
-				unpinPage(parentIndexPage.getCurPage(), true);
 				unpinPage(rightChild.getCurPage());
 				freePage(rightChild.getCurPage());
 			} catch (FreePageException e) {
@@ -1527,16 +3197,13 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			KeyClass findKey = parentIndexPage.findKey(keyDataUpEntry.key);
 			leftChild.insertKey(findKey, rightChild.getLeftLink());
 			
-			RID mergeRid = new RID();
-			for (KeyDataEntry tmpEntry =rightChild.getFirst(mergeRid); tmpEntry != null; tmpEntry = rightChild
-					.getFirst(mergeRid)) {
-				leftChild.insertKey(tmpEntry.key, ((IndexData) tmpEntry.data).getData());
-				rightChild.deleteSortedRecord(mergeRid);
-			}
+			ByteBuffer right = ByteBuffer.wrap(rightChild.getpage());
+			ByteBuffer left = ByteBuffer.wrap(leftChild.getpage());
+			PageLayout.moveRecords(right, 0, PageLayout.slotCount(right), left, PageLayout.slotCount(left));
 			arrangePointers(leftChild,rightChild);
+			mergeCount++;
 			try {
 				unpinPage(leftChild.getCurPage(), true);
-				unpinPage(parentIndexPage.getCurPage(), true);
 				unpinPage(rightChild.getCurPage());
 				freePage(rightChild.getCurPage());
 			} catch (FreePageException e) {
@@ -1558,14 +3225,15 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 * 
 	 * @throws IOException
 	 * @throws ConstructPageException
+	 * @throws PinPageException
 	 * @throws UnpinPageException
 	 */
 	private void arrangePointers(Object leftChild, Object rightChild)
-			throws IOException, ConstructPageException, UnpinPageException {
+			throws IOException, ConstructPageException, PinPageException, UnpinPageException {
 		if(leftChild instanceof BTLeafPage && rightChild instanceof BTLeafPage){
 			((BTLeafPage)leftChild).setNextPage(((BTLeafPage)rightChild).getNextPage());
 			if (((BTLeafPage)rightChild).getNextPage().pid != INVALID_PAGE) {
-				BTLeafPage nextLeafPage = new BTLeafPage(((BTLeafPage)rightChild).getNextPage(),
+				BTLeafPage nextLeafPage = new BTLeafPage(pinPage(((BTLeafPage)rightChild).getNextPage()),
 						headerPage.get_keyType());
 				nextLeafPage.setPrevPage(((BTLeafPage)leftChild).getCurPage());
 				unpinPage(nextLeafPage.getCurPage(), true);
@@ -1574,7 +3242,7 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		else if(leftChild instanceof BTIndexPage && rightChild instanceof BTIndexPage){
 			((BTIndexPage)leftChild).setNextPage(((BTIndexPage)rightChild).getNextPage());
 			if (((BTIndexPage)rightChild).getNextPage().pid != INVALID_PAGE) {
-				BTIndexPage nextLeafPage = new BTIndexPage(((BTIndexPage)rightChild).getNextPage(),
+				BTIndexPage nextLeafPage = new BTIndexPage(pinPage(((BTIndexPage)rightChild).getNextPage()),
 						headerPage.get_keyType());
 				nextLeafPage.setPrevPage(((BTIndexPage)leftChild).getCurPage());
 				unpinPage(nextLeafPage.getCurPage(), true);
@@ -1588,7 +3256,10 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 	 * to the hi_key (3) lo_key!= null, hi_key = null range scan from the lo_key
 	 * to max (4) lo_key!= null, hi_key!= null, lo_key = hi_key exact match (
 	 * might not unique) (5) lo_key!= null, hi_key!= null, lo_key < hi_key range
-	 * scan from lo_key to hi_key
+	 * scan from lo_key to hi_key. In a LONG_KEYS file the scan returns the
+	 * entries in the order of the keys they stand for, reading ahead the
+	 * families of keys holding long keys, and does not support
+	 * delete_current (see LongKeys).
 	 * 
 	 * @param lo_key
 	 *            the key where we begin scanning. Input parameter.
@@ -1611,6 +3282,45 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 			IteratorException, ConstructPageException, PinPageException, UnpinPageException
 
 	{
+		BTFileScan scan = storedScan(encodeBound(lo_key, false), encodeBound(hi_key, true));
+		if (longKeys == null)
+			return scan;
+		return longKeys.new Scan(scan, encodeKey(lo_key), encodeKey(hi_key));
+	}
+
+	/**
+	 * create a scan of the entries whose leading columns are those of prefix,
+	 * in a file created with KeyEncoding.attrComposite. For keys (tenant,
+	 * timestamp, id), new CompositeKey(tenant) scans one tenant and new
+	 * CompositeKey(tenant, timestamp) one timestamp of that tenant.
+	 * 
+	 * @param prefix
+	 *            the leading columns. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                the file does not have composite keys
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public BTFileScan new_prefix_scan(CompositeKey prefix) throws IOException, KeyNotMatchException,
+			IteratorException, ConstructPageException, PinPageException, UnpinPageException {
+		if (keyEncoding != KeyEncoding.COMPOSITE)
+			throw new KeyNotMatchException(null, "prefix scans need composite keys");
+		return storedScan(KeyEncoding.encode(prefix, keyEncoding), KeyEncoding.prefixUpperBound(prefix));
+	}
+
+	/*
+	 * new_scan over keys in their stored form
+	 */
+	BTFileScan storedScan(KeyClass lo_key, KeyClass hi_key) throws IOException, KeyNotMatchException,
+			IteratorException, ConstructPageException, PinPageException, UnpinPageException {
 		BTFileScan scan = new BTFileScan();
 		if (headerPage.get_rootId().pid == INVALID_PAGE) {
 			scan.leafPage = null;
@@ -1631,6 +3341,79 @@ public class BTreeFile extends IndexFile implements GlobalConst {
 		return scan;
 	}
 
+	/**
+	 * create a read-only scan over the same key ranges as new_scan whose
+	 * leaves do not go through the buffer pool: only the descent to the first
+	 * leaf pins pages, every further leaf is read into a frame owned by the
+	 * scan. Use it for large scans that would otherwise push the index pages
+	 * used by concurrent lookups out of the pool.
+	 * 
+	 * @param lo_key
+	 *            the key where we begin scanning. Input parameter.
+	 * @param hi_key
+	 *            the key where we stop scanning. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public SequentialScan new_sequential_scan(KeyClass lo_key, KeyClass hi_key) throws IOException,
+			KeyNotMatchException, IteratorException, ConstructPageException, PinPageException, UnpinPageException {
+		KeyClass lo = lo_key, hi = hi_key;
+		lo_key = encodeBound(lo_key, false);
+		hi_key = encodeBound(hi_key, true);
+		RID startrid = new RID();
+		BTLeafPage first = null;
+		if (headerPage.get_rootId().pid != INVALID_PAGE)
+			first = findRunStart(lo_key, startrid);
+		SequentialScan scan = new SequentialScan(this, first, startrid, hi_key, headerPage.get_keyType(),
+				headerPage.get_maxKeySize());
+		if (first != null)
+			unpinPage(first.getCurPage());
+		if (longKeys == null)
+			return scan;
+		return new SequentialScan(longKeys.order(scan, encodeKey(lo), encodeKey(hi)), scan.keysize());
+	}
+
+	/**
+	 * create a scan over the same key ranges as new_scan which returns the
+	 * heap records of the range instead of the index entries, fetched in
+	 * physical order: the rids are read in batches of batchSize, sorted, and
+	 * every heap page of a batch is pinned once (see RidSortedScan).
+	 * 
+	 * @param lo_key
+	 *            the key where we begin scanning. Input parameter.
+	 * @param hi_key
+	 *            the key where we stop scanning. Input parameter.
+	 * @param batchSize
+	 *            number of rids sorted at a time. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception KeyNotMatchException
+	 *                key is not integer key nor string key
+	 * @exception IteratorException
+	 *                iterator error
+	 * @exception ConstructPageException
+	 *                error in BT page constructor
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public RidSortedScan new_rid_sorted_scan(KeyClass lo_key, KeyClass hi_key, int batchSize)
+			throws IOException, KeyNotMatchException, IteratorException, ConstructPageException, PinPageException,
+			UnpinPageException {
+		return new RidSortedScan(this, new_scan(lo_key, hi_key), batchSize);
+	}
+
 	void trace_children(PageId id)
 			throws IOException, IteratorException, ConstructPageException, PinPageException, UnpinPageException {
 
@@ -0,0 +1,435 @@
+package btree;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import diskmgr.Page;
+import global.GlobalConst;
+import global.PageId;
+import global.SystemDefs;
+
+/**
+ * Redo log for B+ tree files. Every operation (insert, delete) of a BTreeFile
+ * attached to a log writes the after-image of each page it dirties: leaf
+ * inserts and deletes, splits, merges, redistributions and root changes
+ * through the header page all show up as page images. The operation ends
+ * with a commit record. Recovery writes back the images of committed
+ * operations in log order; page images are idempotent, so recovery can be
+ * repeated.
+ *
+ * Page allocations and frees are logged too, since the space map of the
+ * database is written by the buffer manager whenever it likes: recovery marks
+ * the pages a committed operation allocated or freed in the space map again,
+ * so that a page of the recovered tree is never handed out twice. A freed
+ * page goes back to the database only when the operation that freed it is on
+ * stable storage (see BTreeFile.freePage).
+ *
+ * Records are collected in memory and written by a flusher thread. One write
+ * and one fsync cover every record appended since the previous flush, so
+ * concurrent writers waiting in commit share a single fsync (group commit).
+ * A file attached with syncCommit off does not wait at all; its operations
+ * become durable with the next group flush, at most groupDelay later.
+ *
+ * The log keeps no undo information, so no page may reach the disk before
+ * the operation that changed it is committed on stable storage (no-steal).
+ * The attached files see to it: a page dirtied while a log is attached stays
+ * pinned until the log is synced past the commit of its operation, so the
+ * buffer manager cannot pick it for replacement before. After a crash the
+ * disk only holds committed images, and redoing the committed operations of
+ * the log brings it up to date.
+ */
+public class BTreeLog implements GlobalConst {
+
+	private static final byte PAGE = 1;
+	private static final byte FREE = 2;
+	private static final byte COMMIT = 3;
+	private static final byte ALLOC = 4;
+
+	// pages whose allocation bits one space map page of the database holds
+	private static final int BITS_PER_MAP_PAGE = MAX_SPACE * 8;
+
+	private RandomAccessFile file;
+	private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+	private DataOutputStream out = new DataOutputStream(buffer);
+	private long appendedLsn; // end of the last appended record
+	private long flushedLsn; // end of the last record on stable storage
+	private long nextOpId = 1;
+	private long groupDelay;
+	private IOException failure;
+	private boolean closed;
+	private Thread flusher;
+	private List<BTreeFile> files = new ArrayList<BTreeFile>(); // attached
+
+	/**
+	 * Open (or create) a log file and start its flusher.
+	 *
+	 * @param logPath
+	 *            name of the log file. Input parameter.
+	 * @param groupDelay
+	 *            milliseconds the flusher waits for more records before it
+	 *            writes a group. Input parameter.
+	 * @exception IOException
+	 *                error opening the log file
+	 */
+	public BTreeLog(String logPath, long groupDelay) throws IOException {
+		this.file = new RandomAccessFile(logPath, "rw");
+		this.groupDelay = groupDelay;
+		appendedLsn = flushedLsn = file.length();
+		file.seek(appendedLsn);
+
+		flusher = new Thread("btree log flusher") {
+			public void run() {
+				flushLoop();
+			}
+		};
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * Start a new operation.
+	 *
+	 * @return the id which tags all records of the operation
+	 */
+	synchronized long begin() {
+		return nextOpId++;
+	}
+
+	/**
+	 * Log the after-image of a page dirtied by an operation.
+	 */
+	synchronized void logPage(long opId, PageId pageno, byte[] image) throws IOException {
+		out.writeByte(PAGE);
+		out.writeLong(opId);
+		out.writeInt(pageno.pid);
+		out.write(image, 0, MAX_SPACE);
+		appendedLsn += 1 + 8 + 4 + MAX_SPACE;
+	}
+
+	/**
+	 * Log that an operation freed a page.
+	 */
+	synchronized void logFree(long opId, PageId pageno) throws IOException {
+		out.writeByte(FREE);
+		out.writeLong(opId);
+		out.writeInt(pageno.pid);
+		appendedLsn += 1 + 8 + 4;
+	}
+
+	/**
+	 * Log that an operation allocated a page.
+	 */
+	synchronized void logAlloc(long opId, PageId pageno) throws IOException {
+		out.writeByte(ALLOC);
+		out.writeLong(opId);
+		out.writeInt(pageno.pid);
+		appendedLsn += 1 + 8 + 4;
+	}
+
+	/**
+	 * Commit an operation. With wait set, return only when the commit record
+	 * is on stable storage.
+	 *
+	 * @return the lsn the log must be durable up to for the commit to be
+	 */
+	synchronized long commit(long opId, boolean wait) throws IOException {
+		out.writeByte(COMMIT);
+		out.writeLong(opId);
+		appendedLsn += 1 + 8;
+		notifyAll();
+		if (wait)
+			waitFor(appendedLsn);
+		return appendedLsn;
+	}
+
+	/**
+	 * @return the end of the last record on stable storage. Lsns keep
+	 *         growing across checkpoints.
+	 */
+	synchronized long getDurableLsn() {
+		return flushedLsn;
+	}
+
+	synchronized void attach(BTreeFile file) {
+		files.add(file);
+	}
+
+	synchronized void detach(BTreeFile file) {
+		files.remove(file);
+	}
+
+	/**
+	 * Wait until every record appended so far is on stable storage.
+	 *
+	 * @exception IOException
+	 *                the flusher failed to write the log
+	 */
+	public synchronized void sync() throws IOException {
+		notifyAll();
+		waitFor(appendedLsn);
+	}
+
+	private void waitFor(long lsn) throws IOException {
+		boolean interrupted = false;
+		while (flushedLsn < lsn && failure == null && !closed) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		if (failure != null)
+			throw failure;
+	}
+
+	private void flushLoop() {
+		while (true) {
+			byte[] group;
+			long groupLsn;
+			synchronized (this) {
+				while (appendedLsn == flushedLsn && !closed) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				if (appendedLsn == flushedLsn)
+					return; // closed and drained
+				if (groupDelay > 0 && !closed) {
+					// let more writers join this group
+					try {
+						wait(groupDelay);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+				group = buffer.toByteArray();
+				groupLsn = appendedLsn;
+				buffer.reset();
+			}
+			try {
+				file.write(group);
+				file.getFD().sync();
+			} catch (IOException e) {
+				synchronized (this) {
+					failure = e;
+					notifyAll();
+				}
+				return;
+			}
+			synchronized (this) {
+				flushedLsn = groupLsn;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Write the dirty pages of the files attached to this log and empty the
+	 * log, whose records are no longer needed after that. Call it between
+	 * operations. If a page cannot be written, the log is left as it is.
+	 *
+	 * @exception IOException
+	 *                error writing pages or the log
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public synchronized void checkpoint() throws IOException, PinPageException, UnpinPageException {
+		do {
+			sync(); // others may append while it waits
+		} while (appendedLsn != flushedLsn);
+		for (BTreeFile attached : new ArrayList<BTreeFile>(files))
+			attached.writeDirtyPages();
+		// every record is flushed, so the flusher is not writing
+		file.setLength(0);
+		file.seek(0);
+	}
+
+	/**
+	 * Write the remaining records and close the log file.
+	 *
+	 * @exception IOException
+	 *                error writing the log
+	 */
+	public void close() throws IOException {
+		sync();
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		file.close();
+	}
+
+	/**
+	 * Redo the committed operations of a log. Must be called after the
+	 * database is opened and before any B+ tree file in it is. The log is
+	 * emptied once the recovered pages, space map pages included, are
+	 * written; if one cannot be, the
+	 * exception is thrown and the log is left as it is. A torn record at the end
+	 * of the log (the crash happened while it was written) ends recovery.
+	 *
+	 * @param logPath
+	 *            name of the log file. Input parameter.
+	 * @return the number of operations redone
+	 * @exception IOException
+	 *                error reading the log or writing the pages
+	 * @exception PinPageException
+	 *                error when pin a page
+	 * @exception UnpinPageException
+	 *                error when unpin a page
+	 */
+	public static int recover(String logPath) throws IOException, PinPageException, UnpinPageException {
+		// per operation: page id, then the image or whether it is allocated
+		Map<Long, List<Object>> pending = new HashMap<Long, List<Object>>();
+		Set<Integer> written = new HashSet<Integer>();
+		int redone = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logPath)));
+		try {
+			while (true) {
+				byte type;
+				long opId;
+				Object redo;
+				PageId pageno;
+				try {
+					type = in.readByte();
+					opId = in.readLong();
+					if (type == COMMIT)
+						redo = pageno = null;
+					else if (type == PAGE) {
+						pageno = new PageId(in.readInt());
+						byte[] image = new byte[MAX_SPACE];
+						in.readFully(image);
+						redo = image;
+					} else if (type == ALLOC || type == FREE) {
+						pageno = new PageId(in.readInt());
+						redo = Boolean.valueOf(type == ALLOC);
+					} else
+						break; // garbage: the tail of the log is torn
+				} catch (EOFException e) {
+					break;
+				}
+				if (type != COMMIT) {
+					List<Object> records = pending.get(opId);
+					if (records == null) {
+						records = new ArrayList<Object>();
+						pending.put(opId, records);
+					}
+					records.add(pageno);
+					records.add(redo);
+					continue;
+				}
+
+				List<Object> records = pending.remove(opId);
+				if (records != null) {
+					for (int i = 0; i < records.size(); i += 2) {
+						pageno = (PageId) records.get(i);
+						redo = records.get(i + 1);
+						if (redo instanceof byte[]) {
+							redoPage(pageno, (byte[]) redo);
+							written.add(pageno.pid);
+						} else
+							written.add(markSpace(pageno, ((Boolean) redo).booleanValue()).pid);
+					}
+				}
+				redone++;
+			}
+		} finally {
+			in.close();
+		}
+
+		for (int pid : written)
+			writePage(new PageId(pid));
+		RandomAccessFile log = new RandomAccessFile(logPath, "rw");
+		log.setLength(0);
+		log.close();
+		return redone;
+	}
+
+	/*
+	 * Mark a page allocated or free in the space map of the database, where
+	 * DB keeps one bit per page from page 1 on: bit pid % 8 of byte
+	 * (pid % BITS_PER_MAP_PAGE) / 8 of map page pid / BITS_PER_MAP_PAGE + 1.
+	 * Unlike DB.allocate_page, this takes the page given, and setting a bit
+	 * twice is harmless. Returns the map page.
+	 */
+	private static PageId markSpace(PageId pageno, boolean allocated) throws PinPageException, UnpinPageException {
+		PageId mapPageno = new PageId(pageno.pid / BITS_PER_MAP_PAGE + 1);
+		Page page = new Page();
+		try {
+			SystemDefs.JavabaseBM.pinPage(mapPageno, page, false/* Rdisk */);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new PinPageException(e, "");
+		}
+		int offset = pageno.pid % BITS_PER_MAP_PAGE / 8;
+		int mask = 1 << pageno.pid % 8;
+		byte[] map = page.getpage();
+		map[offset] = (byte) (allocated ? map[offset] | mask : map[offset] & ~mask);
+		try {
+			SystemDefs.JavabaseBM.unpinPage(mapPageno, true /* = DIRTY */);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new UnpinPageException(e, "");
+		}
+		return mapPageno;
+	}
+
+	private static void redoPage(PageId pageno, byte[] image) throws PinPageException, UnpinPageException {
+		Page page = new Page();
+		try {
+			SystemDefs.JavabaseBM.pinPage(pageno, page, false/* Rdisk */);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new PinPageException(e, "");
+		}
+		System.arraycopy(image, 0, page.getpage(), 0, MAX_SPACE);
+		try {
+			SystemDefs.JavabaseBM.unpinPage(pageno, true /* = DIRTY */);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new UnpinPageException(e, "");
+		}
+	}
+
+	/*
+	 * Write a redone page to disk from its frame, which stays in the pool.
+	 */
+	private static void writePage(PageId pageno) throws IOException {
+		try {
+			Page page = new Page();
+			SystemDefs.JavabaseBM.pinPage(pageno, page, false/* Rdisk */);
+			try {
+				SystemDefs.JavabaseDB.write_page(pageno, page);
+			} finally {
+				SystemDefs.JavabaseBM.unpinPage(pageno, false);
+			}
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IOException(e.toString());
+		}
+	}
+}
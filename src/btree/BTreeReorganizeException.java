@@ -0,0 +1,17 @@
+package btree;
+
+import chainexception.ChainException;
+
+public class BTreeReorganizeException extends ChainException {
+	public BTreeReorganizeException() {
+		super();
+	}
+
+	public BTreeReorganizeException(String s) {
+		super(null, s);
+	}
+
+	public BTreeReorganizeException(Exception e, String s) {
+		super(e, s);
+	}
+}
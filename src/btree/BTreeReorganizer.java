@@ -0,0 +1,314 @@
+package btree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import diskmgr.Page;
+import global.GlobalConst;
+import global.PageId;
+import global.RID;
+
+/**
+ * Online reorganization of the leaves of a B+ tree file. The reorganizer
+ * walks the leaf level from left to right, one index page right above the
+ * leaves at a time, and for the leaves below that page
+ * <ul>
+ * <li>compacts neighbours: entries of a leaf move to its left neighbour
+ * until that one reaches the fill factor, and a leaf whose entries all fit
+ * is merged away (its separator is removed from the parent)</li>
+ * <li>moves the leaves, in key order, into a freshly allocated run of
+ * contiguous pages, fixing the parent pointers and the leaf chain, unless
+ * they already are contiguous</li>
+ * </ul>
+ * so that after a large purge the leaves are full again and a range scan
+ * reads the file sequentially.
+ *
+ * Each step handles one such index page. Every merge, move between two
+ * leaves and relocated leaf is an operation of the file of its own (logged
+ * as one, if the file has a log), together with the changed parent, so the
+ * tree is consistent after each of them and only the pages of one change
+ * wait for its commit at a time. step is the only entry
+ * point: the file is not thread safe, so the application calls it between
+ * its own operations, on the thread using the file, as often as it can
+ * spare the disk. No scan may be open on the file during a step.
+ *
+ * When compaction merges all leaves below the root into one, that leaf
+ * becomes the root and the pass ends. Below any other index page, the last
+ * two leaves are not merged, so that the page keeps a key: a lone leaf could
+ * not take its place without putting the leaves at different depths.
+ */
+public class BTreeReorganizer implements GlobalConst {
+
+	private BTreeFile file;
+	private int keyType;
+	private int fillFactor;
+
+	private KeyClass resume; // first key of the next step, null: leftmost
+	private int lastParent = INVALID_PAGE;
+	private int mergedLeaves;
+	private int movedLeaves;
+
+	/**
+	 * @param file
+	 *            the B+ tree file to reorganize. Input parameter.
+	 * @param fillFactor
+	 *            how full, in percent, compaction makes a leaf. Input
+	 *            parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public BTreeReorganizer(BTreeFile file, int fillFactor) throws IOException {
+		this.file = file;
+		this.keyType = file.getHeaderPage().get_keyType();
+		this.fillFactor = Math.max((int) BTreeFile.PERCENTAGE, Math.min(100, fillFactor));
+	}
+
+	/**
+	 * Reorganize the leaves below the next index page.
+	 *
+	 * @return false if this step completed a pass over all leaves (the next
+	 *         step starts a new pass), true otherwise
+	 * @exception BTreeReorganizeException
+	 *                error from the lower layers
+	 */
+	public boolean step() throws BTreeReorganizeException {
+		try {
+			file.beginOperation();
+			boolean more = reorganizeNext();
+			file.commitOperation();
+			if (!more) {
+				resume = null;
+				lastParent = INVALID_PAGE;
+			}
+			return more;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new BTreeReorganizeException(e, "");
+		}
+	}
+
+	/**
+	 * @return the number of leaves merged away so far
+	 */
+	public int getMergedLeaves() {
+		return mergedLeaves;
+	}
+
+	/**
+	 * @return the number of leaves moved to a new page so far
+	 */
+	public int getMovedLeaves() {
+		return movedLeaves;
+	}
+
+	private boolean reorganizeNext() throws Exception {
+		// descend to the index page right above the leaves covering resume
+		PageId parentId = null;
+		PageId pageno = file.getHeaderPage().get_rootId();
+		while (pageno.pid != INVALID_PAGE) {
+			Page page = file.pinPage(pageno);
+			if (new BTSortedPage(page, keyType).getType() == NodeType.LEAF) {
+				file.unpinPage(pageno);
+				break;
+			}
+			BTIndexPage indexPage = new BTIndexPage(page, keyType);
+			PageId child = resume == null ? indexPage.getPrevPage() : file.childByKey(indexPage, resume, true);
+			file.unpinPage(pageno);
+			parentId = pageno;
+			pageno = child;
+		}
+		if (parentId == null || parentId.pid == lastParent)
+			return false; // no index page, or no progress
+		lastParent = parentId.pid;
+
+		BTIndexPage parent = new BTIndexPage(file.pinPage(parentId), keyType);
+		boolean isRoot = parentId.pid == file.getHeaderPage().get_rootId().pid;
+		boolean changed = compact(parent, isRoot);
+		if (parent.numberOfRecords() == 0 && isRoot) {
+			// all leaves merged into one: it becomes the root
+			file.updateHeader(parent.getPrevPage());
+			file.unpinPage(parentId, true);
+			file.freePage(parentId);
+			return false;
+		}
+		changed |= relocate(parent);
+		List<PageId> children = children(parent);
+		file.unpinPage(parentId, changed);
+
+		resume = firstKeyAfter(children.get(children.size() - 1));
+		return resume != null;
+	}
+
+	/*
+	 * the children of an index page, its left link first
+	 */
+	private List<PageId> children(BTIndexPage parent) throws Exception {
+		List<PageId> children = new ArrayList<PageId>();
+		children.add(parent.getPrevPage());
+		RID rid = new RID();
+		for (KeyDataEntry entry = parent.getFirst(rid); entry != null; entry = parent.getNext(rid))
+			children.add(((IndexData) entry.data).getData());
+		return children;
+	}
+
+	/*
+	 * Fill every leaf below parent up to the fill factor from its right
+	 * neighbour, merging the neighbour away when all its entries fit, unless
+	 * that would leave a parent other than the root without a key. The
+	 * separator of child i + 1 is in slot i of the parent.
+	 */
+	private boolean compact(BTIndexPage parent, boolean isRoot) throws Exception {
+		boolean changed = false;
+		int reserve = MAX_SPACE * (100 - fillFactor) / 100; // free space kept
+		List<PageId> children = children(parent);
+		int i = 0;
+		while (i + 1 < children.size()) {
+			PageId leftId = children.get(i);
+			PageId rightId = children.get(i + 1);
+			BTLeafPage left = new BTLeafPage(file.pinPage(leftId), keyType);
+			BTLeafPage right = new BTLeafPage(file.pinPage(rightId), keyType);
+			ByteBuffer l = ByteBuffer.wrap(left.getpage());
+			ByteBuffer r = ByteBuffer.wrap(right.getpage());
+
+			int count = PageLayout.slotCount(r);
+			int room = PageLayout.freeSpace(l) - reserve;
+			int n = 0;
+			while (n < count && PageLayout.recordSpace(r, n, n + 1) <= room) {
+				room -= PageLayout.recordSpace(r, n, n + 1);
+				n++;
+			}
+
+			boolean merge = n == count && (isRoot || children.size() > 2);
+			if (n == count && !merge)
+				n = count - 1; // the right leaf keeps an entry, the parent its key
+			if (merge) {
+				// all entries fit: merge the right leaf away
+				PageLayout.moveRecords(r, 0, count, l, PageLayout.slotCount(l));
+				PageId next = right.getNextPage();
+				left.setNextPage(next);
+				if (next.pid != INVALID_PAGE) {
+					BTLeafPage nextLeaf = new BTLeafPage(file.pinPage(next), keyType);
+					nextLeaf.setPrevPage(leftId);
+					file.unpinPage(next, true);
+				}
+				parent.deleteSortedRecord(new RID(parent.getCurPage(), i));
+				file.unpinPage(leftId, true);
+				file.unpinPage(rightId);
+				file.freePage(rightId);
+				children.remove(i + 1);
+				mergedLeaves++;
+				changed = true;
+				commitChange(parent);
+				continue; // fill the left leaf further from the next one
+			}
+
+			boolean moved = false;
+			if (n > 0) {
+				// the first entry staying on the right becomes its separator
+				KeyClass separator = file.separatorKey(PageLayout.key(r, n, keyType));
+				ByteBuffer p = ByteBuffer.wrap(parent.getpage());
+				if (parent.available_space() + PageLayout.recordLength(p, i) >= BT.getKeyDataLength(separator,
+						NodeType.INDEX)) {
+					PageLayout.moveRecords(r, 0, n, l, PageLayout.slotCount(l));
+					parent.deleteSortedRecord(new RID(parent.getCurPage(), i));
+					parent.insertKey(separator, rightId);
+					moved = changed = true;
+				}
+			}
+			file.unpinPage(leftId, moved);
+			file.unpinPage(rightId, moved);
+			if (moved)
+				commitChange(parent);
+			i++;
+		}
+		return changed;
+	}
+
+	/*
+	 * Move the leaves below parent into a new run of contiguous pages, in
+	 * key order, unless they already are in one.
+	 */
+	private boolean relocate(BTIndexPage parent) throws Exception {
+		List<PageId> children = children(parent);
+		boolean contiguous = true;
+		for (int i = 1; i < children.size(); i++)
+			if (children.get(i).pid != children.get(i - 1).pid + 1)
+				contiguous = false;
+		if (contiguous)
+			return false;
+
+		ExtentAllocator run = new ExtentAllocator(children.size());
+		ByteBuffer p = ByteBuffer.wrap(parent.getpage());
+		PageId previous = null;
+		try {
+			for (int i = 0; i < children.size(); i++) {
+				PageId oldId = children.get(i);
+				Page page = new Page();
+				PageId newId = run.allocate(previous, page);
+				file.logAlloc(newId);
+				System.arraycopy(file.pinPage(oldId).getpage(), 0, page.getpage(), 0, MAX_SPACE);
+				file.unpinPage(oldId);
+				file.freePage(oldId);
+
+				BTLeafPage leaf = new BTLeafPage(page, keyType);
+				leaf.setCurPage(newId);
+				PageId prev = leaf.getPrevPage();
+				if (prev.pid != INVALID_PAGE) {
+					BTLeafPage prevLeaf = new BTLeafPage(file.pinPage(prev), keyType);
+					prevLeaf.setNextPage(newId);
+					file.unpinPage(prev, true);
+				}
+				PageId next = leaf.getNextPage();
+				if (next.pid != INVALID_PAGE) {
+					BTLeafPage nextLeaf = new BTLeafPage(file.pinPage(next), keyType);
+					nextLeaf.setPrevPage(newId);
+					file.unpinPage(next, true);
+				}
+				if (i == 0)
+					parent.setPrevPage(newId);
+				else
+					PageLayout.setChild(p, i - 1, newId.pid);
+				file.unpinPage(newId, true);
+				previous = newId;
+				movedLeaves++;
+				commitChange(parent);
+			}
+		} finally {
+			run.release();
+		}
+		return true;
+	}
+
+	/*
+	 * Commit the change just made below parent, with parent, and start the
+	 * next operation. Parent stays pinned by the step.
+	 */
+	private void commitChange(BTIndexPage parent) throws Exception {
+		PageId parentId = parent.getCurPage();
+		file.unpinPage(parentId, true); // logs it with the change
+		file.commitOperation();
+		file.beginOperation();
+		file.pinPage(parentId);
+	}
+
+	/*
+	 * the first key of the leaves after the given one, null if there is none
+	 */
+	private KeyClass firstKeyAfter(PageId leafId) throws Exception {
+		BTLeafPage leaf = new BTLeafPage(file.pinPage(leafId), keyType);
+		PageId next = leaf.getNextPage();
+		file.unpinPage(leafId);
+		while (next.pid != INVALID_PAGE) {
+			leaf = new BTLeafPage(file.pinPage(next), keyType);
+			KeyDataEntry entry = leaf.getFirst(new RID());
+			PageId current = next;
+			next = leaf.getNextPage();
+			file.unpinPage(current);
+			if (entry != null)
+				return entry.key;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,17 @@
+package btree;
+
+import chainexception.ChainException;
+
+public class BTreeRepairException extends ChainException {
+	public BTreeRepairException() {
+		super();
+	}
+
+	public BTreeRepairException(String s) {
+		super(null, s);
+	}
+
+	public BTreeRepairException(Exception e, String s) {
+		super(e, s);
+	}
+}
@@ -0,0 +1,538 @@
+package btree;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import diskmgr.Page;
+import global.GlobalConst;
+import global.PageId;
+import global.RID;
+import global.SystemDefs;
+
+/**
+ * Structural verifier and repair pass for a B+ tree file.
+ *
+ * The verifier works on private copies of the pages, taken one at a time
+ * under the buffer manager lock, so the tree stays usable while it runs. Each
+ * subtree below the root is checked by its own task:
+ * <ul>
+ * <li>key order within every page</li>
+ * <li>keys of every child within the range given by the separator keys of
+ * its parent</li>
+ * <li>all leaves at the same depth, no page reached twice</li>
+ * <li>occupancy of non-root pages (reported, not an error: naive delete
+ * leaves pages underfull)</li>
+ * </ul>
+ * Then the leaf chain is followed from the leftmost leaf to check key order
+ * across leaves, nextPage/prevPage symmetry, and that the chain and the tree
+ * reach the same leaves; a leaf only reachable through the chain is an orphan.
+ *
+ * repair rebuilds only what is damaged: every subtree below the root with a
+ * problem is detached from the root, its entries are re-inserted through the
+ * tree and its pages are freed. Entries of orphan leaves are re-inserted the
+ * same way.
+ */
+public class BTreeVerifier implements GlobalConst {
+
+	/**
+	 * Outcome of a verification.
+	 */
+	public static class Report {
+		public List<String> problems = Collections.synchronizedList(new ArrayList<String>());
+		public int pages;
+		public int leaves;
+		public int entries;
+		public int underfullPages;
+
+		/** page ids of the children of the root whose subtree is damaged */
+		public Set<Integer> damagedSubtrees = new TreeSet<Integer>();
+		/** leaves reachable through the leaf chain but not from the root */
+		public Set<Integer> orphanLeaves = new TreeSet<Integer>();
+		/** the root page itself is damaged: only a full rebuild helps */
+		public boolean damagedRoot;
+
+		public boolean isConsistent() {
+			return problems.isEmpty();
+		}
+
+		public String toString() {
+			StringBuffer sb = new StringBuffer();
+			sb.append(pages + " pages, " + leaves + " leaves, " + entries + " entries, " + underfullPages
+					+ " underfull pages, " + problems.size() + " problems");
+			for (String problem : problems)
+				sb.append(System.getProperty("line.separator") + "  " + problem);
+			return sb.toString();
+		}
+	}
+
+	/*
+	 * What the subtree tasks learn about a leaf, for the chain check.
+	 */
+	private static class LeafInfo {
+		int pid;
+		int subtree;
+		int depth;
+		int next;
+		int prev;
+		KeyClass firstKey;
+		KeyClass lastKey;
+	}
+
+	private BTreeFile file;
+	private int keyType;
+	private int threads;
+
+	private Report report;
+	private Set<Integer> visited;
+	private Map<Integer, LeafInfo> leafInfo;
+	private Map<Integer, List<Integer>> subtreePages;
+
+	/**
+	 * @param file
+	 *            the B+ tree file to check. Input parameter.
+	 * @param threads
+	 *            number of subtrees checked in parallel. Input parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public BTreeVerifier(BTreeFile file, int threads) throws IOException {
+		this.file = file;
+		this.keyType = file.getHeaderPage().get_keyType();
+		this.threads = threads;
+	}
+
+	/**
+	 * Check the structure of the tree.
+	 *
+	 * @return the report, also used by repair
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception PinPageException
+	 *                error when pin a page
+	 */
+	public Report verify() throws IOException, PinPageException {
+		report = new Report();
+		visited = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+		leafInfo = new ConcurrentHashMap<Integer, LeafInfo>();
+		subtreePages = new ConcurrentHashMap<Integer, List<Integer>>();
+
+		PageId root = file.getHeaderPage().get_rootId();
+		if (root.pid == INVALID_PAGE)
+			return report;
+
+		List<Integer> children = new ArrayList<Integer>();
+		try {
+			BTSortedPage rootPage = new BTSortedPage(snapshot(root.pid), keyType);
+			visited.add(root.pid);
+			report.pages++;
+			if (rootPage.getType() == NodeType.LEAF) {
+				subtreePages.put(root.pid, new ArrayList<Integer>());
+				checkLeaf(new BTLeafPage(rootPage, keyType), null, null, 0, root.pid, true);
+			} else if (rootPage.getType() == NodeType.INDEX) {
+				BTIndexPage indexPage = new BTIndexPage(rootPage, keyType);
+				List<KeyClass> bounds = new ArrayList<KeyClass>();
+				checkIndexKeys(indexPage, null, null, root.pid, children, bounds);
+				runSubtrees(children, bounds);
+			} else {
+				problem(root.pid, root.pid, "root has unknown page type " + rootPage.getType());
+			}
+		} catch (IOException e) {
+			throw e;
+		} catch (PinPageException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			report.damagedRoot = true;
+			report.problems.add("root " + root.pid + ": unreadable (" + e + ")");
+			return report;
+		}
+
+		checkLeafChain();
+		if (report.damagedSubtrees.contains(root.pid))
+			report.damagedRoot = true;
+		return report;
+	}
+
+	private void runSubtrees(final List<Integer> children, final List<KeyClass> bounds) throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+		try {
+			List<Future<Object>> results = new ArrayList<Future<Object>>();
+			for (int i = 0; i < children.size(); i++) {
+				final int child = children.get(i);
+				final KeyClass low = bounds.get(i);
+				final KeyClass high = bounds.get(i + 1);
+				subtreePages.put(child, Collections.synchronizedList(new ArrayList<Integer>()));
+				results.add(pool.submit(new java.util.concurrent.Callable<Object>() {
+					public Object call() throws Exception {
+						checkPage(child, low, high, 1, child);
+						return null;
+					}
+				}));
+			}
+			for (Future<Object> result : results)
+				result.get();
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private void checkPage(int pid, KeyClass low, KeyClass high, int depth, int subtree) throws Exception {
+		if (!visited.add(pid)) {
+			problem(pid, subtree, "page reached twice");
+			return;
+		}
+		subtreePages.get(subtree).add(pid);
+		synchronized (report) {
+			report.pages++;
+		}
+
+		BTSortedPage page;
+		try {
+			page = new BTSortedPage(snapshot(pid), keyType);
+		} catch (PinPageException e) {
+			problem(pid, subtree, "unreadable page");
+			return;
+		}
+
+		if (page.getType() == NodeType.LEAF) {
+			checkLeaf(new BTLeafPage(page, keyType), low, high, depth, subtree, false);
+		} else if (page.getType() == NodeType.INDEX) {
+			BTIndexPage indexPage = new BTIndexPage(page, keyType);
+			checkOccupancy(indexPage, pid);
+			List<Integer> children = new ArrayList<Integer>();
+			List<KeyClass> bounds = new ArrayList<KeyClass>();
+			checkIndexKeys(indexPage, low, high, subtree, children, bounds);
+			for (int i = 0; i < children.size(); i++)
+				checkPage(children.get(i), bounds.get(i), bounds.get(i + 1), depth + 1, subtree);
+		} else {
+			problem(pid, subtree, "unknown page type " + page.getType());
+		}
+	}
+
+	/*
+	 * Check the keys of an index page and collect its children; child i
+	 * covers the keys between bounds i and i+1 (inclusive: duplicates of a
+	 * separator may stay in the left child).
+	 */
+	private void checkIndexKeys(BTIndexPage indexPage, KeyClass low, KeyClass high, int subtree,
+			List<Integer> children, List<KeyClass> bounds) throws Exception {
+		int pid = indexPage.getCurPage().pid;
+		children.add(indexPage.getPrevPage().pid);
+		bounds.add(low);
+		KeyClass prev = null;
+		RID rid = new RID();
+		for (KeyDataEntry entry = indexPage.getFirst(rid); entry != null; entry = indexPage.getNext(rid)) {
+			if (prev != null && BT.keyCompare(prev, entry.key) > 0)
+				problem(pid, subtree, "index keys out of order at " + entry.key);
+			checkRange(entry.key, low, high, pid, subtree);
+			children.add(((IndexData) entry.data).getData().pid);
+			bounds.add(entry.key);
+			prev = entry.key;
+		}
+		bounds.add(high);
+	}
+
+	private void checkLeaf(BTLeafPage leafPage, KeyClass low, KeyClass high, int depth, int subtree,
+			boolean isRoot) throws Exception {
+		LeafInfo info = new LeafInfo();
+		info.pid = leafPage.getCurPage().pid;
+		info.subtree = subtree;
+		info.depth = depth;
+		info.next = leafPage.getNextPage().pid;
+		info.prev = leafPage.getPrevPage().pid;
+
+		if (!isRoot)
+			checkOccupancy(leafPage, info.pid);
+
+		int count = 0;
+		RID rid = new RID();
+		for (KeyDataEntry entry = leafPage.getFirst(rid); entry != null; entry = leafPage.getNext(rid)) {
+			if (info.lastKey != null && BT.keyCompare(info.lastKey, entry.key) > 0)
+				problem(info.pid, subtree, "leaf keys out of order at " + entry.key);
+			checkRange(entry.key, low, high, info.pid, subtree);
+			if (info.firstKey == null)
+				info.firstKey = entry.key;
+			info.lastKey = entry.key;
+			count++;
+		}
+		leafInfo.put(info.pid, info);
+		synchronized (report) {
+			report.leaves++;
+			report.entries += count;
+		}
+	}
+
+	private void checkRange(KeyClass key, KeyClass low, KeyClass high, int pid, int subtree)
+			throws KeyNotMatchException {
+		if ((low != null && BT.keyCompare(key, low) < 0) || (high != null && BT.keyCompare(key, high) > 0))
+			problem(pid, subtree, "key " + key + " outside separator range [" + low + ", " + high + "]");
+	}
+
+	private void checkOccupancy(BTSortedPage page, int pid) throws IOException {
+		if ((BTreeFile.PAGE_SIZE - page.available_space()) < (int) (BTreeFile.PAGE_SIZE
+				* (BTreeFile.PERCENTAGE / 100.0f))) {
+			synchronized (report) {
+				report.underfullPages++;
+			}
+		}
+	}
+
+	/*
+	 * Follow the leaf chain from the leftmost leaf of the tree.
+	 */
+	private void checkLeafChain() throws IOException, PinPageException {
+		if (leafInfo.isEmpty())
+			return;
+
+		int depth = -1;
+		LeafInfo leftmost = null;
+		for (LeafInfo info : leafInfo.values()) {
+			if (depth == -1)
+				depth = info.depth;
+			else if (info.depth != depth)
+				problem(info.pid, info.subtree, "leaf at depth " + info.depth + ", expected " + depth);
+			if (info.prev == INVALID_PAGE) {
+				if (leftmost != null)
+					problem(info.pid, info.subtree, "second leaf without prevPage");
+				if (leftmost == null || info.depth < leftmost.depth)
+					leftmost = info;
+			}
+		}
+		if (leftmost == null) {
+			report.problems.add("no leaf without prevPage: the leaf chain has no start");
+			report.damagedRoot = true;
+			return;
+		}
+
+		Set<Integer> onChain = new HashSet<Integer>();
+		LeafInfo current = leftmost;
+		KeyClass lastKey = leftmost.lastKey;
+		while (current.next != INVALID_PAGE) {
+			if (!onChain.add(current.pid)) {
+				problem(current.pid, current.subtree, "leaf chain has a cycle");
+				return;
+			}
+			LeafInfo next = leafInfo.get(current.next);
+			if (next == null) {
+				next = orphan(current.next);
+				if (next == null) {
+					problem(current.pid, current.subtree, "nextPage " + current.next + " is not a leaf");
+					return;
+				}
+			}
+			if (next.prev != current.pid)
+				problem(next.pid, next.subtree, "prevPage " + next.prev + " but follows " + current.pid);
+			try {
+				if (lastKey != null && next.firstKey != null && BT.keyCompare(lastKey, next.firstKey) > 0)
+					problem(next.pid, next.subtree, "first key " + next.firstKey + " below last key " + lastKey
+							+ " of the previous leaf");
+			} catch (KeyNotMatchException e) {
+				problem(next.pid, next.subtree, "key type mismatch");
+			}
+			if (next.lastKey != null)
+				lastKey = next.lastKey;
+			current = next;
+		}
+		onChain.add(current.pid);
+
+		for (LeafInfo info : leafInfo.values())
+			if (!onChain.contains(info.pid) && !report.orphanLeaves.contains(info.pid))
+				problem(info.pid, info.subtree, "leaf not on the leaf chain");
+	}
+
+	/*
+	 * A page found on the leaf chain but not in the tree.
+	 */
+	private LeafInfo orphan(int pid) throws IOException, PinPageException {
+		BTSortedPage page = new BTSortedPage(snapshot(pid), keyType);
+		if (page.getType() != NodeType.LEAF)
+			return null;
+		report.orphanLeaves.add(pid);
+		report.problems.add("leaf " + pid + ": on the leaf chain but not reachable from the root");
+
+		LeafInfo info = new LeafInfo();
+		BTLeafPage leafPage = new BTLeafPage(page, keyType);
+		info.pid = pid;
+		info.subtree = -1;
+		info.next = leafPage.getNextPage().pid;
+		info.prev = leafPage.getPrevPage().pid;
+		try {
+			RID rid = new RID();
+			for (KeyDataEntry entry = leafPage.getFirst(rid); entry != null; entry = leafPage.getNext(rid)) {
+				if (info.firstKey == null)
+					info.firstKey = entry.key;
+				info.lastKey = entry.key;
+			}
+		} catch (IteratorException e) {
+			// an unreadable orphan still ends up being rebuilt
+		}
+		return info;
+	}
+
+	private void problem(int pid, int subtree, String message) {
+		report.problems.add("page " + pid + ": " + message);
+		if (subtree != -1) {
+			synchronized (report.damagedSubtrees) {
+				report.damagedSubtrees.add(subtree);
+			}
+		}
+	}
+
+	/*
+	 * A private copy of a page; the frame itself is unpinned at once.
+	 */
+	private Page snapshot(int pid) throws PinPageException, IOException {
+		PageId pageno = new PageId(pid);
+		byte[] copy = new byte[MAX_SPACE];
+		synchronized (SystemDefs.JavabaseBM) {
+			Page page = file.pinPage(pageno);
+			System.arraycopy(page.getpage(), 0, copy, 0, MAX_SPACE);
+			try {
+				file.unpinPage(pageno);
+			} catch (UnpinPageException e) {
+				throw new PinPageException(e, "");
+			}
+		}
+		return new Page(copy);
+	}
+
+	/**
+	 * Rebuild the damaged parts found by verify: orphan leaves and damaged
+	 * subtrees below the root are unlinked, their entries re-inserted and
+	 * their pages freed. A damaged root means the whole tree is rebuilt from
+	 * the leaves verify could read; if the root could not be read at all,
+	 * nothing is known below it and repair refuses rather than drop the
+	 * index. The tree must not be changed between verify and repair.
+	 *
+	 * @param report
+	 *            the report of the last verify. Input parameter.
+	 * @return number of entries re-inserted
+	 * @exception BTreeRepairException
+	 *                error while rebuilding, or the root is unreadable
+	 */
+	public int repair(Report report) throws BTreeRepairException {
+		if (report.isConsistent())
+			return 0;
+		try {
+			PageId root = file.getHeaderPage().get_rootId();
+			if (report.damagedRoot && subtreePages.isEmpty() && !leafInfo.containsKey(root.pid))
+				throw new BTreeRepairException(null,
+						"root " + root.pid + " unreadable: no entries to rebuild from, rebuild the index from its data");
+
+			List<KeyDataEntry> entries = new ArrayList<KeyDataEntry>();
+			List<Integer> freed = new ArrayList<Integer>();
+
+			for (int pid : report.orphanLeaves) {
+				collectEntries(pid, entries);
+				unlinkLeaves(pid, pid);
+				freed.add(pid);
+			}
+
+			if (report.damagedRoot || report.damagedSubtrees.contains(root.pid)) {
+				if (leafInfo.containsKey(root.pid))
+					collectEntries(root.pid, entries);
+				for (List<Integer> pages : subtreePages.values())
+					for (int pid : pages)
+						collectIfLeaf(pid, entries, freed);
+				freed.add(root.pid);
+				file.updateHeader(new PageId(INVALID_PAGE));
+			} else {
+				for (int subtree : report.damagedSubtrees)
+					detachSubtree(root, subtree, entries, freed);
+			}
+
+			for (int pid : freed)
+				file.freePage(new PageId(pid));
+			for (KeyDataEntry entry : entries)
+				file.insertLeafEntry(entry.key, ((LeafData) entry.data).getData());
+			return entries.size();
+		} catch (BTreeRepairException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new BTreeRepairException(e, "repair failed");
+		}
+	}
+
+	/*
+	 * Take one child subtree off the root: its leaves are cut out of the leaf
+	 * chain and its separator is removed, so the neighbouring child takes
+	 * over its key range.
+	 */
+	private void detachSubtree(PageId root, int subtree, List<KeyDataEntry> entries, List<Integer> freed)
+			throws Exception {
+		List<Integer> pages = subtreePages.get(subtree);
+		int first = -1, last = -1;
+		for (int pid : pages) {
+			if (collectIfLeaf(pid, entries, freed)) {
+				LeafInfo info = leafInfo.get(pid);
+				if (info.prev == INVALID_PAGE || !pages.contains(info.prev))
+					first = pid;
+				if (info.next == INVALID_PAGE || !pages.contains(info.next))
+					last = pid;
+			}
+		}
+		if (first != -1)
+			unlinkLeaves(first, last);
+
+		BTIndexPage rootPage = new BTIndexPage(file.pinPage(root), keyType);
+		RID rid = new RID();
+		KeyDataEntry entry = rootPage.getFirst(rid);
+		if (rootPage.getPrevPage().pid == subtree) {
+			// the leftmost child goes: the next one becomes leftmost
+			rootPage.setPrevPage(((IndexData) entry.data).getData());
+			rootPage.deleteSortedRecord(rid);
+		} else {
+			while (entry != null && ((IndexData) entry.data).getData().pid != subtree)
+				entry = rootPage.getNext(rid);
+			if (entry != null)
+				rootPage.deleteSortedRecord(rid);
+		}
+		file.unpinPage(root, true);
+	}
+
+	private boolean collectIfLeaf(int pid, List<KeyDataEntry> entries, List<Integer> freed) throws Exception {
+		freed.add(pid);
+		if (!leafInfo.containsKey(pid))
+			return false;
+		collectEntries(pid, entries);
+		return true;
+	}
+
+	private void collectEntries(int pid, List<KeyDataEntry> entries) throws Exception {
+		BTLeafPage leafPage = new BTLeafPage(snapshot(pid), keyType);
+		RID rid = new RID();
+		for (KeyDataEntry entry = leafPage.getFirst(rid); entry != null; entry = leafPage.getNext(rid))
+			entries.add(entry);
+	}
+
+	/*
+	 * Cut the run of leaves first..last out of the leaf chain.
+	 */
+	private void unlinkLeaves(int first, int last) throws Exception {
+		BTLeafPage firstPage = new BTLeafPage(snapshot(first), keyType);
+		BTLeafPage lastPage = new BTLeafPage(snapshot(last), keyType);
+		PageId prev = firstPage.getPrevPage();
+		PageId next = lastPage.getNextPage();
+		if (prev.pid != INVALID_PAGE) {
+			BTLeafPage prevPage = new BTLeafPage(file.pinPage(prev), keyType);
+			prevPage.setNextPage(next);
+			file.unpinPage(prev, true);
+		}
+		if (next.pid != INVALID_PAGE) {
+			BTLeafPage nextPage = new BTLeafPage(file.pinPage(next), keyType);
+			nextPage.setPrevPage(prev);
+			file.unpinPage(next, true);
+		}
+	}
+}
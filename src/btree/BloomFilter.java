@@ -0,0 +1,208 @@
+package btree;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import diskmgr.Page;
+import global.Convert;
+import global.GlobalConst;
+import global.PageId;
+
+/**
+ * Blocked Bloom filter over the keys of one B+ tree file. The filter is cut
+ * into blocks of 512 bits (one cache line); a key sets and tests BITS bits, all
+ * inside the one block its hash picks, so a probe touches a single cache line.
+ *
+ * The filter lives in a chain of its own pages, whose first page is recorded
+ * in the header page of the tree; a copy is kept in memory for the probes, so
+ * that a negative answer costs no pin at all. Adding a key writes the changed
+ * block through to its page.
+ *
+ * Keys are never removed, so deletes leave stale bits behind and the false
+ * positive rate creeps up; rebuilding the filter from the leaves clears them.
+ */
+class BloomFilter implements GlobalConst {
+
+	private static final int NEXT_PAGE = 0;
+	private static final int BLOCK_COUNT = 4;
+	private static final int DATA = 8;
+
+	private static final int BLOCK_BYTES = 64;
+	private static final int BLOCKS_PER_PAGE = (MAX_SPACE - DATA) / BLOCK_BYTES;
+	private static final int BITS = 6;
+
+	/** bits of filter per expected key */
+	static final int BITS_PER_KEY = 10;
+
+	private BTreeFile file;
+	private int[] pages;
+	private byte[] bits;
+	private int blocks;
+
+	private BloomFilter(BTreeFile file, int blocks) {
+		this.file = file;
+		this.blocks = blocks;
+		this.bits = new byte[blocks * BLOCK_BYTES];
+		this.pages = new int[(blocks + BLOCKS_PER_PAGE - 1) / BLOCKS_PER_PAGE];
+	}
+
+	/**
+	 * Allocate an empty filter sized for the given number of keys.
+	 */
+	static BloomFilter create(BTreeFile file, int expectedKeys)
+			throws ConstructPageException, IOException, PinPageException, UnpinPageException {
+		long filterBits = (long) Math.max(1, expectedKeys) * BITS_PER_KEY;
+		int blocks = (int) Math.min(Integer.MAX_VALUE / BLOCK_BYTES, (filterBits + 511) / 512);
+		BloomFilter filter = new BloomFilter(file, blocks);
+
+		for (int i = 0; i < filter.pages.length; i++) {
+			Page page = new Page();
+			filter.pages[i] = file.newPage(page).pid;
+			byte[] data = page.getpage();
+			Arrays.fill(data, (byte) 0);
+			Convert.setIntValue(INVALID_PAGE, NEXT_PAGE, data);
+			Convert.setIntValue(blocks, BLOCK_COUNT, data);
+			if (i > 0) {
+				// the previous page is unpinned already: link it again
+				PageId prev = new PageId(filter.pages[i - 1]);
+				Convert.setIntValue(filter.pages[i], NEXT_PAGE, file.pinPage(prev).getpage());
+				file.unpinPage(prev, true);
+			}
+			file.unpinPage(new PageId(filter.pages[i]), true);
+		}
+		return filter;
+	}
+
+	/**
+	 * Read the filter whose first page is given.
+	 */
+	static BloomFilter open(BTreeFile file, PageId first) throws PinPageException, UnpinPageException, IOException {
+		byte[] data = file.pinPage(first).getpage();
+		int blocks = Convert.getIntValue(BLOCK_COUNT, data);
+		file.unpinPage(first);
+
+		BloomFilter filter = new BloomFilter(file, blocks);
+		PageId pageno = new PageId(first.pid);
+		for (int i = 0; i < filter.pages.length; i++) {
+			filter.pages[i] = pageno.pid;
+			data = file.pinPage(pageno).getpage();
+			int count = Math.min(BLOCKS_PER_PAGE, blocks - i * BLOCKS_PER_PAGE) * BLOCK_BYTES;
+			System.arraycopy(data, DATA, filter.bits, i * BLOCKS_PER_PAGE * BLOCK_BYTES, count);
+			int next = Convert.getIntValue(NEXT_PAGE, data);
+			file.unpinPage(pageno);
+			pageno = new PageId(next);
+		}
+		return filter;
+	}
+
+	PageId getFirstPage() {
+		return new PageId(pages[0]);
+	}
+
+	/**
+	 * @return false if the key is certainly not in the tree
+	 */
+	boolean mightContain(KeyClass key) {
+		long h = hash(key);
+		int base = block(h) * BLOCK_BYTES;
+		long positions = mix(h ^ 0x9e3779b97f4a7c15L);
+		for (int i = 0; i < BITS; i++) {
+			int bit = (int) (positions >>> (9 * i)) & 511;
+			if ((bits[base + (bit >>> 3)] & (1 << (bit & 7))) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Add a key and write its block through to the filter page.
+	 */
+	void add(KeyClass key) throws PinPageException, UnpinPageException {
+		long h = hash(key);
+		int block = block(h);
+		if (!set(h, block))
+			return; // all bits were set already
+		PageId pageno = new PageId(pages[block / BLOCKS_PER_PAGE]);
+		byte[] data = file.pinPage(pageno).getpage();
+		System.arraycopy(bits, block * BLOCK_BYTES, data, DATA + (block % BLOCKS_PER_PAGE) * BLOCK_BYTES,
+				BLOCK_BYTES);
+		file.unpinPage(pageno, true);
+	}
+
+	/**
+	 * Add a key to the in-memory copy only; write() stores it.
+	 */
+	void addDeferred(KeyClass key) {
+		long h = hash(key);
+		set(h, block(h));
+	}
+
+	/**
+	 * Forget all keys (in memory only; write() stores it).
+	 */
+	void clear() {
+		Arrays.fill(bits, (byte) 0);
+	}
+
+	/**
+	 * Write the in-memory copy to the filter pages.
+	 */
+	void write() throws PinPageException, UnpinPageException {
+		for (int i = 0; i < pages.length; i++) {
+			PageId pageno = new PageId(pages[i]);
+			byte[] data = file.pinPage(pageno).getpage();
+			int count = Math.min(BLOCKS_PER_PAGE, blocks - i * BLOCKS_PER_PAGE) * BLOCK_BYTES;
+			System.arraycopy(bits, i * BLOCKS_PER_PAGE * BLOCK_BYTES, data, DATA, count);
+			file.unpinPage(pageno, true);
+		}
+	}
+
+	/**
+	 * Free the filter pages.
+	 */
+	void destroy() throws FreePageException {
+		for (int pid : pages)
+			file.freePage(new PageId(pid));
+	}
+
+	private boolean set(long h, int block) {
+		int base = block * BLOCK_BYTES;
+		long positions = mix(h ^ 0x9e3779b97f4a7c15L);
+		boolean changed = false;
+		for (int i = 0; i < BITS; i++) {
+			int bit = (int) (positions >>> (9 * i)) & 511;
+			int mask = 1 << (bit & 7);
+			if ((bits[base + (bit >>> 3)] & mask) == 0) {
+				bits[base + (bit >>> 3)] |= mask;
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	private int block(long h) {
+		return (int) ((h >>> 32) % blocks);
+	}
+
+	private static long hash(KeyClass key) {
+		if (key instanceof IntegerKey)
+			return mix(((IntegerKey) key).getKey().intValue());
+		// 64-bit FNV-1a over the characters
+		String s = ((StringKey) key).getKey();
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < s.length(); i++) {
+			h ^= s.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return mix(h);
+	}
+
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
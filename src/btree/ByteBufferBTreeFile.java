@@ -0,0 +1,208 @@
+package btree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import global.GlobalConst;
+import global.PageId;
+import global.RID;
+
+/**
+ * Read-only access to a B+ tree file whose pages are read as ByteBuffers
+ * instead of being pinned through the buffer manager. Lookups walk the pages
+ * in place with PageLayout, comparing keys without decoding them, and follow
+ * the same rules as BTreeFile.lookup. Subclasses decide where the buffers come
+ * from.
+ *
+ * The pages are read from the database file, which does not hold the dirty
+ * frames of the buffer pool: the pages the BTreeFile dirtied are written out
+ * when the file is opened and on refresh(). These files are meant for indexes that do not change while
+ * they are read this way; after changes through the BTreeFile, call refresh()
+ * before reading again.
+ *
+ * Posting lists (IndexFlags.POSTING_LIST) are still read through the buffer
+ * manager, and so are ranges of a LONG_KEYS file.
+ */
+public abstract class ByteBufferBTreeFile implements GlobalConst {
+
+	protected BTreeFile file;
+	protected int keyType;
+
+	protected ByteBufferBTreeFile(BTreeFile file) throws IOException {
+		this.file = file;
+		this.keyType = file.getHeaderPage().get_keyType();
+	}
+
+	/**
+	 * @return the page with the given id, as a buffer of MINIBASE_PAGESIZE
+	 *         bytes; valid until the next call
+	 */
+	protected abstract ByteBuffer page(int pid) throws IOException;
+
+	/**
+	 * Make changes made through the buffer manager visible.
+	 *
+	 * @exception IOException
+	 *                error reading the database file or writing dirty pages
+	 */
+	public abstract void refresh() throws IOException;
+
+	/**
+	 * Release the database file.
+	 *
+	 * @exception IOException
+	 *                error closing the file
+	 */
+	public abstract void close() throws IOException;
+
+	/**
+	 * Write the frames the B+ tree file dirtied to the database file. Unlike
+	 * BufMgr.flushAllPages, this leaves the pool alone: frames pinned by
+	 * anyone stay where they are, and frames of other files are not touched.
+	 */
+	protected void flushBufferPool() throws IOException {
+		try {
+			file.writeDirtyPages();
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IOException(e.toString());
+		}
+	}
+
+	/**
+	 * Point lookup, as BTreeFile.lookup.
+	 *
+	 * @param key
+	 *            the key to look up. Input parameter.
+	 * @return the rids, an empty list if the key is not in the tree
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception PinPageException
+	 *                error when pin a posting list page
+	 * @exception UnpinPageException
+	 *                error when unpin a posting list page
+	 * @exception KeyNotMatchException
+	 *                key does not match the key type of the file
+	 * @exception ConstructPageException
+	 *                error in BT page constructor (long keys)
+	 * @exception IteratorException
+	 *                iterator error (long keys)
+	 */
+	public List<RID> lookup(KeyClass key) throws IOException, PinPageException, UnpinPageException,
+			KeyNotMatchException, ConstructPageException, IteratorException {
+		key = file.lookupKey(key);
+		if (key == null)
+			return new ArrayList<RID>();
+		return storedRange(key, key);
+	}
+
+	/**
+	 * Range lookup: the rids of all entries with lo_key &lt;= key &lt;=
+	 * hi_key, in key order.
+	 *
+	 * @param lo_key
+	 *            the lower bound, null for none. Input parameter.
+	 * @param hi_key
+	 *            the upper bound, null for none. Input parameter.
+	 * @return the rids
+	 * @exception IOException
+	 *                error from the lower layer
+	 * @exception PinPageException
+	 *                error when pin a posting list page
+	 * @exception UnpinPageException
+	 *                error when unpin a posting list page
+	 * @exception KeyNotMatchException
+	 *                key does not match the key type of the file
+	 * @exception ConstructPageException
+	 *                error in BT page constructor (long keys)
+	 * @exception IteratorException
+	 *                iterator error (long keys)
+	 */
+	public List<RID> range(KeyClass lo_key, KeyClass hi_key) throws IOException, PinPageException,
+			UnpinPageException, KeyNotMatchException, ConstructPageException, IteratorException {
+		if ((file.getFlags() & IndexFlags.LONG_KEYS) != 0)
+			return scanRange(lo_key, hi_key);
+		return storedRange(file.encodeBound(lo_key, false), file.encodeBound(hi_key, true));
+	}
+
+	/*
+	 * The range of a LONG_KEYS file, whose long keys must be read back to be
+	 * ordered: through the buffer manager, as BTreeFile.new_scan.
+	 */
+	private List<RID> scanRange(KeyClass lo_key, KeyClass hi_key) throws IOException, PinPageException,
+			UnpinPageException, KeyNotMatchException, ConstructPageException, IteratorException {
+		List<RID> rids = new ArrayList<RID>();
+		boolean postings = (file.getFlags() & IndexFlags.POSTING_LIST) != 0;
+		BTFileScan scan = file.new_scan(lo_key, hi_key);
+		try {
+			for (KeyDataEntry entry = scan.get_next(); entry != null; entry = scan.get_next()) {
+				RID rid = ((LeafData) entry.data).getData();
+				if (postings)
+					file.collectRids(rid, rids);
+				else
+					rids.add(rid);
+			}
+			return rids;
+		} catch (ScanIteratorException e) {
+			throw new IteratorException(e, "");
+		} finally {
+			try {
+				scan.DestroyBTreeFileScan();
+			} catch (Exception e) {
+				e.printStackTrace();
+				throw new UnpinPageException(e, "");
+			}
+		}
+	}
+
+	private List<RID> storedRange(KeyClass lo_key, KeyClass hi_key)
+			throws IOException, PinPageException, UnpinPageException {
+		List<RID> rids = new ArrayList<RID>();
+		boolean postings = (file.getFlags() & IndexFlags.POSTING_LIST) != 0;
+		int pid = file.getHeaderPage().get_rootId().pid;
+		if (pid == INVALID_PAGE)
+			return rids;
+
+		// go left: follow the last separator < lo_key, as findRunStart
+		ByteBuffer page = page(pid);
+		while (PageLayout.type(page) == NodeType.INDEX) {
+			int child = PageLayout.prevPage(page);
+			if (lo_key != null) {
+				int lo = AdaptiveSearch.search(page, keyType, lo_key, false);
+				if (lo > 0)
+					child = PageLayout.child(page, lo - 1);
+			}
+			page = page(child);
+		}
+
+		// first slot with key >= lo_key, then walk right along the leaves
+		int slot = lo_key == null ? 0 : AdaptiveSearch.search(page, keyType, lo_key, false);
+		while (true) {
+			while (slot >= PageLayout.slotCount(page)) {
+				int next = PageLayout.nextPage(page);
+				if (next == INVALID_PAGE)
+					return rids;
+				page = page(next);
+				slot = 0;
+			}
+			if (PageLayout.recordLength(page, slot) != PageLayout.EMPTY_SLOT) {
+				if (lo_key != null && PageLayout.compare(page, slot, keyType, lo_key) < 0) {
+					slot++;
+					continue;
+				}
+				if (hi_key != null && PageLayout.compare(page, slot, keyType, hi_key) > 0)
+					return rids;
+				RID rid = PageLayout.rid(page, slot);
+				if (postings)
+					file.collectRids(rid, rids);
+				else
+					rids.add(rid);
+			}
+			slot++;
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package btree;
+
+/**
+ * CompositeKey: It extends the KeyClass. It defines a multi-column key, such
+ * as (tenant, timestamp, id), ordered column by column. A column is an
+ * Integer, Long, Double or String.
+ *
+ * Files created with KeyEncoding.attrComposite store composite keys in an
+ * order-preserving binary encoding (see KeyEncoding). A key with fewer
+ * columns than the stored ones is a prefix: BTreeFile.new_prefix_scan
+ * returns every entry whose leading columns equal it.
+ */
+public class CompositeKey extends KeyClass {
+
+	private Object[] columns;
+
+	public String toString() {
+		StringBuffer sb = new StringBuffer("(");
+		for (int i = 0; i < columns.length; i++) {
+			if (i > 0)
+				sb.append(", ");
+			sb.append(columns[i]);
+		}
+		return sb.append(")").toString();
+	}
+
+	/**
+	 * Class constructor
+	 *
+	 * @param columns
+	 *            the column values, each an Integer, Long, Double or String
+	 */
+	public CompositeKey(Object... columns) {
+		this.columns = columns.clone();
+	}
+
+	/**
+	 * @return the number of columns
+	 */
+	public int size() {
+		return columns.length;
+	}
+
+	/**
+	 * @param i
+	 *            the column number, from 0
+	 * @return the value of column i
+	 */
+	public Object get(int i) {
+		return columns[i];
+	}
+}
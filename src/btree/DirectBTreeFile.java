@@ -0,0 +1,174 @@
+package btree;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import global.SystemDefs;
+
+/**
+ * Read-only access to a B+ tree file through a page pool of its own whose
+ * frames live off the Java heap, in one direct ByteBuffer. Pages are read from
+ * the database file straight into their frame, and lookups compare keys on
+ * the frame itself, so neither the pool nor the pages read through it add to
+ * the old generation the collector has to walk.
+ *
+ * The pool uses clock replacement. Its page table is an open-addressing table
+ * of ints, again to keep the lookup path free of heap allocations.
+ */
+public class DirectBTreeFile extends ByteBufferBTreeFile {
+
+	private RandomAccessFile dbFile;
+	private FileChannel channel;
+	private ByteBuffer frames;
+	private int[] framePid; // page held by each frame, INVALID_PAGE if none
+	private boolean[] referenced;
+	private int hand;
+
+	private int[] tableKeys; // page ids, INVALID_PAGE for a free entry
+	private int[] tableFrames;
+	private int tableMask;
+
+	private long reads;
+
+	/**
+	 * Open the B+ tree through an off-heap pool.
+	 *
+	 * @param file
+	 *            the B+ tree file, open. Input parameter.
+	 * @param numFrames
+	 *            number of page frames of the pool. Input parameter.
+	 * @exception IOException
+	 *                error opening the database file or writing dirty pages
+	 */
+	public DirectBTreeFile(BTreeFile file, int numFrames) throws IOException {
+		super(file);
+		numFrames = Math.max(2, numFrames);
+		dbFile = new RandomAccessFile(SystemDefs.JavabaseDBName, "r");
+		channel = dbFile.getChannel();
+		frames = ByteBuffer.allocateDirect(numFrames * MINIBASE_PAGESIZE);
+		framePid = new int[numFrames];
+		referenced = new boolean[numFrames];
+
+		int tableSize = Integer.highestOneBit(numFrames * 2 - 1) << 1;
+		tableKeys = new int[tableSize];
+		tableFrames = new int[tableSize];
+		tableMask = tableSize - 1;
+		refresh();
+	}
+
+	/**
+	 * Write the pages the B+ tree file dirtied and empty this pool, so that
+	 * pages are read again from the database file.
+	 *
+	 * @exception IOException
+	 *                error writing the pages
+	 */
+	public void refresh() throws IOException {
+		flushBufferPool();
+		Arrays.fill(framePid, INVALID_PAGE);
+		Arrays.fill(referenced, false);
+		Arrays.fill(tableKeys, INVALID_PAGE);
+		hand = 0;
+	}
+
+	/**
+	 * Release the database file. The frames go away with the garbage
+	 * collector.
+	 *
+	 * @exception IOException
+	 *                error closing the file
+	 */
+	public void close() throws IOException {
+		frames = null;
+		dbFile.close();
+	}
+
+	/**
+	 * @return number of pages read from the database file
+	 */
+	public long getReadCount() {
+		return reads;
+	}
+
+	protected ByteBuffer page(int pid) throws IOException {
+		int frame = find(pid);
+		if (frame < 0) {
+			frame = victim();
+			if (framePid[frame] != INVALID_PAGE)
+				remove(framePid[frame]);
+			ByteBuffer dst = frame(frame);
+			long position = (long) pid * MINIBASE_PAGESIZE;
+			while (dst.hasRemaining()) {
+				if (channel.read(dst, position + dst.position()) < 0)
+					throw new IOException("page " + pid + " beyond the end of the database file");
+			}
+			framePid[frame] = pid;
+			insert(pid, frame);
+			reads++;
+		}
+		referenced[frame] = true;
+		return frame(frame);
+	}
+
+	private ByteBuffer frame(int frame) {
+		ByteBuffer buf = frames.duplicate();
+		buf.position(frame * MINIBASE_PAGESIZE);
+		buf.limit((frame + 1) * MINIBASE_PAGESIZE);
+		return buf.slice();
+	}
+
+	private int victim() {
+		while (true) {
+			int frame = hand;
+			hand = (hand + 1) % framePid.length;
+			if (framePid[frame] == INVALID_PAGE || !referenced[frame])
+				return frame;
+			referenced[frame] = false;
+		}
+	}
+
+	private static int hash(int pid) {
+		return pid * 0x9e3779b9;
+	}
+
+	private int find(int pid) {
+		for (int i = hash(pid) & tableMask;; i = (i + 1) & tableMask) {
+			if (tableKeys[i] == pid)
+				return tableFrames[i];
+			if (tableKeys[i] == INVALID_PAGE)
+				return -1;
+		}
+	}
+
+	private void insert(int pid, int frame) {
+		int i = hash(pid) & tableMask;
+		while (tableKeys[i] != INVALID_PAGE)
+			i = (i + 1) & tableMask;
+		tableKeys[i] = pid;
+		tableFrames[i] = frame;
+	}
+
+	/*
+	 * Linear probing delete: move later entries of the cluster back into the
+	 * hole, so lookups never stop early.
+	 */
+	private void remove(int pid) {
+		int i = hash(pid) & tableMask;
+		while (tableKeys[i] != pid)
+			i = (i + 1) & tableMask;
+		int hole = i;
+		for (i = (i + 1) & tableMask; tableKeys[i] != INVALID_PAGE; i = (i + 1) & tableMask) {
+			int home = hash(tableKeys[i]) & tableMask;
+			// move the entry unless its home lies cyclically in (hole, i]
+			if (hole <= i ? (home <= hole || home > i) : (home <= hole && home > i)) {
+				tableKeys[hole] = tableKeys[i];
+				tableFrames[hole] = tableFrames[i];
+				hole = i;
+			}
+		}
+		tableKeys[hole] = INVALID_PAGE;
+	}
+}
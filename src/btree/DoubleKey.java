@@ -0,0 +1,49 @@
+package btree;
+
+/**
+ * DoubleKey: It extends the KeyClass. It defines the double Key.
+ */
+public class DoubleKey extends KeyClass {
+
+	private Double key;
+
+	public String toString() {
+		return key.toString();
+	}
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param value
+	 *            the value of the double key to be set
+	 */
+	public DoubleKey(Double value) {
+		key = value;
+	}
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param value
+	 *            the value of the primitive type double key to be set
+	 */
+	public DoubleKey(double value) {
+		key = Double.valueOf(value);
+	}
+
+	/**
+	 * get a copy of the double key
+	 * 
+	 * @return the reference of the copy
+	 */
+	public Double getKey() {
+		return Double.valueOf(key.doubleValue());
+	}
+
+	/**
+	 * set the double key value
+	 */
+	public void setKey(Double value) {
+		key = Double.valueOf(value.doubleValue());
+	}
+}
@@ -0,0 +1,120 @@
+package btree;
+
+import java.util.Iterator;
+import java.util.TreeSet;
+
+import diskmgr.OutOfSpaceException;
+import diskmgr.Page;
+import global.PageId;
+import global.SystemDefs;
+
+/**
+ * Page allocation for the leaves and index pages of one B+ tree file that
+ * keeps the pages of the tree close together on disk. Pages are taken from
+ * the database in extents, runs of contiguous pages, and handed out one at a
+ * time; a page for a split goes right after the splitting page if one of the
+ * reserved pages lies there, so that a leaf and its new right neighbour end
+ * up next to each other and a scan along the leaf chain reads the file in
+ * order.
+ *
+ * Reserved pages not handed out yet are allocated in the database but hold
+ * nothing. release gives them back; until it is called (BTreeFile.close and
+ * destroyFile do), they stay allocated, and a crash leaks them.
+ */
+class ExtentAllocator {
+
+	private static final int MAX_EXTENTS = 4; // reserved pages, in extents
+
+	private int extentSize;
+	private TreeSet<Integer> reserved = new TreeSet<Integer>();
+
+	/**
+	 * @param extentSize
+	 *            number of pages taken from the database at a time
+	 */
+	ExtentAllocator(int extentSize) {
+		this.extentSize = extentSize;
+	}
+
+	/**
+	 * Allocate a page and pin it without reading it.
+	 *
+	 * @param near
+	 *            the page the new one should follow, null if any will do
+	 * @param page
+	 *            the page object to pin the new page in
+	 * @return the page id of the new page
+	 * @exception ConstructPageException
+	 *                allocation or pin failed
+	 */
+	PageId allocate(PageId near, Page page) throws ConstructPageException {
+		try {
+			Integer pid = null;
+			if (near != null) {
+				pid = reserved.ceiling(near.pid + 1);
+				if (pid != null && pid - near.pid > extentSize)
+					pid = null; // too far to help
+			}
+			if (pid == null && (near == null || reserved.size() >= MAX_EXTENTS * extentSize))
+				pid = reserved.isEmpty() ? null : reserved.first();
+			if (pid == null)
+				pid = reserveExtent();
+			reserved.remove(pid);
+
+			PageId pageno = new PageId(pid);
+			SystemDefs.JavabaseBM.pinPage(pageno, page, true/* empty */);
+			return pageno;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ConstructPageException(e, "");
+		}
+	}
+
+	/*
+	 * Take a new extent from the database, or a single page if no run of
+	 * extentSize pages is free. Returns its first page.
+	 */
+	private int reserveExtent() throws Exception {
+		PageId start = new PageId();
+		int run = extentSize;
+		try {
+			SystemDefs.JavabaseDB.allocate_page(start, run);
+		} catch (OutOfSpaceException e) {
+			run = 1;
+			SystemDefs.JavabaseDB.allocate_page(start, run);
+		}
+		for (int i = 0; i < run; i++)
+			reserved.add(start.pid + i);
+		return start.pid;
+	}
+
+	/**
+	 * Give the reserved pages not handed out back to the database.
+	 *
+	 * @exception FreePageException
+	 *                deallocation failed
+	 */
+	void release() throws FreePageException {
+		try {
+			Iterator<Integer> it = reserved.iterator();
+			int start = -1, run = 0;
+			while (it.hasNext()) {
+				int pid = it.next();
+				if (run > 0 && pid == start + run) {
+					run++;
+					continue;
+				}
+				if (run > 0)
+					SystemDefs.JavabaseDB.deallocate_page(new PageId(start), run);
+				start = pid;
+				run = 1;
+			}
+			if (run > 0)
+				SystemDefs.JavabaseDB.deallocate_page(new PageId(start), run);
+			reserved.clear();
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new FreePageException(e, "");
+		}
+	}
+}
@@ -0,0 +1,226 @@
+package btree;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import global.PageId;
+import global.RID;
+
+/**
+ * External merge sort of the (key, rid) entries of one index. Batches of
+ * entries are sorted in memory and spilled as runs to temporary files;
+ * spill may be called from several threads at once. merge then reads the
+ * runs back as one sorted stream, merging at most MAX_FAN_IN runs at a time
+ * (more runs are first merged into longer ones).
+ *
+ * Entries are ordered by key as BT.keyCompare orders them, and entries with
+ * equal keys by rid.
+ */
+class ExternalSort {
+
+	private static final int MAX_FAN_IN = 64;
+	private static final int BUFFER = 64 * 1024;
+
+	private static final int TAG_INTEGER = 0;
+	private static final int TAG_STRING = 1;
+
+	/**
+	 * A key and the rid of its record.
+	 */
+	static class Entry {
+		final KeyClass key;
+		final RID rid;
+
+		Entry(KeyClass key, RID rid) {
+			this.key = key;
+			this.rid = rid;
+		}
+	}
+
+	static final Comparator<Entry> ORDER = new Comparator<Entry>() {
+		public int compare(Entry a, Entry b) {
+			int c = compareKeys(a.key, b.key);
+			if (c != 0)
+				return c;
+			if (a.rid.pageNo.pid != b.rid.pageNo.pid)
+				return a.rid.pageNo.pid < b.rid.pageNo.pid ? -1 : 1;
+			return a.rid.slotNo < b.rid.slotNo ? -1 : a.rid.slotNo == b.rid.slotNo ? 0 : 1;
+		}
+	};
+
+	/**
+	 * Compare two stored keys of the same type, as BT.keyCompare.
+	 */
+	static int compareKeys(KeyClass a, KeyClass b) {
+		if (a instanceof IntegerKey) {
+			int x = ((IntegerKey) a).getKey().intValue();
+			int y = ((IntegerKey) b).getKey().intValue();
+			return x < y ? -1 : x == y ? 0 : 1;
+		}
+		return ((StringKey) a).getKey().compareTo(((StringKey) b).getKey());
+	}
+
+	private File dir;
+	private List<File> runs = new ArrayList<File>();
+
+	/**
+	 * @param dir
+	 *            directory for the run files, null for the default temporary
+	 *            directory
+	 */
+	ExternalSort(File dir) {
+		this.dir = dir;
+	}
+
+	/**
+	 * Sort a batch of entries and write it as a run. The list is sorted in
+	 * place.
+	 */
+	void spill(List<Entry> entries) throws IOException {
+		if (entries.isEmpty())
+			return;
+		Collections.sort(entries, ORDER);
+		File run = newRun();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), BUFFER));
+		try {
+			for (Entry entry : entries)
+				write(out, entry);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return the entries of all runs spilled so far, in order
+	 */
+	Merge merge() throws IOException {
+		List<File> pending;
+		synchronized (this) {
+			pending = new ArrayList<File>(runs);
+		}
+		while (pending.size() > MAX_FAN_IN) {
+			List<File> merged = new ArrayList<File>();
+			for (int i = 0; i < pending.size(); i += MAX_FAN_IN) {
+				List<File> group = pending.subList(i, Math.min(i + MAX_FAN_IN, pending.size()));
+				if (group.size() == 1) {
+					merged.add(group.get(0));
+					continue;
+				}
+				File run = newRun();
+				Merge merge = new Merge(group);
+				DataOutputStream out = new DataOutputStream(
+						new BufferedOutputStream(new FileOutputStream(run), BUFFER));
+				try {
+					for (Entry entry = merge.next(); entry != null; entry = merge.next())
+						write(out, entry);
+				} finally {
+					out.close();
+					merge.close();
+				}
+				merged.add(run);
+			}
+			pending = merged;
+		}
+		return new Merge(pending);
+	}
+
+	/**
+	 * Delete the run files.
+	 */
+	synchronized void close() {
+		for (File run : runs)
+			run.delete();
+		runs.clear();
+	}
+
+	private synchronized File newRun() throws IOException {
+		File run = File.createTempFile("btree-run", ".tmp", dir);
+		run.deleteOnExit();
+		runs.add(run);
+		return run;
+	}
+
+	/**
+	 * A k-way merge of sorted runs.
+	 */
+	static class Merge {
+
+		private List<DataInputStream> inputs = new ArrayList<DataInputStream>();
+		private PriorityQueue<Head> heads = new PriorityQueue<Head>(11, new Comparator<Head>() {
+			public int compare(Head a, Head b) {
+				return ORDER.compare(a.entry, b.entry);
+			}
+		});
+
+		private static class Head {
+			Entry entry;
+			DataInputStream in;
+		}
+
+		private Merge(List<File> runs) throws IOException {
+			for (File run : runs) {
+				Head head = new Head();
+				head.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), BUFFER));
+				inputs.add(head.in);
+				head.entry = read(head.in);
+				if (head.entry != null)
+					heads.add(head);
+			}
+		}
+
+		/**
+		 * @return the next entry, null if done
+		 */
+		Entry next() throws IOException {
+			Head head = heads.poll();
+			if (head == null)
+				return null;
+			Entry entry = head.entry;
+			head.entry = read(head.in);
+			if (head.entry != null)
+				heads.add(head);
+			return entry;
+		}
+
+		void close() throws IOException {
+			for (DataInputStream in : inputs)
+				in.close();
+		}
+	}
+
+	private static void write(DataOutputStream out, Entry entry) throws IOException {
+		if (entry.key instanceof IntegerKey) {
+			out.writeByte(TAG_INTEGER);
+			out.writeInt(((IntegerKey) entry.key).getKey().intValue());
+		} else {
+			out.writeByte(TAG_STRING);
+			out.writeUTF(((StringKey) entry.key).getKey());
+		}
+		out.writeInt(entry.rid.pageNo.pid);
+		out.writeInt(entry.rid.slotNo);
+	}
+
+	private static Entry read(DataInputStream in) throws IOException {
+		int tag;
+		try {
+			tag = in.readByte();
+		} catch (EOFException e) {
+			return null;
+		}
+		KeyClass key = tag == TAG_INTEGER ? (KeyClass) new IntegerKey(in.readInt()) : new StringKey(in.readUTF());
+		PageId pageno = new PageId(in.readInt());
+		return new Entry(key, new RID(pageno, in.readInt()));
+	}
+}
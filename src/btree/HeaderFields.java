@@ -0,0 +1,60 @@
+package btree;
+
+import java.io.IOException;
+
+import global.GlobalConst;
+
+/**
+ * Additional fields of the B+ tree header page. BTreeHeaderPage keeps its own
+ * fields in the slot directory entries 1 to 3 of the (otherwise empty) page;
+ * the fields below use the following slot entries the same way. A field is an
+ * int spread over the length (high half) and offset (low half) of its slot.
+ *
+ * Header pages written before these fields existed hold whatever the page
+ * held in those bytes; FORMAT is set to FORMAT_MAGIC in every header created
+ * since, and the other fields are only read from a header that has it.
+ */
+class HeaderFields implements GlobalConst {
+
+	static final int FLAGS = 4;
+	static final int BLOOM_FILTER = 5; // first page of the Bloom filter
+	static final int KEY_ENCODING = 6; // see KeyEncoding
+	static final int FORMAT = 7; // FORMAT_MAGIC
+
+	static final int FORMAT_MAGIC = 0x42547831;
+
+	private static final int FIRST = FLAGS;
+	private static final int LAST = FORMAT;
+
+	/**
+	 * Reset all additional fields of a freshly created header page.
+	 */
+	static void init(BTreeHeaderPage header) throws IOException {
+		for (int slot = FIRST; slot <= LAST; slot++)
+			set(header, slot, 0);
+		set(header, BLOOM_FILTER, INVALID_PAGE);
+		set(header, FORMAT, FORMAT_MAGIC);
+	}
+
+	/**
+	 * @return true if the header was created with the additional fields
+	 */
+	static boolean versioned(BTreeHeaderPage header) throws IOException {
+		return get(header, FORMAT) == FORMAT_MAGIC;
+	}
+
+	/**
+	 * @return the field, or 0 if the header has no additional fields
+	 */
+	static int getOrZero(BTreeHeaderPage header, int slot) throws IOException {
+		return versioned(header) ? get(header, slot) : 0;
+	}
+
+	static int get(BTreeHeaderPage header, int slot) throws IOException {
+		return (header.getSlotLength(slot) << 16) | (header.getSlotOffset(slot) & 0xffff);
+	}
+
+	static void set(BTreeHeaderPage header, int slot, int value) throws IOException {
+		header.setSlot(slot, value >> 16, value & 0xffff);
+	}
+}
@@ -0,0 +1,17 @@
+package btree;
+
+import chainexception.ChainException;
+
+public class IndexBuildException extends ChainException {
+	public IndexBuildException() {
+		super();
+	}
+
+	public IndexBuildException(String s) {
+		super(null, s);
+	}
+
+	public IndexBuildException(Exception e, String s) {
+		super(e, s);
+	}
+}
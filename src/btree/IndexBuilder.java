@@ -0,0 +1,295 @@
+package btree;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import global.GlobalConst;
+import global.PageId;
+import global.RID;
+import heap.Heapfile;
+import heap.Scan;
+import heap.Tuple;
+
+/**
+ * Builds secondary indexes over an existing heap file without inserting the
+ * records one at a time. A single scan of the heap file feeds any number of
+ * indexes:
+ * <ol>
+ * <li>the scan cuts the records into batches that fit the memory budget;
+ * worker threads extract the keys of every index from a batch, sort them
+ * and spill them as a run (see ExternalSort)</li>
+ * <li>after the scan the runs of each index are merged into one sorted
+ * stream which builds the tree bottom-up (see TreeLoader), leaf after leaf,
+ * without a single split</li>
+ * </ol>
+ * The buffer manager is not thread safe, so the scan and the page building
+ * stay on the calling thread; the workers only run the extractors and sort.
+ *
+ * The target files must be empty. Duplicate keys of a POSTING_LIST file stay
+ * inline or go into a posting list as insert would put them; a duplicate
+ * key fails the build of a UNIQUE file.
+ * Keys too long for the key size of a LONG_KEYS file need an overflow page
+ * each and are inserted one by one after the build. Bloom filters are
+ * rebuilt at the end.
+ */
+public class IndexBuilder implements GlobalConst {
+
+	private static final int ENTRY_OVERHEAD = 48; // bytes of a sort entry besides its key
+
+	private Heapfile heap;
+	private long memoryBudget;
+	private int threads;
+	private int fillFactor = 90;
+	private File tempDir;
+
+	private List<Target> targets = new ArrayList<Target>();
+
+	private static class Target {
+		BTreeFile file;
+		KeyExtractor extractor;
+		ExternalSort sort;
+	}
+
+	/**
+	 * @param heap
+	 *            the heap file to index. Input parameter.
+	 * @param memoryBudget
+	 *            bytes of records and sort entries held in memory at a time.
+	 *            Input parameter.
+	 * @param threads
+	 *            number of worker threads. Input parameter.
+	 */
+	public IndexBuilder(Heapfile heap, long memoryBudget, int threads) {
+		this.heap = heap;
+		this.memoryBudget = memoryBudget;
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Add an index to build.
+	 *
+	 * @param file
+	 *            the index, an empty B+ tree file. Input parameter.
+	 * @param extractor
+	 *            the key of a record in this index. Input parameter.
+	 */
+	public void addIndex(BTreeFile file, KeyExtractor extractor) {
+		Target target = new Target();
+		target.file = file;
+		target.extractor = extractor;
+		targets.add(target);
+	}
+
+	/**
+	 * @param fillFactor
+	 *            how full, in percent, the built pages are; the rest is left
+	 *            for later inserts. Input parameter.
+	 */
+	public void setFillFactor(int fillFactor) {
+		this.fillFactor = Math.max((int) BTreeFile.PERCENTAGE, Math.min(100, fillFactor));
+	}
+
+	/**
+	 * @param dir
+	 *            directory for the sort runs, null for the default temporary
+	 *            directory. Input parameter.
+	 */
+	public void setTempDir(File dir) {
+		this.tempDir = dir;
+	}
+
+	/**
+	 * Scan the heap file and build all indexes.
+	 *
+	 * @exception IndexBuildException
+	 *                a target is not empty, a key is too long or of the
+	 *                wrong type, a key is a duplicate in a UNIQUE file, an
+	 *                extractor failed, or error from the lower layers. Keys
+	 *                are checked while sorting, before any index is written;
+	 *                an index whose load failed is left partly built and
+	 *                should be destroyed.
+	 */
+	public void build() throws IndexBuildException {
+		try {
+			for (Target target : targets) {
+				if (target.file.getHeaderPage().get_rootId().pid != INVALID_PAGE)
+					throw new IndexBuildException(null, "index is not empty");
+				if ((target.file.getFlags() & IndexFlags.KEY_VALUE) != 0)
+					throw new IndexBuildException(null, "cannot build a key-value file");
+				target.sort = new ExternalSort(tempDir);
+			}
+			scan();
+			for (Target target : targets)
+				load(target);
+		} catch (IndexBuildException e) {
+			throw e;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IndexBuildException(e, "");
+		} finally {
+			for (Target target : targets)
+				if (target.sort != null)
+					target.sort.close();
+		}
+	}
+
+	/*
+	 * Read the heap file in batches, each sorted and spilled by a worker.
+	 * At most threads batches are in memory besides the one being read.
+	 */
+	private void scan() throws Exception {
+		long batchBudget = Math.max(MAX_SPACE, memoryBudget / (threads + 1));
+		final Semaphore inFlight = new Semaphore(threads);
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<Object>> results = new ArrayList<Future<Object>>();
+		Scan scan = heap.openScan();
+		try {
+			List<Tuple> tuples = new ArrayList<Tuple>();
+			List<RID> rids = new ArrayList<RID>();
+			long bytes = 0;
+			RID rid = new RID();
+			Tuple tuple;
+			int checked = 0;
+			while ((tuple = scan.getNext(rid)) != null) {
+				tuples.add(new Tuple(tuple.getTupleByteArray(), 0, tuple.getLength()));
+				rids.add(new RID(new PageId(rid.pageNo.pid), rid.slotNo));
+				bytes += tuple.getLength() + targets.size() * ENTRY_OVERHEAD;
+				if (bytes >= batchBudget) {
+					inFlight.acquire();
+					results.add(pool.submit(sortTask(tuples, rids, inFlight)));
+					while (checked < results.size() && results.get(checked).isDone())
+						outcome(results.get(checked++)); // stop at the first failed batch
+					tuples = new ArrayList<Tuple>();
+					rids = new ArrayList<RID>();
+					bytes = 0;
+				}
+			}
+			inFlight.acquire();
+			results.add(pool.submit(sortTask(tuples, rids, inFlight)));
+			for (Future<Object> result : results)
+				outcome(result);
+		} finally {
+			scan.closescan();
+			pool.shutdown();
+		}
+	}
+
+	/*
+	 * Wait for a batch; a failure of its worker is rethrown as it was.
+	 */
+	private static void outcome(Future<Object> result) throws Exception {
+		try {
+			result.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception)
+				throw (Exception) e.getCause();
+			throw e;
+		}
+	}
+
+	private java.util.concurrent.Callable<Object> sortTask(final List<Tuple> tuples, final List<RID> rids,
+			final Semaphore inFlight) {
+		return new java.util.concurrent.Callable<Object>() {
+			public Object call() throws Exception {
+				try {
+					for (Target target : targets) {
+						List<ExternalSort.Entry> entries = new ArrayList<ExternalSort.Entry>(tuples.size());
+						for (int i = 0; i < tuples.size(); i++) {
+							Tuple copy = new Tuple(tuples.get(i).getTupleByteArray(), 0, tuples.get(i).getLength());
+							KeyClass key = target.extractor.getKey(copy, rids.get(i));
+							if (key == null)
+								continue;
+							RID rid = rids.get(i);
+							try {
+								key = target.file.encodeKey(key);
+								target.file.checkKey(key);
+							} catch (KeyTooLongException e) {
+								throw new IndexBuildException(e,
+										"key too long, record " + rid.pageNo.pid + "/" + rid.slotNo);
+							} catch (KeyNotMatchException e) {
+								throw new IndexBuildException(e,
+										"key of the wrong type, record " + rid.pageNo.pid + "/" + rid.slotNo);
+							}
+							entries.add(new ExternalSort.Entry(key, rid));
+						}
+						target.sort.spill(entries);
+					}
+					return null;
+				} finally {
+					inFlight.release();
+				}
+			}
+		};
+	}
+
+	/*
+	 * Build one index from its sorted runs.
+	 */
+	private void load(Target target) throws Exception {
+		BTreeFile file = target.file;
+		boolean postings = (file.getFlags() & IndexFlags.POSTING_LIST) != 0;
+		boolean unique = (file.getFlags() & IndexFlags.UNIQUE) != 0;
+		List<ExternalSort.Entry> longKeys = new ArrayList<ExternalSort.Entry>();
+		TreeLoader loader = new TreeLoader(file, fillFactor);
+
+		file.beginOperation();
+		ExternalSort.Merge merge = target.sort.merge();
+		try {
+			ExternalSort.Entry previous = null;
+			RID head = null; // posting list of previous, null while its rids are inline
+			List<RID> inline = new ArrayList<RID>(); // rids of previous not appended yet
+			for (ExternalSort.Entry entry = merge.next(); entry != null; entry = merge.next()) {
+				if (file.isLongKey(entry.key)) {
+					longKeys.add(entry);
+					continue;
+				}
+				boolean duplicate = previous != null && ExternalSort.compareKeys(previous.key, entry.key) == 0;
+				if (duplicate && unique)
+					throw new IndexBuildException(null, "duplicate key " + entry.key);
+				if (!postings) {
+					loader.append(entry.key, entry.rid);
+				} else if (!duplicate) {
+					appendInline(loader, previous, inline);
+					head = null;
+					inline.add(entry.rid);
+				} else if (head != null) {
+					file.getPostingList().add(head.pageNo, entry.rid);
+				} else if (inline.size() < PostingList.INLINE) {
+					inline.add(entry.rid);
+				} else {
+					inline.add(entry.rid);
+					head = file.getPostingList().create(inline);
+					inline.clear();
+					loader.append(entry.key, head);
+				}
+				previous = entry;
+			}
+			appendInline(loader, previous, inline);
+		} finally {
+			merge.close();
+			loader.finish();
+			file.commitOperation();
+		}
+
+		for (ExternalSort.Entry entry : longKeys)
+			file.insert(entry.key, entry.rid);
+		file.rebuildBloomFilter();
+	}
+
+	/*
+	 * Append the inline rids of the key of previous, a key of a POSTING_LIST
+	 * file with at most PostingList.INLINE rids.
+	 */
+	private static void appendInline(TreeLoader loader, ExternalSort.Entry previous, List<RID> inline)
+			throws Exception {
+		for (RID rid : inline)
+			loader.append(previous.key, rid);
+		inline.clear();
+	}
+}
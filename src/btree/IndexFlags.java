@@ -0,0 +1,35 @@
+package btree;
+
+/**
+ * Options of a B+ tree file which are fixed when the file is created and kept
+ * in its header page. They can be or-ed together.
+ */
+public class IndexFlags {
+	public static final int NONE = 0;
+
+	/**
+	 * a key with more than a few duplicates is stored once in the leaves, its
+	 * rid pointing to a sorted, delta-compressed list of the rids of all its
+	 * duplicates (see PostingList)
+	 */
+	public static final int POSTING_LIST = 1;
+
+	/**
+	 * a key may be in the tree only once; insert rejects duplicates. Takes
+	 * precedence over POSTING_LIST.
+	 */
+	public static final int UNIQUE = 2;
+
+	/**
+	 * the file is a KeyValueFile: every leaf key holds a key and its value,
+	 * and separators are cut down to the key
+	 */
+	public static final int KEY_VALUE = 4;
+
+	/**
+	 * string keys longer than the maximum key size are stored as a prefix,
+	 * a hash and a reference to an overflow page holding the whole key (see
+	 * LongKeys). Only for files with attrString keys.
+	 */
+	public static final int LONG_KEYS = 8;
+}
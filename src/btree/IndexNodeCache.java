@@ -0,0 +1,170 @@
+package btree;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import global.PageId;
+import global.RID;
+
+/**
+ * Decoded copies of the index pages of one B+ tree file, so that a descent
+ * through a cached node neither pins the page nor decodes its records. A node
+ * holds its separator keys as a sorted primitive int array (integer keys) or
+ * String array (string keys) and the page ids of its children, child 0 being
+ * the left link of the page.
+ *
+ * The cache is kept under a memory budget (estimated bytes of the decoded
+ * nodes) and evicts least recently used nodes. BTreeFile drops a node as soon
+ * as its page is unpinned dirty or freed, which covers every split, merge and
+ * redistribution touching it.
+ */
+class IndexNodeCache {
+
+	/**
+	 * A decoded index page.
+	 */
+	static class Node {
+		int[] intKeys;
+		String[] stringKeys;
+		int[] children;
+		int size;
+
+		/**
+		 * @param key
+		 *            the search key, null for the leftmost child
+		 * @param inclusive
+		 *            true to follow the last separator &lt;= key (as
+		 *            BTIndexPage.getPageNoByKey), false to follow the last
+		 *            separator &lt; key (as the "go left" search for the first
+		 *            duplicate)
+		 * @return the child covering key
+		 */
+		PageId child(KeyClass key, boolean inclusive) {
+			if (key == null || size == 0)
+				return new PageId(children[0]);
+			int lo = 0, hi = size;
+			if (intKeys != null) {
+				lo = AdaptiveSearch.search(intKeys, size, ((IntegerKey) key).getKey().intValue(), inclusive);
+			} else {
+				String k = ((StringKey) key).getKey();
+				while (lo < hi) {
+					int mid = (lo + hi) >>> 1;
+					int cmp = stringKeys[mid].compareTo(k);
+					if (cmp < 0 || (inclusive && cmp == 0))
+						lo = mid + 1;
+					else
+						hi = mid;
+				}
+			}
+			// lo separators lie before key; child lo follows the last of them
+			return new PageId(children[lo]);
+		}
+
+		long bytes() {
+			long bytes = 48 + 4L * children.length;
+			if (intKeys != null)
+				return bytes + 4L * intKeys.length;
+			for (int i = 0; i < size; i++)
+				bytes += 48 + 2L * stringKeys[i].length();
+			return bytes;
+		}
+	}
+
+	private LinkedHashMap<Integer, Node> nodes = new LinkedHashMap<Integer, Node>(64, 0.75f, true);
+	private long budget;
+	private long used;
+	private long hits;
+	private long misses;
+
+	/**
+	 * @param budget
+	 *            memory budget in bytes. Input parameter.
+	 */
+	IndexNodeCache(long budget) {
+		this.budget = budget;
+	}
+
+	/**
+	 * @return the decoded node of the page, null if it is not cached. Leaves
+	 *         are never cached; a miss is counted when the page turns out to
+	 *         be an index page and is loaded.
+	 */
+	Node get(PageId pageno) {
+		Node node = nodes.get(pageno.pid);
+		if (node != null)
+			hits++;
+		return node;
+	}
+
+	/**
+	 * Decode a pinned index page and cache it.
+	 *
+	 * @return the decoded node
+	 */
+	Node load(BTIndexPage indexPage) throws IOException, IteratorException {
+		misses++;
+		int count = indexPage.getSlotCnt();
+		Node node = new Node();
+		node.children = new int[count + 1];
+		node.children[0] = indexPage.getPrevPage().pid;
+
+		RID rid = new RID();
+		for (KeyDataEntry entry = indexPage.getFirst(rid); entry != null; entry = indexPage.getNext(rid)) {
+			if (node.size == 0) {
+				if (entry.key instanceof IntegerKey)
+					node.intKeys = new int[count];
+				else
+					node.stringKeys = new String[count];
+			}
+			if (node.intKeys != null)
+				node.intKeys[node.size] = ((IntegerKey) entry.key).getKey().intValue();
+			else
+				node.stringKeys[node.size] = ((StringKey) entry.key).getKey();
+			node.children[++node.size] = ((IndexData) entry.data).getData().pid;
+		}
+		if (node.size == 0)
+			node.intKeys = new int[0];
+
+		int pid = indexPage.getCurPage().pid;
+		invalidate(pid);
+		long bytes = node.bytes();
+		if (bytes > budget)
+			return node;
+		nodes.put(pid, node);
+		used += bytes;
+		Iterator<Map.Entry<Integer, Node>> it = nodes.entrySet().iterator();
+		while (used > budget && it.hasNext()) {
+			used -= it.next().getValue().bytes();
+			it.remove();
+		}
+		return node;
+	}
+
+	/**
+	 * Drop the node of a page that was changed or freed.
+	 */
+	void invalidate(int pid) {
+		Node node = nodes.remove(pid);
+		if (node != null)
+			used -= node.bytes();
+	}
+
+	void clear() {
+		nodes.clear();
+		used = 0;
+	}
+
+	long getHits() {
+		return hits;
+	}
+
+	long getMisses() {
+		return misses;
+	}
+
+	long getUsedBytes() {
+		return used;
+	}
+}
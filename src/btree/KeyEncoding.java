@@ -0,0 +1,359 @@
+package btree;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+
+import global.AttrType;
+
+/**
+ * Key types beyond the integer and string keys the B+ tree pages know about.
+ * Such keys are stored as StringKeys holding an order-preserving encoding:
+ * the key is turned into bytes whose unsigned lexicographic order is the
+ * order of the keys, and the bytes are packed six bits per character into
+ * the ASCII range '0'..'o'. Comparing two stored keys with String.compareTo
+ * (as BT.keyCompare does) therefore orders them as the original keys, and
+ * the stored keys stay on the fast ASCII path of PageLayout.compare.
+ *
+ * A long or double key is stored in 11 characters (13 bytes with the string
+ * length), whatever its value.
+ *
+ * A CompositeKey is stored as its columns one after the other, each a tag
+ * byte giving its type followed by its value: integers in 4 and longs and
+ * doubles in 8 order-preserving bytes, strings as their UTF-8 bytes with
+ * every 0x00 written as 0x00 0xFF and a 0x00 0x01 terminator. Composite keys
+ * thus compare column by column (strings in code point order, a shorter
+ * string before its extensions), and the encoding of a prefix of the columns
+ * is a byte prefix of the encoding of the whole key.
+ */
+public class KeyEncoding {
+
+	/** key type of a B+ tree file with LongKey keys */
+	public static final int attrLong = 16;
+	/** key type of a B+ tree file with DoubleKey keys */
+	public static final int attrDouble = 17;
+	/** key type of a B+ tree file with CompositeKey keys */
+	public static final int attrComposite = 18;
+
+	/* encodings, as recorded in the header page */
+	static final int NONE = 0;
+	static final int LONG = 1;
+	static final int DOUBLE = 2;
+	static final int COMPOSITE = 3;
+
+	/* column tags of composite keys */
+	private static final int TAG_INTEGER = 1;
+	private static final int TAG_LONG = 2;
+	private static final int TAG_DOUBLE = 3;
+	private static final int TAG_STRING = 4;
+
+	private static final char BASE = '0';
+
+	/**
+	 * @return the encoding used for a file created with the given key type
+	 */
+	static int forKeyType(int keyType) {
+		switch (keyType) {
+		case attrLong:
+			return LONG;
+		case attrDouble:
+			return DOUBLE;
+		case attrComposite:
+			return COMPOSITE;
+		default:
+			return NONE;
+		}
+	}
+
+	/**
+	 * @return the maximum length of a stored key (BT.getKeyLength), given the
+	 *         key size asked for at creation; for composite keys that is the
+	 *         maximum length of the encoded columns in bytes
+	 */
+	static int maxKeySize(int encoding, int keysize) {
+		switch (encoding) {
+		case LONG:
+		case DOUBLE:
+			return packedLength(8) + 2;
+		case COMPOSITE:
+			return packedLength(keysize) + 2;
+		default:
+			return keysize;
+		}
+	}
+
+	/**
+	 * Encode a key of a file with the given encoding; keys of files without
+	 * encoding are returned as they are.
+	 *
+	 * @exception KeyNotMatchException
+	 *                the key does not have the type of the file
+	 */
+	static KeyClass encode(KeyClass key, int encoding) throws KeyNotMatchException {
+		if (key == null || encoding == NONE)
+			return key;
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		if (encoding == LONG && key instanceof LongKey)
+			writeLong(out, ((LongKey) key).getKey().longValue());
+		else if (encoding == DOUBLE && key instanceof DoubleKey)
+			writeDouble(out, ((DoubleKey) key).getKey().doubleValue());
+		else if (encoding == COMPOSITE && key instanceof CompositeKey)
+			writeColumns(out, (CompositeKey) key);
+		else
+			throw new KeyNotMatchException(null, "key does not match the key type of the file");
+		return new StringKey(pack(out.toByteArray()));
+	}
+
+	/**
+	 * The smallest stored key greater than every stored key whose leading
+	 * columns are those of prefix: the upper bound of a prefix scan. It is
+	 * the packed prefix with the padding bits of its last character set,
+	 * followed by a character above the packing range.
+	 *
+	 * @exception KeyNotMatchException
+	 *                a column is not an Integer, Long, Double or String
+	 */
+	static StringKey prefixUpperBound(CompositeKey prefix) throws KeyNotMatchException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writeColumns(out, prefix);
+		return upperBound(out.toByteArray());
+	}
+
+	/**
+	 * @return the smallest stored key greater than the packing of every byte
+	 *         string starting with prefix
+	 */
+	static StringKey upperBound(byte[] prefix) {
+		int length = prefix.length;
+		char[] chars = pack(prefix).toCharArray();
+		int padding = chars.length * 6 - length * 8;
+		if (padding > 0)
+			chars[chars.length - 1] |= (1 << padding) - 1;
+		return new StringKey(new String(chars) + (char) (BASE + 64));
+	}
+
+	private static void writeColumns(ByteArrayOutputStream out, CompositeKey key) throws KeyNotMatchException {
+		for (int i = 0; i < key.size(); i++) {
+			Object column = key.get(i);
+			if (column instanceof Integer) {
+				out.write(TAG_INTEGER);
+				int value = ((Integer) column).intValue() ^ Integer.MIN_VALUE;
+				for (int shift = 24; shift >= 0; shift -= 8)
+					out.write(value >>> shift);
+			} else if (column instanceof Long) {
+				out.write(TAG_LONG);
+				writeLong(out, ((Long) column).longValue());
+			} else if (column instanceof Double) {
+				out.write(TAG_DOUBLE);
+				writeDouble(out, ((Double) column).doubleValue());
+			} else if (column instanceof String) {
+				out.write(TAG_STRING);
+				for (byte b : utf8((String) column)) {
+					out.write(b);
+					if (b == 0)
+						out.write(0xff);
+				}
+				out.write(0);
+				out.write(1);
+			} else {
+				throw new KeyNotMatchException(null, "unsupported column type in composite key");
+			}
+		}
+	}
+
+	private static CompositeKey readColumns(byte[] bytes) {
+		return readColumns(bytes, new int[1]);
+	}
+
+	/*
+	 * Read columns from pos[0] up to the end of bytes or a 0 tag, and leave
+	 * pos[0] after what was read (the 0 tag included).
+	 */
+	private static CompositeKey readColumns(byte[] bytes, int[] at) {
+		ArrayList<Object> columns = new ArrayList<Object>();
+		int pos = at[0];
+		while (pos < bytes.length) {
+			if (bytes[pos] == 0) {
+				pos++;
+				break;
+			}
+			switch (bytes[pos++]) {
+			case TAG_INTEGER:
+				int value = 0;
+				for (int i = 0; i < 4; i++)
+					value = (value << 8) | (bytes[pos++] & 0xff);
+				columns.add(Integer.valueOf(value ^ Integer.MIN_VALUE));
+				break;
+			case TAG_LONG:
+				columns.add(Long.valueOf(readLong(bytes, pos)));
+				pos += 8;
+				break;
+			case TAG_DOUBLE:
+				columns.add(Double.valueOf(readDouble(bytes, pos)));
+				pos += 8;
+				break;
+			default:
+				ByteArrayOutputStream s = new ByteArrayOutputStream();
+				while (!(bytes[pos] == 0 && bytes[pos + 1] == 1)) {
+					s.write(bytes[pos]);
+					pos += bytes[pos] == 0 ? 2 : 1;
+				}
+				pos += 2;
+				try {
+					columns.add(s.toString("UTF-8"));
+				} catch (UnsupportedEncodingException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		}
+		at[0] = pos;
+		return new CompositeKey(columns.toArray());
+	}
+
+	/**
+	 * Write a key in the form key-value files (KeyValueFile) store it in:
+	 * its columns, as for a CompositeKey (an IntegerKey, StringKey, LongKey or
+	 * DoubleKey being a single column), and a 0 byte. The 0 byte sorts
+	 * before every further column, so no written key is a prefix of another
+	 * and bytes written after it do not change the order of the keys.
+	 *
+	 * @exception KeyNotMatchException
+	 *                the key or a column has an unsupported type
+	 */
+	static void writeKey(ByteArrayOutputStream out, KeyClass key) throws KeyNotMatchException {
+		if (key instanceof CompositeKey)
+			writeColumns(out, (CompositeKey) key);
+		else if (key instanceof IntegerKey)
+			writeColumns(out, new CompositeKey(((IntegerKey) key).getKey()));
+		else if (key instanceof StringKey)
+			writeColumns(out, new CompositeKey(((StringKey) key).getKey()));
+		else if (key instanceof LongKey)
+			writeColumns(out, new CompositeKey(((LongKey) key).getKey()));
+		else if (key instanceof DoubleKey)
+			writeColumns(out, new CompositeKey(((DoubleKey) key).getKey()));
+		else
+			throw new KeyNotMatchException(null, "unsupported key type");
+		out.write(0);
+	}
+
+	/**
+	 * Read a key written by writeKey, starting at pos[0]; pos[0] is left
+	 * after it. A single column comes back as an IntegerKey, StringKey,
+	 * LongKey or DoubleKey, several as a CompositeKey.
+	 */
+	static KeyClass readKey(byte[] bytes, int[] pos) {
+		CompositeKey key = readColumns(bytes, pos);
+		if (key.size() != 1)
+			return key;
+		Object column = key.get(0);
+		if (column instanceof Integer)
+			return new IntegerKey((Integer) column);
+		if (column instanceof String)
+			return new StringKey((String) column);
+		if (column instanceof Long)
+			return new LongKey((Long) column);
+		return new DoubleKey((Double) column);
+	}
+
+	private static byte[] utf8(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Decode a stored key back into the key it encodes.
+	 */
+	static KeyClass decode(KeyClass stored, int encoding) {
+		if (stored == null || encoding == NONE)
+			return stored;
+		byte[] bytes = unpack(((StringKey) stored).getKey());
+		switch (encoding) {
+		case LONG:
+			return new LongKey(readLong(bytes, 0));
+		case COMPOSITE:
+			return readColumns(bytes);
+		default:
+			return new DoubleKey(readDouble(bytes, 0));
+		}
+	}
+
+	/*
+	 * Order-preserving byte forms: big-endian, with the sign bit flipped so
+	 * that negative numbers sort first. For doubles, the bits of negative
+	 * values are all flipped so that larger magnitudes sort first.
+	 */
+	static void writeLong(ByteArrayOutputStream out, long value) {
+		value ^= Long.MIN_VALUE;
+		for (int shift = 56; shift >= 0; shift -= 8)
+			out.write((int) (value >>> shift));
+	}
+
+	static long readLong(byte[] bytes, int pos) {
+		long value = 0;
+		for (int i = 0; i < 8; i++)
+			value = (value << 8) | (bytes[pos + i] & 0xff);
+		return value ^ Long.MIN_VALUE;
+	}
+
+	static void writeDouble(ByteArrayOutputStream out, double value) {
+		long bits = Double.doubleToLongBits(value);
+		bits = bits < 0 ? ~bits : bits ^ Long.MIN_VALUE;
+		writeLong(out, bits ^ Long.MIN_VALUE);
+	}
+
+	static double readDouble(byte[] bytes, int pos) {
+		long bits = readLong(bytes, pos) ^ Long.MIN_VALUE;
+		bits = bits < 0 ? bits ^ Long.MIN_VALUE : ~bits;
+		return Double.longBitsToDouble(bits);
+	}
+
+	static int packedLength(int bytes) {
+		return (bytes * 8 + 5) / 6;
+	}
+
+	/*
+	 * Six bits per character, most significant first, the last character
+	 * padded with zero bits. A byte string that is a prefix of another packs
+	 * into a prefix of (or a smaller string than) the other's packing, so
+	 * the order survives.
+	 */
+	static String pack(byte[] bytes) {
+		char[] chars = new char[packedLength(bytes.length)];
+		int acc = 0, bits = 0, n = 0;
+		for (byte b : bytes) {
+			acc = (acc << 8) | (b & 0xff);
+			bits += 8;
+			while (bits >= 6) {
+				bits -= 6;
+				chars[n++] = (char) (BASE + ((acc >>> bits) & 0x3f));
+			}
+		}
+		if (bits > 0)
+			chars[n++] = (char) (BASE + ((acc << (6 - bits)) & 0x3f));
+		return new String(chars, 0, n);
+	}
+
+	static byte[] unpack(String s) {
+		byte[] bytes = new byte[s.length() * 6 / 8];
+		int acc = 0, bits = 0, n = 0;
+		for (int i = 0; i < s.length() && n < bytes.length; i++) {
+			acc = (acc << 6) | (s.charAt(i) - BASE);
+			bits += 6;
+			if (bits >= 8) {
+				bits -= 8;
+				bytes[n++] = (byte) (acc >>> bits);
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return the key type the pages of a file with the given key type use
+	 */
+	static int storedKeyType(int keyType) {
+		return forKeyType(keyType) == NONE ? keyType : AttrType.attrString;
+	}
+}
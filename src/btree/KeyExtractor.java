@@ -0,0 +1,24 @@
+package btree;
+
+import global.RID;
+import heap.Tuple;
+
+/**
+ * The key of a heap file record in one index, for IndexBuilder. Extractors
+ * run on worker threads, each call on its own copy of the tuple, and must
+ * not use the buffer manager.
+ */
+public interface KeyExtractor {
+
+	/**
+	 * @param tuple
+	 *            the record, a copy whose header is not set yet. Input
+	 *            parameter.
+	 * @param rid
+	 *            the rid of the record. Input parameter.
+	 * @return the key of the record, null to leave it out of the index
+	 * @exception Exception
+	 *                the record cannot be read
+	 */
+	KeyClass getKey(Tuple tuple, RID rid) throws Exception;
+}
@@ -0,0 +1,17 @@
+package btree;
+
+import chainexception.ChainException;
+
+public class KeyValueException extends ChainException {
+	public KeyValueException() {
+		super();
+	}
+
+	public KeyValueException(String s) {
+		super(null, s);
+	}
+
+	public KeyValueException(Exception e, String s) {
+		super(e, s);
+	}
+}
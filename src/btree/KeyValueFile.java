@@ -0,0 +1,376 @@
+package btree;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import diskmgr.Page;
+import global.AttrType;
+import global.GlobalConst;
+import global.PageId;
+import global.RID;
+
+/**
+ * A B+ tree that maps keys to variable-length values instead of rids. Keys
+ * are Integer, Long, Double, String or Composite keys, as in KeyEncoding.
+ *
+ * The leaf entries of a BTreeFile are a key and a rid, so the value is
+ * stored in the key: every leaf key is the encoded key (see
+ * KeyEncoding.writeKey), a flag byte and either
+ * <ul>
+ * <li>INLINE: the value itself, if the whole fits in the maximum key size
+ * of the file, or</li>
+ * <li>OVERFLOW: the page id of the first page of a chain of overflow pages
+ * holding the value, and the length of the value.</li>
+ * </ul>
+ * Since the encoded key ends before the flag byte, entries sort by key, and
+ * the file (created with IndexFlags.KEY_VALUE) cuts its separators down to
+ * the key, so the index pages hold no values.
+ *
+ * An overflow page is [next page id][bytes used][bytes of the value]; the
+ * pages are allocated and freed through the B+ tree file.
+ */
+public class KeyValueFile implements GlobalConst {
+
+	private static final byte INLINE = 0;
+	private static final byte OVERFLOW = 1;
+	private static final int REFERENCE = 8; // overflow page id and length
+
+	private static final int NEXT_PAGE = 0;
+	private static final int USED = 4;
+	private static final int BODY = 8;
+	private static final int CAPACITY = MAX_SPACE - BODY;
+
+	private static final RID NO_RID = new RID(new PageId(INVALID_PAGE), 0);
+
+	private BTreeFile file;
+	private int maxKeySize;
+
+	/**
+	 * Open a key-value file, creating it if it does not exist.
+	 *
+	 * @param filename
+	 *            the file name. Input parameter.
+	 * @param keysize
+	 *            the maximum size of an encoded key. Input parameter.
+	 * @param inlineLimit
+	 *            values up to this many bytes are stored in the leaves,
+	 *            longer ones in overflow pages. Input parameter. A leaf entry
+	 *            then takes about 4 / 3 of keysize + inlineLimit bytes, which
+	 *            should leave room for several entries per page.
+	 * @exception KeyValueException
+	 *                error from the lower layers, or the file is not a
+	 *                key-value file
+	 */
+	public KeyValueFile(String filename, int keysize, int inlineLimit) throws KeyValueException {
+		try {
+			int stored = KeyEncoding.packedLength(keysize + 1 + Math.max(REFERENCE, inlineLimit)) + 2;
+			file = new BTreeFile(filename, AttrType.attrString, stored, DeleteFashion.NAIVE_DELETE,
+					IndexFlags.KEY_VALUE);
+			maxKeySize = file.getHeaderPage().get_maxKeySize();
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new KeyValueException(e, "");
+		}
+		if ((file.getFlags() & IndexFlags.KEY_VALUE) == 0)
+			throw new KeyValueException(filename + " is not a key-value file");
+	}
+
+	/**
+	 * Store a value under a key, replacing the value stored before.
+	 *
+	 * @param key
+	 *            the key. Input parameter.
+	 * @param value
+	 *            the value. Input parameter.
+	 * @exception KeyValueException
+	 *                error from the lower layers, or the key is too long
+	 */
+	public void put(KeyClass key, byte[] value) throws KeyValueException {
+		try {
+			byte[] prefix = keyBytes(key);
+			KeyDataEntry old = find(prefix);
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			out.write(prefix);
+			if (KeyEncoding.packedLength(prefix.length + 1 + value.length) + 2 <= maxKeySize) {
+				out.write(INLINE);
+				out.write(value);
+			} else {
+				ByteBuffer reference = ByteBuffer.allocate(REFERENCE);
+				reference.putInt(writeOverflow(value).pid).putInt(value.length);
+				out.write(OVERFLOW);
+				out.write(reference.array());
+			}
+			StringKey stored = new StringKey(KeyEncoding.pack(out.toByteArray()));
+			if (old != null && ((StringKey) old.key).getKey().equals(stored.getKey()))
+				return; // the same value, inline
+			try {
+				file.insert(stored, NO_RID);
+			} catch (Exception e) {
+				freeOverflow(stored);
+				throw e;
+			}
+			// the old value goes only once the new one is in
+			if (old != null)
+				removeStored(old.key);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new KeyValueException(e, "");
+		}
+	}
+
+	/**
+	 * @param key
+	 *            the key. Input parameter.
+	 * @return the value stored under key, null if there is none
+	 * @exception KeyValueException
+	 *                error from the lower layers
+	 */
+	public byte[] get(KeyClass key) throws KeyValueException {
+		try {
+			KeyDataEntry entry = find(keyBytes(key));
+			if (entry == null)
+				return null;
+			byte[] bytes = KeyEncoding.unpack(((StringKey) entry.key).getKey());
+			int[] pos = new int[1];
+			KeyEncoding.readKey(bytes, pos);
+			return value(bytes, pos[0]);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new KeyValueException(e, "");
+		}
+	}
+
+	/**
+	 * Remove a key and its value.
+	 *
+	 * @param key
+	 *            the key. Input parameter.
+	 * @return false if the key was not found
+	 * @exception KeyValueException
+	 *                error from the lower layers
+	 */
+	public boolean remove(KeyClass key) throws KeyValueException {
+		try {
+			KeyDataEntry entry = find(keyBytes(key));
+			if (entry == null)
+				return false;
+			removeStored(entry.key);
+			return true;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new KeyValueException(e, "");
+		}
+	}
+
+	/**
+	 * Scan the keys from lo to hi, both inclusive, in key order.
+	 *
+	 * @param lo
+	 *            the first key, null for the smallest. Input parameter.
+	 * @param hi
+	 *            the last key, null for the largest. Input parameter.
+	 * @return the scan
+	 * @exception KeyValueException
+	 *                error from the lower layers
+	 */
+	public Scan scan(KeyClass lo, KeyClass hi) throws KeyValueException {
+		try {
+			KeyClass from = lo == null ? null : new StringKey(KeyEncoding.pack(keyBytes(lo)));
+			KeyClass to = hi == null ? null : KeyEncoding.upperBound(keyBytes(hi));
+			return new Scan(file.new_scan(from, to));
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new KeyValueException(e, "");
+		}
+	}
+
+	/**
+	 * Close the file.
+	 *
+	 * @exception KeyValueException
+	 *                error from the lower layers
+	 */
+	public void close() throws KeyValueException {
+		try {
+			file.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new KeyValueException(e, "");
+		}
+	}
+
+	/**
+	 * Destroy the file, with the overflow pages of its values.
+	 *
+	 * @exception KeyValueException
+	 *                error from the lower layers
+	 */
+	public void destroy() throws KeyValueException {
+		try {
+			BTFileScan scan = file.new_scan(null, null);
+			for (KeyDataEntry entry = scan.get_next(); entry != null; entry = scan.get_next())
+				freeOverflow(entry.key);
+			scan.DestroyBTreeFileScan();
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new KeyValueException(e, "");
+		}
+	}
+
+	/**
+	 * A scan over the entries of a key-value file.
+	 */
+	public class Scan {
+
+		private BTFileScan scan;
+
+		private Scan(BTFileScan scan) {
+			this.scan = scan;
+		}
+
+		/**
+		 * @return the next entry, null if done
+		 * @exception KeyValueException
+		 *                error from the lower layers
+		 */
+		public Entry get_next() throws KeyValueException {
+			try {
+				KeyDataEntry entry = scan.get_next();
+				if (entry == null)
+					return null;
+				byte[] bytes = KeyEncoding.unpack(((StringKey) entry.key).getKey());
+				int[] pos = new int[1];
+				KeyClass key = KeyEncoding.readKey(bytes, pos);
+				return new Entry(key, value(bytes, pos[0]));
+			} catch (Exception e) {
+				e.printStackTrace();
+				throw new KeyValueException(e, "");
+			}
+		}
+
+		/**
+		 * Unpin the page held by the scan.
+		 *
+		 * @exception KeyValueException
+		 *                error from the lower layers
+		 */
+		public void DestroyScan() throws KeyValueException {
+			try {
+				scan.DestroyBTreeFileScan();
+			} catch (Exception e) {
+				e.printStackTrace();
+				throw new KeyValueException(e, "");
+			}
+		}
+	}
+
+	/**
+	 * A key and its value.
+	 */
+	public static class Entry {
+		public final KeyClass key;
+		public final byte[] value;
+
+		Entry(KeyClass key, byte[] value) {
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	private static byte[] keyBytes(KeyClass key) throws KeyNotMatchException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		KeyEncoding.writeKey(out, key);
+		return out.toByteArray();
+	}
+
+	/*
+	 * the leaf entry of the key encoded as prefix, null if there is none
+	 */
+	private KeyDataEntry find(byte[] prefix) throws Exception {
+		BTFileScan scan = file.new_scan(new StringKey(KeyEncoding.pack(prefix)), KeyEncoding.upperBound(prefix));
+		KeyDataEntry entry = scan.get_next();
+		scan.DestroyBTreeFileScan();
+		return entry;
+	}
+
+	/*
+	 * delete a stored leaf key and free its overflow pages
+	 */
+	private void removeStored(KeyClass stored) throws Exception {
+		file.Delete(stored, NO_RID);
+		freeOverflow(stored);
+	}
+
+	/*
+	 * the value of a stored key whose flag byte is at pos
+	 */
+	private byte[] value(byte[] bytes, int pos) throws Exception {
+		if (bytes[pos] == INLINE)
+			return Arrays.copyOfRange(bytes, pos + 1, bytes.length);
+		ByteBuffer reference = ByteBuffer.wrap(bytes, pos + 1, REFERENCE);
+		PageId pageno = new PageId(reference.getInt());
+		byte[] value = new byte[reference.getInt()];
+		int done = 0;
+		while (pageno.pid != INVALID_PAGE) {
+			ByteBuffer page = ByteBuffer.wrap(file.pinPage(pageno).getpage());
+			int used = page.getInt(USED);
+			System.arraycopy(page.array(), BODY, value, done, used);
+			done += used;
+			PageId current = pageno;
+			pageno = new PageId(page.getInt(NEXT_PAGE));
+			file.unpinPage(current);
+		}
+		return value;
+	}
+
+	/*
+	 * write a value into a new chain of overflow pages, returns its first
+	 */
+	private PageId writeOverflow(byte[] value) throws Exception {
+		PageId head = null;
+		PageId previous = null;
+		ByteBuffer previousPage = null;
+		int done = 0;
+		do {
+			Page page = new Page();
+			PageId pageno = file.newPage(page);
+			ByteBuffer b = ByteBuffer.wrap(page.getpage());
+			int used = Math.min(CAPACITY, value.length - done);
+			b.putInt(NEXT_PAGE, INVALID_PAGE);
+			b.putInt(USED, used);
+			System.arraycopy(value, done, b.array(), BODY, used);
+			done += used;
+			if (previous == null) {
+				head = pageno;
+			} else {
+				previousPage.putInt(NEXT_PAGE, pageno.pid);
+				file.unpinPage(previous, true);
+			}
+			previous = pageno;
+			previousPage = b;
+		} while (done < value.length);
+		file.unpinPage(previous, true);
+		return head;
+	}
+
+	/*
+	 * free the overflow pages of a stored key, if it has any
+	 */
+	private void freeOverflow(KeyClass stored) throws Exception {
+		byte[] bytes = KeyEncoding.unpack(((StringKey) stored).getKey());
+		int[] pos = new int[1];
+		KeyEncoding.readKey(bytes, pos);
+		if (bytes[pos[0]] != OVERFLOW)
+			return;
+		PageId pageno = new PageId(ByteBuffer.wrap(bytes, pos[0] + 1, REFERENCE).getInt());
+		while (pageno.pid != INVALID_PAGE) {
+			PageId next = new PageId(ByteBuffer.wrap(file.pinPage(pageno).getpage()).getInt(NEXT_PAGE));
+			file.unpinPage(pageno);
+			file.freePage(pageno);
+			pageno = next;
+		}
+	}
+}
@@ -0,0 +1,415 @@
+package btree;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import diskmgr.Page;
+import global.Convert;
+import global.GlobalConst;
+import global.PageId;
+import global.RID;
+
+/**
+ * String keys longer than the maximum key size of a LONG_KEYS B+ tree. A key
+ * that fits the key size is stored as it is. A longer one is stored as its
+ * first PREFIX characters, a MARK character, a hash of the whole key and the
+ * page id of an overflow page holding the whole key, the last two packed
+ * into HASH and REFERENCE characters (see KeyEncoding.pack). The maximum key
+ * size can then be sized for the common keys while rare long ones still fit.
+ * PREFIX is a third of what is left of the key size, so that the stored form
+ * fits whatever the characters of the prefix; a key that fits but has MARK
+ * right after its prefix is stored as a long key too.
+ *
+ * All keys with the same first PREFIX characters form a family. MARK is the
+ * smallest character, so the long keys of a family sort after the key equal
+ * to the prefix and before the family's keys stored as they are, and among
+ * themselves by hash.
+ * Exact operations (insert, Delete, lookup) only read the overflow pages of
+ * the long keys with the hash of their key, one in general. Scans, on the
+ * other hand, need the long keys in their order: a scan returned by
+ * BTreeFile.new_scan reads every family holding long keys ahead, resolves
+ * its long keys and returns the family in key order (see Ordered). A long
+ * key as a bound starts or ends the scan at its family, the keys of the
+ * family outside the bounds are filtered out.
+ *
+ * A long key has one overflow page however many entries it has: insert
+ * looks for the overflow page of the key before allocating one, and delete
+ * frees it with the last entry of the key. An overflow page is [length of
+ * the key in bytes][key in UTF-8].
+ */
+class LongKeys implements GlobalConst {
+
+	static final char MARK = '\u0000';
+	static final int HASH = 6; // packed hash of the whole key, in characters
+	static final int REFERENCE = 6; // packed page id, in characters
+
+	private static final int LENGTH = 0;
+	private static final int BODY = 4;
+
+	private static final char ABOVE_PACKED = 'p'; // above any packed char
+
+	private BTreeFile file;
+	private int maxKeySize;
+	private int prefix;
+
+	/**
+	 * Long keys of a B+ tree file with the given maximum (stored) key size.
+	 */
+	LongKeys(BTreeFile file, int maxKeySize) {
+		this.file = file;
+		this.maxKeySize = maxKeySize;
+		// 2: length of a StringKey, 2: MARK in modified UTF-8, 3: bytes of
+		// a char at most
+		this.prefix = Math.max(0, (maxKeySize - 2 - 2 - HASH - REFERENCE) / 3);
+	}
+
+	/**
+	 * @return true if key, as given to the file, is stored as a long key
+	 */
+	boolean isLong(KeyClass key) {
+		if (!(key instanceof StringKey))
+			return false;
+		String s = ((StringKey) key).getKey();
+		return marked(s) || 2 + utfLength(s) > maxKeySize;
+	}
+
+	/**
+	 * @return true if key, as stored in the tree, is a long key
+	 */
+	boolean isStored(KeyClass key) {
+		return key instanceof StringKey && marked(((StringKey) key).getKey());
+	}
+
+	/**
+	 * The stored form of a key given to the file, without allocating.
+	 *
+	 * @return the stored key; null if the key is long and has no overflow
+	 *         page, so it is not in the file
+	 */
+	KeyClass find(KeyClass key) throws IOException, PinPageException, UnpinPageException, ConstructPageException,
+			KeyNotMatchException, IteratorException {
+		if (!isLong(key))
+			return key;
+		String s = ((StringKey) key).getKey();
+		String hashed = hashed(s);
+		BTFileScan scan = file.storedScan(new StringKey(hashed), new StringKey(hashed + ABOVE_PACKED));
+		try {
+			KeyDataEntry entry;
+			while ((entry = scan.get_next()) != null)
+				if (s.equals(read(entry.key)))
+					return entry.key;
+			return null;
+		} catch (ScanIteratorException e) {
+			throw new IteratorException(e, "cannot scan the long keys of " + hashed);
+		} finally {
+			try {
+				scan.DestroyBTreeFileScan();
+			} catch (Exception e) {
+				e.printStackTrace();
+				throw new UnpinPageException(e, "");
+			}
+		}
+	}
+
+	/**
+	 * The stored form of a key given to the file, allocating the overflow
+	 * page of a long key that has none yet. Call inside an operation of the
+	 * file, after the key is checked.
+	 *
+	 * @exception KeyTooLongException
+	 *                the key does not fit a page, or the key size is too
+	 *                small for long keys
+	 */
+	KeyClass store(KeyClass key) throws KeyTooLongException, IOException, PinPageException, UnpinPageException,
+			ConstructPageException, KeyNotMatchException, IteratorException {
+		KeyClass stored = find(key);
+		if (stored != null)
+			return stored;
+
+		String s = ((StringKey) key).getKey();
+		String hashed = hashed(s);
+		byte[] bytes = s.getBytes("UTF-8");
+		if (2 + utfLength(hashed) + REFERENCE > maxKeySize || BODY + bytes.length > MAX_SPACE)
+			throw new KeyTooLongException(null, "");
+		Page page = new Page();
+		PageId pageno = file.newPage(page);
+		byte[] data = page.getpage();
+		Convert.setIntValue(bytes.length, LENGTH, data);
+		System.arraycopy(bytes, 0, data, BODY, bytes.length);
+		file.unpinPage(pageno, true);
+		return new StringKey(hashed + pack(pageno.pid));
+	}
+
+	/**
+	 * @return the stored key where a scan up to key ends: the first key
+	 *         after its family if key is longer than the prefix, null if
+	 *         there is none
+	 */
+	KeyClass upperBound(KeyClass key) {
+		if (key == null)
+			return null;
+		String s = ((StringKey) key).getKey();
+		if (s.length() <= prefix)
+			return key;
+		char[] family = s.substring(0, prefix).toCharArray();
+		for (int i = family.length - 1; i >= 0; i--)
+			if (family[i] != Character.MAX_VALUE) {
+				family[i]++;
+				return new StringKey(new String(family, 0, i + 1));
+			}
+		return null;
+	}
+
+	/**
+	 * @return the stored key where a scan from key starts: its family if key
+	 *         is longer than the prefix
+	 */
+	KeyClass lowerBound(KeyClass key) {
+		if (key == null)
+			return null;
+		String s = ((StringKey) key).getKey();
+		if (s.length() <= prefix)
+			return key;
+		return new StringKey(s.substring(0, prefix));
+	}
+
+	/**
+	 * @return the key a stored key stands for
+	 */
+	KeyClass resolve(KeyClass stored) throws IOException, PinPageException, UnpinPageException {
+		if (!isStored(stored))
+			return stored;
+		return new StringKey(read(stored));
+	}
+
+	/**
+	 * Free the overflow page of a stored long key if no entry of it is left.
+	 */
+	void release(KeyClass stored) throws IOException, PinPageException, UnpinPageException, FreePageException,
+			ConstructPageException, KeyNotMatchException, IteratorException {
+		if (!isStored(stored))
+			return;
+		BTFileScan scan = file.storedScan(stored, stored);
+		boolean left;
+		try {
+			left = scan.get_next() != null;
+			scan.DestroyBTreeFileScan();
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new IteratorException(e, "");
+		}
+		if (!left)
+			file.freePage(pageOf(stored));
+	}
+
+	/**
+	 * @return the entries of source, stored keys between lo_key and hi_key,
+	 *         with the families holding long keys put in key order and the
+	 *         keys out of [lo_key, hi_key] left out
+	 */
+	Ordered order(IndexFileScan source, KeyClass lo_key, KeyClass hi_key) {
+		return new Ordered(source, (StringKey) lo_key, (StringKey) hi_key);
+	}
+
+	/**
+	 * The entries of a scan in the order of the keys they stand for. A
+	 * family holding long keys is read ahead whole, its long keys resolved,
+	 * and the family sorted by key and rid; every other entry is returned as
+	 * it is read.
+	 */
+	class Ordered {
+
+		private IndexFileScan source;
+		private String lo; // null for none
+		private String hi; // null for none
+		private KeyDataEntry ahead; // read from source, not returned yet
+		private List<Resolved> family = new ArrayList<Resolved>();
+		private int next;
+		private boolean done;
+
+		private Ordered(IndexFileScan source, StringKey lo_key, StringKey hi_key) {
+			this.source = source;
+			this.lo = lo_key == null ? null : lo_key.getKey();
+			this.hi = hi_key == null ? null : hi_key.getKey();
+		}
+
+		/**
+		 * @return null if done; otherwise the next entry, with its stored key
+		 */
+		KeyDataEntry next() throws ScanIteratorException {
+			while (!done) {
+				KeyDataEntry entry;
+				String key;
+				if (next < family.size()) {
+					Resolved resolved = family.get(next++);
+					entry = resolved.entry;
+					key = resolved.key;
+				} else {
+					entry = read();
+					if (entry == null)
+						break;
+					key = ((StringKey) entry.key).getKey();
+					if (marked(key)) {
+						readFamily(entry, key.substring(0, prefix));
+						continue;
+					}
+				}
+				// every entry after one above hi_key is above it too
+				if (hi != null && key.compareTo(hi) > 0)
+					break;
+				if (lo == null || key.compareTo(lo) >= 0)
+					return entry;
+			}
+			done = true;
+			return null;
+		}
+
+		/*
+		 * Read the family of first, its first long key: the rest of its long
+		 * keys, then its keys stored as they are.
+		 */
+		private void readFamily(KeyDataEntry first, String start) throws ScanIteratorException {
+			family.clear();
+			next = 0;
+			try {
+				KeyDataEntry entry = first;
+				do {
+					family.add(new Resolved(entry, ((StringKey) resolve(entry.key)).getKey()));
+					entry = read();
+				} while (entry != null && ((StringKey) entry.key).getKey().startsWith(start));
+				ahead = entry;
+			} catch (ScanIteratorException e) {
+				throw e;
+			} catch (Exception e) {
+				e.printStackTrace();
+				throw new ScanIteratorException(e, "");
+			}
+			Collections.sort(family, Resolved.ORDER);
+		}
+
+		private KeyDataEntry read() throws ScanIteratorException {
+			if (ahead == null)
+				return source.get_next();
+			KeyDataEntry entry = ahead;
+			ahead = null;
+			return entry;
+		}
+	}
+
+	/**
+	 * An entry read ahead, with the key it stands for.
+	 */
+	private static class Resolved {
+
+		static final Comparator<Resolved> ORDER = new Comparator<Resolved>() {
+			public int compare(Resolved a, Resolved b) {
+				int c = a.key.compareTo(b.key);
+				if (c != 0)
+					return c;
+				RID x = ((LeafData) a.entry.data).getData();
+				RID y = ((LeafData) b.entry.data).getData();
+				if (x.pageNo.pid != y.pageNo.pid)
+					return x.pageNo.pid < y.pageNo.pid ? -1 : 1;
+				return x.slotNo < y.slotNo ? -1 : x.slotNo == y.slotNo ? 0 : 1;
+			}
+		};
+
+		KeyDataEntry entry;
+		String key;
+
+		Resolved(KeyDataEntry entry, String key) {
+			this.entry = entry;
+			this.key = key;
+		}
+	}
+
+	/**
+	 * A BTFileScan over the entries of a raw scan, in key order (see
+	 * Ordered). Entries are read ahead, so delete_current is not supported.
+	 */
+	class Scan extends BTFileScan {
+
+		private BTFileScan raw;
+		private Ordered ordered;
+
+		Scan(BTFileScan raw, KeyClass lo_key, KeyClass hi_key) {
+			this.raw = raw;
+			this.ordered = order(raw, lo_key, hi_key);
+			this.bfile = file;
+			this.maxKeysize = raw.maxKeysize;
+		}
+
+		public KeyDataEntry get_next() throws ScanIteratorException {
+			return ordered.next();
+		}
+
+		/**
+		 * Not supported: the scan reads ahead of the entry it returned.
+		 *
+		 * @exception ScanDeleteException
+		 *                always
+		 */
+		public void delete_current() throws ScanDeleteException {
+			throw new ScanDeleteException(null, "scans of a long key file are read-only");
+		}
+
+		public int keysize() {
+			return raw.keysize();
+		}
+
+		public void DestroyBTreeFileScan() throws IOException, bufmgr.InvalidFrameNumberException,
+				bufmgr.ReplacerException, bufmgr.PageUnpinnedException, bufmgr.HashEntryNotFoundException {
+			raw.DestroyBTreeFileScan();
+		}
+	}
+
+	/*
+	 * the prefix of a long key, MARK and the packed hash of the key
+	 */
+	private String hashed(String s) throws IOException {
+		return s.substring(0, prefix) + MARK + pack(s.hashCode());
+	}
+
+	private boolean marked(String s) {
+		return s.length() > prefix && s.charAt(prefix) == MARK;
+	}
+
+	/*
+	 * length of s in modified UTF-8, as DataOutput.writeUTF writes it
+	 */
+	private static int utfLength(String s) {
+		int length = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			length += c >= 0x0001 && c <= 0x007f ? 1 : c <= 0x07ff ? 2 : 3;
+		}
+		return length;
+	}
+
+	private static String pack(int value) throws IOException {
+		byte[] bytes = new byte[4];
+		Convert.setIntValue(value, 0, bytes);
+		return KeyEncoding.pack(bytes);
+	}
+
+	private PageId pageOf(KeyClass stored) throws IOException {
+		String s = ((StringKey) stored).getKey();
+		return new PageId(Convert.getIntValue(0, KeyEncoding.unpack(s.substring(prefix + 1 + HASH))));
+	}
+
+	private String read(KeyClass stored) throws IOException, PinPageException, UnpinPageException {
+		PageId pageno = pageOf(stored);
+		byte[] data = file.pinPage(pageno).getpage();
+		try {
+			return new String(data, BODY, Convert.getIntValue(LENGTH, data), "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IOException(e);
+		} finally {
+			file.unpinPage(pageno);
+		}
+	}
+}
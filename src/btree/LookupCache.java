@@ -0,0 +1,127 @@
+package btree;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import global.RID;
+
+/**
+ * Bounded cache of lookup results (key to rid list) of one B+ tree file,
+ * managed with the 2Q policy so that a scan over many cold keys cannot flush
+ * the hot ones:
+ * <ul>
+ * <li>a key seen for the first time goes into A1in, a small FIFO queue;</li>
+ * <li>when it falls out of A1in, its result is dropped but the key is
+ * remembered in A1out, a FIFO queue of keys only;</li>
+ * <li>a key looked up again while in A1out has proven to be hot and goes into
+ * Am, an LRU queue which holds most of the capacity.</li>
+ * </ul>
+ * A key touched by insert or delete is dropped from the cache.
+ */
+class LookupCache {
+
+	private int inCapacity;
+	private int outCapacity;
+	private int mainCapacity;
+
+	private LinkedHashMap<Object, List<RID>> a1in = new LinkedHashMap<Object, List<RID>>();
+	private LinkedHashMap<Object, Boolean> a1out = new LinkedHashMap<Object, Boolean>();
+	private LinkedHashMap<Object, List<RID>> am = new LinkedHashMap<Object, List<RID>>(16, 0.75f, true);
+
+	private long hits;
+	private long misses;
+
+	/**
+	 * @param capacity
+	 *            number of keys whose results are kept. Input parameter.
+	 */
+	LookupCache(int capacity) {
+		inCapacity = Math.max(1, capacity / 4);
+		mainCapacity = Math.max(1, capacity - inCapacity);
+		outCapacity = Math.max(1, capacity / 2);
+	}
+
+	/**
+	 * @return a copy of the cached rids of key, null if not cached
+	 */
+	List<RID> get(KeyClass key) {
+		Object k = valueOf(key);
+		List<RID> rids = am.get(k);
+		if (rids == null)
+			rids = a1in.get(k); // a hit in A1in does not reorder it
+		if (rids == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return new ArrayList<RID>(rids);
+	}
+
+	/**
+	 * Remember the result of a lookup which missed the cache.
+	 */
+	void put(KeyClass key, List<RID> rids) {
+		Object k = valueOf(key);
+		List<RID> copy = new ArrayList<RID>(rids);
+		if (a1out.remove(k) != null) {
+			am.put(k, copy);
+			if (am.size() > mainCapacity) {
+				Iterator<Object> it = am.keySet().iterator();
+				it.next();
+				it.remove();
+			}
+			return;
+		}
+		if (am.containsKey(k)) {
+			am.put(k, copy);
+			return;
+		}
+		a1in.put(k, copy);
+		if (a1in.size() > inCapacity) {
+			Iterator<Object> it = a1in.keySet().iterator();
+			Object old = it.next();
+			it.remove();
+			a1out.put(old, Boolean.TRUE);
+			trimOut();
+		}
+	}
+
+	private void trimOut() {
+		if (a1out.size() > outCapacity) {
+			Iterator<Object> it = a1out.keySet().iterator();
+			it.next();
+			it.remove();
+		}
+	}
+
+	/**
+	 * Drop the cached result of a key.
+	 */
+	void invalidate(KeyClass key) {
+		Object k = valueOf(key);
+		a1in.remove(k);
+		if (am.remove(k) != null) {
+			a1out.put(k, Boolean.TRUE); // still hot: readmit it into Am
+			trimOut();
+		}
+	}
+
+	long getHits() {
+		return hits;
+	}
+
+	long getMisses() {
+		return misses;
+	}
+
+	/*
+	 * KeyClass has no equals/hashCode: use the wrapped value.
+	 */
+	private static Object valueOf(KeyClass key) {
+		if (key instanceof IntegerKey)
+			return ((IntegerKey) key).getKey();
+		return ((StringKey) key).getKey();
+	}
+}
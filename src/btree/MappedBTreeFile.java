@@ -0,0 +1,77 @@
+package btree;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import global.SystemDefs;
+
+/**
+ * Read-only access to a B+ tree file through a memory mapping of the database
+ * file instead of the buffer manager. Pages are read in place as ByteBuffer
+ * slices of the mapping (page n at offset n * MINIBASE_PAGESIZE, as the disk
+ * manager writes it), so a lookup neither pins, hashes nor copies a page.
+ */
+public class MappedBTreeFile extends ByteBufferBTreeFile {
+
+	private static final int REGION_SHIFT = 20; // pages per mapped region: 1 << 20
+	private static final long REGION_BYTES = (long) MINIBASE_PAGESIZE << REGION_SHIFT;
+
+	private RandomAccessFile dbFile;
+	private MappedByteBuffer[] regions;
+
+	/**
+	 * Map the database file of SystemDefs for reading the given B+ tree.
+	 *
+	 * @param file
+	 *            the B+ tree file, open. Input parameter.
+	 * @exception IOException
+	 *                error mapping the database file or writing dirty pages
+	 */
+	public MappedBTreeFile(BTreeFile file) throws IOException {
+		super(file);
+		dbFile = new RandomAccessFile(SystemDefs.JavabaseDBName, "r");
+		refresh();
+	}
+
+	/**
+	 * Write the pages the B+ tree file dirtied and map the database file
+	 * again.
+	 *
+	 * @exception IOException
+	 *                error mapping the database file or writing the pages
+	 */
+	public void refresh() throws IOException {
+		flushBufferPool();
+
+		FileChannel channel = dbFile.getChannel();
+		long size = channel.size();
+		regions = new MappedByteBuffer[(int) ((size + REGION_BYTES - 1) / REGION_BYTES)];
+		for (int i = 0; i < regions.length; i++) {
+			long start = i * REGION_BYTES;
+			regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION_BYTES, size - start));
+		}
+	}
+
+	/**
+	 * Release the database file. The mapping itself goes away with the
+	 * garbage collector.
+	 *
+	 * @exception IOException
+	 *                error closing the file
+	 */
+	public void close() throws IOException {
+		regions = null;
+		dbFile.close();
+	}
+
+	protected ByteBuffer page(int pid) {
+		ByteBuffer region = regions[pid >>> REGION_SHIFT].duplicate();
+		int offset = (pid & ((1 << REGION_SHIFT) - 1)) * MINIBASE_PAGESIZE;
+		region.position(offset);
+		region.limit(offset + MINIBASE_PAGESIZE);
+		return region.slice();
+	}
+}
@@ -0,0 +1,214 @@
+package btree;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import global.AttrType;
+import global.PageId;
+import global.RID;
+
+/**
+ * Direct access to B+ tree pages held in a ByteBuffer, without a Page or
+ * BTSortedPage around them. The offsets are those of HFPage, which all B+ tree
+ * pages extend: a fixed header followed by the slot directory, each slot
+ * holding the length and offset of its record. All values are big-endian, as
+ * written by global.Convert.
+ *
+ * A record of a B+ tree page is its key followed by its data: a PageId (4
+ * bytes) on index pages, a RID (8 bytes) on leaf pages. An integer key takes 4
+ * bytes; a string key is stored as by DataOutputStream.writeUTF, a 2-byte
+ * length and the modified UTF-8 bytes.
+ *
+ * moveRecords moves a run of records between two sorted pages in one pass
+ * over each page, where the page methods (insertRecord, deleteSortedRecord)
+ * sort and compact the page once per record.
+ */
+class PageLayout {
+
+	static final int SLOT_CNT = 0;
+	static final int USED_PTR = 2;
+	static final int FREE_SPACE = 4;
+	static final int TYPE = 6;
+	static final int PREV_PAGE = 8;
+	static final int NEXT_PAGE = 12;
+	static final int CUR_PAGE = 16;
+	static final int DPFIXED = 20;
+	static final int SIZE_OF_SLOT = 4;
+	static final int EMPTY_SLOT = -1;
+
+	static final int INDEX_DATA = 4;
+	static final int LEAF_DATA = 8;
+
+	static int slotCount(ByteBuffer page) {
+		return page.getShort(SLOT_CNT);
+	}
+
+	static short type(ByteBuffer page) {
+		return page.getShort(TYPE);
+	}
+
+	static int prevPage(ByteBuffer page) {
+		return page.getInt(PREV_PAGE);
+	}
+
+	static int nextPage(ByteBuffer page) {
+		return page.getInt(NEXT_PAGE);
+	}
+
+	static int recordLength(ByteBuffer page, int slot) {
+		return page.getShort(DPFIXED + slot * SIZE_OF_SLOT);
+	}
+
+	static int recordOffset(ByteBuffer page, int slot) {
+		return page.getShort(DPFIXED + slot * SIZE_OF_SLOT + 2);
+	}
+
+	/**
+	 * @return the free space of a page, slots included
+	 */
+	static int freeSpace(ByteBuffer page) {
+		return page.getShort(FREE_SPACE);
+	}
+
+	/**
+	 * @return the space records from (inclusive) to to (exclusive) of a page
+	 *         take, slots included
+	 */
+	static int recordSpace(ByteBuffer page, int from, int to) {
+		int space = 0;
+		for (int slot = from; slot < to; slot++)
+			space += recordLength(page, slot) + SIZE_OF_SLOT;
+		return space;
+	}
+
+	/**
+	 * Move the records from (inclusive) to to (exclusive) of the sorted page
+	 * src into the sorted page dst, as a run starting at slot at. The caller
+	 * makes sure that the run keeps dst sorted (at is 0 if its records sort
+	 * before those of dst, the slot count of dst if they sort after them) and
+	 * that dst has the space for it (recordSpace against freeSpace). Both
+	 * pages come out compacted.
+	 */
+	static void moveRecords(ByteBuffer src, int from, int to, ByteBuffer dst, int at) {
+		List<byte[]> srcRecords = records(src);
+		List<byte[]> dstRecords = records(dst);
+		List<byte[]> run = srcRecords.subList(from, to);
+		dstRecords.addAll(at, run);
+		run.clear();
+		write(src, srcRecords);
+		write(dst, dstRecords);
+	}
+
+	private static List<byte[]> records(ByteBuffer page) {
+		int count = slotCount(page);
+		List<byte[]> records = new ArrayList<byte[]>(count);
+		ByteBuffer in = page.duplicate();
+		for (int slot = 0; slot < count; slot++) {
+			int length = recordLength(page, slot);
+			if (length == EMPTY_SLOT)
+				continue;
+			byte[] record = new byte[length];
+			in.position(recordOffset(page, slot));
+			in.get(record);
+			records.add(record);
+		}
+		return records;
+	}
+
+	/*
+	 * Lay the records out as HFPage does: slots in order after the header,
+	 * records packed against the end of the page.
+	 */
+	private static void write(ByteBuffer page, List<byte[]> records) {
+		ByteBuffer out = page.duplicate();
+		int usedPtr = page.capacity();
+		int slot = 0;
+		for (byte[] record : records) {
+			usedPtr -= record.length;
+			out.position(usedPtr);
+			out.put(record);
+			page.putShort(DPFIXED + slot * SIZE_OF_SLOT, (short) record.length);
+			page.putShort(DPFIXED + slot * SIZE_OF_SLOT + 2, (short) usedPtr);
+			slot++;
+		}
+		page.putShort(SLOT_CNT, (short) slot);
+		page.putShort(USED_PTR, (short) usedPtr);
+		page.putShort(FREE_SPACE, (short) (usedPtr - DPFIXED - slot * SIZE_OF_SLOT));
+	}
+
+	/**
+	 * @return the child page id of an index page record
+	 */
+	static int child(ByteBuffer page, int slot) {
+		return page.getInt(recordOffset(page, slot) + recordLength(page, slot) - INDEX_DATA);
+	}
+
+	/**
+	 * Point an index page record to another child.
+	 */
+	static void setChild(ByteBuffer page, int slot, int pid) {
+		page.putInt(recordOffset(page, slot) + recordLength(page, slot) - INDEX_DATA, pid);
+	}
+
+	/**
+	 * @return the rid of a leaf page record
+	 */
+	static RID rid(ByteBuffer page, int slot) {
+		int end = recordOffset(page, slot) + recordLength(page, slot);
+		return new RID(new PageId(page.getInt(end - LEAF_DATA)), page.getInt(end - 4));
+	}
+
+	/**
+	 * Compare the key of a record with a search key, decoding nothing for
+	 * integer keys and nothing but non-ASCII strings for string keys.
+	 *
+	 * @return negative, zero or positive as the record key is smaller, equal
+	 *         or greater than key
+	 */
+	static int compare(ByteBuffer page, int slot, int keyType, KeyClass key) throws IOException {
+		int offset = recordOffset(page, slot);
+		if (keyType == AttrType.attrInteger) {
+			int k = ((IntegerKey) key).getKey().intValue();
+			int v = page.getInt(offset);
+			return v < k ? -1 : (v == k ? 0 : 1);
+		}
+
+		String k = ((StringKey) key).getKey();
+		int length = page.getShort(offset) & 0xffff;
+		int n = Math.min(length, k.length());
+		for (int i = 0; i < n; i++) {
+			byte b = page.get(offset + 2 + i);
+			if (b < 0) // not ASCII: decode the whole key
+				return decodeString(page, offset).compareTo(k);
+			int diff = (char) b - k.charAt(i);
+			if (diff != 0)
+				return diff;
+		}
+		for (int i = n; i < length; i++)
+			if (page.get(offset + 2 + i) < 0)
+				return decodeString(page, offset).compareTo(k);
+		return length - k.length();
+	}
+
+	/**
+	 * @return the key of a record
+	 */
+	static KeyClass key(ByteBuffer page, int slot, int keyType) throws IOException {
+		int offset = recordOffset(page, slot);
+		if (keyType == AttrType.attrInteger)
+			return new IntegerKey(page.getInt(offset));
+		return new StringKey(decodeString(page, offset));
+	}
+
+	private static String decodeString(ByteBuffer page, int offset) throws IOException {
+		int length = page.getShort(offset) & 0xffff;
+		byte[] bytes = new byte[2 + length];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = page.get(offset + i);
+		return new DataInputStream(new ByteArrayInputStream(bytes)).readUTF();
+	}
+}
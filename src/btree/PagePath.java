@@ -0,0 +1,107 @@
+package btree;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import global.PageId;
+
+/**
+ * The index pages on the way from the root to a leaf, as an insert or delete
+ * descends. Each page stays pinned after the descent has left it, so that a
+ * split or merge coming back up finds its parent in the buffer pool without
+ * pinning it a second time. As soon as a child is known to absorb the change
+ * (it has room for one more entry, or stays above the occupancy bound after
+ * losing one), its ancestors cannot change any more: release unpins them,
+ * keeping only their page ids. A released page that is needed after all is
+ * pinned again by pop.
+ */
+class PagePath {
+
+	private BTreeFile file;
+	private ArrayList<PageId> ids = new ArrayList<PageId>();
+	private ArrayList<BTIndexPage> pages = new ArrayList<BTIndexPage>();
+	private ArrayList<Boolean> dirty = new ArrayList<Boolean>();
+
+	/**
+	 * The path of a descent through the index pages of file.
+	 */
+	PagePath(BTreeFile file) {
+		this.file = file;
+	}
+
+	/**
+	 * Add the next index page of the descent.
+	 *
+	 * @param page
+	 *            the page, pinned, or null if the descent did not pin it (it
+	 *            went through a cached copy); the path takes over the pin
+	 */
+	void push(PageId id, BTIndexPage page) {
+		ids.add(new PageId(id.pid));
+		pages.add(page);
+		dirty.add(Boolean.FALSE);
+	}
+
+	boolean isEmpty() {
+		return ids.isEmpty();
+	}
+
+	/**
+	 * @return the page id of the deepest page, null if the path is empty
+	 */
+	PageId top() {
+		return ids.isEmpty() ? null : ids.get(ids.size() - 1);
+	}
+
+	/**
+	 * The deepest page, left on the path.
+	 *
+	 * @return the page, pinned again if it was released; the path keeps the
+	 *         pin
+	 */
+	BTIndexPage peek(int keyType) throws PinPageException, ConstructPageException, IOException {
+		int top = pages.size() - 1;
+		BTIndexPage page = pages.get(top);
+		if (page == null) {
+			page = new BTIndexPage(file.pinPage(ids.get(top)), keyType);
+			pages.set(top, page);
+		}
+		return page;
+	}
+
+	/**
+	 * Note that the deepest page was changed, so that release unpins it
+	 * dirty.
+	 */
+	void setDirty() {
+		dirty.set(dirty.size() - 1, Boolean.TRUE);
+	}
+
+	/**
+	 * Remove the deepest page from the path.
+	 *
+	 * @return the page, pinned; the caller now holds the pin, and unpins it
+	 *         dirty if it was changed
+	 */
+	BTIndexPage pop(int keyType) throws PinPageException, ConstructPageException, IOException {
+		PageId id = ids.remove(ids.size() - 1);
+		BTIndexPage page = pages.remove(pages.size() - 1);
+		dirty.remove(dirty.size() - 1);
+		if (page == null)
+			page = new BTIndexPage(file.pinPage(id), keyType);
+		return page;
+	}
+
+	/**
+	 * Unpin every page still pinned by the path, keeping their ids.
+	 */
+	void release() throws UnpinPageException {
+		for (int i = 0; i < pages.size(); i++) {
+			if (pages.get(i) != null) {
+				file.unpinPage(ids.get(i), dirty.get(i).booleanValue());
+				pages.set(i, null);
+				dirty.set(i, Boolean.FALSE);
+			}
+		}
+	}
+}
@@ -0,0 +1,339 @@
+package btree;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import diskmgr.Page;
+import global.Convert;
+import global.GlobalConst;
+import global.PageId;
+import global.RID;
+
+/**
+ * The rids of all duplicates of one key in a POSTING_LIST B+ tree. A key
+ * with up to INLINE rids keeps them inline, one leaf entry per rid as in any
+ * tree; the rid that would exceed INLINE moves them all into a posting list,
+ * and from then on the key has a single leaf entry until its list is empty.
+ * The list is a doubly linked chain of pages whose first page (the head)
+ * never moves, so the leaf entry stores the head's page id with HEAD_SLOT,
+ * a slot no heap record has.
+ *
+ * A rid is handled as the long (pageNo &lt;&lt; 32 | slotNo). Every page keeps
+ * its rids sorted: the first one absolute in the page header, the following
+ * ones as unsigned variable-length deltas. The header also carries the last
+ * rid of the page, so a lookup skips whole pages by comparing against it and
+ * only decodes the page that can hold the rid, where it binary searches.
+ */
+class PostingList implements GlobalConst {
+
+	/** most rids of a key kept inline in the leaves */
+	static final int INLINE = 8;
+	/** slot of the rid of a leaf entry that stands for a posting list */
+	static final int HEAD_SLOT = -1;
+
+	private static final int NEXT_PAGE = 0;
+	private static final int PREV_PAGE = 4;
+	private static final int COUNT = 8;
+	private static final int USED = 12;
+	private static final int FIRST = 16;
+	private static final int LAST = 24;
+	private static final int BODY = 32;
+
+	private static final int CAPACITY = MAX_SPACE - BODY;
+
+	private BTreeFile file;
+
+	/**
+	 * Posting lists of a B+ tree file; their pages are pinned and unpinned
+	 * through the file.
+	 */
+	PostingList(BTreeFile file) {
+		this.file = file;
+	}
+
+	/**
+	 * @return true if rid, the data of a leaf entry, is the head of a
+	 *         posting list
+	 */
+	static boolean isHead(RID rid) {
+		return rid.slotNo == HEAD_SLOT;
+	}
+
+	/**
+	 * Create a new posting list holding the given rids.
+	 *
+	 * @return the leaf entry data standing for the list, whose head page is
+	 *         not pinned
+	 */
+	RID create(List<RID> rids)
+			throws ConstructPageException, IOException, UnpinPageException, PinPageException {
+		Page page = new Page();
+		PageId head = file.newPage(page);
+		byte[] data = page.getpage();
+		Convert.setIntValue(INVALID_PAGE, NEXT_PAGE, data);
+		Convert.setIntValue(INVALID_PAGE, PREV_PAGE, data);
+		write(data, new long[] { toLong(rids.get(0)) }, 1);
+		file.unpinPage(head, true);
+		for (int i = 1; i < rids.size(); i++)
+			add(head, rids.get(i));
+		return new RID(head, HEAD_SLOT);
+	}
+
+	/**
+	 * Append the rids a leaf entry stands for: those of its posting list,
+	 * or its inline rid.
+	 */
+	void collectEntry(RID data, List<RID> rids) throws PinPageException, UnpinPageException, IOException {
+		if (isHead(data))
+			collect(data.pageNo, rids);
+		else
+			rids.add(data);
+	}
+
+	/**
+	 * Add a rid to the posting list starting at head.
+	 */
+	void add(PageId head, RID rid)
+			throws PinPageException, UnpinPageException, ConstructPageException, IOException {
+		long value = toLong(rid);
+		PageId pageno = new PageId(head.pid);
+		Page page = file.pinPage(pageno);
+		byte[] data = page.getpage();
+
+		// the rid goes on the first page whose last rid is not smaller
+		int next = Convert.getIntValue(NEXT_PAGE, data);
+		while (next != INVALID_PAGE && value > getLong(LAST, data)) {
+			file.unpinPage(pageno, false);
+			pageno = new PageId(next);
+			page = file.pinPage(pageno);
+			data = page.getpage();
+			next = Convert.getIntValue(NEXT_PAGE, data);
+		}
+
+		int count = Convert.getIntValue(COUNT, data);
+		long[] values = new long[count + 1];
+		decode(data, values, count);
+		int pos = Arrays.binarySearch(values, 0, count, value);
+		if (pos < 0)
+			pos = -pos - 1;
+		System.arraycopy(values, pos, values, pos + 1, count - pos);
+		values[pos] = value;
+		count++;
+
+		if (encodedLength(values, 0, count) <= CAPACITY) {
+			write(data, values, count);
+			file.unpinPage(pageno, true);
+			return;
+		}
+
+		// overflow: move the upper half onto a new page linked after this one
+		int half = count / 2;
+		Page newPage = new Page();
+		PageId newPageno = file.newPage(newPage);
+		byte[] newData = newPage.getpage();
+		long[] upper = new long[count - half];
+		System.arraycopy(values, half, upper, 0, upper.length);
+		Convert.setIntValue(next, NEXT_PAGE, newData);
+		Convert.setIntValue(pageno.pid, PREV_PAGE, newData);
+		write(newData, upper, upper.length);
+		Convert.setIntValue(newPageno.pid, NEXT_PAGE, data);
+		write(data, values, half);
+
+		if (next != INVALID_PAGE) {
+			PageId nextPageno = new PageId(next);
+			Convert.setIntValue(newPageno.pid, PREV_PAGE, file.pinPage(nextPageno).getpage());
+			file.unpinPage(nextPageno, true);
+		}
+		file.unpinPage(newPageno, true);
+		file.unpinPage(pageno, true);
+	}
+
+	/**
+	 * Remove a rid from the posting list starting at head. If the head page
+	 * becomes empty, the following page is pulled into it so that the head
+	 * stays valid; an empty head therefore means an empty list.
+	 *
+	 * @return true if the rid was found and removed
+	 */
+	boolean remove(PageId head, RID rid)
+			throws PinPageException, UnpinPageException, FreePageException, IOException {
+		long value = toLong(rid);
+		PageId pageno = new PageId(head.pid);
+		Page page = file.pinPage(pageno);
+		byte[] data = page.getpage();
+
+		int next = Convert.getIntValue(NEXT_PAGE, data);
+		while (next != INVALID_PAGE && value > getLong(LAST, data)) {
+			file.unpinPage(pageno, false);
+			pageno = new PageId(next);
+			page = file.pinPage(pageno);
+			data = page.getpage();
+			next = Convert.getIntValue(NEXT_PAGE, data);
+		}
+
+		int count = Convert.getIntValue(COUNT, data);
+		long[] values = new long[count];
+		decode(data, values, count);
+		int pos = Arrays.binarySearch(values, 0, count, value);
+		if (pos < 0) {
+			file.unpinPage(pageno, false);
+			return false;
+		}
+		System.arraycopy(values, pos + 1, values, pos, count - pos - 1);
+		count--;
+		write(data, values, count);
+
+		if (count > 0) {
+			file.unpinPage(pageno, true);
+			return true;
+		}
+
+		int prev = Convert.getIntValue(PREV_PAGE, data);
+		if (pageno.pid == head.pid) {
+			if (next == INVALID_PAGE) {
+				file.unpinPage(pageno, true);
+				return true;
+			}
+			// pull the second page into the head page
+			PageId nextPageno = new PageId(next);
+			byte[] nextData = file.pinPage(nextPageno).getpage();
+			System.arraycopy(nextData, 0, data, 0, MAX_SPACE);
+			Convert.setIntValue(INVALID_PAGE, PREV_PAGE, data);
+			next = Convert.getIntValue(NEXT_PAGE, data);
+			file.unpinPage(nextPageno, false);
+			file.freePage(nextPageno);
+			if (next != INVALID_PAGE) {
+				PageId afterPageno = new PageId(next);
+				Convert.setIntValue(head.pid, PREV_PAGE, file.pinPage(afterPageno).getpage());
+				file.unpinPage(afterPageno, true);
+			}
+			file.unpinPage(pageno, true);
+			return true;
+		}
+
+		// unlink and free an empty page behind the head
+		PageId prevPageno = new PageId(prev);
+		Convert.setIntValue(next, NEXT_PAGE, file.pinPage(prevPageno).getpage());
+		file.unpinPage(prevPageno, true);
+		if (next != INVALID_PAGE) {
+			PageId nextPageno = new PageId(next);
+			Convert.setIntValue(prev, PREV_PAGE, file.pinPage(nextPageno).getpage());
+			file.unpinPage(nextPageno, true);
+		}
+		file.unpinPage(pageno, false);
+		file.freePage(pageno);
+		return true;
+	}
+
+	/**
+	 * @return true if the posting list starting at head holds no rid
+	 */
+	boolean isEmpty(PageId head) throws PinPageException, UnpinPageException, IOException {
+		int count = Convert.getIntValue(COUNT, file.pinPage(head).getpage());
+		file.unpinPage(head, false);
+		return count == 0;
+	}
+
+	/**
+	 * Append all rids of the posting list starting at head, in rid order.
+	 */
+	void collect(PageId head, List<RID> rids) throws PinPageException, UnpinPageException, IOException {
+		PageId pageno = new PageId(head.pid);
+		while (pageno.pid != INVALID_PAGE) {
+			byte[] data = file.pinPage(pageno).getpage();
+			int count = Convert.getIntValue(COUNT, data);
+			long[] values = new long[count];
+			decode(data, values, count);
+			for (int i = 0; i < count; i++)
+				rids.add(toRid(values[i]));
+			int next = Convert.getIntValue(NEXT_PAGE, data);
+			file.unpinPage(pageno, false);
+			pageno = new PageId(next);
+		}
+	}
+
+	/**
+	 * Free all pages of the posting list starting at head.
+	 */
+	void destroy(PageId head) throws PinPageException, UnpinPageException, FreePageException, IOException {
+		PageId pageno = new PageId(head.pid);
+		while (pageno.pid != INVALID_PAGE) {
+			int next = Convert.getIntValue(NEXT_PAGE, file.pinPage(pageno).getpage());
+			file.unpinPage(pageno, false);
+			file.freePage(pageno);
+			pageno = new PageId(next);
+		}
+	}
+
+	private static long toLong(RID rid) {
+		return ((long) rid.pageNo.pid << 32) | (rid.slotNo & 0xffffffffL);
+	}
+
+	private static RID toRid(long value) {
+		return new RID(new PageId((int) (value >>> 32)), (int) value);
+	}
+
+	private static long getLong(int pos, byte[] data) throws IOException {
+		return ((long) Convert.getIntValue(pos, data) << 32) | (Convert.getIntValue(pos + 4, data) & 0xffffffffL);
+	}
+
+	private static void setLong(long value, int pos, byte[] data) throws IOException {
+		Convert.setIntValue((int) (value >>> 32), pos, data);
+		Convert.setIntValue((int) value, pos + 4, data);
+	}
+
+	private static int encodedLength(long[] values, int from, int to) {
+		int length = 0;
+		for (int i = from + 1; i < to; i++) {
+			long delta = values[i] - values[i - 1];
+			do {
+				length++;
+				delta >>>= 7;
+			} while (delta != 0);
+		}
+		return length;
+	}
+
+	private static void decode(byte[] data, long[] values, int count) throws IOException {
+		if (count == 0)
+			return;
+		long value = getLong(FIRST, data);
+		values[0] = value;
+		int pos = BODY;
+		for (int i = 1; i < count; i++) {
+			long delta = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = data[pos++];
+				delta |= (long) (b & 0x7f) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			value += delta;
+			values[i] = value;
+		}
+	}
+
+	/**
+	 * Store the first count values on the page; the caller has checked that
+	 * they fit.
+	 */
+	private static void write(byte[] data, long[] values, int count) throws IOException {
+		Convert.setIntValue(count, COUNT, data);
+		int pos = BODY;
+		if (count > 0) {
+			setLong(values[0], FIRST, data);
+			setLong(values[count - 1], LAST, data);
+			for (int i = 1; i < count; i++) {
+				long delta = values[i] - values[i - 1];
+				while ((delta & ~0x7fL) != 0) {
+					data[pos++] = (byte) ((delta & 0x7f) | 0x80);
+					delta >>>= 7;
+				}
+				data[pos++] = (byte) delta;
+			}
+		}
+		Convert.setIntValue(pos - BODY, USED, data);
+	}
+}
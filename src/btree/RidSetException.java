@@ -0,0 +1,17 @@
+package btree;
+
+import chainexception.ChainException;
+
+public class RidSetException extends ChainException {
+	public RidSetException() {
+		super();
+	}
+
+	public RidSetException(String s) {
+		super(null, s);
+	}
+
+	public RidSetException(Exception e, String s) {
+		super(e, s);
+	}
+}
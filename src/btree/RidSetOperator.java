@@ -0,0 +1,230 @@
+package btree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import global.PageId;
+import global.RID;
+
+/**
+ * The intersection or the union of the rids of several index ranges, which
+ * may come from different B+ tree files: a query like a BETWEEN x AND y AND
+ * b = z takes the rids of both ranges and touches the heap file only for the
+ * rids in both.
+ *
+ * Rids are handled as sorted arrays of longs (pageNo &lt;&lt; 32 | slotNo).
+ * An intersection collects the first range and streams every further range
+ * against it: each rid is looked up by binary search and marks its match in
+ * a bitmap over the candidates, and only the marked candidates are kept.
+ * Memory is bounded by the first range, so the most selective range should
+ * be added first; once no candidate is left the other ranges are not read.
+ * A union collects every range into its own sorted array and merges them
+ * all in a single k-way merge.
+ *
+ * The result is in rid order; new_heap_scan fetches its records page after
+ * page (see RidSortedScan).
+ */
+public class RidSetOperator {
+
+	/** keep the rids found in every range */
+	public static final int INTERSECT = 0;
+	/** keep the rids found in any range */
+	public static final int UNION = 1;
+
+	private int operation;
+	private List<Range> ranges = new ArrayList<Range>();
+
+	private long[] result;
+	private int count;
+
+	private static class Range {
+		BTreeFile file;
+		KeyClass lo;
+		KeyClass hi;
+	}
+
+	/**
+	 * @param operation
+	 *            INTERSECT or UNION. Input parameter.
+	 * @exception RidSetException
+	 *                operation is neither INTERSECT nor UNION
+	 */
+	public RidSetOperator(int operation) throws RidSetException {
+		if (operation != INTERSECT && operation != UNION)
+			throw new RidSetException(null, "unknown operation " + operation);
+		this.operation = operation;
+	}
+
+	/**
+	 * Add a range, with the bounds of BTreeFile.new_scan.
+	 *
+	 * @param file
+	 *            the index. Input parameter.
+	 * @param lo_key
+	 *            the key where the range begins, null for none. Input
+	 *            parameter.
+	 * @param hi_key
+	 *            the key where the range ends, null for none. Input
+	 *            parameter.
+	 */
+	public void addRange(BTreeFile file, KeyClass lo_key, KeyClass hi_key) {
+		Range range = new Range();
+		range.file = file;
+		range.lo = lo_key;
+		range.hi = hi_key;
+		ranges.add(range);
+		result = null;
+	}
+
+	/**
+	 * @return the rids of the result, in rid order
+	 * @exception RidSetException
+	 *                error from the lower layers
+	 */
+	public List<RID> getRids() throws RidSetException {
+		evaluate();
+		List<RID> rids = new ArrayList<RID>(count);
+		for (int i = 0; i < count; i++)
+			rids.add(new RID(new PageId((int) (result[i] >>> 32)), (int) result[i]));
+		return rids;
+	}
+
+	/**
+	 * @return a scan over the heap records of the result, in rid order
+	 * @exception RidSetException
+	 *                error from the lower layers
+	 */
+	public RidSortedScan new_heap_scan() throws RidSetException {
+		evaluate();
+		return new RidSortedScan(result, count);
+	}
+
+	private void evaluate() throws RidSetException {
+		if (result != null)
+			return;
+		try {
+			if (operation == INTERSECT)
+				intersect();
+			else
+				union();
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new RidSetException(e, "");
+		}
+	}
+
+	private void intersect() throws Exception {
+		result = new long[0];
+		count = 0;
+		for (int r = 0; r < ranges.size(); r++) {
+			if (r == 0) {
+				collect(ranges.get(0));
+				continue;
+			}
+			if (count == 0)
+				return;
+			BitSet hits = new BitSet(count);
+			Range range = ranges.get(r);
+			BTFileScan scan = range.file.new_scan(range.lo, range.hi);
+			try {
+				List<RID> postings = new ArrayList<RID>();
+				for (KeyDataEntry entry = scan.get_next(); entry != null; entry = scan.get_next()) {
+					for (RID rid : rids(range.file, entry, postings)) {
+						int at = Arrays.binarySearch(result, 0, count, RidSortedScan.pack(rid));
+						if (at >= 0)
+							hits.set(at);
+					}
+				}
+			} finally {
+				scan.DestroyBTreeFileScan();
+			}
+			int kept = 0;
+			for (int i = hits.nextSetBit(0); i >= 0; i = hits.nextSetBit(i + 1))
+				result[kept++] = result[i];
+			count = kept;
+		}
+	}
+
+	/*
+	 * Each range is collected on its own, since a range comes in key order,
+	 * not rid order; the sorted arrays are then merged in one pass.
+	 */
+	private void union() throws Exception {
+		final long[][] runs = new long[ranges.size()][];
+		final int[] sizes = new int[ranges.size()];
+		int total = 0;
+		for (int r = 0; r < ranges.size(); r++) {
+			collect(ranges.get(r));
+			runs[r] = result;
+			sizes[r] = count;
+			total += count;
+		}
+		final int[] next = new int[runs.length];
+		PriorityQueue<Integer> heads = new PriorityQueue<Integer>(Math.max(1, runs.length), new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				long x = runs[a][next[a]], y = runs[b][next[b]];
+				return x < y ? -1 : x == y ? 0 : 1;
+			}
+		});
+		for (int r = 0; r < runs.length; r++)
+			if (sizes[r] > 0)
+				heads.add(r);
+		long[] merged = new long[total];
+		int n = 0;
+		while (!heads.isEmpty()) {
+			int r = heads.poll();
+			long rid = runs[r][next[r]++];
+			if (n == 0 || merged[n - 1] != rid)
+				merged[n++] = rid;
+			if (next[r] < sizes[r])
+				heads.add(r);
+		}
+		result = merged;
+		count = n;
+	}
+
+	/*
+	 * Read the rids of a range into result, sorted and without duplicates.
+	 */
+	private void collect(Range range) throws Exception {
+		long[] rids = new long[16];
+		int n = 0;
+		BTFileScan scan = range.file.new_scan(range.lo, range.hi);
+		try {
+			List<RID> postings = new ArrayList<RID>();
+			for (KeyDataEntry entry = scan.get_next(); entry != null; entry = scan.get_next()) {
+				for (RID rid : rids(range.file, entry, postings)) {
+					if (n == rids.length)
+						rids = Arrays.copyOf(rids, 2 * n);
+					rids[n++] = RidSortedScan.pack(rid);
+				}
+			}
+		} finally {
+			scan.DestroyBTreeFileScan();
+		}
+		Arrays.sort(rids, 0, n);
+		int distinct = 0;
+		for (int i = 0; i < n; i++)
+			if (distinct == 0 || rids[distinct - 1] != rids[i])
+				rids[distinct++] = rids[i];
+		result = rids;
+		count = distinct;
+	}
+
+	/*
+	 * the rids of a leaf entry: its rid, or its posting list
+	 */
+	private static List<RID> rids(BTreeFile file, KeyDataEntry entry, List<RID> postings) throws Exception {
+		postings.clear();
+		RID rid = ((LeafData) entry.data).getData();
+		if ((file.getFlags() & IndexFlags.POSTING_LIST) != 0)
+			file.collectRids(rid, postings);
+		else
+			postings.add(rid);
+		return postings;
+	}
+}
@@ -0,0 +1,156 @@
+package btree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import diskmgr.Page;
+import global.GlobalConst;
+import global.PageId;
+import global.RID;
+import global.SystemDefs;
+import heap.HFPage;
+import heap.Tuple;
+
+/**
+ * Fetches the heap records of an index range in physical order. The rids of
+ * the range are read from the index in batches; each batch is sorted by
+ * page and slot, and its records are read page after page, each heap page
+ * pinned once for all the records it holds. A range covering much of the
+ * heap file then reads it sequentially instead of jumping to a random page
+ * for every key.
+ *
+ * The records come in rid order within a batch, not in key order. In a
+ * POSTING_LIST file the rids of a posting list are never split across
+ * batches.
+ *
+ * Create with BTreeFile.new_rid_sorted_scan, or RidSetOperator.new_heap_scan
+ * for the records of a set of rids.
+ */
+public class RidSortedScan implements GlobalConst {
+
+	private BTreeFile bfile;
+	private BTFileScan scan; // null if the rids are given
+	private int batchSize;
+	private boolean postings;
+
+	private long[] batch = new long[0];
+	private int count;
+	private int next;
+	private boolean indexDone;
+
+	private PageId pinned; // heap page pinned, null if none
+	private HFPage heapPage;
+
+	RidSortedScan(BTreeFile bfile, BTFileScan scan, int batchSize) {
+		this.bfile = bfile;
+		this.scan = scan;
+		this.batchSize = Math.max(1, batchSize);
+		this.postings = (bfile.getFlags() & IndexFlags.POSTING_LIST) != 0;
+	}
+
+	/**
+	 * A scan over the records of rids packed as in PostingList, (pageNo &lt;&lt;
+	 * 32 | slotNo), sorted; the array is used as it is.
+	 */
+	RidSortedScan(long[] rids, int count) {
+		this.batch = rids;
+		this.count = count;
+		this.indexDone = true;
+	}
+
+	/**
+	 * Retrieve the next record.
+	 *
+	 * @param rid
+	 *            set to the rid of the record. Output parameter.
+	 * @return the record, null if done
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public Tuple get_next(RID rid) throws ScanIteratorException {
+		try {
+			if (next == count && !fill()) {
+				unpinHeapPage();
+				return null;
+			}
+			long value = batch[next++];
+			rid.pageNo = new PageId((int) (value >>> 32));
+			rid.slotNo = (int) value;
+			if (pinned == null || pinned.pid != rid.pageNo.pid) {
+				unpinHeapPage();
+				Page page = new Page();
+				PageId pageno = new PageId(rid.pageNo.pid);
+				SystemDefs.JavabaseBM.pinPage(pageno, page, false);
+				pinned = pageno;
+				heapPage = new HFPage(page);
+			}
+			return heapPage.getRecord(rid);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException(e, "");
+		}
+	}
+
+	/**
+	 * Unpin the pages held by the scan.
+	 *
+	 * @exception ScanIteratorException
+	 *                error from the lower layers
+	 */
+	public void DestroyRidSortedScan() throws ScanIteratorException {
+		try {
+			unpinHeapPage();
+			if (scan != null)
+				scan.DestroyBTreeFileScan();
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException(e, "");
+		}
+	}
+
+	/*
+	 * Read the next batch of rids from the index and sort it; false if the
+	 * range is exhausted.
+	 */
+	private boolean fill() throws Exception {
+		count = 0;
+		next = 0;
+		List<RID> rids = new ArrayList<RID>();
+		while (!indexDone && count < batchSize) {
+			KeyDataEntry entry = scan.get_next();
+			if (entry == null) {
+				indexDone = true;
+				break;
+			}
+			RID rid = ((LeafData) entry.data).getData();
+			if (postings) {
+				rids.clear();
+				bfile.collectRids(rid, rids);
+				for (RID posting : rids)
+					add(posting);
+			} else {
+				add(rid);
+			}
+		}
+		Arrays.sort(batch, 0, count);
+		return count > 0;
+	}
+
+	private void add(RID rid) {
+		if (count == batch.length)
+			batch = Arrays.copyOf(batch, Math.max(16, 2 * count));
+		batch[count++] = pack(rid);
+	}
+
+	static long pack(RID rid) {
+		return (long) rid.pageNo.pid << 32 | rid.slotNo & 0xffffffffL;
+	}
+
+	private void unpinHeapPage() throws Exception {
+		if (pinned != null) {
+			SystemDefs.JavabaseBM.unpinPage(pinned, false);
+			pinned = null;
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package btree;
+
+import java.io.IOException;
+
+import diskmgr.Page;
+import global.GlobalConst;
+import global.PageId;
+import global.RID;
+
+/**
+ * A read-only range scan which keeps its leaves out of the buffer pool. Only
+ * the descent to the first leaf pins pages through the pool; every leaf after
+ * that is read from disk into a single frame owned by the scan and recycled
+ * for the next leaf (a ring buffer of one page). A full scan of a large index
+ * therefore leaves the pool as it found it: the root and internal pages stay
+ * resident for the point lookups running next to it.
+ *
+ * Create with BTreeFile.new_sequential_scan.
+ */
+public class SequentialScan extends IndexFileScan implements GlobalConst {
+
+	private BTreeFile bfile;
+	private Page frame = new Page();
+	private BTLeafPage leafPage;
+	private RID curRid = new RID();
+	private boolean didfirst;
+	private KeyClass endkey;
+	private int keyType;
+	private int maxKeysize;
+	private LongKeys.Ordered ordered; // the entries of a raw scan of a LONG_KEYS file, in key order
+
+	SequentialScan(BTreeFile bfile, BTLeafPage first, RID firstRid, KeyClass endkey, int keyType, int maxKeysize)
+			throws IOException {
+		this.bfile = bfile;
+		this.endkey = endkey;
+		this.keyType = keyType;
+		this.maxKeysize = maxKeysize;
+		if (first != null) {
+			// take over the pinned first leaf: copy it into the scan frame
+			System.arraycopy(first.getpage(), 0, frame.getpage(), 0, MAX_SPACE);
+			leafPage = new BTLeafPage(frame, keyType);
+			curRid.pageNo = new PageId(firstRid.pageNo.pid);
+			curRid.slotNo = firstRid.slotNo;
+		}
+	}
+
+	/**
+	 * A scan returning the entries of ordered.
+	 */
+	SequentialScan(LongKeys.Ordered ordered, int maxKeysize) {
+		this.ordered = ordered;
+		this.maxKeysize = maxKeysize;
+	}
+
+	/**
+	 * Iterate once (during a scan).
+	 *
+	 * @return null if done; otherwise next KeyDataEntry
+	 * @exception ScanIteratorException
+	 *                iterator error
+	 */
+	public KeyDataEntry get_next() throws ScanIteratorException {
+		if (ordered != null)
+			return ordered.next();
+		if (leafPage == null)
+			return null;
+		try {
+			KeyDataEntry entry = didfirst ? leafPage.getNext(curRid) : leafPage.getCurrent(curRid);
+			didfirst = true;
+			while (entry == null) {
+				PageId nextpage = leafPage.getNextPage();
+				if (nextpage.pid == INVALID_PAGE) {
+					leafPage = null;
+					return null;
+				}
+				bfile.readScanPage(nextpage, frame);
+				leafPage = new BTLeafPage(frame, keyType);
+				entry = leafPage.getFirst(curRid);
+			}
+			if (endkey != null && BT.keyCompare(entry.key, endkey) > 0) {
+				leafPage = null;
+				return null;
+			}
+			return entry;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new ScanIteratorException(e, "");
+		}
+	}
+
+	/**
+	 * Not supported: the scan reads private copies of the leaves.
+	 *
+	 * @exception ScanDeleteException
+	 *                always
+	 */
+	public void delete_current() throws ScanDeleteException {
+		throw new ScanDeleteException(null, "sequential scans are read-only");
+	}
+
+	/**
+	 * max size of the key
+	 *
+	 * @return the maxumum size of the key in BTFile
+	 */
+	public int keysize() {
+		return maxKeysize;
+	}
+}
@@ -0,0 +1,239 @@
+package btree;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+
+import global.AttrType;
+import global.GlobalConst;
+import global.PageId;
+import global.RID;
+import global.SystemDefs;
+
+/**
+ * TraceReplay turns a trace file written through BTreeFile.traceFilename into a
+ * workload. Every INSERT and DELETE line of the trace is parsed back into its
+ * key and rid and applied to a BTreeFile, either as fast as possible or paced
+ * at a fixed rate. Since the trace does not carry timestamps, the "original
+ * pacing" is approximated by the operation rate given to the constructor.
+ *
+ * The replay reports throughput together with the split, merge and
+ * redistribution counters of the target file, which makes it possible to
+ * compare page size and fill factor settings on a captured access pattern.
+ */
+public class TraceReplay implements GlobalConst {
+
+	private static final String INSERT = "INSERT ";
+	private static final String DELETE = "DELETE ";
+	private static final String SPLIT = "SPLIT ";
+	private static final String ROOTSPLIT = "ROOTSPLIT ";
+
+	private BTreeFile file;
+	private int keyType;
+	private long nanosPerOp;
+
+	/**
+	 * Result of one replay run.
+	 */
+	public static class Statistics {
+		public int inserts;
+		public int deletes;
+		public int failedDeletes;
+		public int tracedSplits;
+		public int splits;
+		public int merges;
+		public int redistributions;
+		public long elapsedNanos;
+
+		/**
+		 * @return replayed operations per second
+		 */
+		public double throughput() {
+			if (elapsedNanos == 0)
+				return 0;
+			return (inserts + deletes) * 1000000000.0 / elapsedNanos;
+		}
+
+		public String toString() {
+			return "inserts=" + inserts + " deletes=" + deletes + " (not found " + failedDeletes + ")"
+					+ " elapsed=" + (elapsedNanos / 1000000) + "ms" + " throughput=" + (long) throughput()
+					+ " ops/s" + " splits=" + splits + " (traced " + tracedSplits + ")" + " merges=" + merges
+					+ " redistributions=" + redistributions;
+		}
+	}
+
+	/**
+	 * Replay onto the given (normally freshly created) B+ tree file.
+	 *
+	 * @param file
+	 *            the target BTreeFile. Input parameter.
+	 * @param opsPerSecond
+	 *            pace of the replay, 0 to replay as fast as possible. Input
+	 *            parameter.
+	 * @exception IOException
+	 *                error from the lower layer
+	 */
+	public TraceReplay(BTreeFile file, int opsPerSecond) throws IOException {
+		this.file = file;
+		this.keyType = file.getHeaderPage().get_keyType();
+		this.nanosPerOp = opsPerSecond > 0 ? 1000000000L / opsPerSecond : 0;
+	}
+
+	/**
+	 * Replay all INSERT and DELETE operations found in a trace file.
+	 *
+	 * @param traceFile
+	 *            name of the trace file. Input parameter.
+	 * @return the statistics of the run
+	 * @exception IOException
+	 *                error reading the trace file
+	 * @exception TraceReplayException
+	 *                malformed trace line or error from the B+ tree
+	 */
+	public Statistics replay(String traceFile) throws IOException, TraceReplayException {
+		Statistics stats = new Statistics();
+		BufferedReader in = new BufferedReader(new FileReader(traceFile));
+		String line;
+		int lineNo = 0;
+
+		file.resetStatistics();
+		long start = System.nanoTime();
+		long next = start;
+		try {
+			while ((line = in.readLine()) != null) {
+				lineNo++;
+				boolean insert = line.startsWith(INSERT);
+				if (!insert && !line.startsWith(DELETE)) {
+					if (line.startsWith(SPLIT) || line.startsWith(ROOTSPLIT))
+						stats.tracedSplits++;
+					continue;
+				}
+
+				// INSERT|DELETE <pageNo> <slotNo> <key>
+				String[] fields = line.split(" ", 4);
+				if (fields.length != 4)
+					throw new TraceReplayException(null, "malformed trace line " + lineNo + ": " + line);
+
+				KeyClass key;
+				RID rid;
+				try {
+					rid = new RID(new PageId(Integer.parseInt(fields[1])), Integer.parseInt(fields[2]));
+					if (keyType == AttrType.attrInteger)
+						key = new IntegerKey(Integer.parseInt(fields[3]));
+					else // long and double keys are traced in their stored form
+						key = file.decodeKey(new StringKey(fields[3]));
+				} catch (NumberFormatException e) {
+					throw new TraceReplayException(e, "malformed trace line " + lineNo + ": " + line);
+				}
+
+				if (nanosPerOp != 0) {
+					next += nanosPerOp;
+					pace(next);
+				}
+
+				try {
+					if (insert) {
+						file.insert(key, rid);
+						stats.inserts++;
+					} else {
+						if (!file.Delete(key, rid))
+							stats.failedDeletes++;
+						stats.deletes++;
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+					throw new TraceReplayException(e, "replay failed at trace line " + lineNo);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		stats.elapsedNanos = System.nanoTime() - start;
+		stats.splits = file.getSplitCount();
+		stats.merges = file.getMergeCount();
+		stats.redistributions = file.getRedistributeCount();
+		return stats;
+	}
+
+	private static void pace(long deadline) {
+		long wait = deadline - System.nanoTime();
+		if (wait > 0) {
+			try {
+				Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Replay a trace file onto a fresh B+ tree file of the open database,
+	 * which is destroyed afterwards.
+	 *
+	 * @param traceFile
+	 *            name of the trace file. Input parameter.
+	 * @param filename
+	 *            name of the B+ tree file to create; it must not exist. Input
+	 *            parameter.
+	 * @param keyType
+	 *            key type of the B+ tree file. Input parameter.
+	 * @param keySize
+	 *            maximum key size of the B+ tree file. Input parameter.
+	 * @param opsPerSecond
+	 *            pace of the replay, 0 to replay as fast as possible. Input
+	 *            parameter.
+	 * @return the statistics of the run
+	 * @exception IOException
+	 *                error reading the trace file
+	 * @exception TraceReplayException
+	 *                malformed trace line, or error creating, changing or
+	 *                destroying the B+ tree file
+	 */
+	public static Statistics replay(String traceFile, String filename, int keyType, int keySize, int opsPerSecond)
+			throws IOException, TraceReplayException {
+		BTreeFile file;
+		try {
+			file = new BTreeFile(filename, keyType, keySize, DeleteFashion.FULL_DELETE);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new TraceReplayException(e, "cannot create " + filename);
+		}
+		Statistics stats;
+		try {
+			stats = new TraceReplay(file, opsPerSecond).replay(traceFile);
+		} finally {
+			try {
+				file.destroyFile();
+			} catch (Exception e) {
+				e.printStackTrace();
+				throw new TraceReplayException(e, "cannot destroy " + filename);
+			}
+		}
+		return stats;
+	}
+
+	/**
+	 * Command line entry point.
+	 *
+	 * <pre>
+	 * java btree.TraceReplay &lt;trace&gt; int|string &lt;keysize&gt; [opsPerSecond]
+	 * </pre>
+	 *
+	 * The trace is replayed onto a fresh B+ tree in a temporary database, and
+	 * the statistics of the run are printed.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("usage: TraceReplay <trace> int|string <keysize> [opsPerSecond]");
+			return;
+		}
+		int keyType = args[1].equals("int") ? AttrType.attrInteger : AttrType.attrString;
+		int keySize = Integer.parseInt(args[2]);
+		int opsPerSecond = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+
+		String dbpath = "/tmp/REPLAY" + System.getProperty("user.name") + ".minibase-db";
+		new SystemDefs(dbpath, 5000, 5000, "Clock");
+
+		System.out.println(replay(args[0], "REPLAY", keyType, keySize, opsPerSecond));
+	}
+}
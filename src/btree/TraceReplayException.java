@@ -0,0 +1,17 @@
+package btree;
+
+import chainexception.ChainException;
+
+public class TraceReplayException extends ChainException {
+	public TraceReplayException() {
+		super();
+	}
+
+	public TraceReplayException(String s) {
+		super(null, s);
+	}
+
+	public TraceReplayException(Exception e, String s) {
+		super(e, s);
+	}
+}
@@ -0,0 +1,119 @@
+package btree;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import global.GlobalConst;
+import global.PageId;
+import global.RID;
+
+/**
+ * Bottom-up construction of a B+ tree from leaf entries in key order. Each
+ * leaf is filled up to the fill factor and linked to the next one; the first
+ * key of every leaf after the first goes into the index level above as the
+ * separator of the leaf, and index pages that fill up pass a separator up in
+ * the same way, until the last page started on the top level becomes the
+ * root. Only the rightmost page of each level and the current leaf are
+ * pinned while loading.
+ *
+ * No page is split or visited twice, and with extents on (see
+ * BTreeFile.setExtentSize) the leaves follow each other on disk. The
+ * rightmost page of a level may end up less full than the others.
+ *
+ * The caller runs the load inside an operation of the file; it is committed
+ * and a new one begun after each full leaf, so that with a log only the
+ * pages of one leaf wait for a commit at a time. The root is set by finish,
+ * so a load cut short by a crash leaves the tree empty.
+ */
+class TreeLoader implements GlobalConst {
+
+	private static final int SLOT = 4; // slot directory entry
+
+	private BTreeFile file;
+	private int reserve; // free space left in a page
+	private BTLeafPage leaf; // the current leaf, pinned
+	private ArrayList<BTIndexPage> levels = new ArrayList<BTIndexPage>(); // pinned
+	private int leaves;
+
+	/**
+	 * Load into file, whose tree must be empty.
+	 *
+	 * @param fillFactor
+	 *            how full, in percent, leaves and index pages are made
+	 */
+	TreeLoader(BTreeFile file, int fillFactor) {
+		this.file = file;
+		this.reserve = MAX_SPACE * (100 - fillFactor) / 100;
+	}
+
+	/**
+	 * Add the next leaf entry; its key is not smaller than the one before.
+	 */
+	void append(KeyClass key, RID rid) throws ConstructPageException, IOException, UnpinPageException,
+			LeafInsertRecException, IndexInsertRecException, KeyNotMatchException, NodeNotMatchException,
+			PinPageException, IteratorException {
+		int size = BT.getKeyDataLength(key, NodeType.LEAF) + SLOT;
+		if (leaf == null) {
+			leaf = file.newLeafPage(null);
+			leaves++;
+		} else if (leaf.available_space() - size < reserve) {
+			BTLeafPage next = file.newLeafPage(leaf.getCurPage());
+			leaf.setNextPage(next.getCurPage());
+			next.setPrevPage(leaf.getCurPage());
+			PageId full = leaf.getCurPage();
+			file.unpinPage(full, true);
+			leaf = next;
+			leaves++;
+			addSeparator(0, key, full, next.getCurPage());
+			file.commitOperation();
+			file.beginOperation();
+		}
+		leaf.insertRecord(key, rid);
+	}
+
+	/*
+	 * Add the separator of child, the page after left, to the index level.
+	 */
+	private void addSeparator(int level, KeyClass key, PageId left, PageId child)
+			throws ConstructPageException, IOException, UnpinPageException, IndexInsertRecException,
+			KeyNotMatchException, NodeNotMatchException {
+		if (level == levels.size()) {
+			BTIndexPage top = file.newIndexPage(left);
+			top.setPrevPage(left);
+			levels.add(top);
+		}
+		BTIndexPage page = levels.get(level);
+		int size = BT.getKeyDataLength(key, NodeType.INDEX) + SLOT;
+		if (page.numberOfRecords() > 0 && page.available_space() - size < reserve) {
+			// child becomes the leftmost child of a new page; key goes up
+			BTIndexPage next = file.newIndexPage(page.getCurPage());
+			next.setPrevPage(child);
+			PageId full = page.getCurPage();
+			file.unpinPage(full, true);
+			levels.set(level, next);
+			addSeparator(level + 1, key, full, next.getCurPage());
+			return;
+		}
+		page.insertKey(key, child);
+	}
+
+	/**
+	 * Unpin the pages still pinned and make the top page the root.
+	 *
+	 * @return the number of leaves built
+	 */
+	int finish() throws IOException, UnpinPageException, PinPageException {
+		if (leaf == null)
+			return 0;
+		PageId root = leaf.getCurPage();
+		file.unpinPage(root, true);
+		leaf = null;
+		for (BTIndexPage page : levels) {
+			root = page.getCurPage();
+			file.unpinPage(root, true);
+		}
+		levels.clear();
+		file.updateHeader(root);
+		return leaves;
+	}
+}
@@ -0,0 +1,132 @@
+package tests;
+
+import java.util.*;
+
+import global.*;
+import btree.*;
+
+/**
+ * Tests of the Bloom filter of a B+ tree file: it never hides a present key,
+ * follows inserts, survives a reopen and can be dropped.
+ */
+class BloomFilterDriver extends TestDriver implements GlobalConst {
+
+	public BloomFilterDriver() {
+		super("bloomtest");
+	}
+
+	public boolean runTests() {
+		SystemDefs sysdef = new SystemDefs(dbpath, 10000, 1000, "Clock");
+		return super.runTests();
+	}
+
+	protected String testName() {
+		return "Bloom filter";
+	}
+
+	static RID rid(int i) {
+		return new RID(new PageId(1000 + i / 50), i % 50);
+	}
+
+	/*
+	 * even keys of [0, 2n) are present, odd ones absent
+	 */
+	static boolean check(BTreeFile file, int n) throws Exception {
+		boolean status = OK;
+		for (int i = 0; i < 2 * n; i++) {
+			int found = file.lookup(new StringKey("key" + i)).size();
+			if (found != (i % 2 == 0 ? 1 : 0)) {
+				System.err.println("*** key" + i + ": " + found + " rids");
+				status = FAIL;
+			}
+		}
+		return status;
+	}
+
+	/*
+	 * A filter built from the keys in the tree, then kept up by inserts.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: lookups and deletes through the filter");
+		boolean status = OK;
+		int n = 2000;
+		try {
+			BTreeFile file = new BTreeFile("bloom1", AttrType.attrString, 16, DeleteFashion.FULL_DELETE);
+			for (int i = 0; i < n; i += 2)
+				file.insert(new StringKey("key" + i), rid(i));
+			file.createBloomFilter(n);
+			for (int i = n; i < 2 * n; i += 2)
+				file.insert(new StringKey("key" + i), rid(i));
+
+			if (check(file, n) != OK)
+				status = FAIL;
+			for (int i = 1; i < 2 * n; i += 2) {
+				if (file.Delete(new StringKey("key" + i), rid(i))) {
+					System.err.println("*** absent key" + i + " deleted");
+					status = FAIL;
+				}
+			}
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 1 completed successfully.");
+		return status;
+	}
+
+	/*
+	 * The filter is read back when the file is opened again, and dropping it
+	 * changes no result.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: reopen and drop");
+		boolean status = OK;
+		int n = 2000;
+		try {
+			BTreeFile file = new BTreeFile("bloom2", AttrType.attrString, 16, DeleteFashion.FULL_DELETE);
+			file.createBloomFilter(n);
+			for (int i = 0; i < 2 * n; i += 2)
+				file.insert(new StringKey("key" + i), rid(i));
+			file.close();
+
+			file = new BTreeFile("bloom2");
+			if (check(file, n) != OK)
+				status = FAIL;
+			file.insert(new StringKey("key" + 1), rid(1));
+			if (file.lookup(new StringKey("key" + 1)).size() != 1) {
+				System.err.println("*** key inserted after the reopen not found");
+				status = FAIL;
+			}
+			file.Delete(new StringKey("key" + 1), rid(1));
+
+			file.dropBloomFilter();
+			if (check(file, n) != OK)
+				status = FAIL;
+			file.close();
+			file = new BTreeFile("bloom2");
+			if (check(file, n) != OK)
+				status = FAIL;
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 2 completed successfully.");
+		return status;
+	}
+}
+
+public class BloomFilterTest {
+
+	public static void main(String argv[]) {
+		boolean status = new BloomFilterDriver().runTests();
+		if (status != TestDriver.OK) {
+			System.err.println("Error encountered during Bloom filter tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+		Runtime.getRuntime().exit(0);
+	}
+}
@@ -0,0 +1,235 @@
+package tests;
+
+import java.util.*;
+
+import global.*;
+import btree.*;
+
+/**
+ * Tests of CompositeKey files: keys (tenant, n, id) of a string, an integer
+ * and a long column come back from scans in column order, and prefix scans
+ * of one or two columns return exactly the keys starting with them, also
+ * for tenants which hold 0x00 characters and are prefixes of one another
+ * (strings are escaped in the encoding, see KeyEncoding).
+ */
+class CompositeKeyDriver extends TestDriver implements GlobalConst {
+
+	/*
+	 * in code point order; "a" is a prefix of the next four, and each
+	 * 0x00 in them must sort before every other character
+	 */
+	static final String[] TENANTS = { "", "\u0000", "a", "a\u0000", "a\u0000\u0000", "a\u0000b", "a\u0001", "ab",
+			"b" };
+
+	public CompositeKeyDriver() {
+		super("compositetest");
+	}
+
+	public boolean runTests() {
+		SystemDefs sysdef = new SystemDefs(dbpath, 10000, 1000, "Clock");
+		return super.runTests();
+	}
+
+	protected String testName() {
+		return "Composite keys";
+	}
+
+	static RID rid(int i) {
+		return new RID(new PageId(1000 + i / 50), i % 50);
+	}
+
+	/*
+	 * the columns of a key, for comparisons
+	 */
+	static List<Object> columns(KeyClass key) {
+		CompositeKey composite = (CompositeKey) key;
+		List<Object> columns = new ArrayList<Object>();
+		for (int i = 0; i < composite.size(); i++)
+			columns.add(composite.get(i));
+		return columns;
+	}
+
+	/*
+	 * the decoded keys a scan returns
+	 */
+	static List<List<Object>> keys(BTreeFile file, BTFileScan scan) throws Exception {
+		List<List<Object>> found = new ArrayList<List<Object>>();
+		for (KeyDataEntry entry = scan.get_next(); entry != null; entry = scan.get_next())
+			found.add(columns(file.decodeKey(entry.key)));
+		scan.DestroyBTreeFileScan();
+		return found;
+	}
+
+	/*
+	 * The keys of the tests, in column order: for each tenant, negative
+	 * and positive n, each with a few ids.
+	 */
+	static List<List<Object>> expected() {
+		List<List<Object>> keys = new ArrayList<List<Object>>();
+		for (String tenant : TENANTS)
+			for (int n = -20; n < 20; n += 3)
+				for (long id = -1; id <= 1; id++)
+					keys.add(Arrays.<Object> asList(tenant, n, id * 1000000000000L));
+		return keys;
+	}
+
+	/*
+	 * the keys of keys whose leading columns are prefix
+	 */
+	static List<List<Object>> withPrefix(List<List<Object>> keys, List<Object> prefix) {
+		List<List<Object>> found = new ArrayList<List<Object>>();
+		for (List<Object> key : keys)
+			if (key.subList(0, prefix.size()).equals(prefix))
+				found.add(key);
+		return found;
+	}
+
+	/*
+	 * a file holding the keys, inserted in random order
+	 */
+	static BTreeFile fill(String name, List<List<Object>> keys) throws Exception {
+		BTreeFile file = new BTreeFile(name, KeyEncoding.attrComposite, 32, DeleteFashion.FULL_DELETE);
+		List<Integer> order = new ArrayList<Integer>();
+		for (int i = 0; i < keys.size(); i++)
+			order.add(i);
+		Collections.shuffle(order, new Random(keys.size()));
+		for (int i : order)
+			file.insert(new CompositeKey(keys.get(i).toArray()), rid(i));
+		return file;
+	}
+
+	/*
+	 * Full scans return the keys in column order and decode them to their
+	 * columns, before and after reopening the file.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: order and decoding");
+		boolean status = OK;
+		try {
+			List<List<Object>> keys = expected();
+			BTreeFile file = fill("composite1", keys);
+			for (int pass = 0; pass < 2; pass++) {
+				String when = pass == 0 ? "" : " after reopening";
+				List<List<Object>> found = keys(file, file.new_scan(null, null));
+				if (!found.equals(keys)) {
+					System.err.println("*** full scan out of order" + when);
+					status = FAIL;
+				}
+				for (List<Object> key : keys) {
+					if (file.lookup(new CompositeKey(key.toArray())).size() != 1) {
+						System.err.println("*** lookup of " + key + " wrong" + when);
+						status = FAIL;
+						break;
+					}
+				}
+				file.close();
+				file = new BTreeFile("composite1");
+			}
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 1 completed successfully.");
+		return status;
+	}
+
+	/*
+	 * Prefix scans of each tenant and of each (tenant, n): a tenant does not
+	 * pick up the keys of the longer tenants it is a prefix of.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: prefix scans");
+		boolean status = OK;
+		try {
+			List<List<Object>> keys = expected();
+			BTreeFile file = fill("composite2", keys);
+			for (String tenant : TENANTS) {
+				List<Object> prefix = Arrays.<Object> asList(tenant);
+				if (!keys(file, file.new_prefix_scan(new CompositeKey(tenant))).equals(withPrefix(keys, prefix))) {
+					System.err.println("*** prefix scan of tenant " + prefix + " wrong");
+					status = FAIL;
+				}
+				for (int n = -21; n < 21; n++) {
+					prefix = Arrays.<Object> asList(tenant, n);
+					if (!keys(file, file.new_prefix_scan(new CompositeKey(tenant, n)))
+							.equals(withPrefix(keys, prefix))) {
+						System.err.println("*** prefix scan of " + prefix + " wrong");
+						status = FAIL;
+					}
+				}
+			}
+			BTreeFile integers = new BTreeFile("composite3", AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE);
+			try {
+				integers.new_prefix_scan(new CompositeKey(1));
+				System.err.println("*** prefix scan of a file of integer keys");
+				status = FAIL;
+			} catch (KeyNotMatchException e) {
+				// expected
+			}
+			integers.destroyFile();
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 2 completed successfully.");
+		return status;
+	}
+
+	/*
+	 * Deletes of the keys of tenants with 0x00 characters leave the keys of
+	 * the tenants they are prefixes of, or that are prefixes of them.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: deletes");
+		boolean status = OK;
+		try {
+			List<List<Object>> keys = expected();
+			BTreeFile file = fill("composite4", keys);
+			List<List<Object>> kept = new ArrayList<List<Object>>();
+			for (int i = 0; i < keys.size(); i++) {
+				List<Object> key = keys.get(i);
+				String tenant = (String) key.get(0);
+				if (tenant.indexOf('\u0000') >= 0)
+					file.Delete(new CompositeKey(key.toArray()), rid(i));
+				else
+					kept.add(key);
+			}
+			if (!keys(file, file.new_scan(null, null)).equals(kept)) {
+				System.err.println("*** full scan wrong after the deletes");
+				status = FAIL;
+			}
+			if (!keys(file, file.new_prefix_scan(new CompositeKey("a"))).equals(
+					withPrefix(kept, Arrays.<Object> asList("a")))) {
+				System.err.println("*** prefix scan of tenant a wrong after the deletes");
+				status = FAIL;
+			}
+			if (!keys(file, file.new_prefix_scan(new CompositeKey("a\u0000"))).isEmpty()) {
+				System.err.println("*** deleted keys found by a prefix scan");
+				status = FAIL;
+			}
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 3 completed successfully.");
+		return status;
+	}
+}
+
+public class CompositeKeyTest {
+
+	public static void main(String argv[]) {
+		boolean status = new CompositeKeyDriver().runTests();
+		if (status != TestDriver.OK) {
+			System.err.println("Error encountered during composite key tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+		Runtime.getRuntime().exit(0);
+	}
+}
@@ -0,0 +1,237 @@
+package tests;
+
+import java.util.*;
+
+import diskmgr.*;
+import global.*;
+import heap.*;
+import btree.*;
+
+/**
+ * Tests of deferred splits (BTreeFile.setDeferredSplits): an insert into a
+ * full leaf whose sibling has room shifts entries to the sibling instead of
+ * splitting, and the separator in the parent moves with them.
+ *
+ * Pages are read through the buffer manager: the root is the next page of
+ * the header page, its records are an integer key and the child to its
+ * right, and the leftmost child is its previous page.
+ */
+class DeferredSplitDriver extends TestDriver implements GlobalConst {
+
+	public DeferredSplitDriver() {
+		super("deferredtest");
+	}
+
+	public boolean runTests() {
+		SystemDefs sysdef = new SystemDefs(dbpath, 10000, 1000, "Clock");
+		return super.runTests();
+	}
+
+	protected String testName() {
+		return "Deferred splits";
+	}
+
+	static RID rid(int i) {
+		return new RID(new PageId(1000 + i / 50), i % 50);
+	}
+
+	/*
+	 * the integer keys of a leaf, in slot order
+	 */
+	static List<Integer> leafKeys(PageId pageno) throws Exception {
+		List<Integer> keys = new ArrayList<Integer>();
+		Page page = new Page();
+		SystemDefs.JavabaseBM.pinPage(pageno, page, false);
+		HFPage hfpage = new HFPage(page);
+		for (RID rid = hfpage.firstRecord(); rid != null; rid = hfpage.nextRecord(rid)) {
+			Tuple record = hfpage.returnRecord(rid);
+			keys.add(Convert.getIntValue(record.getOffset(), record.returnTupleByteArray()));
+		}
+		SystemDefs.JavabaseBM.unpinPage(pageno, false);
+		return keys;
+	}
+
+	/*
+	 * what is wrong with the separators of a root above leaves, null if
+	 * nothing: each must be the first key of the leaf to its right and
+	 * greater than the last key of the leaf to its left
+	 */
+	static String checkSeparators(String name) throws Exception {
+		PageId headerId = SystemDefs.JavabaseDB.get_file_entry(name);
+		Page page = new Page();
+		SystemDefs.JavabaseBM.pinPage(headerId, page, false);
+		PageId rootId = new HFPage(page).getNextPage();
+		SystemDefs.JavabaseBM.unpinPage(headerId, false);
+
+		page = new Page();
+		SystemDefs.JavabaseBM.pinPage(rootId, page, false);
+		HFPage root = new HFPage(page);
+		if (root.getType() != NodeType.INDEX) {
+			SystemDefs.JavabaseBM.unpinPage(rootId, false);
+			return "the root is not an index page";
+		}
+		List<Integer> separators = new ArrayList<Integer>();
+		List<PageId> children = new ArrayList<PageId>();
+		children.add(root.getPrevPage());
+		for (RID rid = root.firstRecord(); rid != null; rid = root.nextRecord(rid)) {
+			Tuple record = root.returnRecord(rid);
+			byte[] data = record.returnTupleByteArray();
+			separators.add(Convert.getIntValue(record.getOffset(), data));
+			children.add(new PageId(Convert.getIntValue(record.getOffset() + 4, data)));
+		}
+		SystemDefs.JavabaseBM.unpinPage(rootId, false);
+
+		for (int i = 0; i < separators.size(); i++) {
+			List<Integer> left = leafKeys(children.get(i));
+			List<Integer> right = leafKeys(children.get(i + 1));
+			int separator = separators.get(i);
+			if (right.isEmpty() || right.get(0) != separator)
+				return "separator " + separator + " is not the first key of its leaf " + right;
+			if (!left.isEmpty() && left.get(left.size() - 1) >= separator)
+				return "separator " + separator + " not above the last key " + left.get(left.size() - 1)
+						+ " of the leaf to its left";
+		}
+		return null;
+	}
+
+	static List<Integer> scan(BTreeFile file) throws Exception {
+		List<Integer> found = new ArrayList<Integer>();
+		BTFileScan scan = file.new_scan(null, null);
+		for (KeyDataEntry entry = scan.get_next(); entry != null; entry = scan.get_next())
+			found.add(((IntegerKey) entry.key).getKey());
+		scan.DestroyBTreeFileScan();
+		return found;
+	}
+
+	/*
+	 * Check that an insert shifted entries rather than split, and the
+	 * separators and a full scan after it.
+	 */
+	static boolean checkShift(BTreeFile file, String name, int splits, TreeSet<Integer> keys, String when)
+			throws Exception {
+		boolean status = OK;
+		if (file.getSplitCount() != splits) {
+			System.err.println("*** leaf split " + when);
+			status = FAIL;
+		}
+		String problem = checkSeparators(name);
+		if (problem != null) {
+			System.err.println("*** " + when + ": " + problem);
+			status = FAIL;
+		}
+		if (!scan(file).equals(new ArrayList<Integer>(keys))) {
+			System.err.println("*** full scan out of order " + when);
+			status = FAIL;
+		}
+		return status;
+	}
+
+	/*
+	 * Two leaves under the root: ascending inserts fill the right one,
+	 * which then shifts entries to the left one; inserts into the left one
+	 * then shift entries back to the right.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: shifts to the left and to the right sibling");
+		boolean status = OK;
+		try {
+			BTreeFile file = new BTreeFile("deferred1", AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE);
+			file.setDeferredSplits(true);
+			TreeSet<Integer> keys = new TreeSet<Integer>();
+			int next = 0;
+			while (file.getSplitCount() == 0) {
+				file.insert(new IntegerKey(next), rid(next));
+				keys.add(next);
+				next += 4;
+			}
+			int splits = file.getSplitCount();
+
+			// the right leaf fills up; the left one is half empty
+			while (file.getRedistributeCount() == 0 && file.getSplitCount() == splits) {
+				file.insert(new IntegerKey(next), rid(next));
+				keys.add(next);
+				next += 4;
+			}
+			if (checkShift(file, "deferred1", splits, keys, "inserting into the right leaf") != OK)
+				status = FAIL;
+
+			// now the left leaf fills up, from the front
+			int shifts = file.getRedistributeCount();
+			for (int k = 1; file.getRedistributeCount() == shifts && file.getSplitCount() == splits
+					&& k < next; k += 4) {
+				file.insert(new IntegerKey(k), rid(k));
+				keys.add(k);
+			}
+			if (file.getRedistributeCount() == shifts) {
+				System.err.println("*** no shift to the right leaf");
+				status = FAIL;
+			}
+			if (checkShift(file, "deferred1", splits, keys, "inserting into the left leaf") != OK)
+				status = FAIL;
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 1 completed successfully.");
+		return status;
+	}
+
+	/*
+	 * Random inserts into many leaves: every split or shift keeps the
+	 * separators right and the scan in order, and shifts keep the leaves
+	 * fuller than splits alone would.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: random inserts");
+		boolean status = OK;
+		int n = 2500;
+		try {
+			BTreeFile deferred = new BTreeFile("deferred2", AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE);
+			BTreeFile plain = new BTreeFile("deferred3", AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE);
+			deferred.setDeferredSplits(true);
+			TreeSet<Integer> keys = new TreeSet<Integer>();
+			Random random = new Random(n);
+			for (int i = 0; i < n; i++) {
+				int key = random.nextInt(100000);
+				if (!keys.add(key))
+					continue;
+				deferred.insert(new IntegerKey(key), rid(i));
+				plain.insert(new IntegerKey(key), rid(i));
+			}
+			String problem = checkSeparators("deferred2");
+			if (problem != null || !scan(deferred).equals(new ArrayList<Integer>(keys))) {
+				System.err.println("*** tree with deferred splits: " + (problem == null ? "scan out of order" : problem));
+				status = FAIL;
+			}
+			int leaves = new BTreeVerifier(deferred, 1).verify().leaves;
+			int plainLeaves = new BTreeVerifier(plain, 1).verify().leaves;
+			if (deferred.getRedistributeCount() == 0 || leaves >= plainLeaves) {
+				System.err.println("*** " + deferred.getRedistributeCount() + " shifts, " + leaves
+						+ " leaves against " + plainLeaves + " without deferred splits");
+				status = FAIL;
+			}
+			deferred.destroyFile();
+			plain.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 2 completed successfully.");
+		return status;
+	}
+}
+
+public class DeferredSplitTest {
+
+	public static void main(String argv[]) {
+		boolean status = new DeferredSplitDriver().runTests();
+		if (status != TestDriver.OK) {
+			System.err.println("Error encountered during deferred split tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+		Runtime.getRuntime().exit(0);
+	}
+}
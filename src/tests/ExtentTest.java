@@ -0,0 +1,274 @@
+package tests;
+
+import java.util.*;
+
+import diskmgr.*;
+import global.*;
+import heap.*;
+import btree.*;
+
+/**
+ * Tests of extent allocation (BTreeFile.setExtentSize): the pages of a tree
+ * come from runs of contiguous pages, the leaf chain follows the physical
+ * order of the file even while other files take pages in between, and the
+ * reserved pages not used are given back when the file is closed.
+ *
+ * Pages are read through the buffer manager: the root is the next page of
+ * the header page, an index page points to its leftmost child as its
+ * previous page and to the others after each key, and leaves are chained
+ * by their next pages.
+ */
+class ExtentDriver extends TestDriver implements GlobalConst {
+
+	static final int EXTENT = 64;
+
+	public ExtentDriver() {
+		super("extenttest");
+	}
+
+	public boolean runTests() {
+		SystemDefs sysdef = new SystemDefs(dbpath, 10000, 1000, "Clock");
+		return super.runTests();
+	}
+
+	protected String testName() {
+		return "Extents";
+	}
+
+	static RID rid(int i) {
+		return new RID(new PageId(1000 + i / 50), i % 50);
+	}
+
+	/*
+	 * the root page of a file
+	 */
+	static PageId root(String name) throws Exception {
+		PageId headerId = SystemDefs.JavabaseDB.get_file_entry(name);
+		Page page = new Page();
+		SystemDefs.JavabaseBM.pinPage(headerId, page, false);
+		PageId rootId = new HFPage(page).getNextPage();
+		SystemDefs.JavabaseBM.unpinPage(headerId, false);
+		return rootId;
+	}
+
+	/*
+	 * the pages of the tree of a file, header page excluded
+	 */
+	static Set<Integer> treePages(String name) throws Exception {
+		Set<Integer> pages = new HashSet<Integer>();
+		List<PageId> todo = new ArrayList<PageId>();
+		todo.add(root(name));
+		while (!todo.isEmpty()) {
+			PageId pageno = todo.remove(todo.size() - 1);
+			pages.add(pageno.pid);
+			Page page = new Page();
+			SystemDefs.JavabaseBM.pinPage(pageno, page, false);
+			HFPage hfpage = new HFPage(page);
+			if (hfpage.getType() == NodeType.INDEX) {
+				todo.add(hfpage.getPrevPage());
+				for (RID rid = hfpage.firstRecord(); rid != null; rid = hfpage.nextRecord(rid)) {
+					Tuple record = hfpage.returnRecord(rid);
+					todo.add(new PageId(Convert.getIntValue(record.getOffset() + 4, record.returnTupleByteArray())));
+				}
+			}
+			SystemDefs.JavabaseBM.unpinPage(pageno, false);
+		}
+		return pages;
+	}
+
+	/*
+	 * the page ids of the leaves of a file, in chain order
+	 */
+	static List<Integer> leafChain(String name) throws Exception {
+		PageId pageno = root(name);
+		while (true) {
+			Page page = new Page();
+			SystemDefs.JavabaseBM.pinPage(pageno, page, false);
+			HFPage hfpage = new HFPage(page);
+			PageId child = hfpage.getType() == NodeType.INDEX ? hfpage.getPrevPage() : null;
+			SystemDefs.JavabaseBM.unpinPage(pageno, false);
+			if (child == null)
+				break;
+			pageno = child;
+		}
+		List<Integer> chain = new ArrayList<Integer>();
+		while (pageno.pid != INVALID_PAGE) {
+			chain.add(pageno.pid);
+			Page page = new Page();
+			SystemDefs.JavabaseBM.pinPage(pageno, page, false);
+			PageId next = new HFPage(page).getNextPage();
+			SystemDefs.JavabaseBM.unpinPage(pageno, false);
+			pageno = next;
+		}
+		return chain;
+	}
+
+	/*
+	 * how many of n pages newly allocated in the database lie in [lo, hi)
+	 * without being in pages; the new pages are freed again
+	 */
+	static int freeBetween(int lo, int hi, Set<Integer> pages, int n) throws Exception {
+		PageId[] fresh = new PageId[n];
+		int found = 0;
+		for (int i = 0; i < n; i++) {
+			fresh[i] = new PageId();
+			SystemDefs.JavabaseDB.allocate_page(fresh[i]);
+			if (fresh[i].pid >= lo && fresh[i].pid < hi && !pages.contains(fresh[i].pid))
+				found++;
+		}
+		for (int i = 0; i < n; i++)
+			SystemDefs.JavabaseDB.deallocate_page(fresh[i]);
+		return found;
+	}
+
+	/*
+	 * A small tree in the first extent of a fresh database: the pages of the
+	 * extent it does not use stay allocated while the file is open and are
+	 * free once it is closed. The file reopens with all its entries.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: reserved pages given back on close");
+		boolean status = OK;
+		try {
+			BTreeFile file = new BTreeFile("extent1", AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE);
+			file.setExtentSize(EXTENT);
+			for (int i = 0; i < 600; i++)
+				file.insert(new IntegerKey(i), rid(i));
+			Set<Integer> pages = treePages("extent1");
+			int first = Collections.min(pages);
+			if (Collections.max(pages) >= first + EXTENT) {
+				System.err.println("*** tree pages " + pages + " not within one extent");
+				status = FAIL;
+			}
+			int unused = EXTENT - pages.size();
+			int free = freeBetween(first, first + EXTENT, pages, 3 * EXTENT);
+			if (free != 0) {
+				System.err.println("*** " + free + " reserved pages handed out to others");
+				status = FAIL;
+			}
+			file.close();
+			free = freeBetween(first, first + EXTENT, pages, 3 * EXTENT);
+			if (free != unused) {
+				System.err.println("*** " + free + " of " + unused + " unused reserved pages free after close");
+				status = FAIL;
+			}
+
+			file = new BTreeFile("extent1");
+			BTreeVerifier.Report report = new BTreeVerifier(file, 1).verify();
+			if (!report.isConsistent() || report.entries != 600) {
+				System.err.println("*** after reopening, " + report);
+				status = FAIL;
+			}
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 1 completed successfully.");
+		return status;
+	}
+
+	/*
+	 * Ascending inserts into a file with extents, alternating with inserts
+	 * into a file without them: each leaf of the first file is followed in
+	 * the chain by a page after it, and nearly always by one within an
+	 * extent of it.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: leaf chain in physical order");
+		boolean status = OK;
+		try {
+			BTreeFile file = new BTreeFile("extent2", AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE);
+			BTreeFile other = new BTreeFile("extent3", AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE);
+			file.setExtentSize(EXTENT);
+			for (int i = 0; i < 20000; i++) {
+				file.insert(new IntegerKey(i), rid(i));
+				other.insert(new IntegerKey(i), rid(i));
+			}
+			List<Integer> chain = leafChain("extent2");
+			int near = 0;
+			for (int i = 1; i < chain.size(); i++) {
+				int step = chain.get(i) - chain.get(i - 1);
+				if (step <= 0) {
+					System.err.println("*** leaf " + chain.get(i) + " follows leaf " + chain.get(i - 1));
+					status = FAIL;
+					break;
+				}
+				if (step <= EXTENT)
+					near++;
+			}
+			if (near < (chain.size() - 1) * 9 / 10) {
+				System.err.println("*** " + near + " of " + (chain.size() - 1) + " leaves within an extent of the previous one");
+				status = FAIL;
+			}
+			other.destroyFile();
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 2 completed successfully.");
+		return status;
+	}
+
+	/*
+	 * Random inserts and deletes with extents keep the tree sound, and
+	 * destroying the file leaves no page pinned.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: random inserts and deletes");
+		boolean status = OK;
+		try {
+			int unpinned = SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+			BTreeFile file = new BTreeFile("extent4", AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE);
+			file.setExtentSize(16);
+			List<Integer> keys = new ArrayList<Integer>();
+			for (int i = 0; i < 8000; i++)
+				keys.add(i);
+			Collections.shuffle(keys, new Random(3));
+			for (int key : keys)
+				file.insert(new IntegerKey(key), rid(key));
+			for (int key : keys)
+				if (key % 3 != 0)
+					file.Delete(new IntegerKey(key), rid(key));
+			BTreeVerifier.Report report = new BTreeVerifier(file, 1).verify();
+			if (!report.isConsistent() || report.entries != 8000 / 3 + 1) {
+				System.err.println("*** after the deletes, " + report);
+				status = FAIL;
+			}
+			for (int i = 0; i < 8000; i++) {
+				if (file.lookup(new IntegerKey(i)).size() != (i % 3 == 0 ? 1 : 0)) {
+					System.err.println("*** key " + i + " wrong");
+					status = FAIL;
+					break;
+				}
+			}
+			file.destroyFile();
+			if (SystemDefs.JavabaseBM.getNumUnpinnedBuffers() != unpinned) {
+				System.err.println("*** " + (unpinned - SystemDefs.JavabaseBM.getNumUnpinnedBuffers())
+						+ " pages left pinned after destroy");
+				status = FAIL;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 3 completed successfully.");
+		return status;
+	}
+}
+
+public class ExtentTest {
+
+	public static void main(String argv[]) {
+		boolean status = new ExtentDriver().runTests();
+		if (status != TestDriver.OK) {
+			System.err.println("Error encountered during extent tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+		Runtime.getRuntime().exit(0);
+	}
+}
@@ -0,0 +1,195 @@
+package tests;
+
+import java.util.*;
+
+import global.*;
+import heap.*;
+import btree.*;
+
+/**
+ * Tests of IndexBuilder: indexes built from a heap file find every record,
+ * and bad keys or targets fail the build.
+ *
+ * The records of the heap file are two integers, a key unique to the record
+ * and a group shared by many records, except for a few rare groups.
+ */
+class IndexBuilderDriver extends TestDriver implements GlobalConst {
+
+	static final int RECORDS = 5000;
+	static final int GROUPS = 37;
+
+	Heapfile heap;
+	RID[] rids = new RID[RECORDS];
+	int[] keys = new int[RECORDS];
+	int[] groups = new int[RECORDS];
+
+	public IndexBuilderDriver() {
+		super("buildertest");
+	}
+
+	public boolean runTests() {
+		SystemDefs sysdef = new SystemDefs(dbpath, 10000, 1000, "Clock");
+		return super.runTests();
+	}
+
+	protected String testName() {
+		return "Index builder";
+	}
+
+	/*
+	 * the key of a record, at offset 0
+	 */
+	static final KeyExtractor KEY = new KeyExtractor() {
+		public KeyClass getKey(Tuple tuple, RID rid) throws Exception {
+			return new IntegerKey(Convert.getIntValue(0, tuple.getTupleByteArray()));
+		}
+	};
+
+	/*
+	 * the group of a record, at offset 4
+	 */
+	static final KeyExtractor GROUP = new KeyExtractor() {
+		public KeyClass getKey(Tuple tuple, RID rid) throws Exception {
+			return new IntegerKey(Convert.getIntValue(4, tuple.getTupleByteArray()));
+		}
+	};
+
+	void createHeap() throws Exception {
+		heap = new Heapfile("builder.heap");
+		List<Integer> order = new ArrayList<Integer>();
+		for (int i = 0; i < RECORDS; i++)
+			order.add(i);
+		Collections.shuffle(order, new Random(RECORDS));
+		for (int i = 0; i < RECORDS; i++) {
+			keys[i] = order.get(i);
+			groups[i] = i < 20 ? 1000 + i / 4 : i % GROUPS;
+			byte[] record = new byte[8];
+			Convert.setIntValue(keys[i], 0, record);
+			Convert.setIntValue(groups[i], 4, record);
+			rids[i] = heap.insertRecord(record);
+		}
+	}
+
+	static boolean same(RID a, RID b) {
+		return a.pageNo.pid == b.pageNo.pid && a.slotNo == b.slotNo;
+	}
+
+	/*
+	 * A unique index and a posting list index built in one scan, with a
+	 * budget that spills many runs.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: build two indexes");
+		boolean status = OK;
+		try {
+			createHeap();
+			BTreeFile byKey = new BTreeFile("builder.key", AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE,
+					IndexFlags.UNIQUE);
+			BTreeFile byGroup = new BTreeFile("builder.group", AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE,
+					IndexFlags.POSTING_LIST);
+			IndexBuilder builder = new IndexBuilder(heap, 16 * 1024, 2);
+			builder.addIndex(byKey, KEY);
+			builder.addIndex(byGroup, GROUP);
+			builder.setFillFactor(70);
+			builder.build();
+
+			for (int i = 0; i < RECORDS; i++) {
+				List<RID> found = byKey.lookup(new IntegerKey(keys[i]));
+				if (found.size() != 1 || !same(found.get(0), rids[i])) {
+					System.err.println("*** key " + keys[i] + " not found");
+					status = FAIL;
+				}
+			}
+			Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+			for (int i = 0; i < RECORDS; i++)
+				counts.put(groups[i], counts.containsKey(groups[i]) ? counts.get(groups[i]) + 1 : 1);
+			for (Map.Entry<Integer, Integer> entry : counts.entrySet()) {
+				int found = byGroup.lookup(new IntegerKey(entry.getKey())).size();
+				if (found != entry.getValue()) {
+					System.err.println("*** group " + entry.getKey() + ": " + found + " rids, expected "
+							+ entry.getValue());
+					status = FAIL;
+				}
+			}
+			BTreeVerifier.Report report = new BTreeVerifier(byKey, 2).verify();
+			if (!report.isConsistent() || report.entries != RECORDS) {
+				System.err.println("*** built tree: " + report);
+				status = FAIL;
+			}
+			// the built tree takes inserts as any other
+			byKey.insert(new IntegerKey(RECORDS), rids[0]);
+			if (byKey.lookup(new IntegerKey(RECORDS)).size() != 1) {
+				System.err.println("*** insert into the built tree lost");
+				status = FAIL;
+			}
+			byKey.destroyFile();
+			byGroup.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 1 completed successfully.");
+		return status;
+	}
+
+	/*
+	 * A target that is not empty, a duplicate key of a UNIQUE file, a key of
+	 * the wrong type and a key too long each fail the build.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: failed builds");
+		boolean status = OK;
+		try {
+			if (heap == null)
+				createHeap();
+			BTreeFile full = new BTreeFile("builder.full", AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE);
+			full.insert(new IntegerKey(1), rids[0]);
+			BTreeFile unique = new BTreeFile("builder.unique", AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE,
+					IndexFlags.UNIQUE);
+			BTreeFile strings = new BTreeFile("builder.string", AttrType.attrString, 20, DeleteFashion.FULL_DELETE);
+
+			KeyExtractor tooLong = new KeyExtractor() {
+				public KeyClass getKey(Tuple tuple, RID rid) throws Exception {
+					return new StringKey("a key much longer than twenty bytes " + rid.slotNo);
+				}
+			};
+			BTreeFile[] files = { full, unique, strings, strings };
+			// GROUP gives integer keys to the string file
+			KeyExtractor[] extractors = { KEY, GROUP, GROUP, tooLong };
+			for (int i = 0; i < files.length; i++) {
+				IndexBuilder builder = new IndexBuilder(heap, 64 * 1024, 2);
+				builder.addIndex(files[i], extractors[i]);
+				try {
+					builder.build();
+					System.err.println("*** build " + i + " succeeded");
+					status = FAIL;
+				} catch (IndexBuildException e) {
+					// expected
+				}
+			}
+			full.destroyFile();
+			unique.destroyFile();
+			strings.destroyFile();
+			heap.deleteFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 2 completed successfully.");
+		return status;
+	}
+}
+
+public class IndexBuilderTest {
+
+	public static void main(String argv[]) {
+		boolean status = new IndexBuilderDriver().runTests();
+		if (status != TestDriver.OK) {
+			System.err.println("Error encountered during index builder tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+		Runtime.getRuntime().exit(0);
+	}
+}
@@ -0,0 +1,220 @@
+package tests;
+
+import java.util.*;
+
+import global.*;
+import btree.*;
+
+/**
+ * Tests of the in-page search of integer keys (AdaptiveSearch), which
+ * interpolates between the keys at both ends of a range: lookups and range
+ * scans find the same entries as a sorted map for negative keys, keys at
+ * both ends of the int range and skewed keys, through the pages and through
+ * the node cache.
+ */
+class InterpolationSearchDriver extends TestDriver implements GlobalConst {
+
+	public InterpolationSearchDriver() {
+		super("interpolationtest");
+	}
+
+	public boolean runTests() {
+		SystemDefs sysdef = new SystemDefs(dbpath, 10000, 1000, "Clock");
+		return super.runTests();
+	}
+
+	protected String testName() {
+		return "Interpolation search";
+	}
+
+	static RID rid(int i) {
+		return new RID(new PageId(1000 + i / 50), i % 50);
+	}
+
+	/*
+	 * the keys a scan from lo to hi returns
+	 */
+	static List<Integer> scan(BTreeFile file, int lo, int hi) throws Exception {
+		List<Integer> found = new ArrayList<Integer>();
+		BTFileScan scan = file.new_scan(new IntegerKey(lo), new IntegerKey(hi));
+		for (KeyDataEntry entry = scan.get_next(); entry != null; entry = scan.get_next())
+			found.add(((IntegerKey) entry.key).getKey());
+		scan.DestroyBTreeFileScan();
+		return found;
+	}
+
+	/*
+	 * the keys of [lo, hi] in keys, each once for each of its entries
+	 */
+	static List<Integer> range(TreeMap<Integer, Integer> keys, int lo, int hi) {
+		List<Integer> expected = new ArrayList<Integer>();
+		for (Map.Entry<Integer, Integer> entry : keys.subMap(lo, true, hi, true).entrySet())
+			for (int i = 0; i < entry.getValue(); i++)
+				expected.add(entry.getKey());
+		return expected;
+	}
+
+	/*
+	 * Insert the entries of each key, as many as keys maps it to, in random
+	 * order.
+	 */
+	static BTreeFile fill(String name, TreeMap<Integer, Integer> keys, long seed) throws Exception {
+		BTreeFile file = new BTreeFile(name, AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE);
+		List<Integer> order = new ArrayList<Integer>();
+		for (Map.Entry<Integer, Integer> entry : keys.entrySet())
+			for (int i = 0; i < entry.getValue(); i++)
+				order.add(entry.getKey());
+		Collections.shuffle(order, new Random(seed));
+		for (int i = 0; i < order.size(); i++)
+			file.insert(new IntegerKey(order.get(i)), rid(i));
+		return file;
+	}
+
+	/*
+	 * Look up every key and its neighbours, and scan the ranges between
+	 * neighbouring keys and a few wide ones; once through the pages and
+	 * once through the node cache.
+	 */
+	static boolean check(BTreeFile file, TreeMap<Integer, Integer> keys, String what) throws Exception {
+		for (int pass = 0; pass < 2; pass++) {
+			file.setNodeCacheSize(pass == 0 ? 0 : 1 << 20);
+			String how = what + (pass == 0 ? "" : " through the node cache");
+			for (int key : keys.keySet()) {
+				for (long k = (long) key - 1; k <= (long) key + 1; k++) {
+					if (k < Integer.MIN_VALUE || k > Integer.MAX_VALUE)
+						continue;
+					Integer count = keys.get((int) k);
+					if (file.lookup(new IntegerKey((int) k)).size() != (count == null ? 0 : count)) {
+						System.err.println("*** lookup of " + k + " wrong, " + how);
+						return FAIL;
+					}
+				}
+			}
+			Integer previous = null;
+			for (int key : keys.keySet()) {
+				if (previous != null && !scan(file, previous, key).equals(range(keys, previous, key))) {
+					System.err.println("*** scan of [" + previous + ", " + key + "] wrong, " + how);
+					return FAIL;
+				}
+				previous = key;
+			}
+			int[][] ranges = { { Integer.MIN_VALUE, Integer.MAX_VALUE }, { Integer.MIN_VALUE, -1 }, { -1, 1 },
+					{ 0, Integer.MAX_VALUE } };
+			for (int[] r : ranges) {
+				if (!scan(file, r[0], r[1]).equals(range(keys, r[0], r[1]))) {
+					System.err.println("*** scan of [" + r[0] + ", " + r[1] + "] wrong, " + how);
+					return FAIL;
+				}
+			}
+		}
+		file.setNodeCacheSize(0);
+		return OK;
+	}
+
+	/*
+	 * Dense negative keys, and keys on both sides of zero.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: negative keys");
+		boolean status = OK;
+		try {
+			TreeMap<Integer, Integer> keys = new TreeMap<Integer, Integer>();
+			for (int i = -6000; i < 0; i += 3)
+				keys.put(i, 1);
+			BTreeFile file = fill("interpolation1", keys, 1);
+			if (check(file, keys, "with negative keys") != OK)
+				status = FAIL;
+			file.destroyFile();
+
+			keys.clear();
+			for (int i = -3000; i < 3000; i += 2)
+				keys.put(i, 1);
+			file = fill("interpolation2", keys, 2);
+			if (check(file, keys, "with keys around zero") != OK)
+				status = FAIL;
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 1 completed successfully.");
+		return status;
+	}
+
+	/*
+	 * Keys at both ends of the int range, whose differences overflow an int,
+	 * and keys growing so fast that interpolation guesses far off.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: extreme and skewed keys");
+		boolean status = OK;
+		try {
+			TreeMap<Integer, Integer> keys = new TreeMap<Integer, Integer>();
+			for (int i = 0; i < 500; i++) {
+				keys.put(Integer.MIN_VALUE + i * 7, 1);
+				keys.put(Integer.MAX_VALUE - i * 7, 1);
+			}
+			for (int i = -1000; i < 1000; i += 5)
+				keys.put(i, 1);
+			BTreeFile file = fill("interpolation3", keys, 3);
+			if (check(file, keys, "with extreme keys") != OK)
+				status = FAIL;
+			file.destroyFile();
+
+			keys.clear();
+			for (int i = 0; i < 1500; i++) {
+				int key = (int) Math.min(Integer.MAX_VALUE, (long) i * i * i);
+				keys.put(key, 1);
+				keys.put(-key, 1);
+			}
+			file = fill("interpolation4", keys, 4);
+			if (check(file, keys, "with skewed keys") != OK)
+				status = FAIL;
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 2 completed successfully.");
+		return status;
+	}
+
+	/*
+	 * Runs of equal keys, some spanning several leaves, where the search
+	 * must find the first entry of a run.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: duplicate keys");
+		boolean status = OK;
+		try {
+			TreeMap<Integer, Integer> keys = new TreeMap<Integer, Integer>();
+			Random random = new Random(5);
+			for (int i = -200; i < 200; i += 4)
+				keys.put(i, 1 + (random.nextInt(10) == 0 ? 300 : random.nextInt(5)));
+			BTreeFile file = fill("interpolation5", keys, 5);
+			if (check(file, keys, "with duplicate keys") != OK)
+				status = FAIL;
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 3 completed successfully.");
+		return status;
+	}
+}
+
+public class InterpolationSearchTest {
+
+	public static void main(String argv[]) {
+		boolean status = new InterpolationSearchDriver().runTests();
+		if (status != TestDriver.OK) {
+			System.err.println("Error encountered during interpolation search tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+		Runtime.getRuntime().exit(0);
+	}
+}
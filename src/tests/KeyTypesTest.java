@@ -0,0 +1,261 @@
+package tests;
+
+import java.util.*;
+
+import diskmgr.*;
+import global.*;
+import heap.*;
+import btree.*;
+
+/**
+ * Tests of LongKey and DoubleKey files, whose keys are stored in an
+ * order-preserving encoding (see KeyEncoding): scans return the keys in
+ * numeric order, negative values included, with -0.0 before 0.0 and NaN
+ * after every other double; and a file whose header predates the additional
+ * header fields opens with integer keys whatever those fields' slots hold.
+ */
+class KeyTypesDriver extends TestDriver implements GlobalConst {
+
+	public KeyTypesDriver() {
+		super("keytypestest");
+	}
+
+	public boolean runTests() {
+		SystemDefs sysdef = new SystemDefs(dbpath, 10000, 1000, "Clock");
+		return super.runTests();
+	}
+
+	protected String testName() {
+		return "Key types";
+	}
+
+	static RID rid(int i) {
+		return new RID(new PageId(1000 + i / 50), i % 50);
+	}
+
+	/*
+	 * the decoded keys a scan from lo to hi returns
+	 */
+	static List<KeyClass> scan(BTreeFile file, KeyClass lo, KeyClass hi) throws Exception {
+		List<KeyClass> found = new ArrayList<KeyClass>();
+		BTFileScan scan = file.new_scan(lo, hi);
+		for (KeyDataEntry entry = scan.get_next(); entry != null; entry = scan.get_next())
+			found.add(file.decodeKey(entry.key));
+		scan.DestroyBTreeFileScan();
+		return found;
+	}
+
+	static List<Long> longs(List<KeyClass> keys) {
+		List<Long> values = new ArrayList<Long>();
+		for (KeyClass key : keys)
+			values.add(((LongKey) key).getKey());
+		return values;
+	}
+
+	static List<Double> doubles(List<KeyClass> keys) {
+		List<Double> values = new ArrayList<Double>();
+		for (KeyClass key : keys)
+			values.add(((DoubleKey) key).getKey());
+		return values;
+	}
+
+	/*
+	 * Long keys at both ends of the range and around zero, inserted in
+	 * random order; scans before and after reopening the file.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: order of long keys");
+		boolean status = OK;
+		try {
+			TreeSet<Long> keys = new TreeSet<Long>();
+			Random random = new Random(1);
+			for (long i = 0; i < 200; i++) {
+				keys.add(Long.MIN_VALUE + i);
+				keys.add(Long.MAX_VALUE - i);
+				keys.add(i - 100);
+			}
+			while (keys.size() < 3000)
+				keys.add(random.nextLong());
+			List<Long> order = new ArrayList<Long>(keys);
+			Collections.shuffle(order, random);
+			BTreeFile file = new BTreeFile("keytypes1", KeyEncoding.attrLong, 8, DeleteFashion.FULL_DELETE);
+			for (int i = 0; i < order.size(); i++)
+				file.insert(new LongKey(order.get(i)), rid(i));
+
+			for (int pass = 0; pass < 2; pass++) {
+				String when = pass == 0 ? "" : " after reopening";
+				if (!longs(scan(file, null, null)).equals(new ArrayList<Long>(keys))) {
+					System.err.println("*** full scan out of order" + when);
+					status = FAIL;
+				}
+				if (!longs(scan(file, new LongKey(-50), new LongKey(50)))
+						.equals(new ArrayList<Long>(keys.subSet(-50L, true, 50L, true)))) {
+					System.err.println("*** scan of [-50, 50] wrong" + when);
+					status = FAIL;
+				}
+				if (!longs(scan(file, null, new LongKey(-1))).equals(new ArrayList<Long>(keys.headSet(-1L, true)))) {
+					System.err.println("*** scan of the negative keys wrong" + when);
+					status = FAIL;
+				}
+				for (long key : new long[] { Long.MIN_VALUE, -1, 0, Long.MAX_VALUE }) {
+					if (file.lookup(new LongKey(key)).size() != 1) {
+						System.err.println("*** lookup of " + key + " wrong" + when);
+						status = FAIL;
+					}
+				}
+				file.close();
+				file = new BTreeFile("keytypes1");
+			}
+
+			try {
+				file.insert(new IntegerKey(1), rid(0));
+				System.err.println("*** integer key accepted by a file of long keys");
+				status = FAIL;
+			} catch (KeyNotMatchException e) {
+				// expected
+			}
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 1 completed successfully.");
+		return status;
+	}
+
+	/*
+	 * Doubles of both signs, both zeros, the infinities and NaN: scans
+	 * return them in the order of Double.compare, and -0.0 and 0.0 are
+	 * different keys.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: order of double keys");
+		boolean status = OK;
+		try {
+			List<Double> keys = new ArrayList<Double>();
+			double[] special = { Double.NEGATIVE_INFINITY, -Double.MAX_VALUE, -1.0, -Double.MIN_VALUE, -0.0, 0.0,
+					Double.MIN_VALUE, 1.0, Double.MAX_VALUE, Double.POSITIVE_INFINITY, Double.NaN };
+			for (double d : special)
+				keys.add(d);
+			Random random = new Random(2);
+			for (int i = 0; i < 2000; i++)
+				keys.add((random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(40) - 20));
+			List<Integer> order = new ArrayList<Integer>();
+			for (int i = 0; i < keys.size(); i++)
+				order.add(i);
+			Collections.shuffle(order, random);
+			BTreeFile file = new BTreeFile("keytypes2", KeyEncoding.attrDouble, 8, DeleteFashion.FULL_DELETE);
+			for (int i : order)
+				file.insert(new DoubleKey(keys.get(i)), rid(i));
+			Collections.sort(keys); // Double.compareTo: -0.0 before 0.0, NaN last
+
+			if (!doubles(scan(file, null, null)).equals(keys)) {
+				System.err.println("*** full scan out of order");
+				status = FAIL;
+			}
+			List<Double> zeros = doubles(scan(file, new DoubleKey(-0.0), new DoubleKey(0.0)));
+			if (!zeros.equals(Arrays.asList(-0.0, 0.0))) {
+				System.err.println("*** scan of [-0.0, 0.0] returned " + zeros);
+				status = FAIL;
+			}
+			List<Double> negative = doubles(scan(file, null, new DoubleKey(-Double.MIN_VALUE)));
+			if (!negative.equals(keys.subList(0, keys.indexOf(-0.0)))) {
+				System.err.println("*** scan of the negative keys wrong");
+				status = FAIL;
+			}
+			List<Double> finite = doubles(scan(file, new DoubleKey(0.0), new DoubleKey(Double.POSITIVE_INFINITY)));
+			if (!finite.equals(keys.subList(keys.indexOf(0.0), keys.size() - 1))) {
+				System.err.println("*** scan of [0.0, infinity] wrong");
+				status = FAIL;
+			}
+
+			file.Delete(new DoubleKey(0.0), rid(5));
+			if (file.lookup(new DoubleKey(-0.0)).size() != 1 || file.lookup(new DoubleKey(0.0)).size() != 0) {
+				System.err.println("*** deleting 0.0 touched -0.0");
+				status = FAIL;
+			}
+			if (file.lookup(new DoubleKey(Double.NaN)).size() != 1) {
+				System.err.println("*** NaN not found");
+				status = FAIL;
+			}
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 2 completed successfully.");
+		return status;
+	}
+
+	/*
+	 * A header written before the additional fields holds anything in their
+	 * slots (4 to 7 of the header page's slot directory, see HeaderFields):
+	 * clear the format magic in slot 7 and put a key encoding, flags and a
+	 * Bloom filter page in the others. The reopened file still takes
+	 * integer keys, returns them undecoded and reads no Bloom filter.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: reopen a header without the format magic");
+		boolean status = OK;
+		try {
+			BTreeFile file = new BTreeFile("keytypes3", AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE);
+			for (int i = 0; i < 1000; i++)
+				file.insert(new IntegerKey(i), rid(i));
+			file.close();
+
+			PageId headerId = SystemDefs.JavabaseDB.get_file_entry("keytypes3");
+			Page page = new Page();
+			SystemDefs.JavabaseBM.pinPage(headerId, page, false);
+			HFPage header = new HFPage(page);
+			header.setSlot(4, 0x7fff, 0xffff); // flags
+			header.setSlot(5, 0, 3); // Bloom filter
+			header.setSlot(6, 0, 1); // key encoding
+			header.setSlot(7, 0, 0); // format
+			SystemDefs.JavabaseBM.unpinPage(headerId, true);
+
+			for (int pass = 0; pass < 2; pass++) {
+				file = pass == 0 ? new BTreeFile("keytypes3")
+						: new BTreeFile("keytypes3", AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE);
+				if (file.lookup(new IntegerKey(500)).size() != 1 || file.lookup(new IntegerKey(1000)).size() != 0) {
+					System.err.println("*** lookup wrong after reopening");
+					status = FAIL;
+				}
+				file.insert(new IntegerKey(1000 + pass), rid(1000 + pass));
+				List<KeyClass> found = scan(file, new IntegerKey(998), null);
+				if (found.size() != 3 + pass || !(found.get(0) instanceof IntegerKey)
+						|| ((IntegerKey) found.get(found.size() - 1)).getKey() != 1000 + pass) {
+					System.err.println("*** scan returned " + found + " after reopening");
+					status = FAIL;
+				}
+				BTreeVerifier.Report report = new BTreeVerifier(file, 1).verify();
+				if (!report.isConsistent() || report.entries != 1001 + pass) {
+					System.err.println("*** tree: " + report);
+					status = FAIL;
+				}
+				if (pass == 0)
+					file.close();
+			}
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 3 completed successfully.");
+		return status;
+	}
+}
+
+public class KeyTypesTest {
+
+	public static void main(String argv[]) {
+		boolean status = new KeyTypesDriver().runTests();
+		if (status != TestDriver.OK) {
+			System.err.println("Error encountered during key type tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+		Runtime.getRuntime().exit(0);
+	}
+}
@@ -0,0 +1,168 @@
+package tests;
+
+import java.util.*;
+
+import global.*;
+import btree.*;
+
+/**
+ * Tests of KeyValueFile: inline and overflow values, replace, remove and
+ * scans in key order.
+ */
+class KeyValueDriver extends TestDriver implements GlobalConst {
+
+	public KeyValueDriver() {
+		super("keyvaluetest");
+	}
+
+	public boolean runTests() {
+		SystemDefs sysdef = new SystemDefs(dbpath, 10000, 1000, "Clock");
+		return super.runTests();
+	}
+
+	protected String testName() {
+		return "Key-value file";
+	}
+
+	/*
+	 * a value of length bytes, different for every seed
+	 */
+	static byte[] value(int seed, int length) {
+		byte[] value = new byte[length];
+		new Random(seed).nextBytes(value);
+		return value;
+	}
+
+	/*
+	 * Values below and above the inline limit read back as they were put,
+	 * also after the file is opened again.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: put and get");
+		boolean status = OK;
+		int[] lengths = { 0, 1, 20, 40, 41, 500, 5000, 20000 };
+		try {
+			KeyValueFile file = new KeyValueFile("keyvalue1", 8, 40);
+			for (int i = 0; i < 300; i++)
+				file.put(new IntegerKey(i), value(i, lengths[i % lengths.length]));
+			for (int pass = 0; pass < 2; pass++) {
+				for (int i = 0; i < 300; i++) {
+					byte[] found = file.get(new IntegerKey(i));
+					if (!Arrays.equals(found, value(i, lengths[i % lengths.length]))) {
+						System.err.println("*** value of key " + i + " differs in pass " + pass);
+						status = FAIL;
+					}
+				}
+				file.close();
+				file = new KeyValueFile("keyvalue1", 8, 40);
+			}
+			if (file.get(new IntegerKey(300)) != null) {
+				System.err.println("*** value found for an absent key");
+				status = FAIL;
+			}
+			file.destroy();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 1 completed successfully.");
+		return status;
+	}
+
+	/*
+	 * put replaces a value, inline by overflow and the other way round;
+	 * remove drops the key.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: replace and remove");
+		boolean status = OK;
+		try {
+			KeyValueFile file = new KeyValueFile("keyvalue2", 20, 40);
+			Map<String, byte[]> expected = new HashMap<String, byte[]>();
+			Random random = new Random(2);
+			for (int n = 0; n < 3000; n++) {
+				String key = "k" + random.nextInt(200);
+				if (random.nextInt(4) == 0) {
+					boolean removed = file.remove(new StringKey(key));
+					if (removed != (expected.remove(key) != null)) {
+						System.err.println("*** remove of " + key + " returned " + removed);
+						status = FAIL;
+					}
+				} else {
+					byte[] value = value(n, random.nextBoolean() ? random.nextInt(40) : 1000 + random.nextInt(3000));
+					file.put(new StringKey(key), value);
+					expected.put(key, value);
+				}
+			}
+			for (int i = 0; i < 200; i++) {
+				byte[] found = file.get(new StringKey("k" + i));
+				if (!Arrays.equals(found, expected.get("k" + i))) {
+					System.err.println("*** value of k" + i + " differs");
+					status = FAIL;
+				}
+			}
+			file.destroy();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 2 completed successfully.");
+		return status;
+	}
+
+	/*
+	 * A scan returns the entries between its bounds in key order, with their
+	 * values.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: scan");
+		boolean status = OK;
+		try {
+			KeyValueFile file = new KeyValueFile("keyvalue3", 8, 40);
+			List<Integer> keys = new ArrayList<Integer>();
+			for (int i = -500; i < 500; i++)
+				keys.add(i);
+			Collections.shuffle(keys, new Random(3));
+			for (int key : keys)
+				file.put(new IntegerKey(key), value(key, key % 3 == 0 ? 2000 : 10));
+
+			KeyValueFile.Scan scan = file.scan(new IntegerKey(-100), new IntegerKey(250));
+			int next = -100;
+			for (KeyValueFile.Entry entry = scan.get_next(); entry != null; entry = scan.get_next()) {
+				int key = ((IntegerKey) entry.key).getKey();
+				if (key != next || !Arrays.equals(entry.value, value(key, key % 3 == 0 ? 2000 : 10))) {
+					System.err.println("*** scan returned key " + key + ", expected " + next);
+					status = FAIL;
+					break;
+				}
+				next++;
+			}
+			scan.DestroyScan();
+			if (next != 251) {
+				System.err.println("*** scan ended before key " + next);
+				status = FAIL;
+			}
+			file.destroy();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 3 completed successfully.");
+		return status;
+	}
+}
+
+public class KeyValueTest {
+
+	public static void main(String argv[]) {
+		boolean status = new KeyValueDriver().runTests();
+		if (status != TestDriver.OK) {
+			System.err.println("Error encountered during key-value tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+		Runtime.getRuntime().exit(0);
+	}
+}
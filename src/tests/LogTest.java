@@ -0,0 +1,439 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+
+import diskmgr.*;
+import global.*;
+import heap.*;
+import btree.*;
+
+/**
+ * Tests of BTreeLog: logged operations, recovery from a log and checkpoints.
+ *
+ * Crashes are simulated in place: changes lost in a crash are undone behind
+ * the log's back before recovery runs.
+ */
+class LogDriver extends TestDriver implements GlobalConst {
+
+	public LogDriver() {
+		super("logtest");
+	}
+
+	public boolean runTests() {
+		SystemDefs sysdef = new SystemDefs(dbpath, 10000, 1000, "Clock");
+		return super.runTests();
+	}
+
+	protected String testName() {
+		return "B+ tree log";
+	}
+
+	static RID rid(int i) {
+		return new RID(new PageId(1000 + i / 50), i % 50);
+	}
+
+	static void copy(String from, String to) throws IOException {
+		InputStream in = new FileInputStream(from);
+		OutputStream out = new FileOutputStream(to);
+		byte[] buffer = new byte[8192];
+		for (int n = in.read(buffer); n > 0; n = in.read(buffer))
+			out.write(buffer, 0, n);
+		in.close();
+		out.close();
+	}
+
+	/*
+	 * the keys of [0, n) that lookup does not find
+	 */
+	static int missing(BTreeFile file, int n) throws Exception {
+		int missing = 0;
+		for (int i = 0; i < n; i++)
+			if (file.lookup(new IntegerKey(i)).size() != 1)
+				missing++;
+		return missing;
+	}
+
+	/*
+	 * the header page and the pages of the tree of a file with integer keys:
+	 * the root is the next page of the header page, and an index page points
+	 * to its leftmost child as its previous page and to the others after
+	 * each key
+	 */
+	static Set<Integer> pages(String name) throws Exception {
+		Set<Integer> pages = new HashSet<Integer>();
+		PageId header = SystemDefs.JavabaseDB.get_file_entry(name);
+		pages.add(header.pid);
+		Page page = new Page();
+		SystemDefs.JavabaseBM.pinPage(header, page, false);
+		List<PageId> todo = new ArrayList<PageId>();
+		todo.add(new HFPage(page).getNextPage());
+		SystemDefs.JavabaseBM.unpinPage(header, false);
+		while (!todo.isEmpty()) {
+			PageId pageno = todo.remove(todo.size() - 1);
+			if (pageno.pid == INVALID_PAGE)
+				continue;
+			pages.add(pageno.pid);
+			page = new Page();
+			SystemDefs.JavabaseBM.pinPage(pageno, page, false);
+			HFPage hfpage = new HFPage(page);
+			if (hfpage.getType() == NodeType.INDEX) {
+				todo.add(hfpage.getPrevPage());
+				for (RID rid = hfpage.firstRecord(); rid != null; rid = hfpage.nextRecord(rid)) {
+					Tuple record = hfpage.returnRecord(rid);
+					todo.add(new PageId(Convert.getIntValue(record.getOffset() + 4, record.returnTupleByteArray())));
+				}
+			}
+			SystemDefs.JavabaseBM.unpinPage(pageno, false);
+		}
+		return pages;
+	}
+
+	/*
+	 * how many of n pages newly allocated in the database are in pages; the
+	 * new pages are freed again
+	 */
+	static int reallocated(Set<Integer> pages, int n) throws Exception {
+		PageId[] fresh = new PageId[n];
+		int shared = 0;
+		for (int i = 0; i < n; i++) {
+			fresh[i] = new PageId();
+			SystemDefs.JavabaseDB.allocate_page(fresh[i]);
+			if (pages.contains(fresh[i].pid))
+				shared++;
+		}
+		for (int i = 0; i < n; i++)
+			SystemDefs.JavabaseDB.deallocate_page(fresh[i]);
+		return shared;
+	}
+
+	/*
+	 * Inserts and deletes behave the same with a log attached, with and
+	 * without waiting for each commit.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: operations on a logged file");
+		boolean status = OK;
+		String logName = logpath + ".1";
+		try {
+			for (int pass = 0; pass < 2; pass++) {
+				BTreeLog log = new BTreeLog(logName, 2);
+				BTreeFile file = new BTreeFile("log1." + pass, AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE);
+				file.setLog(log, pass == 0);
+				for (int i = 0; i < 1000; i++)
+					file.insert(new IntegerKey(i), rid(i));
+				for (int i = 0; i < 1000; i += 2)
+					file.Delete(new IntegerKey(i), rid(i));
+				for (int i = 0; i < 1000; i++) {
+					if (file.lookup(new IntegerKey(i)).size() != i % 2) {
+						System.err.println("*** key " + i + " wrong in pass " + pass);
+						status = FAIL;
+					}
+				}
+				file.destroyFile();
+				log.close();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			new File(logName).delete();
+		}
+		if (status == OK)
+			System.out.println("  Test 1 completed successfully.");
+		return status;
+	}
+
+	/*
+	 * Recovery redoes every committed insert: entries removed behind the
+	 * log's back come back from the page images, and recovering the emptied
+	 * log again does nothing.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: recovery");
+		boolean status = OK;
+		String logName = logpath + ".2";
+		String saved = logpath + ".2.saved";
+		int n = 800;
+		try {
+			BTreeLog log = new BTreeLog(logName, 0);
+			BTreeFile file = new BTreeFile("log2", AttrType.attrInteger, 4, DeleteFashion.NAIVE_DELETE);
+			file.setLog(log, true);
+			for (int i = 0; i < n; i++)
+				file.insert(new IntegerKey(i), rid(i));
+			log.sync();
+			copy(logName, saved);
+			file.close();
+			log.close();
+
+			// lose the later changes: they are not in the saved log
+			file = new BTreeFile("log2");
+			for (int i = 0; i < n; i += 3)
+				file.Delete(new IntegerKey(i), rid(i));
+			file.close();
+
+			int redone = BTreeLog.recover(saved);
+			if (redone != n) {
+				System.err.println("*** " + redone + " operations redone, " + n + " committed");
+				status = FAIL;
+			}
+			file = new BTreeFile("log2");
+			if (missing(file, n) != 0) {
+				System.err.println("*** " + missing(file, n) + " keys missing after recovery");
+				status = FAIL;
+			}
+			file.close();
+
+			if (BTreeLog.recover(saved) != 0 || new File(saved).length() != 0) {
+				System.err.println("*** log not emptied by recovery");
+				status = FAIL;
+			}
+			file = new BTreeFile("log2");
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			new File(logName).delete();
+			new File(saved).delete();
+		}
+		if (status == OK)
+			System.out.println("  Test 2 completed successfully.");
+		return status;
+	}
+
+	/*
+	 * A torn record at the end of the log ends recovery; the operations
+	 * before it are redone.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: recovery of a log with a torn tail");
+		boolean status = OK;
+		String logName = logpath + ".3";
+		int n = 300;
+		try {
+			BTreeLog log = new BTreeLog(logName, 0);
+			BTreeFile file = new BTreeFile("log3", AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE);
+			file.setLog(log, true);
+			for (int i = 0; i < n; i++)
+				file.insert(new IntegerKey(i), rid(i));
+			file.close();
+			log.close();
+
+			RandomAccessFile raw = new RandomAccessFile(logName, "rw");
+			raw.seek(raw.length());
+			raw.writeByte(1); // a page record cut short
+			raw.writeLong(n + 1);
+			raw.writeInt(5);
+			raw.write(new byte[100]);
+			raw.close();
+
+			int redone = BTreeLog.recover(logName);
+			if (redone != n) {
+				System.err.println("*** " + redone + " operations redone, " + n + " committed");
+				status = FAIL;
+			}
+			file = new BTreeFile("log3");
+			if (missing(file, n) != 0) {
+				System.err.println("*** " + missing(file, n) + " keys missing after recovery");
+				status = FAIL;
+			}
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			new File(logName).delete();
+		}
+		if (status == OK)
+			System.out.println("  Test 3 completed successfully.");
+		return status;
+	}
+
+	/*
+	 * A checkpoint empties the log; logging goes on after it.
+	 */
+	protected boolean test4() {
+		System.out.println("\n  Test 4: checkpoint");
+		boolean status = OK;
+		String logName = logpath + ".4";
+		try {
+			BTreeLog log = new BTreeLog(logName, 0);
+			BTreeFile file = new BTreeFile("log4", AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE);
+			file.setLog(log, false);
+			for (int i = 0; i < 500; i++)
+				file.insert(new IntegerKey(i), rid(i));
+			log.checkpoint();
+			if (new File(logName).length() != 0) {
+				System.err.println("*** log has " + new File(logName).length() + " bytes after a checkpoint");
+				status = FAIL;
+			}
+			for (int i = 500; i < 600; i++)
+				file.insert(new IntegerKey(i), rid(i));
+			log.sync();
+			if (new File(logName).length() == 0) {
+				System.err.println("*** nothing logged after the checkpoint");
+				status = FAIL;
+			}
+			if (missing(file, 600) != 0) {
+				System.err.println("*** keys missing after the checkpoint");
+				status = FAIL;
+			}
+			file.destroyFile();
+			log.close();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			new File(logName).delete();
+		}
+		if (status == OK)
+			System.out.println("  Test 4 completed successfully.");
+		return status;
+	}
+
+	/*
+	 * A crash after splits whose space map pages never reached the disk:
+	 * recovery marks the pages the splits allocated again, so that none of
+	 * them is handed out while the tree uses it.
+	 */
+	protected boolean test5() {
+		System.out.println("\n  Test 5: crash after splits");
+		boolean status = OK;
+		String logName = logpath + ".5";
+		String saved = logpath + ".5.saved";
+		int n = 2000;
+		try {
+			BTreeLog log = new BTreeLog(logName, 0);
+			BTreeFile file = new BTreeFile("log5", AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE);
+			file.setLog(log, true);
+			for (int i = 0; i < n; i++)
+				file.insert(new IntegerKey(i), rid(i));
+			log.sync();
+			copy(logName, saved);
+			file.close();
+			log.close();
+			if (file.getSplitCount() == 0) {
+				System.err.println("*** no split");
+				status = FAIL;
+			}
+
+			// lose the space map: the tree pages are free again, all but
+			// the header page, allocated before the log was attached
+			Set<Integer> pages = pages("log5");
+			PageId header = SystemDefs.JavabaseDB.get_file_entry("log5");
+			for (int pid : pages)
+				if (pid != header.pid)
+					SystemDefs.JavabaseDB.deallocate_page(new PageId(pid));
+
+			BTreeLog.recover(saved);
+			int shared = reallocated(pages, 2 * pages.size());
+			if (shared != 0) {
+				System.err.println("*** " + shared + " pages of the recovered tree allocated again");
+				status = FAIL;
+			}
+			file = new BTreeFile("log5");
+			if (missing(file, n) != 0) {
+				System.err.println("*** " + missing(file, n) + " keys missing after recovery");
+				status = FAIL;
+			}
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			new File(logName).delete();
+			new File(saved).delete();
+		}
+		if (status == OK)
+			System.out.println("  Test 5 completed successfully.");
+		return status;
+	}
+
+	/*
+	 * A page a merge frees stays allocated until the delete is on stable
+	 * storage, since the tree on disk may point to it until then. After a
+	 * crash, recovery frees it again, and no page of the recovered tree is
+	 * handed out.
+	 */
+	protected boolean test6() {
+		System.out.println("\n  Test 6: crash after merges");
+		boolean status = OK;
+		String logName = logpath + ".6";
+		String saved = logpath + ".6.saved";
+		int n = 2000;
+		int deleted = 0;
+		try {
+			BTreeLog log = new BTreeLog(logName, 0);
+			BTreeFile file = new BTreeFile("log6", AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE);
+			file.setLog(log, false);
+			for (int i = 0; i < n; i++)
+				file.insert(new IntegerKey(i), rid(i));
+			log.checkpoint();
+			Set<Integer> before = pages("log6");
+
+			// holding the log's monitor keeps the flusher from writing, so
+			// the deletes are committed but not durable
+			synchronized (log) {
+				while (file.getMergeCount() == 0 && deleted < n) {
+					file.Delete(new IntegerKey(deleted), rid(deleted));
+					deleted++;
+				}
+				int shared = reallocated(before, 2 * before.size());
+				if (file.getMergeCount() == 0) {
+					System.err.println("*** no merge");
+					status = FAIL;
+				}
+				if (shared != 0) {
+					System.err.println("*** " + shared + " pages of the tree on disk allocated again before the "
+							+ "merge is durable");
+					status = FAIL;
+				}
+			}
+			for (int i = deleted; i < n; i += 2)
+				file.Delete(new IntegerKey(i), rid(i));
+			log.sync();
+			copy(logName, saved);
+			file.close();
+			log.close();
+
+			BTreeLog.recover(saved);
+			Set<Integer> after = pages("log6");
+			int shared = reallocated(after, 2 * after.size());
+			if (shared != 0) {
+				System.err.println("*** " + shared + " pages of the recovered tree allocated again");
+				status = FAIL;
+			}
+			file = new BTreeFile("log6");
+			for (int i = 0; i < n; i++) {
+				boolean present = i >= deleted && (i - deleted) % 2 == 1;
+				if (file.lookup(new IntegerKey(i)).size() != (present ? 1 : 0)) {
+					System.err.println("*** key " + i + " wrong after recovery");
+					status = FAIL;
+				}
+			}
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			new File(logName).delete();
+			new File(saved).delete();
+		}
+		if (status == OK)
+			System.out.println("  Test 6 completed successfully.");
+		return status;
+	}
+}
+
+public class LogTest {
+
+	public static void main(String argv[]) {
+		boolean status = new LogDriver().runTests();
+		if (status != TestDriver.OK) {
+			System.err.println("Error encountered during log tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+		Runtime.getRuntime().exit(0);
+	}
+}
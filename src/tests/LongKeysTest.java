@@ -0,0 +1,235 @@
+package tests;
+
+import java.util.*;
+
+import global.*;
+import btree.*;
+
+/**
+ * Tests of LONG_KEYS files: string keys longer than the key size are found,
+ * deleted and scanned in key order like the keys that fit.
+ */
+class LongKeysDriver extends TestDriver implements GlobalConst {
+
+	static final int KEYSIZE = 40;
+
+	public LongKeysDriver() {
+		super("longkeystest");
+	}
+
+	public boolean runTests() {
+		SystemDefs sysdef = new SystemDefs(dbpath, 10000, 1000, "Clock");
+		return super.runTests();
+	}
+
+	protected String testName() {
+		return "Long keys";
+	}
+
+	static RID rid(int i) {
+		return new RID(new PageId(1000 + i / 50), i % 50);
+	}
+
+	/*
+	 * Keys of a few families sharing their first characters: long keys and
+	 * keys that fit, each with the rids of its entries.
+	 */
+	static TreeMap<String, List<Integer>> keys(int n, Random random) {
+		String[] families = { "abcdefghij", "abcdefghzz", "mmmmmmmmmm", "zz" };
+		TreeMap<String, List<Integer>> keys = new TreeMap<String, List<Integer>>();
+		for (int i = 0; i < n; i++) {
+			StringBuffer sb = new StringBuffer(families[random.nextInt(families.length)]);
+			int length = random.nextInt(4) == 0 ? random.nextInt(10) : 30 + random.nextInt(200);
+			for (int c = 0; c < length; c++)
+				sb.append((char) ('a' + random.nextInt(3)));
+			String key = sb.toString();
+			if (keys.get(key) == null)
+				keys.put(key, new ArrayList<Integer>());
+			keys.get(key).add(i);
+		}
+		return keys;
+	}
+
+	static BTreeFile fill(String name, TreeMap<String, List<Integer>> keys) throws Exception {
+		BTreeFile file = new BTreeFile(name, AttrType.attrString, KEYSIZE, DeleteFashion.FULL_DELETE,
+				IndexFlags.LONG_KEYS);
+		for (Map.Entry<String, List<Integer>> entry : keys.entrySet())
+			for (int id : entry.getValue())
+				file.insert(new StringKey(entry.getKey()), rid(id));
+		return file;
+	}
+
+	/*
+	 * the keys a scan from lo to hi returns, resolved
+	 */
+	static List<String> scan(BTreeFile file, String lo, String hi) throws Exception {
+		List<String> found = new ArrayList<String>();
+		BTFileScan scan = file.new_scan(lo == null ? null : new StringKey(lo), hi == null ? null : new StringKey(hi));
+		for (KeyDataEntry entry = scan.get_next(); entry != null; entry = scan.get_next())
+			found.add(((StringKey) file.resolveKey(entry.key)).getKey());
+		scan.DestroyBTreeFileScan();
+		return found;
+	}
+
+	/*
+	 * the keys from lo to hi, once for each of their entries
+	 */
+	static List<String> expected(TreeMap<String, List<Integer>> keys, String lo, String hi) {
+		SortedMap<String, List<Integer>> range = keys;
+		if (lo != null)
+			range = range.tailMap(lo);
+		List<String> expected = new ArrayList<String>();
+		for (Map.Entry<String, List<Integer>> entry : range.entrySet()) {
+			if (hi != null && entry.getKey().compareTo(hi) > 0)
+				break;
+			for (int i = 0; i < entry.getValue().size(); i++)
+				expected.add(entry.getKey());
+		}
+		return expected;
+	}
+
+	/*
+	 * Lookups and deletes of long keys and of keys that fit.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: lookup and delete");
+		boolean status = OK;
+		try {
+			TreeMap<String, List<Integer>> keys = keys(1500, new Random(1));
+			BTreeFile file = fill("longkeys1", keys);
+			for (Map.Entry<String, List<Integer>> entry : keys.entrySet()) {
+				if (file.lookup(new StringKey(entry.getKey())).size() != entry.getValue().size()) {
+					System.err.println("*** key " + entry.getKey() + " not found");
+					status = FAIL;
+				}
+			}
+			boolean delete = false;
+			for (Map.Entry<String, List<Integer>> entry : keys.entrySet()) {
+				delete = !delete;
+				if (!delete)
+					continue;
+				for (int id : entry.getValue()) {
+					if (!file.Delete(new StringKey(entry.getKey()), rid(id))) {
+						System.err.println("*** key " + entry.getKey() + " not deleted");
+						status = FAIL;
+					}
+				}
+				entry.getValue().clear();
+			}
+			for (Map.Entry<String, List<Integer>> entry : keys.entrySet()) {
+				if (file.lookup(new StringKey(entry.getKey())).size() != entry.getValue().size()) {
+					System.err.println("*** key " + entry.getKey() + " wrong after deletes");
+					status = FAIL;
+				}
+			}
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 1 completed successfully.");
+		return status;
+	}
+
+	/*
+	 * Scans return the keys in key order, long ones included, also between
+	 * bounds that are long keys of a family or keys not in the file.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: scans in key order");
+		boolean status = OK;
+		try {
+			Random random = new Random(2);
+			TreeMap<String, List<Integer>> keys = keys(1500, random);
+			BTreeFile file = fill("longkeys2", keys);
+
+			List<String> all = new ArrayList<String>(keys.keySet());
+			List<String[]> ranges = new ArrayList<String[]>();
+			ranges.add(new String[] { null, null });
+			for (int i = 0; i < 20; i++) {
+				String lo = all.get(random.nextInt(all.size()));
+				String hi = all.get(random.nextInt(all.size()));
+				if (lo.compareTo(hi) > 0) {
+					String swap = lo;
+					lo = hi;
+					hi = swap;
+				}
+				ranges.add(new String[] { lo, hi });
+				ranges.add(new String[] { lo + "b", hi + "b" }); // not in the file
+				ranges.add(new String[] { lo, null });
+				ranges.add(new String[] { null, hi });
+			}
+			for (String[] range : ranges) {
+				if (!scan(file, range[0], range[1]).equals(expected(keys, range[0], range[1]))) {
+					System.err.println("*** scan from " + range[0] + " to " + range[1] + " differs");
+					status = FAIL;
+				}
+			}
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 2 completed successfully.");
+		return status;
+	}
+
+	/*
+	 * A key is refused if it does not fit a page, or is longer than the key
+	 * size of a file without LONG_KEYS.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: keys too long");
+		boolean status = OK;
+		try {
+			StringBuffer sb = new StringBuffer();
+			for (int i = 0; i < MAX_SPACE; i++)
+				sb.append('x');
+			BTreeFile file = new BTreeFile("longkeys3", AttrType.attrString, KEYSIZE, DeleteFashion.FULL_DELETE,
+					IndexFlags.LONG_KEYS);
+			BTreeFile plain = new BTreeFile("longkeys4", AttrType.attrString, KEYSIZE, DeleteFashion.FULL_DELETE);
+			try {
+				file.insert(new StringKey(sb.toString()), rid(0));
+				System.err.println("*** key longer than a page accepted");
+				status = FAIL;
+			} catch (KeyTooLongException e) {
+				// expected
+			}
+			try {
+				plain.insert(new StringKey(sb.substring(0, 2 * KEYSIZE)), rid(0));
+				System.err.println("*** long key accepted without LONG_KEYS");
+				status = FAIL;
+			} catch (KeyTooLongException e) {
+				// expected
+			}
+			file.insert(new StringKey(sb.substring(0, 2 * KEYSIZE)), rid(1));
+			if (file.lookup(new StringKey(sb.substring(0, 2 * KEYSIZE))).size() != 1
+					|| !file.lookup(new StringKey(sb.toString())).isEmpty()) {
+				System.err.println("*** refused key changed the file");
+				status = FAIL;
+			}
+			file.destroyFile();
+			plain.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 3 completed successfully.");
+		return status;
+	}
+}
+
+public class LongKeysTest {
+
+	public static void main(String argv[]) {
+		boolean status = new LongKeysDriver().runTests();
+		if (status != TestDriver.OK) {
+			System.err.println("Error encountered during long key tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+		Runtime.getRuntime().exit(0);
+	}
+}
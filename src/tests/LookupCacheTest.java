@@ -0,0 +1,126 @@
+package tests;
+
+import java.util.*;
+
+import global.*;
+import btree.*;
+
+/**
+ * Tests of the lookup cache (BTreeFile.setLookupCacheSize).
+ */
+class LookupCacheDriver extends TestDriver implements GlobalConst {
+
+	public LookupCacheDriver() {
+		super("lookupcachetest");
+	}
+
+	public boolean runTests() {
+		SystemDefs sysdef = new SystemDefs(dbpath, 10000, 1000, "Clock");
+		return super.runTests();
+	}
+
+	protected String testName() {
+		return "Lookup cache";
+	}
+
+	static RID rid(int i) {
+		return new RID(new PageId(1000 + i / 50), i % 50);
+	}
+
+	/*
+	 * A repeated lookup is served from the cache until insert or Delete
+	 * touches its key.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: a hot key");
+		boolean status = OK;
+		try {
+			BTreeFile file = new BTreeFile("lookupcache1", AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE);
+			for (int i = 0; i < 1000; i++)
+				file.insert(new IntegerKey(i), rid(i));
+			file.setLookupCacheSize(64);
+
+			for (int i = 0; i < 10; i++)
+				file.lookup(new IntegerKey(42));
+			if (file.getLookupCacheMisses() != 1 || file.getLookupCacheHits() != 9) {
+				System.err.println("*** " + file.getLookupCacheMisses() + " misses, " + file.getLookupCacheHits()
+						+ " hits for 10 lookups of one key");
+				status = FAIL;
+			}
+			file.insert(new IntegerKey(42), rid(5000));
+			if (file.lookup(new IntegerKey(42)).size() != 2) {
+				System.err.println("*** insert not seen by the next lookup");
+				status = FAIL;
+			}
+			file.Delete(new IntegerKey(42), rid(42));
+			file.lookup(new IntegerKey(42));
+			if (file.lookup(new IntegerKey(42)).size() != 1) {
+				System.err.println("*** Delete not seen by the next lookup");
+				status = FAIL;
+			}
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 1 completed successfully.");
+		return status;
+	}
+
+	/*
+	 * Skewed lookups mixed with inserts and deletes always return what the
+	 * tree holds.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: random workload");
+		boolean status = OK;
+		try {
+			BTreeFile file = new BTreeFile("lookupcache2", AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE);
+			file.setLookupCacheSize(100);
+			Map<Integer, List<Integer>> live = new HashMap<Integer, List<Integer>>();
+			Random random = new Random(2);
+			for (int n = 0; n < 20000; n++) {
+				// a few hot keys take most of the lookups
+				int key = random.nextInt(4) == 0 ? random.nextInt(2000) : random.nextInt(20);
+				if (live.get(key) == null)
+					live.put(key, new ArrayList<Integer>());
+				List<Integer> ids = live.get(key);
+				int op = random.nextInt(10);
+				if (op == 0) {
+					file.insert(new IntegerKey(key), rid(n));
+					ids.add(n);
+				} else if (op == 1 && !ids.isEmpty()) {
+					int id = ids.remove(ids.size() - 1);
+					file.Delete(new IntegerKey(key), rid(id));
+				} else if (file.lookup(new IntegerKey(key)).size() != ids.size()) {
+					System.err.println("*** lookup of key " + key + " returned a stale result");
+					status = FAIL;
+				}
+			}
+			if (file.getLookupCacheHits() == 0) {
+				System.err.println("*** no lookup hit the cache");
+				status = FAIL;
+			}
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 2 completed successfully.");
+		return status;
+	}
+}
+
+public class LookupCacheTest {
+
+	public static void main(String argv[]) {
+		boolean status = new LookupCacheDriver().runTests();
+		if (status != TestDriver.OK) {
+			System.err.println("Error encountered during lookup cache tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+		Runtime.getRuntime().exit(0);
+	}
+}
@@ -0,0 +1,131 @@
+package tests;
+
+import java.util.*;
+
+import global.*;
+import btree.*;
+
+/**
+ * Tests of the index node cache (BTreeFile.setNodeCacheSize).
+ */
+class NodeCacheDriver extends TestDriver implements GlobalConst {
+
+	public NodeCacheDriver() {
+		super("nodecachetest");
+	}
+
+	public boolean runTests() {
+		SystemDefs sysdef = new SystemDefs(dbpath, 10000, 1000, "Clock");
+		return super.runTests();
+	}
+
+	protected String testName() {
+		return "Node cache";
+	}
+
+	static RID rid(int i) {
+		return new RID(new PageId(1000 + i / 50), i % 50);
+	}
+
+	/*
+	 * the keys of [0, n) that lookup does not find exactly once
+	 */
+	static int missing(BTreeFile file, int n) throws Exception {
+		int missing = 0;
+		for (int i = 0; i < n; i++)
+			if (file.lookup(new IntegerKey(i)).size() != 1)
+				missing++;
+		return missing;
+	}
+
+	/*
+	 * Once the index pages are cached, descents decode no page.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: repeated lookups hit the cache");
+		boolean status = OK;
+		int n = 5000;
+		try {
+			BTreeFile file = new BTreeFile("nodecache1", AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE);
+			for (int i = 0; i < n; i++)
+				file.insert(new IntegerKey(i), rid(i));
+			file.setNodeCacheSize(1 << 20);
+
+			if (missing(file, n) != 0) {
+				System.err.println("*** keys missing with the cache on");
+				status = FAIL;
+			}
+			long misses = file.getNodeCacheMisses();
+			long hits = file.getNodeCacheHits();
+			if (misses == 0) {
+				System.err.println("*** no index page loaded into the cache");
+				status = FAIL;
+			}
+			missing(file, n);
+			if (file.getNodeCacheMisses() != misses || file.getNodeCacheHits() - hits < n) {
+				System.err.println("*** second round: " + (file.getNodeCacheMisses() - misses) + " misses, "
+						+ (file.getNodeCacheHits() - hits) + " hits");
+				status = FAIL;
+			}
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 1 completed successfully.");
+		return status;
+	}
+
+	/*
+	 * Splits and merges while the cache is on leave no stale node behind.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: changes with the cache on");
+		boolean status = OK;
+		int n = 5000;
+		try {
+			BTreeFile file = new BTreeFile("nodecache2", AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE);
+			file.setNodeCacheSize(1 << 20);
+			List<Integer> keys = new ArrayList<Integer>();
+			for (int i = 0; i < n; i++)
+				keys.add(i);
+			Collections.shuffle(keys, new Random(2));
+			for (int key : keys) {
+				file.insert(new IntegerKey(key), rid(key));
+				file.lookup(new IntegerKey(key / 2)); // keep the cache filled
+			}
+			if (missing(file, n) != 0) {
+				System.err.println("*** keys missing after inserts");
+				status = FAIL;
+			}
+			for (int i = 0; i < n; i += 2)
+				file.Delete(new IntegerKey(i), rid(i));
+			for (int i = 0; i < n; i++) {
+				if (file.lookup(new IntegerKey(i)).size() != i % 2) {
+					System.err.println("*** key " + i + " wrong after deletes");
+					status = FAIL;
+				}
+			}
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 2 completed successfully.");
+		return status;
+	}
+}
+
+public class NodeCacheTest {
+
+	public static void main(String argv[]) {
+		boolean status = new NodeCacheDriver().runTests();
+		if (status != TestDriver.OK) {
+			System.err.println("Error encountered during node cache tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+		Runtime.getRuntime().exit(0);
+	}
+}
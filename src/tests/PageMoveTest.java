@@ -0,0 +1,249 @@
+package tests;
+
+import java.util.*;
+
+import diskmgr.*;
+import global.*;
+import heap.*;
+import btree.*;
+
+/**
+ * Tests of the moves of records between two pages (PageLayout.moveRecords,
+ * used by the shifts of deferred splits and by merges): after each split,
+ * shift, redistribution and merge, every page of the tree has a slot count,
+ * free space and packed records that agree, and the keys are in order within
+ * and across the pages.
+ *
+ * Pages are read through the buffer manager and checked against the layout
+ * of HFPage: the slot count at offset 0, the start of the records at 2, the
+ * free space at 4, slots of a length and an offset from DPFIXED on. An
+ * integer key is the first 4 bytes of a record.
+ */
+class PageMoveDriver extends TestDriver implements GlobalConst {
+
+	public PageMoveDriver() {
+		super("pagemovetest");
+	}
+
+	public boolean runTests() {
+		SystemDefs sysdef = new SystemDefs(dbpath, 10000, 1000, "Clock");
+		return super.runTests();
+	}
+
+	protected String testName() {
+		return "Page moves";
+	}
+
+	static RID rid(int i) {
+		return new RID(new PageId(1000 + i / 50), i % 50);
+	}
+
+	/*
+	 * Check the layout and key order of every page of the tree of a file
+	 * with integer keys, and that its leaves hold entries entries in order.
+	 */
+	static boolean checkTree(String name, int entries, String when) throws Exception {
+		PageId headerId = SystemDefs.JavabaseDB.get_file_entry(name);
+		Page page = new Page();
+		SystemDefs.JavabaseBM.pinPage(headerId, page, false);
+		List<PageId> todo = new ArrayList<PageId>();
+		todo.add(new HFPage(page).getNextPage());
+		SystemDefs.JavabaseBM.unpinPage(headerId, false);
+
+		PageId leftmost = null;
+		while (!todo.isEmpty()) {
+			PageId pageno = todo.remove(todo.size() - 1);
+			if (pageno.pid == INVALID_PAGE)
+				continue;
+			page = new Page();
+			SystemDefs.JavabaseBM.pinPage(pageno, page, false);
+			HFPage hfpage = new HFPage(page);
+			boolean index = hfpage.getType() == NodeType.INDEX;
+			String problem = checkPage(page.getpage(), index);
+			if (index) {
+				todo.add(hfpage.getPrevPage());
+				for (RID rid = hfpage.firstRecord(); rid != null; rid = hfpage.nextRecord(rid)) {
+					Tuple record = hfpage.returnRecord(rid);
+					todo.add(new PageId(Convert.getIntValue(record.getOffset() + 4, record.returnTupleByteArray())));
+				}
+			} else if (hfpage.getPrevPage().pid == INVALID_PAGE)
+				leftmost = pageno;
+			SystemDefs.JavabaseBM.unpinPage(pageno, false);
+			if (problem != null) {
+				System.err.println("*** page " + pageno.pid + " " + when + ": " + problem);
+				return FAIL;
+			}
+		}
+
+		// the leaf chain, in key order across pages
+		int count = 0;
+		long previous = Long.MIN_VALUE;
+		for (PageId pageno = leftmost; pageno != null && pageno.pid != INVALID_PAGE;) {
+			page = new Page();
+			SystemDefs.JavabaseBM.pinPage(pageno, page, false);
+			byte[] data = page.getpage();
+			int slots = Convert.getShortValue(HFPage.SLOT_CNT, data);
+			for (int slot = 0; slot < slots; slot++) {
+				int key = Convert.getIntValue(Convert.getShortValue(HFPage.DPFIXED + slot * 4 + 2, data), data);
+				if (key < previous) {
+					SystemDefs.JavabaseBM.unpinPage(pageno, false);
+					System.err.println("*** key " + key + " after " + previous + " on page " + pageno.pid + " " + when);
+					return FAIL;
+				}
+				previous = key;
+				count++;
+			}
+			PageId next = new HFPage(page).getNextPage();
+			SystemDefs.JavabaseBM.unpinPage(pageno, false);
+			pageno = next;
+		}
+		if (count != entries) {
+			System.err.println("*** " + count + " entries in the leaves " + when + ", expected " + entries);
+			return FAIL;
+		}
+		return OK;
+	}
+
+	/*
+	 * what is wrong with the layout of a page, null if nothing: no empty
+	 * slot, records within the page and packed against its end without
+	 * overlap, free space the room between the slots and the records, keys
+	 * in order (strictly on index pages)
+	 */
+	static String checkPage(byte[] data, boolean index) throws Exception {
+		int slots = Convert.getShortValue(HFPage.SLOT_CNT, data);
+		int usedPtr = Convert.getShortValue(HFPage.USED_PTR, data);
+		int freeSpace = Convert.getShortValue(HFPage.FREE_SPACE, data);
+		if (freeSpace != usedPtr - HFPage.DPFIXED - slots * HFPage.SIZE_OF_SLOT)
+			return "free space " + freeSpace + " with " + slots + " slots and records from " + usedPtr;
+		boolean[] used = new boolean[MAX_SPACE];
+		int bytes = 0;
+		long previous = Long.MIN_VALUE;
+		for (int slot = 0; slot < slots; slot++) {
+			int length = Convert.getShortValue(HFPage.DPFIXED + slot * HFPage.SIZE_OF_SLOT, data);
+			int offset = Convert.getShortValue(HFPage.DPFIXED + slot * HFPage.SIZE_OF_SLOT + 2, data);
+			if (length <= 0 || offset < usedPtr || offset + length > MAX_SPACE)
+				return "slot " + slot + " of length " + length + " at " + offset;
+			for (int i = offset; i < offset + length; i++) {
+				if (used[i])
+					return "slot " + slot + " overlaps another record";
+				used[i] = true;
+			}
+			bytes += length;
+			int key = Convert.getIntValue(offset, data);
+			if (key < previous || index && key == previous)
+				return "key " + key + " of slot " + slot + " after " + previous;
+			previous = key;
+		}
+		if (bytes != MAX_SPACE - usedPtr)
+			return (MAX_SPACE - usedPtr - bytes) + " bytes of holes between the records";
+		return null;
+	}
+
+	/*
+	 * Deferred splits: leaves thinned out by deletes are filled up again, so
+	 * inserts into full leaves shift entries to siblings or split them.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: shifts and splits");
+		boolean status = OK;
+		try {
+			BTreeFile file = new BTreeFile("pagemove1", AttrType.attrInteger, 4, DeleteFashion.NAIVE_DELETE);
+			file.setDeferredSplits(true);
+			int entries = 0;
+			for (int i = 0; i < 4000; i += 4) {
+				file.insert(new IntegerKey(i), rid(i));
+				entries++;
+			}
+			// fragment the leaves: deletes leave every page with fewer
+			// records than it had
+			for (int i = 0; i < 4000; i += 12) {
+				file.Delete(new IntegerKey(i), rid(i));
+				entries--;
+			}
+			if (checkTree("pagemove1", entries, "after the deletes") != OK)
+				status = FAIL;
+
+			Random random = new Random(1);
+			for (int n = 0; n < 2500 && status == OK; n++) {
+				int key = random.nextInt(4000);
+				int splits = file.getSplitCount();
+				int shifts = file.getRedistributeCount();
+				file.insert(new IntegerKey(key), rid(key));
+				entries++;
+				if (file.getSplitCount() != splits || file.getRedistributeCount() != shifts)
+					status = checkTree("pagemove1", entries, "after inserting " + key);
+			}
+			if (file.getSplitCount() == 0 || file.getRedistributeCount() == 0) {
+				System.err.println("*** " + file.getSplitCount() + " splits and " + file.getRedistributeCount()
+						+ " shifts");
+				status = FAIL;
+			}
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 1 completed successfully.");
+		return status;
+	}
+
+	/*
+	 * Full deletes in random order redistribute and merge leaves and index
+	 * pages that earlier deletes already thinned out.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: redistributions and merges");
+		boolean status = OK;
+		int n = 12000;
+		try {
+			BTreeFile file = new BTreeFile("pagemove2", AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE);
+			List<Integer> keys = new ArrayList<Integer>();
+			for (int i = 0; i < n; i++)
+				keys.add(i);
+			Collections.shuffle(keys, new Random(2));
+			for (int key : keys)
+				file.insert(new IntegerKey(key), rid(key));
+			if (checkTree("pagemove2", n, "after the inserts") != OK)
+				status = FAIL;
+
+			Collections.shuffle(keys, new Random(3));
+			int entries = n;
+			for (int key : keys) {
+				if (status != OK)
+					break;
+				int merges = file.getMergeCount();
+				int redistributions = file.getRedistributeCount();
+				file.Delete(new IntegerKey(key), rid(key));
+				entries--;
+				if (file.getMergeCount() != merges || file.getRedistributeCount() != redistributions)
+					status = checkTree("pagemove2", entries, "after deleting " + key);
+			}
+			if (file.getMergeCount() == 0 || file.getRedistributeCount() == 0) {
+				System.err.println("*** " + file.getMergeCount() + " merges and " + file.getRedistributeCount()
+						+ " redistributions");
+				status = FAIL;
+			}
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 2 completed successfully.");
+		return status;
+	}
+}
+
+public class PageMoveTest {
+
+	public static void main(String argv[]) {
+		boolean status = new PageMoveDriver().runTests();
+		if (status != TestDriver.OK) {
+			System.err.println("Error encountered during page move tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+		Runtime.getRuntime().exit(0);
+	}
+}
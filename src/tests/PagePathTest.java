@@ -0,0 +1,215 @@
+package tests;
+
+import java.util.*;
+
+import diskmgr.*;
+import global.*;
+import heap.*;
+import btree.*;
+
+/**
+ * Tests of the iterative insert and delete, which keep the path from the
+ * root in a PagePath: splits over several levels, redistributions, merges
+ * and the collapse of the root leave a sound tree and no page pinned.
+ *
+ * Keys are long strings, so that a few hundred of them make a tree of
+ * several levels.
+ */
+class PagePathDriver extends TestDriver implements GlobalConst {
+
+	static final int KEYSIZE = 200;
+	static final int N = 1500;
+
+	public PagePathDriver() {
+		super("pagepathtest");
+	}
+
+	public boolean runTests() {
+		SystemDefs sysdef = new SystemDefs(dbpath, 10000, 1000, "Clock");
+		return super.runTests();
+	}
+
+	protected String testName() {
+		return "Iterative insert and delete";
+	}
+
+	static RID rid(int i) {
+		return new RID(new PageId(1000 + i / 50), i % 50);
+	}
+
+	static StringKey key(int i) {
+		StringBuffer sb = new StringBuffer(String.format("%06d", i));
+		while (sb.length() < KEYSIZE - 20)
+			sb.append('.');
+		return new StringKey(sb.toString());
+	}
+
+	/*
+	 * the number of levels of the tree, 0 if it is empty: the root is the
+	 * next page of the header page, and an index page points to its leftmost
+	 * child as its previous page
+	 */
+	static int height(String name) throws Exception {
+		PageId headerId = SystemDefs.JavabaseDB.get_file_entry(name);
+		Page page = new Page();
+		SystemDefs.JavabaseBM.pinPage(headerId, page, false);
+		PageId pageno = new HFPage(page).getNextPage();
+		SystemDefs.JavabaseBM.unpinPage(headerId, false);
+		int height = 0;
+		while (pageno.pid != INVALID_PAGE) {
+			height++;
+			page = new Page();
+			SystemDefs.JavabaseBM.pinPage(pageno, page, false);
+			HFPage hfpage = new HFPage(page);
+			PageId child = hfpage.getType() == NodeType.INDEX ? hfpage.getPrevPage() : new PageId(INVALID_PAGE);
+			SystemDefs.JavabaseBM.unpinPage(pageno, false);
+			pageno = child;
+		}
+		return height;
+	}
+
+	/*
+	 * Check that the operations of a phase left as many pages pinned as
+	 * before it, and a sound tree of entries entries.
+	 */
+	static boolean check(String phase, BTreeFile file, int unpinned, int entries) throws Exception {
+		boolean status = OK;
+		if (SystemDefs.JavabaseBM.getNumUnpinnedBuffers() != unpinned) {
+			System.err.println("*** " + (unpinned - SystemDefs.JavabaseBM.getNumUnpinnedBuffers())
+					+ " pages left pinned by " + phase);
+			status = FAIL;
+		}
+		BTreeVerifier.Report report = new BTreeVerifier(file, 1).verify();
+		if (!report.isConsistent() || report.entries != entries) {
+			System.err.println("*** tree after " + phase + ": " + report);
+			status = FAIL;
+		}
+		return status;
+	}
+
+	/*
+	 * Inserts in random order split leaves and index pages up to a root
+	 * several levels high; deletes then redistribute and merge pages, and
+	 * take the tree down to a single leaf.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: splits, redistributions, merges and root collapse");
+		boolean status = OK;
+		try {
+			BTreeFile file = new BTreeFile("pagepath1", AttrType.attrString, KEYSIZE, DeleteFashion.FULL_DELETE);
+			int unpinned = SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+			List<Integer> keys = new ArrayList<Integer>();
+			for (int i = 0; i < N; i++)
+				keys.add(i);
+			Collections.shuffle(keys, new Random(N));
+
+			for (int i : keys)
+				file.insert(key(i), rid(i));
+			int height = height("pagepath1");
+			if (height < 4 || file.getSplitCount() == 0) {
+				System.err.println("*** " + file.getSplitCount() + " splits made a tree of " + height + " levels");
+				status = FAIL;
+			}
+			if (check("inserts", file, unpinned, N) != OK)
+				status = FAIL;
+
+			// every other key, in random order: pages run underfull next to
+			// fuller siblings
+			int left = N;
+			for (int i : keys) {
+				if (i % 2 == 0) {
+					file.Delete(key(i), rid(i));
+					left--;
+				}
+			}
+			// then most of the rest, from the left
+			for (int i = 1; i < N - 300; i += 2) {
+				file.Delete(key(i), rid(i));
+				left--;
+			}
+			if (file.getRedistributeCount() == 0 || file.getMergeCount() == 0) {
+				System.err.println("*** " + file.getRedistributeCount() + " redistributions and "
+						+ file.getMergeCount() + " merges");
+				status = FAIL;
+			}
+			if (check("deletes", file, unpinned, left) != OK)
+				status = FAIL;
+
+			// all but the last three keys: the root collapses level by level
+			for (int i = N - 300; i < N - 6; i += 2) {
+				file.Delete(key(i + 1), rid(i + 1));
+				left--;
+			}
+			if (height("pagepath1") != 1) {
+				System.err.println("*** " + left + " keys left in a tree of " + height("pagepath1") + " levels");
+				status = FAIL;
+			}
+			if (check("root collapse", file, unpinned, left) != OK)
+				status = FAIL;
+			for (int i = N - 5; i < N; i += 2) {
+				if (file.lookup(key(i)).size() != 1) {
+					System.err.println("*** key " + i + " lost");
+					status = FAIL;
+				}
+			}
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 1 completed successfully.");
+		return status;
+	}
+
+	/*
+	 * Inserts in ascending and in descending order split at the edges of
+	 * the tree, and deletes from the other end merge it back.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: inserts and deletes at the edges");
+		boolean status = OK;
+		try {
+			for (int pass = 0; pass < 2; pass++) {
+				String name = "pagepath2." + pass;
+				BTreeFile file = new BTreeFile(name, AttrType.attrString, KEYSIZE, DeleteFashion.FULL_DELETE);
+				int unpinned = SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+				for (int i = 0; i < N; i++) {
+					int k = pass == 0 ? i : N - 1 - i;
+					file.insert(key(k), rid(k));
+				}
+				if (check("inserts in pass " + pass, file, unpinned, N) != OK)
+					status = FAIL;
+				for (int i = 0; i < N - 1; i++) {
+					int k = pass == 0 ? N - 1 - i : i;
+					file.Delete(key(k), rid(k));
+				}
+				if (height(name) != 1) {
+					System.err.println("*** one key left in a tree of " + height(name) + " levels in pass " + pass);
+					status = FAIL;
+				}
+				if (check("deletes in pass " + pass, file, unpinned, 1) != OK)
+					status = FAIL;
+				file.destroyFile();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 2 completed successfully.");
+		return status;
+	}
+}
+
+public class PagePathTest {
+
+	public static void main(String argv[]) {
+		boolean status = new PagePathDriver().runTests();
+		if (status != TestDriver.OK) {
+			System.err.println("Error encountered during iterative insert and delete tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+		Runtime.getRuntime().exit(0);
+	}
+}
@@ -0,0 +1,232 @@
+package tests;
+
+import java.util.*;
+
+import global.*;
+import btree.*;
+
+/**
+ * Tests of POSTING_LIST files: a key keeps its first PostingList.INLINE rids
+ * as leaf entries and moves them all into a posting list with the next one.
+ */
+class PostingListDriver extends TestDriver implements GlobalConst {
+
+	static final int INLINE = 8; // rids a key keeps inline, PostingList.INLINE
+
+	public PostingListDriver() {
+		super("postingtest");
+	}
+
+	public boolean runTests() {
+		SystemDefs sysdef = new SystemDefs(dbpath, 10000, 1000, "Clock");
+		return super.runTests();
+	}
+
+	protected String testName() {
+		return "Posting list";
+	}
+
+	static RID rid(int i) {
+		return new RID(new PageId(1000 + i / 50), i % 50);
+	}
+
+	static Set<Long> pack(List<RID> rids) {
+		Set<Long> set = new HashSet<Long>();
+		for (RID rid : rids)
+			set.add((long) rid.pageNo.pid << 32 | rid.slotNo);
+		return set;
+	}
+
+	static BTreeFile create(String name) throws Exception {
+		return new BTreeFile(name, AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE, IndexFlags.POSTING_LIST);
+	}
+
+	/*
+	 * the number of entries and of rids a scan over [key, key] returns
+	 */
+	static int[] scanKey(BTreeFile file, int key) throws Exception {
+		int[] counts = new int[2];
+		BTFileScan scan = file.new_scan(new IntegerKey(key), new IntegerKey(key));
+		for (KeyDataEntry entry = scan.get_next(); entry != null; entry = scan.get_next()) {
+			counts[0]++;
+			counts[1] += file.postings(entry).size();
+		}
+		scan.DestroyBTreeFileScan();
+		return counts;
+	}
+
+	/*
+	 * A key with INLINE rids keeps them inline.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: rids of a rare key stay inline");
+		boolean status = OK;
+		try {
+			BTreeFile file = create("posting1");
+			for (int i = 0; i < INLINE; i++)
+				file.insert(new IntegerKey(7), rid(i));
+			file.insert(new IntegerKey(6), rid(100));
+			file.insert(new IntegerKey(8), rid(101));
+
+			if (file.lookup(new IntegerKey(7)).size() != INLINE) {
+				System.err.println("*** lookup returned " + file.lookup(new IntegerKey(7)).size() + " rids");
+				status = FAIL;
+			}
+			int[] counts = scanKey(file, 7);
+			if (counts[0] != INLINE || counts[1] != INLINE) {
+				System.err.println("*** scan returned " + counts[0] + " entries, " + counts[1] + " rids");
+				status = FAIL;
+			}
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 1 completed successfully.");
+		return status;
+	}
+
+	/*
+	 * The rid after INLINE moves the key into one posting list; later rids go
+	 * to the list.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: a frequent key gets a posting list");
+		boolean status = OK;
+		try {
+			BTreeFile file = create("posting2");
+			List<RID> inserted = new ArrayList<RID>();
+			for (int i = 0; i < 200; i++) {
+				file.insert(new IntegerKey(i % 3 == 0 ? -1 : i), rid(i));
+				if (i % 3 == 0)
+					inserted.add(rid(i));
+			}
+
+			List<RID> found = file.lookup(new IntegerKey(-1));
+			if (found.size() != inserted.size() || !pack(found).equals(pack(inserted))) {
+				System.err.println("*** lookup returned " + found.size() + " rids, " + inserted.size() + " inserted");
+				status = FAIL;
+			}
+			int[] counts = scanKey(file, -1);
+			if (counts[0] != 1 || counts[1] != inserted.size()) {
+				System.err.println("*** scan returned " + counts[0] + " entries, " + counts[1] + " rids");
+				status = FAIL;
+			}
+			for (int i = 1; i < 200; i++) {
+				if (i % 3 != 0 && file.lookup(new IntegerKey(i)).size() != 1) {
+					System.err.println("*** key " + i + " lost");
+					status = FAIL;
+				}
+			}
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 2 completed successfully.");
+		return status;
+	}
+
+	/*
+	 * Deleting every rid of a key, inline or from the list, removes the key.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: delete the rids of a key");
+		boolean status = OK;
+		try {
+			BTreeFile file = create("posting3");
+			int[] sizes = { INLINE, 300 };
+			for (int k = 0; k < sizes.length; k++)
+				for (int i = 0; i < sizes[k]; i++)
+					file.insert(new IntegerKey(k), rid(i));
+
+			for (int k = 0; k < sizes.length; k++) {
+				for (int i = 0; i < sizes[k]; i++) {
+					if (!file.Delete(new IntegerKey(k), rid(i))) {
+						System.err.println("*** rid " + i + " of key " + k + " not deleted");
+						status = FAIL;
+					}
+				}
+				if (!file.lookup(new IntegerKey(k)).isEmpty() || scanKey(file, k)[0] != 0) {
+					System.err.println("*** key " + k + " still found");
+					status = FAIL;
+				}
+				if (file.Delete(new IntegerKey(k), rid(0))) {
+					System.err.println("*** key " + k + " deleted twice");
+					status = FAIL;
+				}
+			}
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 3 completed successfully.");
+		return status;
+	}
+
+	/*
+	 * Random inserts and deletes over a few keys, checked against a map.
+	 */
+	protected boolean test4() {
+		System.out.println("\n  Test 4: random inserts and deletes");
+		boolean status = OK;
+		try {
+			BTreeFile file = create("posting4");
+			Map<Integer, Set<Long>> expected = new HashMap<Integer, Set<Long>>();
+			Map<Integer, List<Integer>> live = new HashMap<Integer, List<Integer>>();
+			Random random = new Random(4);
+			for (int n = 0; n < 5000; n++) {
+				int key = random.nextInt(20);
+				if (live.get(key) == null) {
+					live.put(key, new ArrayList<Integer>());
+					expected.put(key, new HashSet<Long>());
+				}
+				List<Integer> ids = live.get(key);
+				if (ids.isEmpty() || random.nextInt(3) != 0) {
+					int id = n;
+					file.insert(new IntegerKey(key), rid(id));
+					ids.add(id);
+					expected.get(key).add((long) rid(id).pageNo.pid << 32 | rid(id).slotNo);
+				} else {
+					int id = ids.remove(random.nextInt(ids.size()));
+					if (!file.Delete(new IntegerKey(key), rid(id))) {
+						System.err.println("*** rid " + id + " of key " + key + " not deleted");
+						status = FAIL;
+					}
+					expected.get(key).remove((long) rid(id).pageNo.pid << 32 | rid(id).slotNo);
+				}
+			}
+			for (Map.Entry<Integer, Set<Long>> entry : expected.entrySet()) {
+				Set<Long> found = pack(file.lookup(new IntegerKey(entry.getKey())));
+				if (!found.equals(entry.getValue())) {
+					System.err.println("*** key " + entry.getKey() + ": " + found.size() + " rids, expected "
+							+ entry.getValue().size());
+					status = FAIL;
+				}
+			}
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 4 completed successfully.");
+		return status;
+	}
+}
+
+public class PostingListTest {
+
+	public static void main(String argv[]) {
+		boolean status = new PostingListDriver().runTests();
+		if (status != TestDriver.OK) {
+			System.err.println("Error encountered during posting list tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+		Runtime.getRuntime().exit(0);
+	}
+}
@@ -0,0 +1,214 @@
+package tests;
+
+import java.util.*;
+
+import global.*;
+import btree.*;
+
+/**
+ * Tests of the readers that read a B+ tree file without the buffer manager
+ * (MappedBTreeFile and DirectBTreeFile): their lookups and ranges return
+ * the same rids, in the same order, as lookups and scans of the BTreeFile,
+ * before and after changes made through the BTreeFile and a refresh.
+ */
+class ReaderDriver extends TestDriver implements GlobalConst {
+
+	public ReaderDriver() {
+		super("readertest");
+	}
+
+	public boolean runTests() {
+		SystemDefs sysdef = new SystemDefs(dbpath, 10000, 1000, "Clock");
+		return super.runTests();
+	}
+
+	protected String testName() {
+		return "Byte buffer readers";
+	}
+
+	static RID rid(int i) {
+		return new RID(new PageId(1000 + i / 50), i % 50);
+	}
+
+	static List<Long> ids(List<RID> rids) {
+		List<Long> ids = new ArrayList<Long>();
+		for (RID rid : rids)
+			ids.add((long) rid.pageNo.pid << 32 | rid.slotNo);
+		return ids;
+	}
+
+	/*
+	 * the rids a scan of the B+ tree file from lo to hi returns
+	 */
+	static List<Long> scan(BTreeFile file, KeyClass lo, KeyClass hi) throws Exception {
+		List<RID> rids = new ArrayList<RID>();
+		BTFileScan scan = file.new_scan(lo, hi);
+		for (KeyDataEntry entry = scan.get_next(); entry != null; entry = scan.get_next())
+			rids.add(((LeafData) entry.data).getData());
+		scan.DestroyBTreeFileScan();
+		return ids(rids);
+	}
+
+	/*
+	 * Compare the lookups of the given keys and the ranges between random
+	 * pairs of them, and the ranges open at either end, of a reader with
+	 * those of the B+ tree file.
+	 */
+	static boolean compare(ByteBufferBTreeFile reader, BTreeFile file, List<KeyClass> keys, String what)
+			throws Exception {
+		for (KeyClass key : keys) {
+			List<Long> expected = ids(file.lookup(key));
+			if (!ids(reader.lookup(key)).equals(expected) || !scan(file, key, key).equals(expected)) {
+				System.err.println("*** lookup of " + key + " differs " + what);
+				return FAIL;
+			}
+		}
+		Random random = new Random(keys.size());
+		for (int i = 0; i < 200; i++) {
+			KeyClass lo = i == 0 ? null : keys.get(random.nextInt(keys.size()));
+			KeyClass hi = i == 1 ? null : keys.get(random.nextInt(keys.size()));
+			if (!ids(reader.range(lo, hi)).equals(scan(file, lo, hi))) {
+				System.err.println("*** range [" + lo + ", " + hi + "] differs " + what);
+				return FAIL;
+			}
+		}
+		return OK;
+	}
+
+	/*
+	 * A file of integer keys, some with several entries, thinned out by
+	 * deletes; returns the keys looked up, present or not.
+	 */
+	static List<KeyClass> integerFile(BTreeFile file, int n) throws Exception {
+		List<Integer> order = new ArrayList<Integer>();
+		for (int i = 0; i < n; i++)
+			order.add(i);
+		Collections.shuffle(order, new Random(n));
+		for (int i : order) {
+			file.insert(new IntegerKey(i / 3 * 2), rid(i)); // three entries a key
+			if (i % 7 == 0)
+				file.insert(new IntegerKey(-i), rid(n + i));
+		}
+		for (int i : order)
+			if (i % 5 == 0)
+				file.Delete(new IntegerKey(i / 3 * 2), rid(i));
+		List<KeyClass> keys = new ArrayList<KeyClass>();
+		for (int i = -n - 1; i <= n; i++)
+			keys.add(new IntegerKey(i));
+		return keys;
+	}
+
+	/*
+	 * Integer keys through a memory mapping.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: mapped reads of integer keys");
+		boolean status = OK;
+		try {
+			BTreeFile file = new BTreeFile("reader1", AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE);
+			List<KeyClass> keys = integerFile(file, 3000);
+			MappedBTreeFile reader = new MappedBTreeFile(file);
+			if (compare(reader, file, keys, "through the mapping") != OK)
+				status = FAIL;
+			reader.close();
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 1 completed successfully.");
+		return status;
+	}
+
+	/*
+	 * String keys through a memory mapping, changed through the B+ tree
+	 * file after the mapping was made: refresh writes the changed pages and
+	 * maps the grown database file again.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: mapped reads after changes");
+		boolean status = OK;
+		try {
+			BTreeFile file = new BTreeFile("reader2", AttrType.attrString, 20, DeleteFashion.FULL_DELETE);
+			List<KeyClass> keys = new ArrayList<KeyClass>();
+			for (int i = 0; i < 4000; i++) {
+				keys.add(new StringKey("key" + (i * 7919 % 4000)));
+				if (i % 2 == 0)
+					file.insert(keys.get(i), rid(i));
+			}
+			MappedBTreeFile reader = new MappedBTreeFile(file);
+			if (compare(reader, file, keys, "through the mapping") != OK)
+				status = FAIL;
+
+			for (int i = 1; i < 4000; i += 2)
+				file.insert(keys.get(i), rid(i));
+			for (int i = 0; i < 4000; i += 6)
+				file.Delete(keys.get(i), rid(i));
+			reader.refresh();
+			if (compare(reader, file, keys, "after changes and a refresh") != OK)
+				status = FAIL;
+			reader.close();
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 2 completed successfully.");
+		return status;
+	}
+
+	/*
+	 * Integer keys through off-heap pools of two frames, which evict on
+	 * nearly every page, and of enough frames for the whole tree, before and
+	 * after changes through the B+ tree file and a refresh.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: direct-buffer pool reads");
+		boolean status = OK;
+		try {
+			BTreeFile file = new BTreeFile("reader3", AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE);
+			List<KeyClass> keys = integerFile(file, 3000);
+			for (int pass = 0; pass < 2; pass++) {
+				int pages = new BTreeVerifier(file, 1).verify().pages;
+				int frames = pass == 0 ? 2 : pages + 10;
+				DirectBTreeFile reader = new DirectBTreeFile(file, frames);
+				String what = "through a pool of " + frames + " frames";
+				if (compare(reader, file, keys, what) != OK)
+					status = FAIL;
+				long reads = reader.getReadCount();
+				if (frames > pages ? reads > pages : reads <= pages) {
+					System.err.println("*** " + reads + " page reads " + what + " for " + pages + " pages");
+					status = FAIL;
+				}
+
+				for (int i = 0; i < 300; i++)
+					file.insert(new IntegerKey(i * 2 + 1), rid(10000 + i));
+				reader.refresh();
+				if (compare(reader, file, keys, what + " after changes and a refresh") != OK)
+					status = FAIL;
+				reader.close();
+			}
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 3 completed successfully.");
+		return status;
+	}
+}
+
+public class ReaderTest {
+
+	public static void main(String argv[]) {
+		boolean status = new ReaderDriver().runTests();
+		if (status != TestDriver.OK) {
+			System.err.println("Error encountered during byte buffer reader tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+		Runtime.getRuntime().exit(0);
+	}
+}
@@ -0,0 +1,215 @@
+package tests;
+
+import java.util.*;
+
+import diskmgr.*;
+import global.*;
+import heap.*;
+import btree.*;
+
+/**
+ * Tests of BTreeReorganizer: after a purge, a pass over the leaves fills
+ * them up to the fill factor, puts the leaves below each index page on
+ * contiguous pages and leaves no index page without a key, and the tree
+ * still holds every entry.
+ *
+ * Pages are read through the buffer manager: the root is the next page of
+ * the header page, and an index page points to its leftmost child as its
+ * previous page and to the others after each key.
+ */
+class ReorganizerDriver extends TestDriver implements GlobalConst {
+
+	static final int FILL = 90;
+
+	public ReorganizerDriver() {
+		super("reorganizertest");
+	}
+
+	public boolean runTests() {
+		SystemDefs sysdef = new SystemDefs(dbpath, 10000, 1000, "Clock");
+		return super.runTests();
+	}
+
+	protected String testName() {
+		return "Reorganizer";
+	}
+
+	static RID rid(int i) {
+		return new RID(new PageId(1000 + i / 50), i % 50);
+	}
+
+	/*
+	 * the children of each index page, by page id
+	 */
+	static Map<Integer, List<Integer>> indexPages(String name) throws Exception {
+		Map<Integer, List<Integer>> indexPages = new HashMap<Integer, List<Integer>>();
+		PageId headerId = SystemDefs.JavabaseDB.get_file_entry(name);
+		Page page = new Page();
+		SystemDefs.JavabaseBM.pinPage(headerId, page, false);
+		List<PageId> todo = new ArrayList<PageId>();
+		todo.add(new HFPage(page).getNextPage());
+		SystemDefs.JavabaseBM.unpinPage(headerId, false);
+		while (!todo.isEmpty()) {
+			PageId pageno = todo.remove(todo.size() - 1);
+			page = new Page();
+			SystemDefs.JavabaseBM.pinPage(pageno, page, false);
+			HFPage hfpage = new HFPage(page);
+			if (hfpage.getType() == NodeType.INDEX) {
+				List<Integer> children = new ArrayList<Integer>();
+				children.add(hfpage.getPrevPage().pid);
+				for (RID rid = hfpage.firstRecord(); rid != null; rid = hfpage.nextRecord(rid)) {
+					Tuple record = hfpage.returnRecord(rid);
+					children.add(Convert.getIntValue(record.getOffset() + 4, record.returnTupleByteArray()));
+				}
+				indexPages.put(pageno.pid, children);
+				for (int child : children)
+					todo.add(new PageId(child));
+			}
+			SystemDefs.JavabaseBM.unpinPage(pageno, false);
+		}
+		return indexPages;
+	}
+
+	/*
+	 * the keys a scan from lo to hi returns
+	 */
+	static List<Integer> scan(BTreeFile file, Integer lo, Integer hi) throws Exception {
+		List<Integer> found = new ArrayList<Integer>();
+		BTFileScan scan = file.new_scan(lo == null ? null : new IntegerKey(lo), hi == null ? null : new IntegerKey(hi));
+		for (KeyDataEntry entry = scan.get_next(); entry != null; entry = scan.get_next())
+			found.add(((IntegerKey) entry.key).getKey());
+		scan.DestroyBTreeFileScan();
+		return found;
+	}
+
+	/*
+	 * Purge most keys, and all but a few below some index pages, then run
+	 * steps until the pass ends.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: reorganize after a purge");
+		boolean status = OK;
+		int n = 20000;
+		try {
+			BTreeFile file = new BTreeFile("reorganizer1", AttrType.attrInteger, 4, DeleteFashion.NAIVE_DELETE);
+			for (int i = 0; i < n; i++)
+				file.insert(new IntegerKey(i), rid(i));
+			int before = new BTreeVerifier(file, 1).verify().leaves;
+
+			List<Integer> kept = new ArrayList<Integer>();
+			for (int i = 0; i < n; i++) {
+				// every tenth key, and only two keys of a long range
+				boolean keep = i >= 5000 && i < 12000 ? i == 8000 || i == 8001 : i % 10 == 0;
+				if (keep)
+					kept.add(i);
+				else
+					file.Delete(new IntegerKey(i), rid(i));
+			}
+
+			BTreeReorganizer reorganizer = new BTreeReorganizer(file, FILL);
+			int steps = 0;
+			while (reorganizer.step() && steps < n)
+				steps++;
+			if (reorganizer.getMergedLeaves() == 0 || reorganizer.getMovedLeaves() == 0) {
+				System.err.println("*** " + reorganizer.getMergedLeaves() + " leaves merged, "
+						+ reorganizer.getMovedLeaves() + " moved");
+				status = FAIL;
+			}
+
+			BTreeVerifier.Report report = new BTreeVerifier(file, 1).verify();
+			Map<Integer, List<Integer>> indexPages = indexPages("reorganizer1");
+			// a leaf at the fill factor, or one of two left below an index page
+			int perLeaf = (MAX_SPACE - HFPage.DPFIXED - MAX_SPACE * (100 - FILL) / 100) / 16;
+			int maxLeaves = (kept.size() + perLeaf - 1) / perLeaf + 2 * indexPages.size();
+			if (!report.isConsistent() || report.entries != kept.size() || report.leaves > maxLeaves
+					|| report.leaves >= before) {
+				System.err.println("*** after the pass, " + report + " (at most " + maxLeaves + " leaves)");
+				status = FAIL;
+			}
+			for (Map.Entry<Integer, List<Integer>> entry : indexPages.entrySet()) {
+				List<Integer> children = entry.getValue();
+				if (children.size() < 2) {
+					System.err.println("*** index page " + entry.getKey() + " has no key");
+					status = FAIL;
+				}
+				boolean aboveLeaves = !indexPages.containsKey(children.get(0));
+				for (int i = 1; aboveLeaves && i < children.size(); i++) {
+					if (children.get(i) != children.get(i - 1) + 1) {
+						System.err.println("*** leaves below index page " + entry.getKey() + " not contiguous");
+						status = FAIL;
+						break;
+					}
+				}
+			}
+
+			if (!scan(file, null, null).equals(kept)) {
+				System.err.println("*** full scan differs");
+				status = FAIL;
+			}
+			if (!scan(file, 4000, 13000).equals(kept.subList(kept.indexOf(4000), kept.indexOf(13000) + 1))) {
+				System.err.println("*** range scan differs");
+				status = FAIL;
+			}
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 1 completed successfully.");
+		return status;
+	}
+
+	/*
+	 * When the leaves below the root all fit into one, that leaf becomes
+	 * the root.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: root collapse");
+		boolean status = OK;
+		try {
+			BTreeFile file = new BTreeFile("reorganizer2", AttrType.attrInteger, 4, DeleteFashion.NAIVE_DELETE);
+			for (int i = 0; i < 300; i++)
+				file.insert(new IntegerKey(i), rid(i));
+			for (int i = 0; i < 300; i++)
+				if (i % 30 != 0)
+					file.Delete(new IntegerKey(i), rid(i));
+
+			BTreeReorganizer reorganizer = new BTreeReorganizer(file, FILL);
+			for (int steps = 0; reorganizer.step() && steps < 300; steps++)
+				;
+			BTreeVerifier.Report report = new BTreeVerifier(file, 1).verify();
+			if (!report.isConsistent() || report.entries != 10 || report.leaves != 1
+					|| !indexPages("reorganizer2").isEmpty()) {
+				System.err.println("*** after the pass, " + report);
+				status = FAIL;
+			}
+			List<Integer> expected = new ArrayList<Integer>();
+			for (int i = 0; i < 300; i += 30)
+				expected.add(i);
+			if (!scan(file, null, null).equals(expected)) {
+				System.err.println("*** scan of the collapsed tree differs");
+				status = FAIL;
+			}
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 2 completed successfully.");
+		return status;
+	}
+}
+
+public class ReorganizerTest {
+
+	public static void main(String argv[]) {
+		boolean status = new ReorganizerDriver().runTests();
+		if (status != TestDriver.OK) {
+			System.err.println("Error encountered during reorganizer tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+		Runtime.getRuntime().exit(0);
+	}
+}
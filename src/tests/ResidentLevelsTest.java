@@ -0,0 +1,171 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+
+import global.*;
+import btree.*;
+
+/**
+ * Tests of resident levels (BTreeFile.setResidentLevels): with the top of
+ * the tree pinned, and a log holding dirtied pages, inserts and deletes
+ * give the same results, and closing or destroying the file releases every
+ * pin it took.
+ */
+class ResidentLevelsDriver extends TestDriver implements GlobalConst {
+
+	public ResidentLevelsDriver() {
+		super("residenttest");
+	}
+
+	public boolean runTests() {
+		SystemDefs sysdef = new SystemDefs(dbpath, 10000, 1000, "Clock");
+		return super.runTests();
+	}
+
+	protected String testName() {
+		return "Resident levels";
+	}
+
+	static RID rid(int i) {
+		return new RID(new PageId(1000 + i / 50), i % 50);
+	}
+
+	/*
+	 * Random inserts, then deletes of every other key, through a file with
+	 * two resident levels and a log; returns FAIL if a lookup or the tree
+	 * is wrong.
+	 */
+	static boolean run(BTreeFile file, int n) throws Exception {
+		boolean status = OK;
+		List<Integer> keys = new ArrayList<Integer>();
+		for (int i = 0; i < n; i++)
+			keys.add(i);
+		Collections.shuffle(keys, new Random(n));
+		for (int i = 0; i < n; i++) {
+			file.insert(new IntegerKey(keys.get(i)), rid(keys.get(i)));
+			if (i == n / 10)
+				file.setResidentLevels(2, 50); // the tree has a root by now
+		}
+		if (file.getResidentPageCount() < 2) {
+			System.err.println("*** " + file.getResidentPageCount() + " resident pages");
+			status = FAIL;
+		}
+		for (int key : keys)
+			if (key % 2 == 0)
+				file.Delete(new IntegerKey(key), rid(key));
+		for (int i = 0; i < n; i++) {
+			if (file.lookup(new IntegerKey(i)).size() != i % 2) {
+				System.err.println("*** key " + i + " wrong");
+				return FAIL;
+			}
+		}
+		BTreeVerifier.Report report = new BTreeVerifier(file, 1).verify();
+		if (!report.isConsistent() || report.entries != n / 2) {
+			System.err.println("*** tree: " + report);
+			status = FAIL;
+		}
+		return status;
+	}
+
+	/*
+	 * Closing the file releases the resident pages and the pages held for
+	 * the log, with and without waiting for each commit.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: close with resident levels and a log");
+		boolean status = OK;
+		String logName = logpath + ".1";
+		try {
+			for (int pass = 0; pass < 2; pass++) {
+				int unpinned = SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+				BTreeLog log = new BTreeLog(logName, 2);
+				BTreeFile file = new BTreeFile("resident1." + pass, AttrType.attrInteger, 4,
+						DeleteFashion.FULL_DELETE);
+				file.setLog(log, pass == 0);
+				if (run(file, 6000) != OK)
+					status = FAIL;
+				file.close();
+				log.close();
+				if (SystemDefs.JavabaseBM.getNumUnpinnedBuffers() != unpinned) {
+					System.err.println("*** " + (unpinned - SystemDefs.JavabaseBM.getNumUnpinnedBuffers())
+							+ " pages left pinned after close in pass " + pass);
+					status = FAIL;
+				}
+
+				file = new BTreeFile("resident1." + pass);
+				if (file.lookup(new IntegerKey(1)).size() != 1 || file.lookup(new IntegerKey(2)).size() != 0) {
+					System.err.println("*** file wrong after reopening in pass " + pass);
+					status = FAIL;
+				}
+				file.destroyFile();
+				new File(logName).delete();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			new File(logName).delete();
+		}
+		if (status == OK)
+			System.out.println("  Test 1 completed successfully.");
+		return status;
+	}
+
+	/*
+	 * Turning resident levels off releases the resident pages at once, and
+	 * destroying a file with resident levels and a log releases the rest.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: release and destroy");
+		boolean status = OK;
+		String logName = logpath + ".2";
+		try {
+			int unpinned = SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+			BTreeLog log = new BTreeLog(logName, 2);
+			BTreeFile file = new BTreeFile("resident2", AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE);
+			file.setLog(log, true);
+			if (run(file, 4000) != OK)
+				status = FAIL;
+
+			// left pinned: the header page; each commit waited for the log,
+			// so no page is held for it
+			file.setResidentLevels(0, 0);
+			int pinned = unpinned - SystemDefs.JavabaseBM.getNumUnpinnedBuffers();
+			if (file.getResidentPageCount() != 0 || pinned != 1) {
+				System.err.println("*** " + file.getResidentPageCount() + " resident pages and " + pinned
+						+ " pins after release");
+				status = FAIL;
+			}
+			file.setResidentLevels(2, 50);
+			file.insert(new IntegerKey(-1), rid(0));
+			file.destroyFile();
+			log.close();
+			if (SystemDefs.JavabaseBM.getNumUnpinnedBuffers() != unpinned) {
+				System.err.println("*** " + (unpinned - SystemDefs.JavabaseBM.getNumUnpinnedBuffers())
+						+ " pages left pinned after destroy");
+				status = FAIL;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			new File(logName).delete();
+		}
+		if (status == OK)
+			System.out.println("  Test 2 completed successfully.");
+		return status;
+	}
+}
+
+public class ResidentLevelsTest {
+
+	public static void main(String argv[]) {
+		boolean status = new ResidentLevelsDriver().runTests();
+		if (status != TestDriver.OK) {
+			System.err.println("Error encountered during resident level tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+		Runtime.getRuntime().exit(0);
+	}
+}
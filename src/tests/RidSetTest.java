@@ -0,0 +1,199 @@
+package tests;
+
+import java.util.*;
+
+import global.*;
+import heap.*;
+import btree.*;
+
+/**
+ * Tests of RidSetOperator: intersections and unions of index ranges match
+ * the sets computed from the heap file, and their records come back in rid
+ * order.
+ *
+ * The records of the heap file are two integers, a key unique to the record
+ * and a group; the groups are indexed with posting lists.
+ */
+class RidSetDriver extends TestDriver implements GlobalConst {
+
+	static final int RECORDS = 4000;
+	static final int GROUPS = 10;
+
+	Heapfile heap;
+	BTreeFile byKey;
+	BTreeFile byGroup;
+	RID[] rids = new RID[RECORDS];
+	int[] keys = new int[RECORDS];
+	int[] groups = new int[RECORDS];
+
+	public RidSetDriver() {
+		super("ridsettest");
+	}
+
+	public boolean runTests() {
+		SystemDefs sysdef = new SystemDefs(dbpath, 10000, 1000, "Clock");
+		return super.runTests();
+	}
+
+	protected String testName() {
+		return "Rid set";
+	}
+
+	static long pack(RID rid) {
+		return (long) rid.pageNo.pid << 32 | rid.slotNo;
+	}
+
+	void create() throws Exception {
+		heap = new Heapfile("ridset.heap");
+		byKey = new BTreeFile("ridset.key", AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE);
+		byGroup = new BTreeFile("ridset.group", AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE,
+				IndexFlags.POSTING_LIST);
+		Random random = new Random(RECORDS);
+		for (int i = 0; i < RECORDS; i++) {
+			keys[i] = random.nextInt(RECORDS);
+			groups[i] = random.nextInt(GROUPS);
+			byte[] record = new byte[8];
+			Convert.setIntValue(keys[i], 0, record);
+			Convert.setIntValue(groups[i], 4, record);
+			rids[i] = heap.insertRecord(record);
+			byKey.insert(new IntegerKey(keys[i]), rids[i]);
+			byGroup.insert(new IntegerKey(groups[i]), rids[i]);
+		}
+	}
+
+	/*
+	 * the packed rids of the records with keyLo <= key <= keyHi, and with
+	 * group in [groupLo, groupHi] if intersect, or in it otherwise
+	 */
+	List<Long> expected(int keyLo, int keyHi, int groupLo, int groupHi, boolean intersect) {
+		TreeSet<Long> set = new TreeSet<Long>();
+		for (int i = 0; i < RECORDS; i++) {
+			boolean inKeys = keys[i] >= keyLo && keys[i] <= keyHi;
+			boolean inGroups = groups[i] >= groupLo && groups[i] <= groupHi;
+			if (intersect ? inKeys && inGroups : inKeys || inGroups)
+				set.add(pack(rids[i]));
+		}
+		return new ArrayList<Long>(set);
+	}
+
+	static List<Long> packAll(List<RID> rids) {
+		List<Long> packed = new ArrayList<Long>();
+		for (RID rid : rids)
+			packed.add(pack(rid));
+		return packed;
+	}
+
+	/*
+	 * Intersections and unions of a key range and a group range, some of
+	 * them empty.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: intersect and union");
+		boolean status = OK;
+		int[][] ranges = { { 1000, 2999, 3, 3 }, { 0, RECORDS, 0, GROUPS }, { 500, 520, 2, 6 },
+				{ RECORDS + 1, RECORDS + 9, 1, 1 }, { 0, 99, GROUPS + 1, GROUPS + 1 } };
+		try {
+			create();
+			for (int[] r : ranges) {
+				for (int op = 0; op < 2; op++) {
+					RidSetOperator operator = new RidSetOperator(
+							op == 0 ? RidSetOperator.INTERSECT : RidSetOperator.UNION);
+					operator.addRange(byKey, new IntegerKey(r[0]), new IntegerKey(r[1]));
+					operator.addRange(byGroup, new IntegerKey(r[2]), new IntegerKey(r[3]));
+					if (!packAll(operator.getRids()).equals(expected(r[0], r[1], r[2], r[3], op == 0))) {
+						System.err.println("*** " + (op == 0 ? "intersection" : "union") + " of keys " + r[0]
+								+ ".." + r[1] + " and groups " + r[2] + ".." + r[3] + " differs");
+						status = FAIL;
+					}
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 1 completed successfully.");
+		return status;
+	}
+
+	/*
+	 * The heap scan of a result returns its records in rid order.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: heap scan of a result");
+		boolean status = OK;
+		try {
+			if (heap == null)
+				create();
+			RidSetOperator operator = new RidSetOperator(RidSetOperator.INTERSECT);
+			operator.addRange(byGroup, new IntegerKey(4), new IntegerKey(4));
+			operator.addRange(byKey, null, new IntegerKey(RECORDS / 2));
+			List<Long> expected = expected(0, RECORDS / 2, 4, 4, true);
+
+			RidSortedScan scan = operator.new_heap_scan();
+			RID rid = new RID();
+			int n = 0;
+			for (Tuple tuple = scan.get_next(rid); tuple != null; tuple = scan.get_next(rid)) {
+				byte[] record = tuple.getTupleByteArray();
+				if (n >= expected.size() || pack(rid) != expected.get(n) || Convert.getIntValue(4, record) != 4
+						|| Convert.getIntValue(0, record) > RECORDS / 2) {
+					System.err.println("*** record " + n + " of the scan is wrong");
+					status = FAIL;
+					break;
+				}
+				n++;
+			}
+			scan.DestroyRidSortedScan();
+			if (status == OK && n != expected.size()) {
+				System.err.println("*** scan returned " + n + " records, expected " + expected.size());
+				status = FAIL;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 2 completed successfully.");
+		return status;
+	}
+
+	/*
+	 * An operation other than INTERSECT and UNION is refused.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: unknown operation");
+		boolean status = OK;
+		try {
+			try {
+				new RidSetOperator(7);
+				System.err.println("*** unknown operation accepted");
+				status = FAIL;
+			} catch (RidSetException e) {
+				// expected
+			}
+			if (byKey != null) {
+				byKey.destroyFile();
+				byGroup.destroyFile();
+				heap.deleteFile();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 3 completed successfully.");
+		return status;
+	}
+}
+
+public class RidSetTest {
+
+	public static void main(String argv[]) {
+		boolean status = new RidSetDriver().runTests();
+		if (status != TestDriver.OK) {
+			System.err.println("Error encountered during rid set tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+		Runtime.getRuntime().exit(0);
+	}
+}
@@ -0,0 +1,157 @@
+package tests;
+
+import java.util.*;
+
+import global.*;
+import heap.*;
+import btree.*;
+
+/**
+ * Tests of RidSortedScan (BTreeFile.new_rid_sorted_scan): every record of
+ * the range comes back once, in rid order within a batch.
+ */
+class RidSortedScanDriver extends TestDriver implements GlobalConst {
+
+	static final int RECORDS = 3000;
+
+	Heapfile heap;
+	RID[] rids = new RID[RECORDS];
+	int[] keys = new int[RECORDS];
+
+	public RidSortedScanDriver() {
+		super("ridsortedtest");
+	}
+
+	public boolean runTests() {
+		SystemDefs sysdef = new SystemDefs(dbpath, 10000, 1000, "Clock");
+		return super.runTests();
+	}
+
+	protected String testName() {
+		return "Rid sorted scan";
+	}
+
+	static long pack(RID rid) {
+		return (long) rid.pageNo.pid << 32 | rid.slotNo;
+	}
+
+	/*
+	 * Index the records, whose keys repeat about ten times each.
+	 */
+	BTreeFile create(String name, int flags) throws Exception {
+		if (heap == null) {
+			heap = new Heapfile("ridsorted.heap");
+			Random random = new Random(RECORDS);
+			for (int i = 0; i < RECORDS; i++) {
+				keys[i] = random.nextInt(RECORDS / 10);
+				byte[] record = new byte[4];
+				Convert.setIntValue(keys[i], 0, record);
+				rids[i] = heap.insertRecord(record);
+			}
+		}
+		BTreeFile file = new BTreeFile(name, AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE, flags);
+		for (int i = 0; i < RECORDS; i++)
+			file.insert(new IntegerKey(keys[i]), rids[i]);
+		return file;
+	}
+
+	/*
+	 * Scan [lo, hi] in batches of batchSize and check the records against
+	 * the heap file; with one batch for all, the whole scan is in rid order.
+	 */
+	boolean check(BTreeFile file, int lo, int hi, int batchSize) throws Exception {
+		Set<Long> expected = new HashSet<Long>();
+		for (int i = 0; i < RECORDS; i++)
+			if (keys[i] >= lo && keys[i] <= hi)
+				expected.add(pack(rids[i]));
+
+		Set<Long> found = new HashSet<Long>();
+		boolean sorted = true;
+		long previous = -1;
+		RidSortedScan scan = file.new_rid_sorted_scan(new IntegerKey(lo), new IntegerKey(hi), batchSize);
+		RID rid = new RID();
+		for (Tuple tuple = scan.get_next(rid); tuple != null; tuple = scan.get_next(rid)) {
+			int key = Convert.getIntValue(0, tuple.getTupleByteArray());
+			if (key < lo || key > hi || !found.add(pack(rid))) {
+				System.err.println("*** record " + rid.pageNo.pid + "/" + rid.slotNo + " out of range or repeated");
+				scan.DestroyRidSortedScan();
+				return FAIL;
+			}
+			sorted &= pack(rid) > previous;
+			previous = pack(rid);
+		}
+		scan.DestroyRidSortedScan();
+		if (!found.equals(expected)) {
+			System.err.println("*** scan of " + lo + ".." + hi + " returned " + found.size() + " records, expected "
+					+ expected.size());
+			return FAIL;
+		}
+		if (batchSize >= RECORDS && !sorted) {
+			System.err.println("*** scan of " + lo + ".." + hi + " in one batch not in rid order");
+			return FAIL;
+		}
+		return OK;
+	}
+
+	/*
+	 * Ranges of a plain index, in small and large batches.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: plain index");
+		boolean status = OK;
+		int[] batches = { 1, 7, 64, RECORDS };
+		try {
+			BTreeFile file = create("ridsorted1", 0);
+			for (int batchSize : batches) {
+				if (check(file, 0, RECORDS, batchSize) != OK || check(file, 50, 120, batchSize) != OK
+						|| check(file, 77, 77, batchSize) != OK || check(file, RECORDS, RECORDS, batchSize) != OK)
+					status = FAIL;
+			}
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 1 completed successfully.");
+		return status;
+	}
+
+	/*
+	 * The same ranges of a POSTING_LIST index, whose posting lists are
+	 * longer than the small batches.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: posting list index");
+		boolean status = OK;
+		int[] batches = { 1, 7, 64, RECORDS };
+		try {
+			BTreeFile file = create("ridsorted2", IndexFlags.POSTING_LIST);
+			for (int batchSize : batches) {
+				if (check(file, 0, RECORDS, batchSize) != OK || check(file, 50, 120, batchSize) != OK
+						|| check(file, 77, 77, batchSize) != OK)
+					status = FAIL;
+			}
+			file.destroyFile();
+			heap.deleteFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 2 completed successfully.");
+		return status;
+	}
+}
+
+public class RidSortedScanTest {
+
+	public static void main(String argv[]) {
+		boolean status = new RidSortedScanDriver().runTests();
+		if (status != TestDriver.OK) {
+			System.err.println("Error encountered during rid sorted scan tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+		Runtime.getRuntime().exit(0);
+	}
+}
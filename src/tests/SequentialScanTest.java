@@ -0,0 +1,141 @@
+package tests;
+
+import java.util.*;
+
+import global.*;
+import btree.*;
+
+/**
+ * Tests of SequentialScan, which reads the leaves after the first one from
+ * disk into a frame of its own: it returns the same entries as a scan
+ * through the buffer pool, also when pages changed in the pool are not on
+ * disk yet.
+ */
+class SequentialScanDriver extends TestDriver implements GlobalConst {
+
+	public SequentialScanDriver() {
+		super("seqscantest");
+	}
+
+	public boolean runTests() {
+		SystemDefs sysdef = new SystemDefs(dbpath, 10000, 1000, "Clock");
+		return super.runTests();
+	}
+
+	protected String testName() {
+		return "Sequential scan";
+	}
+
+	static RID rid(int i) {
+		return new RID(new PageId(1000 + i / 50), i % 50);
+	}
+
+	/*
+	 * the keys a sequential scan from lo to hi returns
+	 */
+	static List<Integer> scan(BTreeFile file, Integer lo, Integer hi) throws Exception {
+		List<Integer> found = new ArrayList<Integer>();
+		SequentialScan scan = file.new_sequential_scan(lo == null ? null : new IntegerKey(lo),
+				hi == null ? null : new IntegerKey(hi));
+		for (KeyDataEntry entry = scan.get_next(); entry != null; entry = scan.get_next())
+			found.add(((IntegerKey) entry.key).getKey());
+		return found;
+	}
+
+	/*
+	 * the keys of [lo, hi] in keys
+	 */
+	static List<Integer> range(TreeSet<Integer> keys, int lo, int hi) {
+		return new ArrayList<Integer>(keys.subSet(lo, true, hi, true));
+	}
+
+	/*
+	 * Full and range scans of a file changed through the same object.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: scans after updates");
+		boolean status = OK;
+		try {
+			BTreeFile file = new BTreeFile("seqscan1", AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE);
+			TreeSet<Integer> keys = new TreeSet<Integer>();
+			for (int i = 0; i < 5000; i++) {
+				file.insert(new IntegerKey(i), rid(i));
+				keys.add(i);
+			}
+			for (int i = 0; i < 5000; i += 3) {
+				file.Delete(new IntegerKey(i), rid(i));
+				keys.remove(i);
+			}
+			if (!scan(file, null, null).equals(new ArrayList<Integer>(keys))
+					|| !scan(file, 1000, 3999).equals(range(keys, 1000, 3999))) {
+				System.err.println("*** scan differs after updates");
+				status = FAIL;
+			}
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 1 completed successfully.");
+		return status;
+	}
+
+	/*
+	 * A scan through one object sees the changes made through another
+	 * object open on the same file, whose pages are newer in the pool than
+	 * on disk.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: scan after updates through a second object");
+		boolean status = OK;
+		try {
+			BTreeFile file = new BTreeFile("seqscan2", AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE);
+			TreeSet<Integer> keys = new TreeSet<Integer>();
+			for (int i = 0; i < 5000; i += 2) {
+				file.insert(new IntegerKey(i), rid(i));
+				keys.add(i);
+			}
+			file.close(); // the pages are on disk now
+			file = new BTreeFile("seqscan2");
+
+			BTreeFile other = new BTreeFile("seqscan2");
+			for (int i = 1; i < 5000; i += 4) {
+				other.insert(new IntegerKey(i), rid(i));
+				keys.add(i);
+			}
+			for (int i = 0; i < 5000; i += 10) {
+				other.Delete(new IntegerKey(i), rid(i));
+				keys.remove(i);
+			}
+			if (!scan(file, null, null).equals(new ArrayList<Integer>(keys))) {
+				System.err.println("*** full scan misses changes made through the other object");
+				status = FAIL;
+			}
+			if (!scan(file, 2000, 2999).equals(range(keys, 2000, 2999))) {
+				System.err.println("*** range scan misses changes made through the other object");
+				status = FAIL;
+			}
+			other.close();
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 2 completed successfully.");
+		return status;
+	}
+}
+
+public class SequentialScanTest {
+
+	public static void main(String argv[]) {
+		boolean status = new SequentialScanDriver().runTests();
+		if (status != TestDriver.OK) {
+			System.err.println("Error encountered during sequential scan tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+		Runtime.getRuntime().exit(0);
+	}
+}
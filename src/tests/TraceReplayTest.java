@@ -0,0 +1,140 @@
+package tests;
+
+import java.io.*;
+import java.util.*;
+
+import global.*;
+import btree.*;
+
+/**
+ * Tests of TraceReplay: replaying the trace in replay.trace (in the directory
+ * the tests run from) counts its inserts, deletes, deletes of missing
+ * entries and traced splits, and leaves the tree the trace describes; a
+ * malformed line stops the replay with an error naming the line.
+ */
+class TraceReplayDriver extends TestDriver implements GlobalConst {
+
+	static final String TRACE = "replay.trace";
+
+	public TraceReplayDriver() {
+		super("replaytest");
+	}
+
+	public boolean runTests() {
+		SystemDefs sysdef = new SystemDefs(dbpath, 10000, 1000, "Clock");
+		return super.runTests();
+	}
+
+	protected String testName() {
+		return "Trace replay";
+	}
+
+	/*
+	 * the integer keys of a file, in scan order
+	 */
+	static List<Integer> scan(BTreeFile file) throws Exception {
+		List<Integer> found = new ArrayList<Integer>();
+		BTFileScan scan = file.new_scan(null, null);
+		for (KeyDataEntry entry = scan.get_next(); entry != null; entry = scan.get_next())
+			found.add(((IntegerKey) entry.key).getKey());
+		scan.DestroyBTreeFileScan();
+		return found;
+	}
+
+	/*
+	 * The fixture: 8 inserts, 4 deletes of which 2 find nothing, 3 traced
+	 * splits, and lines of the trace that are not operations.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: replay of a trace");
+		boolean status = OK;
+		try {
+			TraceReplay.Statistics stats = TraceReplay.replay(TRACE, "replay1", AttrType.attrInteger, 4, 0);
+			if (stats.inserts != 8 || stats.deletes != 4 || stats.failedDeletes != 2 || stats.tracedSplits != 3) {
+				System.err.println("*** wrong counts: " + stats);
+				status = FAIL;
+			}
+			if (SystemDefs.JavabaseDB.get_file_entry("replay1") != null) {
+				System.err.println("*** replay file not destroyed");
+				status = FAIL;
+			}
+
+			BTreeFile file = new BTreeFile("replay2", AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE);
+			stats = new TraceReplay(file, 0).replay(TRACE);
+			if (stats.inserts != 8 || stats.deletes != 4) {
+				System.err.println("*** wrong counts: " + stats);
+				status = FAIL;
+			}
+			if (!scan(file).equals(Arrays.asList(-5, 0, 10, 30, 40, 50))) {
+				System.err.println("*** tree after the replay holds " + scan(file));
+				status = FAIL;
+			}
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 1 completed successfully.");
+		return status;
+	}
+
+	/*
+	 * Lines with a missing field, a rid that is not a number and a key that
+	 * is not a number, each as the third line of a trace: the replay fails
+	 * naming line 3, after applying the two lines before it.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: malformed lines");
+		boolean status = OK;
+		String[] malformed = { "INSERT 1000 2", "DELETE 1000 x 1", "INSERT 1000 2 ten" };
+		String traceName = logpath + ".trace";
+		try {
+			for (int i = 0; i < malformed.length; i++) {
+				PrintWriter out = new PrintWriter(new FileWriter(traceName));
+				out.println("INSERT 1000 0 1");
+				out.println("INSERT 1000 1 2");
+				out.println(malformed[i]);
+				out.println("INSERT 1000 3 3");
+				out.close();
+
+				BTreeFile file = new BTreeFile("replay3." + i, AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE);
+				try {
+					new TraceReplay(file, 0).replay(traceName);
+					System.err.println("*** malformed line " + malformed[i] + " replayed");
+					status = FAIL;
+				} catch (TraceReplayException e) {
+					if (e.getMessage() == null || !e.getMessage().contains("line 3")) {
+						System.err.println("*** error for " + malformed[i] + ": " + e.getMessage());
+						status = FAIL;
+					}
+				}
+				if (!scan(file).equals(Arrays.asList(1, 2))) {
+					System.err.println("*** tree holds " + scan(file) + " after " + malformed[i]);
+					status = FAIL;
+				}
+				file.destroyFile();
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		} finally {
+			new File(traceName).delete();
+		}
+		if (status == OK)
+			System.out.println("  Test 2 completed successfully.");
+		return status;
+	}
+}
+
+public class TraceReplayTest {
+
+	public static void main(String argv[]) {
+		boolean status = new TraceReplayDriver().runTests();
+		if (status != TestDriver.OK) {
+			System.err.println("Error encountered during trace replay tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+		Runtime.getRuntime().exit(0);
+	}
+}
@@ -0,0 +1,190 @@
+package tests;
+
+import java.util.*;
+
+import global.*;
+import btree.*;
+
+/**
+ * Tests of UNIQUE files and of insertIfAbsent and upsert.
+ */
+class UniqueDriver extends TestDriver implements GlobalConst {
+
+	public UniqueDriver() {
+		super("uniquetest");
+	}
+
+	public boolean runTests() {
+		SystemDefs sysdef = new SystemDefs(dbpath, 10000, 1000, "Clock");
+		return super.runTests();
+	}
+
+	protected String testName() {
+		return "Unique index";
+	}
+
+	static RID rid(int i) {
+		return new RID(new PageId(1000 + i / 50), i % 50);
+	}
+
+	static boolean same(RID a, RID b) {
+		return a != null && b != null && a.pageNo.pid == b.pageNo.pid && a.slotNo == b.slotNo;
+	}
+
+	/*
+	 * A second insert of a key of a UNIQUE file fails and leaves the first
+	 * entry alone.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: duplicate insert into a unique file");
+		boolean status = OK;
+		try {
+			BTreeFile file = new BTreeFile("unique1", AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE,
+					IndexFlags.UNIQUE);
+			for (int i = 0; i < 1000; i++)
+				file.insert(new IntegerKey(i), rid(i));
+			for (int i = 0; i < 1000; i += 37) {
+				try {
+					file.insert(new IntegerKey(i), rid(i + 5000));
+					System.err.println("*** duplicate key " + i + " accepted");
+					status = FAIL;
+				} catch (InsertException e) {
+					// expected
+				}
+				List<RID> found = file.lookup(new IntegerKey(i));
+				if (found.size() != 1 || !same(found.get(0), rid(i))) {
+					System.err.println("*** key " + i + " has " + found.size() + " rids after a duplicate insert");
+					status = FAIL;
+				}
+			}
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 1 completed successfully.");
+		return status;
+	}
+
+	/*
+	 * insertIfAbsent inserts a key once.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: insertIfAbsent");
+		boolean status = OK;
+		try {
+			BTreeFile file = new BTreeFile("unique2", AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE);
+			Random random = new Random(2);
+			Set<Integer> present = new HashSet<Integer>();
+			for (int n = 0; n < 3000; n++) {
+				int key = random.nextInt(1000);
+				boolean inserted = file.insertIfAbsent(new IntegerKey(key), rid(n));
+				if (inserted != present.add(key)) {
+					System.err.println("*** insertIfAbsent of key " + key + " returned " + inserted);
+					status = FAIL;
+				}
+			}
+			for (int key : present) {
+				if (file.lookup(new IntegerKey(key)).size() != 1) {
+					System.err.println("*** key " + key + " not found exactly once");
+					status = FAIL;
+				}
+			}
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 2 completed successfully.");
+		return status;
+	}
+
+	/*
+	 * upsert replaces the rid of a present key and returns the old one.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: upsert");
+		boolean status = OK;
+		try {
+			BTreeFile file = new BTreeFile("unique3", AttrType.attrString, 20, DeleteFashion.FULL_DELETE,
+					IndexFlags.UNIQUE);
+			Map<Integer, Integer> current = new HashMap<Integer, Integer>();
+			Random random = new Random(3);
+			for (int n = 0; n < 3000; n++) {
+				int key = random.nextInt(500);
+				RID previous = file.upsert(new StringKey("key" + key), rid(n));
+				Integer expected = current.put(key, n);
+				if (expected == null ? previous != null : !same(previous, rid(expected))) {
+					System.err.println("*** upsert of key " + key + " returned the wrong previous rid");
+					status = FAIL;
+				}
+			}
+			for (Map.Entry<Integer, Integer> entry : current.entrySet()) {
+				List<RID> found = file.lookup(new StringKey("key" + entry.getKey()));
+				if (found.size() != 1 || !same(found.get(0), rid(entry.getValue()))) {
+					System.err.println("*** key " + entry.getKey() + " does not have its last rid");
+					status = FAIL;
+				}
+			}
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 3 completed successfully.");
+		return status;
+	}
+
+	/*
+	 * insertIfAbsent and upsert are refused on a POSTING_LIST file.
+	 */
+	protected boolean test4() {
+		System.out.println("\n  Test 4: insertIfAbsent and upsert on a posting list file");
+		boolean status = OK;
+		try {
+			BTreeFile file = new BTreeFile("unique4", AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE,
+					IndexFlags.POSTING_LIST);
+			file.insert(new IntegerKey(1), rid(1));
+			try {
+				file.insertIfAbsent(new IntegerKey(2), rid(2));
+				System.err.println("*** insertIfAbsent accepted");
+				status = FAIL;
+			} catch (InsertException e) {
+				// expected
+			}
+			try {
+				file.upsert(new IntegerKey(1), rid(3));
+				System.err.println("*** upsert accepted");
+				status = FAIL;
+			} catch (InsertException e) {
+				// expected
+			}
+			if (file.lookup(new IntegerKey(1)).size() != 1 || !file.lookup(new IntegerKey(2)).isEmpty()) {
+				System.err.println("*** refused operation changed the file");
+				status = FAIL;
+			}
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 4 completed successfully.");
+		return status;
+	}
+}
+
+public class UniqueTest {
+
+	public static void main(String argv[]) {
+		boolean status = new UniqueDriver().runTests();
+		if (status != TestDriver.OK) {
+			System.err.println("Error encountered during unique index tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+		Runtime.getRuntime().exit(0);
+	}
+}
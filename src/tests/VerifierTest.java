@@ -0,0 +1,220 @@
+package tests;
+
+import java.util.*;
+
+import diskmgr.*;
+import global.*;
+import heap.*;
+import btree.*;
+
+/**
+ * Tests of BTreeVerifier: a sound tree passes, a damaged leaf is found and
+ * repaired, and a tree whose only page is damaged is not dropped.
+ *
+ * Pages are damaged in place through the buffer manager. The root is the
+ * next page of the header page, and an entry of an integer key starts with
+ * the key.
+ */
+class VerifierDriver extends TestDriver implements GlobalConst {
+
+	public VerifierDriver() {
+		super("verifiertest");
+	}
+
+	public boolean runTests() {
+		SystemDefs sysdef = new SystemDefs(dbpath, 10000, 1000, "Clock");
+		return super.runTests();
+	}
+
+	protected String testName() {
+		return "Verifier";
+	}
+
+	static RID rid(int i) {
+		return new RID(new PageId(1000 + i / 50), i % 50);
+	}
+
+	static BTreeFile fill(String name, int n) throws Exception {
+		BTreeFile file = new BTreeFile(name, AttrType.attrInteger, 4, DeleteFashion.FULL_DELETE);
+		List<Integer> keys = new ArrayList<Integer>();
+		for (int i = 0; i < n; i++)
+			keys.add(i);
+		Collections.shuffle(keys, new Random(n));
+		for (int key : keys)
+			file.insert(new IntegerKey(key), rid(key));
+		return file;
+	}
+
+	static PageId root(String name) throws Exception {
+		PageId headerId = SystemDefs.JavabaseDB.get_file_entry(name);
+		Page page = new Page();
+		SystemDefs.JavabaseBM.pinPage(headerId, page, false);
+		PageId root = new HFPage(page).getNextPage();
+		SystemDefs.JavabaseBM.unpinPage(headerId, false);
+		return root;
+	}
+
+	/*
+	 * Overwrite the first key of a leaf below the root, not the leftmost
+	 * one, with Integer.MAX_VALUE.
+	 *
+	 * @return the key overwritten
+	 */
+	static int damageLeaf(String name) throws Exception {
+		PageId pageno = root(name);
+		while (true) {
+			Page page = new Page();
+			SystemDefs.JavabaseBM.pinPage(pageno, page, false);
+			HFPage hfpage = new HFPage(page);
+			Tuple record = hfpage.returnRecord(hfpage.firstRecord());
+			byte[] data = record.returnTupleByteArray();
+			if (hfpage.getType() == NodeType.LEAF) {
+				int key = Convert.getIntValue(record.getOffset(), data);
+				Convert.setIntValue(Integer.MAX_VALUE, record.getOffset(), data);
+				SystemDefs.JavabaseBM.unpinPage(pageno, true);
+				return key;
+			}
+			PageId child = new PageId(Convert.getIntValue(record.getOffset() + 4, data));
+			SystemDefs.JavabaseBM.unpinPage(pageno, false);
+			pageno = child;
+		}
+	}
+
+	/*
+	 * A sound tree is consistent and counts every entry; repair has nothing
+	 * to do.
+	 */
+	protected boolean test1() {
+		System.out.println("\n  Test 1: verify a sound tree");
+		boolean status = OK;
+		try {
+			BTreeFile file = fill("verifier1", 3000);
+			for (int i = 0; i < 3000; i += 4)
+				file.Delete(new IntegerKey(i), rid(i));
+
+			BTreeVerifier verifier = new BTreeVerifier(file, 4);
+			BTreeVerifier.Report report = verifier.verify();
+			if (!report.isConsistent() || report.entries != 2250 || report.leaves < 2) {
+				System.err.println("*** " + report);
+				status = FAIL;
+			}
+			if (verifier.repair(report) != 0) {
+				System.err.println("*** repair of a sound tree re-inserted entries");
+				status = FAIL;
+			}
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 1 completed successfully.");
+		return status;
+	}
+
+	/*
+	 * A leaf with a key out of order is reported; repair rebuilds its
+	 * subtree and keeps every entry.
+	 */
+	protected boolean test2() {
+		System.out.println("\n  Test 2: find and repair a damaged leaf");
+		boolean status = OK;
+		int n = 3000;
+		try {
+			BTreeFile file = fill("verifier2", n);
+			file.close();
+			int damaged = damageLeaf("verifier2");
+			file = new BTreeFile("verifier2");
+
+			BTreeVerifier verifier = new BTreeVerifier(file, 4);
+			BTreeVerifier.Report report = verifier.verify();
+			if (report.isConsistent() || report.damagedRoot || report.damagedSubtrees.isEmpty()) {
+				System.err.println("*** damage not found: " + report);
+				status = FAIL;
+			}
+			if (verifier.repair(report) == 0) {
+				System.err.println("*** repair re-inserted nothing");
+				status = FAIL;
+			}
+			report = verifier.verify();
+			if (!report.isConsistent() || report.entries != n) {
+				System.err.println("*** after repair: " + report);
+				status = FAIL;
+			}
+			for (int i = 0; i < n; i++) {
+				if (i != damaged && file.lookup(new IntegerKey(i)).size() != 1) {
+					System.err.println("*** key " + i + " lost by the repair");
+					status = FAIL;
+				}
+			}
+			if (file.lookup(new IntegerKey(Integer.MAX_VALUE)).size() != 1) {
+				System.err.println("*** damaged entry lost by the repair");
+				status = FAIL;
+			}
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 2 completed successfully.");
+		return status;
+	}
+
+	/*
+	 * A damaged root with nothing readable below it is reported, and repair
+	 * refuses to drop the index.
+	 */
+	protected boolean test3() {
+		System.out.println("\n  Test 3: damaged root");
+		boolean status = OK;
+		try {
+			BTreeFile file = fill("verifier3", 10);
+			file.close();
+			PageId root = root("verifier3");
+			Page page = new Page();
+			SystemDefs.JavabaseBM.pinPage(root, page, false);
+			short type = new HFPage(page).getType();
+			new HFPage(page).setType((short) 999);
+			SystemDefs.JavabaseBM.unpinPage(root, true);
+			file = new BTreeFile("verifier3");
+
+			BTreeVerifier verifier = new BTreeVerifier(file, 2);
+			BTreeVerifier.Report report = verifier.verify();
+			if (!report.damagedRoot) {
+				System.err.println("*** damaged root not found: " + report);
+				status = FAIL;
+			}
+			try {
+				verifier.repair(report);
+				System.err.println("*** repair of an unreadable root went ahead");
+				status = FAIL;
+			} catch (BTreeRepairException e) {
+				// expected
+			}
+
+			SystemDefs.JavabaseBM.pinPage(root, page, false);
+			new HFPage(page).setType(type);
+			SystemDefs.JavabaseBM.unpinPage(root, true);
+			file.destroyFile();
+		} catch (Exception e) {
+			e.printStackTrace();
+			return FAIL;
+		}
+		if (status == OK)
+			System.out.println("  Test 3 completed successfully.");
+		return status;
+	}
+}
+
+public class VerifierTest {
+
+	public static void main(String argv[]) {
+		boolean status = new VerifierDriver().runTests();
+		if (status != TestDriver.OK) {
+			System.err.println("Error encountered during verifier tests:\n");
+			Runtime.getRuntime().exit(1);
+		}
+		Runtime.getRuntime().exit(0);
+	}
+}